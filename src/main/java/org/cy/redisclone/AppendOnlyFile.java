@@ -0,0 +1,275 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file persistence: every write to the keyspace is logged as the RESP
+ * command that reproduces it, and the log is replayed at startup.
+ * <p>
+ * Request threads only encode their command into an in-memory buffer. A dedicated writer
+ * thread swaps that buffer for an empty one and writes it to the file, so however many
+ * commands arrived in the meantime go out in one write and, when due, share one fsync:
+ * <ul>
+ * <li>{@code always}: every batch is fsynced, and a connection that wrote waits for the
+ * fsync covering its commands before its replies are sent.</li>
+ * <li>{@code everysec}: the writer fsyncs at most once a second; request threads never
+ * wait.</li>
+ * <li>{@code no}: the file is written but fsync is left to the operating system.</li>
+ * </ul>
+ */
+public class AppendOnlyFile implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(AppendOnlyFile.class.getName());
+    private static final long EVERYSEC_INTERVAL_MILLIS = 1000;
+    private static final int LOAD_CHUNK_SIZE = 1 << 20;
+
+    public enum Fsync {
+        ALWAYS,
+        EVERYSEC,
+        NO;
+
+        public static Fsync fromString(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private final Path path;
+    private final Fsync fsync;
+    private final FileChannel channel;
+    private final Thread writer;
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private ReplyBuffer buffer = new ReplyBuffer();
+    private ReplyBuffer spare = new ReplyBuffer();
+    private long appendedSeq;
+    private long writtenSeq;
+    private long syncedSeq;
+    private long lastSyncMillis = System.currentTimeMillis();
+    private IOException failure;
+    private boolean closed;
+
+    public AppendOnlyFile(Path path, Fsync fsync) throws IOException {
+        this.path = path;
+        this.fsync = fsync;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = new Thread(this::writeLoop, "redis-aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Fsync getFsync() {
+        return fsync;
+    }
+
+    /**
+     * Logs one command. The arguments are encoded before this returns, so callers may
+     * reuse them.
+     */
+    public void append(byte[]... args) {
+        long seq;
+        synchronized (this) {
+            boolean wasEmpty = buffer.isEmpty();
+            RESPHandler.writeArrayHeader(buffer, args.length);
+            for (byte[] arg : args) {
+                RESPHandler.writeBulk(buffer, arg);
+            }
+            seq = ++appendedSeq;
+            if (wasEmpty) {
+                // The writer only sleeps on an empty buffer
+                notifyAll();
+            }
+        }
+        lastAppended.get()[0] = seq;
+    }
+
+    /**
+     * Hands over the position of the last command this thread logged, for a thread that
+     * logged on another's behalf, and forgets it here.
+     *
+     * @return the position, 0 if none is pending
+     */
+    long takeAppended() {
+        long[] last = lastAppended.get();
+        long seq = last[0];
+        last[0] = 0;
+        return seq;
+    }
+
+    /**
+     * Makes {@link #awaitDurable()} on this thread also wait for a command logged by
+     * another thread on its behalf.
+     */
+    void recordAppended(long seq) {
+        long[] last = lastAppended.get();
+        last[0] = Math.max(last[0], seq);
+    }
+
+    /**
+     * Refuses writes once the log could not be written, as Redis does, rather than
+     * accepting changes that would be lost on restart.
+     *
+     * @throws RedisException with a {@code MISCONF} error
+     */
+    public synchronized void checkWritable() {
+        if (failure != null) {
+            throw new RedisException("MISCONF Errors writing to the AOF file: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * With {@code always}, waits until every command this thread logged is on disk;
+     * otherwise returns at once. Called before replies are sent.
+     */
+    public void awaitDurable() {
+        if (fsync != Fsync.ALWAYS) {
+            return;
+        }
+        long[] last = lastAppended.get();
+        if (last[0] == 0) {
+            return;
+        }
+        synchronized (this) {
+            while (syncedSeq < last[0] && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        last[0] = 0;
+    }
+
+    /**
+     * Writes and fsyncs everything logged so far, then stops the writer.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ReplyBuffer batch;
+                long seq;
+                boolean stopping;
+                synchronized (this) {
+                    while (buffer.isEmpty() && !closed && !syncDue()) {
+                        wait(fsync == Fsync.EVERYSEC ? EVERYSEC_INTERVAL_MILLIS : 0);
+                    }
+                    batch = buffer;
+                    buffer = spare;
+                    spare = batch;
+                    seq = appendedSeq;
+                    stopping = closed;
+                }
+                while (!batch.writeTo(channel)) {
+                    // A file channel may write less than asked; keep going until the batch is out
+                }
+                writtenSeq = seq;
+                boolean sync = fsync == Fsync.ALWAYS || syncDue() || stopping;
+                if (sync) {
+                    channel.force(false);
+                    lastSyncMillis = System.currentTimeMillis();
+                }
+                synchronized (this) {
+                    if (sync) {
+                        syncedSeq = seq;
+                    }
+                    notifyAll();
+                    if (stopping && buffer.isEmpty()) {
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Writing the AOF failed, writes are no longer persisted", e);
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean syncDue() {
+        return fsync == Fsync.EVERYSEC && writtenSeq > syncedSeq
+                && System.currentTimeMillis() - lastSyncMillis >= EVERYSEC_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Replays a log into a service through the regular command path. The file is read in
+     * large chunks straight into the parser's buffer. A command cut short by a crash at
+     * the end of the file is dropped, and the file truncated after the last complete one,
+     * as Redis does with {@code aof-load-truncated}. A command that fails on replay stops
+     * the load, as Redis refuses to start from such a file.
+     *
+     * @return the number of commands replayed
+     * @throws IOException if the file cannot be read or a command in it fails
+     */
+    public static long load(Path path, RedisLikeService service) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        CommandParser parser = new CommandParser(LOAD_CHUNK_SIZE);
+        CommandExecutor executor = new CommandExecutor(service, new ConcurrentHashMap<>(), new InetSocketAddress(0));
+        ReplyBuffer replies = new ReplyBuffer();
+        long commands = 0;
+        long bytesRead = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = file.read(parser.writableBuffer())) != -1) {
+                bytesRead += read;
+                CommandArgs command;
+                while ((command = parser.next()) != null) {
+                    int mark = replies.mark();
+                    executor.executeCommand(command, replies);
+                    commands++;
+                    // Only writes that succeeded are logged, so a failing one means the
+                    // keyspace would come back different from what was acknowledged
+                    String error = replies.errorAt(mark);
+                    if (error != null) {
+                        throw new IOException("AOF " + path + " command " + commands + " failed on replay: " + error);
+                    }
+                }
+                replies.writeTo(OutputStream.nullOutputStream());
+            }
+            int truncated = parser.unconsumedBytes();
+            if (truncated > 0) {
+                LOGGER.warning("AOF " + path + " ends with an incomplete command, dropping its last " + truncated + " bytes");
+                file.truncate(bytesRead - truncated);
+            }
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        LOGGER.info(String.format("Loaded %d commands (%.1f MB) from AOF %s in %.3f s: %.0f commands/s, %.1f MB/s",
+                commands, bytesRead / 1e6, path, seconds, commands / seconds, bytesRead / 1e6 / seconds));
+        return commands;
+    }
+}
@@ -0,0 +1,129 @@
+package org.cy.redisclone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A binary-safe keyspace key: raw bytes plus their precomputed hash.
+ * <p>
+ * Keys held by the store own their array. Lookups can instead use a {@link #view view}
+ * over a slice of a larger buffer, such as the parser's read buffer, which compares
+ * and hashes exactly like an owning key but avoids copying the bytes.
+ */
+public class ByteKey {
+    final byte[] data;
+    private final int hash;
+
+    ByteKey(byte[] data) {
+        this(data, hash(data, 0, data.length));
+    }
+
+    private ByteKey(byte[] data, int hash) {
+        this.data = data;
+        this.hash = hash;
+    }
+
+    /**
+     * Wraps an array without copying it; the array must not be modified afterwards.
+     */
+    public static ByteKey of(byte[] data) {
+        return new ByteKey(data);
+    }
+
+    public static ByteKey of(String key) {
+        return new ByteKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a key over a slice of a buffer that is only valid while the buffer is.
+     * Use {@link #owned()} to get a key that can be stored.
+     */
+    public static ByteKey view(byte[] buffer, int offset, int length) {
+        return new View(buffer, offset, length);
+    }
+
+    /**
+     * @return a key that owns its bytes, copying them only if this is a view
+     */
+    public ByteKey owned() {
+        return this;
+    }
+
+    public int offset() {
+        return 0;
+    }
+
+    public int length() {
+        return data.length;
+    }
+
+    /**
+     * @return the key's bytes; for owning keys this is the stored array itself
+     */
+    public byte[] toBytes() {
+        return data;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ByteKey)) {
+            return false;
+        }
+        ByteKey other = (ByteKey) o;
+        return hash == other.hash && Arrays.equals(
+                data, offset(), offset() + length(),
+                other.data, other.offset(), other.offset() + other.length());
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, offset(), length(), StandardCharsets.UTF_8);
+    }
+
+    static int hash(byte[] data, int offset, int length) {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    private static final class View extends ByteKey {
+        private final int offset;
+        private final int length;
+
+        View(byte[] buffer, int offset, int length) {
+            super(buffer, hash(buffer, offset, length));
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public ByteKey owned() {
+            return new ByteKey(toBytes(), hashCode());
+        }
+
+        @Override
+        public int offset() {
+            return offset;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+    }
+}
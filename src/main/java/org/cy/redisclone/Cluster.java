@@ -0,0 +1,502 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This node's view of a Redis Cluster: which node owns each of the {@value HashSlot#SLOTS}
+ * hash slots, and which slots are being migrated in or out.
+ * <p>
+ * Commands on keys this node does not serve are answered with {@code MOVED}, or with
+ * {@code ASK} for keys already moved out of a slot being migrated, as Redis does, so
+ * cluster-aware clients route straight to the right node. The slot table is read
+ * without locking on every command; changes are rare and take this object's lock.
+ * <p>
+ * Instead of Redis' binary cluster bus on a second port, nodes talk over their client
+ * port: every {@value #BUS_PERIOD_MILLIS} ms a background thread asks each known node
+ * for {@code CLUSTER NODES}, adopts the slots it claims where its config epoch is newer
+ * than the current owner's, and learns the nodes it knows. A node that does not know
+ * this one yet is sent {@code CLUSTER MEET}, so meeting is symmetric. There is no
+ * failure detection or failover, and the view is not persisted: a restarted node has a
+ * new id and must be given its slots again.
+ */
+final class Cluster {
+    private static final Logger LOGGER = Logger.getLogger(Cluster.class.getName());
+    static final long BUS_PERIOD_MILLIS = 100;
+    private static final int BUS_TIMEOUT_MILLIS = 1000;
+    private static final byte[] CLUSTER = RedisObject.ascii("CLUSTER");
+    private static final byte[] NODES = RedisObject.ascii("NODES");
+    private static final byte[] MEET = RedisObject.ascii("MEET");
+
+    private final Node myself;
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    // Addresses given to CLUSTER MEET whose node id is not known yet
+    private final Set<String> handshakes = ConcurrentHashMap.newKeySet();
+    private final AtomicReferenceArray<Node> owners = new AtomicReferenceArray<>(HashSlot.SLOTS);
+    private final AtomicReferenceArray<Node> migrating = new AtomicReferenceArray<>(HashSlot.SLOTS);
+    private final AtomicReferenceArray<Node> importing = new AtomicReferenceArray<>(HashSlot.SLOTS);
+    private volatile long currentEpoch;
+    private ScheduledExecutorService bus;
+
+    /**
+     * A member of the cluster, this node included.
+     */
+    static final class Node {
+        private final String id;
+        private final String host;
+        private final int port;
+        private volatile long configEpoch;
+        private volatile boolean connected;
+        // Only used by the bus thread
+        private NodeClient link;
+
+        Node(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        String address() {
+            return host + ":" + port;
+        }
+
+        long getConfigEpoch() {
+            return configEpoch;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        private void closeLink() {
+            if (link != null) {
+                try {
+                    link.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error closing cluster link", e);
+                }
+                link = null;
+            }
+            connected = false;
+        }
+    }
+
+    /**
+     * @param host the address other nodes and clients reach this node at
+     */
+    Cluster(String host, int port) {
+        this.myself = new Node(randomId(), host, port);
+        myself.connected = true;
+        nodes.put(myself.id, myself);
+    }
+
+    synchronized void start() {
+        if (bus != null) {
+            return;
+        }
+        bus = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-cluster-bus");
+            thread.setDaemon(true);
+            return thread;
+        });
+        bus.scheduleWithFixedDelay(this::exchange, BUS_PERIOD_MILLIS, BUS_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (bus != null) {
+            bus.shutdownNow();
+            bus = null;
+        }
+    }
+
+    Node myself() {
+        return myself;
+    }
+
+    Node node(String id) {
+        return nodes.get(id);
+    }
+
+    Collection<Node> nodes() {
+        return nodes.values();
+    }
+
+    /**
+     * @return the node serving a slot, or null if no node does
+     */
+    Node owner(int slot) {
+        return owners.get(slot);
+    }
+
+    long currentEpoch() {
+        return currentEpoch;
+    }
+
+    /**
+     * Decides where a command on keys runs.
+     *
+     * @param exists tells whether a key is present on this node
+     * @param asking whether the connection sent {@code ASKING} before this command
+     * @return null to run the command here, otherwise the error to reply with
+     */
+    String route(CommandType cmd, CommandArgs args, boolean asking, Predicate<ByteKey> exists) {
+        int step = cmd.keyStep() == 0 ? args.count() : cmd.keyStep();
+        int slot = -1;
+        boolean sameSlot = true;
+        boolean local = true;
+        for (int i = cmd.firstKey(); i < args.count(); i += step) {
+            int keySlot = HashSlot.of(args.getKey(i));
+            if (slot < 0) {
+                slot = keySlot;
+            } else if (keySlot != slot) {
+                sameSlot = false;
+            }
+            if (owners.get(keySlot) != myself || migrating.get(keySlot) != null) {
+                local = false;
+            }
+        }
+        // Unlike Redis, keys in different slots are fine as long as they all stay here
+        if (local) {
+            return null;
+        }
+        if (!sameSlot) {
+            return "CROSSSLOT Keys in request don't hash to the same slot";
+        }
+        Node owner = owners.get(slot);
+        Node target = migrating.get(slot);
+        if (owner == myself && target != null) {
+            int keys = 0;
+            int missing = 0;
+            for (int i = cmd.firstKey(); i < args.count(); i += step) {
+                keys++;
+                if (!exists.test(args.getKey(i))) {
+                    missing++;
+                }
+            }
+            if (missing == 0) {
+                return null;
+            }
+            if (missing < keys) {
+                return "TRYAGAIN Multiple keys request during rehashing of slot";
+            }
+            return "ASK " + slot + " " + target.address();
+        }
+        if (asking && importing.get(slot) != null) {
+            return null;
+        }
+        if (owner == null) {
+            return "CLUSTERDOWN Hash slot not served";
+        }
+        return "MOVED " + slot + " " + owner.address();
+    }
+
+    /**
+     * Takes unassigned slots, as {@code CLUSTER ADDSLOTS}.
+     *
+     * @throws RedisException if a slot is already served by a node
+     */
+    synchronized void addSlots(int[] slots) {
+        for (int slot : slots) {
+            if (owners.get(slot) != null) {
+                throw new RedisException("ERR Slot " + slot + " is already busy");
+            }
+        }
+        for (int slot : slots) {
+            owners.set(slot, myself);
+            importing.set(slot, null);
+        }
+    }
+
+    synchronized void delSlots(int[] slots) {
+        for (int slot : slots) {
+            if (owners.get(slot) == null) {
+                throw new RedisException("ERR Slot " + slot + " is already unassigned");
+            }
+        }
+        for (int slot : slots) {
+            owners.set(slot, null);
+            migrating.set(slot, null);
+            importing.set(slot, null);
+        }
+    }
+
+    /**
+     * {@code CLUSTER SETSLOT slot MIGRATING node}: keys of the slot missing here are
+     * looked for on the target with {@code ASK}.
+     */
+    synchronized void setMigrating(int slot, String nodeId) {
+        if (owners.get(slot) != myself) {
+            throw new RedisException("ERR I'm not the owner of hash slot " + slot);
+        }
+        migrating.set(slot, knownNode(nodeId, true));
+    }
+
+    /**
+     * {@code CLUSTER SETSLOT slot IMPORTING node}: commands on the slot preceded by
+     * {@code ASKING} are accepted here.
+     */
+    synchronized void setImporting(int slot, String nodeId) {
+        if (owners.get(slot) == myself) {
+            throw new RedisException("ERR I'm already the owner of hash slot " + slot);
+        }
+        importing.set(slot, knownNode(nodeId, true));
+    }
+
+    synchronized void setStable(int slot) {
+        migrating.set(slot, null);
+        importing.set(slot, null);
+    }
+
+    /**
+     * {@code CLUSTER SETSLOT slot NODE node}, which ends a migration. When this node
+     * takes over a slot it imported it moves to a new config epoch, so the other nodes
+     * prefer its claim over the previous owner's.
+     *
+     * @param hasKeys whether this node still holds keys in the slot
+     */
+    synchronized void setNode(int slot, String nodeId, boolean hasKeys) {
+        Node node = knownNode(nodeId, false);
+        if (owners.get(slot) == myself && node != myself && hasKeys) {
+            throw new RedisException("ERR Can't assign hashslot " + slot
+                    + " to a different node while I still hold keys for this hash slot.");
+        }
+        if (node == myself && importing.get(slot) != null) {
+            myself.configEpoch = ++currentEpoch;
+        }
+        owners.set(slot, node);
+        migrating.set(slot, null);
+        importing.set(slot, null);
+    }
+
+    /**
+     * Starts a handshake with the node at an address, done by the bus thread.
+     */
+    void meet(String host, int port) {
+        String address = host + ":" + port;
+        for (Node node : nodes.values()) {
+            if (node.address().equals(address)) {
+                return;
+            }
+        }
+        handshakes.add(address);
+    }
+
+    /**
+     * @return the {@code CLUSTER NODES} description, one line per node
+     */
+    String describeNodes() {
+        StringBuilder lines = new StringBuilder();
+        for (Node node : nodes.values()) {
+            lines.append(node.id).append(' ').append(node.address()).append('@').append(node.port).append(' ')
+                    .append(node == myself ? "myself,master" : "master").append(" - 0 0 ")
+                    .append(node.configEpoch).append(' ').append(node.connected ? "connected" : "disconnected");
+            for (int[] range : slotRanges(node)) {
+                lines.append(' ').append(range[0]);
+                if (range[1] != range[0]) {
+                    lines.append('-').append(range[1]);
+                }
+            }
+            if (node == myself) {
+                for (int slot = 0; slot < HashSlot.SLOTS; slot++) {
+                    Node target = migrating.get(slot);
+                    if (target != null) {
+                        lines.append(" [").append(slot).append("->-").append(target.id).append(']');
+                    }
+                    Node source = importing.get(slot);
+                    if (source != null) {
+                        lines.append(" [").append(slot).append("-<-").append(source.id).append(']');
+                    }
+                }
+            }
+            lines.append('\n');
+        }
+        return lines.toString();
+    }
+
+    /**
+     * @return the runs of consecutive slots a node serves, as {first, last} pairs
+     */
+    List<int[]> slotRanges(Node node) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1;
+        for (int slot = 0; slot <= HashSlot.SLOTS; slot++) {
+            boolean owned = slot < HashSlot.SLOTS && owners.get(slot) == node;
+            if (owned && start < 0) {
+                start = slot;
+            } else if (!owned && start >= 0) {
+                ranges.add(new int[]{start, slot - 1});
+                start = -1;
+            }
+        }
+        return ranges;
+    }
+
+    int assignedSlots() {
+        int assigned = 0;
+        for (int slot = 0; slot < HashSlot.SLOTS; slot++) {
+            if (owners.get(slot) != null) {
+                assigned++;
+            }
+        }
+        return assigned;
+    }
+
+    private Node knownNode(String id, boolean otherThanMyself) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            throw new RedisException("ERR I don't know about node " + id);
+        }
+        if (otherThanMyself && node == myself) {
+            throw new RedisException("ERR I can't migrate a slot to or from myself");
+        }
+        return node;
+    }
+
+    /**
+     * One round of the bus: completes pending handshakes and refreshes the view from
+     * every known node.
+     */
+    private void exchange() {
+        try {
+            for (String address : handshakes) {
+                int colon = address.lastIndexOf(':');
+                try (NodeClient client = new NodeClient(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)), BUS_TIMEOUT_MILLIS)) {
+                    merge(null, parseNodes(client.call(CLUSTER, NODES)));
+                    handshakes.remove(address);
+                } catch (IOException | RedisException e) {
+                    LOGGER.log(Level.FINE, "Handshake with " + address + " failed", e);
+                }
+            }
+            for (Node node : nodes.values()) {
+                if (node != myself) {
+                    poll(node);
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, so log it and try again next round
+            LOGGER.log(Level.SEVERE, "Cluster bus round failed", e);
+        }
+    }
+
+    private void poll(Node node) {
+        try {
+            if (node.link == null) {
+                node.link = new NodeClient(node.host, node.port, BUS_TIMEOUT_MILLIS);
+            }
+            List<String[]> view = parseNodes(node.link.call(CLUSTER, NODES));
+            node.connected = true;
+            if (!merge(node, view)) {
+                node.link.call(CLUSTER, MEET, RedisObject.ascii(myself.host), RedisObject.ascii(Integer.toString(myself.port)));
+            }
+        } catch (IOException | RedisException e) {
+            if (node.connected) {
+                LOGGER.info("Cluster link to " + node.address() + " lost: " + e.getMessage());
+            }
+            node.closeLink();
+        }
+    }
+
+    /**
+     * Folds another node's {@code CLUSTER NODES} into this view: the slots it claims for
+     * itself, and the nodes it knows.
+     *
+     * @param from the node asked, or null during a handshake
+     * @return whether that node knows this one
+     */
+    private synchronized boolean merge(Node from, List<String[]> view) {
+        boolean knowsMe = false;
+        for (String[] fields : view) {
+            String id = fields[0];
+            if (id.equals(myself.id)) {
+                knowsMe = true;
+                continue;
+            }
+            Node node = nodes.get(id);
+            if (node == null) {
+                String address = fields[1].substring(0, fields[1].indexOf('@'));
+                int colon = address.lastIndexOf(':');
+                node = new Node(id, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+                nodes.put(id, node);
+                LOGGER.info("Cluster node " + id + " at " + node.address() + " joined");
+            }
+            boolean self = fields[2].contains("myself");
+            if (!self || from != node) {
+                continue;
+            }
+            long epoch = Long.parseLong(fields[6]);
+            node.configEpoch = epoch;
+            currentEpoch = Math.max(currentEpoch, epoch);
+            for (int i = 8; i < fields.length; i++) {
+                if (fields[i].startsWith("[")) {
+                    continue;
+                }
+                int dash = fields[i].indexOf('-');
+                int first = Integer.parseInt(dash < 0 ? fields[i] : fields[i].substring(0, dash));
+                int last = dash < 0 ? first : Integer.parseInt(fields[i].substring(dash + 1));
+                for (int slot = first; slot <= last; slot++) {
+                    Node owner = owners.get(slot);
+                    if (owner == null || owner != node && epoch > owner.configEpoch) {
+                        owners.set(slot, node);
+                        importing.set(slot, null);
+                        if (owner == myself) {
+                            migrating.set(slot, null);
+                        }
+                    }
+                }
+            }
+        }
+        return knowsMe;
+    }
+
+    private static List<String[]> parseNodes(Object reply) throws IOException {
+        if (!(reply instanceof byte[])) {
+            throw new IOException("Unexpected CLUSTER NODES reply");
+        }
+        List<String[]> view = new ArrayList<>();
+        for (String line : new String((byte[]) reply, StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length < 8) {
+                continue;
+            }
+            view.add(fields);
+        }
+        return view;
+    }
+
+    private static String randomId() {
+        byte[] bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder id = new StringBuilder(40);
+        for (byte b : bytes) {
+            id.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package org.cy.redisclone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The arguments of one parsed command, exposed as slices of the parser's read buffer.
+ * <p>
+ * An instance is owned and reused by its {@link CommandParser}: the slices are only
+ * valid until the next call to {@link CommandParser#next()} or until more bytes are
+ * read, so anything that outlives the command has to be copied with
+ * {@link #getBytes(int)} or {@link #getString(int)}.
+ */
+public class CommandArgs {
+    private byte[] data;
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    private int count;
+
+    void reset(int expected) {
+        count = 0;
+        if (offsets.length < expected) {
+            int capacity = Math.max(expected, offsets.length * 2);
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+        }
+    }
+
+    void add(int offset, int length) {
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+    }
+
+    void shift(int delta) {
+        for (int i = 0; i < count; i++) {
+            offsets[i] -= delta;
+        }
+    }
+
+    void setData(byte[] data) {
+        this.data = data;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int offset(int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    public int length(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    /**
+     * Copies an argument out of the read buffer.
+     */
+    public byte[] getBytes(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(data, offsets[index], offsets[index] + lengths[index]);
+    }
+
+    /**
+     * Returns a key viewing an argument in place; call {@link ByteKey#owned()} to keep it.
+     */
+    public ByteKey getKey(int index) {
+        checkIndex(index);
+        return ByteKey.view(data, offsets[index], lengths[index]);
+    }
+
+    /**
+     * Decodes an argument as UTF-8 straight from the read buffer.
+     */
+    public String getString(int index) {
+        checkIndex(index);
+        return new String(data, offsets[index], lengths[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares an argument with an ASCII keyword, ignoring case, without decoding it.
+     */
+    public boolean equalsIgnoreCase(int index, String keyword) {
+        checkIndex(index);
+        int length = lengths[index];
+        if (length != keyword.length()) {
+            return false;
+        }
+        int offset = offsets[index];
+        for (int i = 0; i < length; i++) {
+            if (toUpper(data[offset + i]) != toUpper((byte) keyword.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses an argument as a signed decimal integer.
+     *
+     * @throws NumberFormatException if the argument is not a valid 64-bit integer
+     */
+    public long getLong(int index) {
+        checkIndex(index);
+        return parseLong(data, offsets[index], lengths[index]);
+    }
+
+    static long parseLong(byte[] data, int offset, int length) {
+        if (length == 0 || length > 20) {
+            throw new NumberFormatException("value is not an integer or out of range");
+        }
+        int i = offset;
+        int end = offset + length;
+        boolean negative = data[i] == '-';
+        if (negative && ++i == end) {
+            throw new NumberFormatException("value is not an integer or out of range");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("value is not an integer or out of range");
+            }
+            // Accumulate negatively so that Long.MIN_VALUE does not overflow
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("value is not an integer or out of range");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw new NumberFormatException("value is not an integer or out of range");
+            }
+            return -value;
+        }
+        return value;
+    }
+
+    static byte toUpper(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Argument " + index + " out of " + count);
+        }
+    }
+}
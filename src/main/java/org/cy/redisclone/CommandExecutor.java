@@ -0,0 +1,1984 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Executes parsed commands on behalf of a single client connection.
+ * <p>
+ * The executor is independent of the I/O model so that the thread-per-connection
+ * and event-loop server modes share the exact same command semantics.
+ */
+class CommandExecutor {
+    private final RedisLikeService service;
+    private final ConcurrentHashMap<SocketAddress, RedisServer.ClientInfo> clients;
+    private final SocketAddress address;
+    // Null for the executors replaying the append-only file or the leader's stream
+    private final RedisServer.ClientInfo info;
+    private final boolean masterLink;
+    private String clientName = "";
+    private ReplicationSource.ReplicaLink replicaLink;
+    private PubSub.Delivery delivery;
+    private volatile PubSub.Subscriber subscriber;
+    private Tracking.Client tracking;
+    private Boolean cachingNext;
+    private boolean asking;
+    private boolean deferBlocking;
+    private Supplier<byte[]> deferred;
+
+    CommandExecutor(RedisLikeService service, ConcurrentHashMap<SocketAddress, RedisServer.ClientInfo> clients, SocketAddress address) {
+        this(service, clients, address, false);
+    }
+
+    /**
+     * @param masterLink whether commands come from this server's leader, which may write
+     *                   to a follower and send snapshot records
+     */
+    CommandExecutor(RedisLikeService service, ConcurrentHashMap<SocketAddress, RedisServer.ClientInfo> clients, SocketAddress address,
+                    boolean masterLink) {
+        this(service, clients, address, clients.get(address), masterLink);
+    }
+
+    /**
+     * @param info the connection this executor serves, or null for internal executors
+     */
+    CommandExecutor(RedisLikeService service, ConcurrentHashMap<SocketAddress, RedisServer.ClientInfo> clients, SocketAddress address,
+                    RedisServer.ClientInfo info, boolean masterLink) {
+        this.service = service;
+        this.clients = clients;
+        this.address = address;
+        this.info = info;
+        this.masterLink = masterLink;
+    }
+
+    /**
+     * Lets this connection subscribe to channels, with messages pushed through the
+     * given delivery; connections without one refuse {@code SUBSCRIBE}.
+     */
+    void setDelivery(PubSub.Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * @return the queue this connection's output goes through once it has subscribed,
+     * or null
+     */
+    PubSub.Subscriber subscriber() {
+        return subscriber;
+    }
+
+    Tracking.Client tracking() {
+        return tracking;
+    }
+
+    /**
+     * Drops the connection, from any thread.
+     */
+    void kill() {
+        if (delivery != null) {
+            delivery.disconnect();
+        }
+    }
+
+    /**
+     * Releases what the connection holds once it is gone.
+     */
+    void close() {
+        if (subscriber != null) {
+            service.getPubSub().close(subscriber);
+        }
+        if (tracking != null) {
+            service.getTracking().disable(clientId());
+        }
+    }
+
+    void executeCommand(CommandArgs args, ReplyBuffer out) {
+        dispatch(args, out);
+        if (subscriber != null) {
+            pushReplies(out);
+        }
+    }
+
+    /**
+     * Once a connection has subscribed, pushed messages and its replies share one queue,
+     * so that neither overtakes the other.
+     */
+    private void pushReplies(ReplyBuffer out) {
+        if (out.isEmpty()) {
+            return;
+        }
+        service.awaitDurable();
+        subscriber.push(out.take());
+    }
+
+    private void dispatch(CommandArgs args, ReplyBuffer out) {
+        if (args.count() == 0) {
+            RESPHandler.writeError(out, "Empty command");
+            return;
+        }
+
+        CommandType cmd = CommandType.lookup(args);
+        if (cmd == null || (cmd == CommandType.SNAPSHOTSET && !masterLink)) {
+            RESPHandler.writeError(out, "unknown command '" + args.getString(0) + "'");
+            return;
+        }
+        if (cmd.isWrite() && !masterLink && service.getReplicationClient() != null) {
+            RESPHandler.writeCodedError(out, "READONLY You can't write against a read only replica.");
+            return;
+        }
+        if (info != null) {
+            info.recordCommand(cmd);
+        }
+
+        if (subscriber != null && subscriber.subscriptions() > 0 && !allowedWhileSubscribed(cmd)) {
+            RESPHandler.writeError(out, "Can't execute '" + cmd.name().toLowerCase()
+                    + "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT are allowed in this context");
+            return;
+        }
+
+        // ASKING applies to the next command only
+        boolean askingNow = asking;
+        asking = false;
+        Cluster cluster = service.getCluster();
+        if (cluster != null && info != null && cmd.firstKey() > 0 && args.count() > cmd.firstKey()) {
+            String redirect = cluster.route(cmd, args, askingNow, service::exists);
+            if (redirect != null) {
+                RESPHandler.writeCodedError(out, redirect);
+                return;
+            }
+        }
+
+        // CLIENT CACHING applies to the next command only
+        Boolean caching = cachingNext;
+        cachingNext = null;
+        if (tracking != null && cmd.readKeys() != 0) {
+            trackReads(cmd, args, caching);
+        }
+
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            execute(cmd, args, out);
+        } catch (RedisException e) {
+            failed = true;
+            RESPHandler.writeCodedError(out, e.getMessage());
+        }
+        long nanos = System.nanoTime() - start;
+        service.getCommandStats().record(cmd, nanos, failed);
+        if (info != null) {
+            service.getSlowLog().record(args, nanos, info);
+        }
+    }
+
+    private void execute(CommandType cmd, CommandArgs args, ReplyBuffer out) {
+        switch (cmd) {
+            case GET:
+                if (args.count() != 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'get' command");
+                    return;
+                }
+                writeString(out, service.getEncoded(args.getKey(1)));
+                return;
+            case SET:
+                if (args.count() < 3) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'set' command");
+                    return;
+                }
+                set(args, out);
+                return;
+            case DEL:
+            case UNLINK:
+                if (args.count() < 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.del(keyArgs(args, 1, 1)));
+                return;
+            case EXISTS:
+                if (args.count() < 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'exists' command");
+                    return;
+                }
+                long existing = 0;
+                for (int i = 1; i < args.count(); i++) {
+                    if (service.exists(args.getKey(i))) {
+                        existing++;
+                    }
+                }
+                RESPHandler.writeInteger(out, existing);
+                return;
+            case MGET:
+                if (args.count() < 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'mget' command");
+                    return;
+                }
+                RESPHandler.writeArrayHeader(out, args.count() - 1);
+                for (int i = 1; i < args.count(); i++) {
+                    RESPHandler.writeBulk(out, service.getIfString(args.getKey(i)));
+                }
+                return;
+            case MSET:
+            case MSETNX:
+                if (args.count() < 3 || args.count() % 2 == 0) {
+                    RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+                    return;
+                }
+                mset(args, cmd == CommandType.MSETNX, out);
+                return;
+            case KEYS:
+                if (args.count() != 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'keys' command");
+                    return;
+                }
+                keys(args.getBytes(1), out);
+                return;
+            case SCAN:
+                if (args.count() < 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'scan' command");
+                    return;
+                }
+                scan(args, out);
+                return;
+            case EXPIRE:
+            case PEXPIRE:
+                if (args.count() != 3) {
+                    RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+                    return;
+                }
+                expire(args, cmd == CommandType.EXPIRE ? 1000 : 1, out);
+                return;
+            case EXPIREAT:
+            case PEXPIREAT:
+                if (args.count() != 3) {
+                    RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+                    return;
+                }
+                expireAt(args, cmd == CommandType.EXPIREAT ? 1000 : 1, out);
+                return;
+            case TTL:
+            case PTTL:
+                if (args.count() != 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+                    return;
+                }
+                long ttl = service.pttl(args.getKey(1));
+                if (cmd == CommandType.TTL && ttl > 0) {
+                    ttl = (ttl + 500) / 1000;
+                }
+                RESPHandler.writeInteger(out, ttl);
+                return;
+            case PERSIST:
+                if (args.count() != 2) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'persist' command");
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.persist(args.getKey(1)) ? 1 : 0);
+                return;
+            case REPLICAOF:
+            case SLAVEOF:
+                if (args.count() != 3) {
+                    RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+                    return;
+                }
+                replicaOf(args, out);
+                return;
+            case PSYNC:
+                if (args.count() != 3) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'psync' command");
+                    return;
+                }
+                psync(args, out);
+                return;
+            case SNAPSHOTSET:
+                if (args.count() != 4 && !(args.count() == 5 && args.equalsIgnoreCase(4, "OBJECT"))) {
+                    RESPHandler.writeError(out, "wrong number of arguments for 'snapshotset' command");
+                    return;
+                }
+                if (args.count() == 5) {
+                    service.restore(args.getKey(1), RedisObject.deserialize(args.getBytes(2)), args.getLong(3));
+                } else {
+                    service.set(args.getKey(1), args.getBytes(2), args.getLong(3), StorageEngine.SetCondition.ALWAYS);
+                }
+                RESPHandler.writeOk(out);
+                return;
+            case SAVE:
+                if (wrongArity(cmd, args, 1, 1, out)) {
+                    return;
+                }
+                try {
+                    service.save();
+                } catch (IOException e) {
+                    RESPHandler.writeError(out, "Saving the snapshot failed: " + e.getMessage());
+                    return;
+                }
+                RESPHandler.writeOk(out);
+                return;
+            case BGSAVE:
+                if (wrongArity(cmd, args, 1, 1, out)) {
+                    return;
+                }
+                service.backgroundSave();
+                RESPHandler.writeSimpleString(out, "Background saving started");
+                return;
+            case LASTSAVE:
+                if (wrongArity(cmd, args, 1, 1, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.lastSaveMillis() / 1000);
+                return;
+            case INCR:
+            case DECR:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.incrBy(args.getKey(1), cmd == CommandType.INCR ? 1 : -1));
+                return;
+            case INCRBY:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.incrBy(args.getKey(1), longArg(args, 2)));
+                return;
+            case DECRBY:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                long decrement = longArg(args, 2);
+                if (decrement == Long.MIN_VALUE) {
+                    RESPHandler.writeError(out, "decrement would overflow");
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.incrBy(args.getKey(1), -decrement));
+                return;
+            case INCRBYFLOAT:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeBulk(out, service.incrByFloat(args.getKey(1), RedisSortedSet.parseScore(args.getBytes(2))));
+                return;
+            case GETSET:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeBulk(out, service.getSet(args.getKey(1), args.getBytes(2)));
+                return;
+            case APPEND:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.append(args.getKey(1), args.getBytes(2)));
+                return;
+            case STRLEN:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.strlen(args.getKey(1)));
+                return;
+            case TYPE:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeSimpleString(out, service.type(args.getKey(1)));
+                return;
+            case OBJECT:
+                if (args.count() == 3 && args.equalsIgnoreCase(1, "ENCODING")) {
+                    String encoding = service.encoding(args.getKey(2));
+                    RESPHandler.writeBulk(out, encoding == null ? null : encoding.getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    RESPHandler.writeError(out, "unknown subcommand or wrong number of arguments for 'object' command");
+                }
+                return;
+            case HSET:
+                if (wrongArity(cmd, args, 4, -1, out) || evenArity(cmd, args, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.hset(args.getKey(1), byteArgs(args, 2)));
+                return;
+            case HGET:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeBulk(out, service.hget(args.getKey(1), args.getBytes(2)));
+                return;
+            case HDEL:
+                if (wrongArity(cmd, args, 3, -1, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.hdel(args.getKey(1), byteArgs(args, 2)));
+                return;
+            case HINCRBY:
+                if (wrongArity(cmd, args, 4, 4, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.hincrby(args.getKey(1), args.getBytes(2), longArg(args, 3)));
+                return;
+            case HGETALL:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                writeBulks(out, service.hgetall(args.getKey(1)));
+                return;
+            case HLEN:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.hlen(args.getKey(1)));
+                return;
+            case LPUSH:
+            case RPUSH:
+                if (wrongArity(cmd, args, 3, -1, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.push(args.getKey(1), byteArgs(args, 2), cmd == CommandType.LPUSH));
+                return;
+            case LPOP:
+            case RPOP:
+                if (wrongArity(cmd, args, 2, 3, out)) {
+                    return;
+                }
+                pop(args, cmd == CommandType.LPOP, out);
+                return;
+            case LRANGE:
+                if (wrongArity(cmd, args, 4, 4, out)) {
+                    return;
+                }
+                writeBulks(out, service.lrange(args.getKey(1), longArg(args, 2), longArg(args, 3)));
+                return;
+            case LLEN:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.llen(args.getKey(1)));
+                return;
+            case SADD:
+                if (wrongArity(cmd, args, 3, -1, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.sadd(args.getKey(1), byteArgs(args, 2)));
+                return;
+            case SREM:
+                if (wrongArity(cmd, args, 3, -1, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.srem(args.getKey(1), byteArgs(args, 2)));
+                return;
+            case SISMEMBER:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.sismember(args.getKey(1), args.getBytes(2)) ? 1 : 0);
+                return;
+            case SMEMBERS:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                writeBulks(out, service.smembers(args.getKey(1)));
+                return;
+            case SCARD:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.scard(args.getKey(1)));
+                return;
+            case ZADD:
+                if (wrongArity(cmd, args, 4, -1, out)) {
+                    return;
+                }
+                zadd(args, out);
+                return;
+            case ZREM:
+                if (wrongArity(cmd, args, 3, -1, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.zrem(args.getKey(1), byteArgs(args, 2)));
+                return;
+            case ZSCORE:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                Double score = service.zscore(args.getKey(1), args.getBytes(2));
+                RESPHandler.writeBulk(out, score == null ? null : RedisSortedSet.formatScore(score));
+                return;
+            case ZCARD:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.zcard(args.getKey(1)));
+                return;
+            case ZRANGE:
+                if (wrongArity(cmd, args, 4, 5, out)) {
+                    return;
+                }
+                zrange(args, out);
+                return;
+            case ZRANGEBYSCORE:
+                if (wrongArity(cmd, args, 4, -1, out)) {
+                    return;
+                }
+                zrangeByScore(args, out);
+                return;
+            case INFO:
+                if (wrongArity(cmd, args, 1, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeBulk(out, getInfo(args.count() == 2 ? args.getString(1).toLowerCase() : "default"));
+                return;
+            case PING:
+                if (subscriber != null && subscriber.subscriptions() > 0) {
+                    RESPHandler.writeArrayHeader(out, 2);
+                    RESPHandler.writeBulk(out, "pong");
+                    RESPHandler.writeBulk(out, args.count() > 1 ? args.getBytes(1) : new byte[0]);
+                    return;
+                }
+                RESPHandler.writePong(out);
+                return;
+            case QUIT:
+                RESPHandler.writeOk(out);
+                return;
+            case CLIENT:
+                if (args.count() < 2) {
+                    RESPHandler.writeError(out, "Wrong number of arguments for CLIENT command");
+                    return;
+                }
+                String subCommand = args.getString(1).toUpperCase();
+                switch (subCommand) {
+                    case "LIST":
+                        RESPHandler.writeBulk(out, clientList());
+                        return;
+                    case "SETNAME":
+                        if (args.count() != 3) {
+                            RESPHandler.writeError(out, "Wrong number of arguments for CLIENT SETNAME");
+                            return;
+                        }
+                        clientSetName(args.getString(2));
+                        RESPHandler.writeOk(out);
+                        return;
+                    case "SETINFO":
+                        if (args.count() != 4) {
+                            RESPHandler.writeError(out, "Wrong number of arguments for CLIENT SETINFO");
+                            return;
+                        }
+                        if (clientSetInfo(args.getString(2), args.getString(3))) {
+                            RESPHandler.writeOk(out);
+                        } else {
+                            RESPHandler.writeError(out, "Client not found");
+                        }
+                        return;
+                    case "ID":
+                        RESPHandler.writeInteger(out, clientId());
+                        return;
+                    case "KILL":
+                        if (args.count() < 3) {
+                            RESPHandler.writeError(out, "Wrong number of arguments for CLIENT KILL");
+                            return;
+                        }
+                        clientKill(args, out);
+                        return;
+                    case "NO-EVICT":
+                        if (args.count() != 3) {
+                            RESPHandler.writeError(out, "Wrong number of arguments for CLIENT NO-EVICT");
+                            return;
+                        }
+                        if (args.equalsIgnoreCase(2, "ON") || args.equalsIgnoreCase(2, "OFF")) {
+                            info.setNoEvict(args.equalsIgnoreCase(2, "ON"));
+                            RESPHandler.writeOk(out);
+                        } else {
+                            RESPHandler.writeError(out, "syntax error");
+                        }
+                        return;
+                    case "TRACKING":
+                        if (args.count() < 3) {
+                            RESPHandler.writeError(out, "Wrong number of arguments for CLIENT TRACKING");
+                            return;
+                        }
+                        clientTracking(args, out);
+                        return;
+                    case "CACHING":
+                        if (args.count() != 3) {
+                            RESPHandler.writeError(out, "Wrong number of arguments for CLIENT CACHING");
+                            return;
+                        }
+                        if (tracking == null || !(tracking.isOptIn() || tracking.isOptOut())) {
+                            RESPHandler.writeError(out, "CLIENT CACHING can be called only when the client is in tracking mode with OPTIN or OPTOUT mode enabled");
+                            return;
+                        }
+                        if (args.equalsIgnoreCase(2, "YES")) {
+                            cachingNext = true;
+                        } else if (args.equalsIgnoreCase(2, "NO")) {
+                            cachingNext = false;
+                        } else {
+                            RESPHandler.writeError(out, "syntax error");
+                            return;
+                        }
+                        RESPHandler.writeOk(out);
+                        return;
+                    default:
+                        RESPHandler.writeError(out, "Unknown CLIENT subcommand");
+                        return;
+                }
+            case SUBSCRIBE:
+            case PSUBSCRIBE:
+                if (wrongArity(cmd, args, 2, -1, out)) {
+                    return;
+                }
+                subscribe(cmd, args, out);
+                return;
+            case UNSUBSCRIBE:
+            case PUNSUBSCRIBE:
+                unsubscribe(cmd, args, out);
+                return;
+            case PUBLISH:
+                if (wrongArity(cmd, args, 3, 3, out)) {
+                    return;
+                }
+                RESPHandler.writeInteger(out, service.getPubSub().publish(args.getKey(1), args.getBytes(2)));
+                return;
+            case PUBSUB:
+                if (wrongArity(cmd, args, 2, -1, out)) {
+                    return;
+                }
+                pubSub(args, out);
+                return;
+            case LATENCY:
+                if (wrongArity(cmd, args, 2, -1, out)) {
+                    return;
+                }
+                if (!args.getString(1).equalsIgnoreCase("HISTOGRAM")) {
+                    RESPHandler.writeError(out, "Unknown LATENCY subcommand");
+                    return;
+                }
+                latencyHistogram(args, out);
+                return;
+            case SLOWLOG:
+                if (wrongArity(cmd, args, 2, 3, out)) {
+                    return;
+                }
+                slowLog(args, out);
+                return;
+            case MEMORY:
+                if (wrongArity(cmd, args, 2, -1, out)) {
+                    return;
+                }
+                memory(args, out);
+                return;
+            case CLUSTER:
+                if (wrongArity(cmd, args, 2, -1, out)) {
+                    return;
+                }
+                cluster(args, out);
+                return;
+            case ASKING:
+                if (wrongArity(cmd, args, 1, 1, out)) {
+                    return;
+                }
+                if (service.getCluster() == null) {
+                    RESPHandler.writeError(out, "This instance has cluster support disabled");
+                    return;
+                }
+                asking = true;
+                RESPHandler.writeOk(out);
+                return;
+            case MIGRATE:
+                if (wrongArity(cmd, args, 6, -1, out)) {
+                    return;
+                }
+                migrate(args, out);
+                return;
+            case DUMP:
+                if (wrongArity(cmd, args, 2, 2, out)) {
+                    return;
+                }
+                RESPHandler.writeBulk(out, service.dump(args.getKey(1)));
+                return;
+            case RESTORE:
+                if (wrongArity(cmd, args, 4, -1, out)) {
+                    return;
+                }
+                restore(args, out);
+                return;
+            default:
+                RESPHandler.writeError(out, "unknown command '" + args.getString(0) + "'");
+        }
+    }
+
+    private void pop(CommandArgs args, boolean left, ReplyBuffer out) {
+        long count = 1;
+        if (args.count() == 3) {
+            count = longArg(args, 2);
+            if (count < 0) {
+                RESPHandler.writeError(out, "value is out of range, must be positive");
+                return;
+            }
+        }
+        List<byte[]> popped = service.pop(args.getKey(1), count, left);
+        if (args.count() == 3) {
+            if (popped == null) {
+                RESPHandler.writeNullArray(out);
+            } else {
+                writeBulks(out, popped);
+            }
+        } else {
+            RESPHandler.writeBulk(out, popped == null || popped.isEmpty() ? null : popped.get(0));
+        }
+    }
+
+    private void zadd(CommandArgs args, ReplyBuffer out) {
+        StorageEngine.SetCondition condition = StorageEngine.SetCondition.ALWAYS;
+        boolean greaterOnly = false;
+        boolean lessOnly = false;
+        boolean countChanged = false;
+        int i = 2;
+        for (; i < args.count(); i++) {
+            if (args.equalsIgnoreCase(i, "NX") || args.equalsIgnoreCase(i, "XX")) {
+                StorageEngine.SetCondition flag = args.equalsIgnoreCase(i, "NX")
+                        ? StorageEngine.SetCondition.NX : StorageEngine.SetCondition.XX;
+                if (condition != StorageEngine.SetCondition.ALWAYS && condition != flag) {
+                    RESPHandler.writeError(out, "XX and NX options at the same time are not compatible");
+                    return;
+                }
+                condition = flag;
+            } else if (args.equalsIgnoreCase(i, "GT")) {
+                greaterOnly = true;
+            } else if (args.equalsIgnoreCase(i, "LT")) {
+                lessOnly = true;
+            } else if (args.equalsIgnoreCase(i, "CH")) {
+                countChanged = true;
+            } else {
+                break;
+            }
+        }
+        if ((greaterOnly || lessOnly) && condition == StorageEngine.SetCondition.NX || greaterOnly && lessOnly) {
+            RESPHandler.writeError(out, "GT, LT, and/or NX options at the same time are not compatible");
+            return;
+        }
+        int pairs = args.count() - i;
+        if (pairs == 0 || pairs % 2 != 0) {
+            RESPHandler.writeError(out, "syntax error");
+            return;
+        }
+        double[] scores = new double[pairs / 2];
+        byte[][] members = new byte[pairs / 2][];
+        for (int j = 0; j < scores.length; j++) {
+            scores[j] = RedisSortedSet.parseScore(args.getBytes(i + 2 * j));
+            members[j] = args.getBytes(i + 2 * j + 1);
+        }
+        RESPHandler.writeInteger(out, service.zadd(args.getKey(1), scores, members, condition,
+                greaterOnly, lessOnly, countChanged));
+    }
+
+    private void zrange(CommandArgs args, ReplyBuffer out) {
+        boolean withScores = false;
+        if (args.count() == 5) {
+            if (!args.equalsIgnoreCase(4, "WITHSCORES")) {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+            withScores = true;
+        }
+        writeBulks(out, service.zrange(args.getKey(1), longArg(args, 2), longArg(args, 3), withScores));
+    }
+
+    private void zrangeByScore(CommandArgs args, ReplyBuffer out) {
+        byte[] min = args.getBytes(2);
+        byte[] max = args.getBytes(3);
+        boolean minExclusive = min.length > 0 && min[0] == '(';
+        boolean maxExclusive = max.length > 0 && max[0] == '(';
+        double minScore;
+        double maxScore;
+        try {
+            minScore = RedisSortedSet.parseScore(minExclusive ? Arrays.copyOfRange(min, 1, min.length) : min);
+            maxScore = RedisSortedSet.parseScore(maxExclusive ? Arrays.copyOfRange(max, 1, max.length) : max);
+        } catch (RedisException e) {
+            RESPHandler.writeError(out, "min or max is not a float");
+            return;
+        }
+        boolean withScores = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < args.count(); i++) {
+            if (args.equalsIgnoreCase(i, "WITHSCORES")) {
+                withScores = true;
+            } else if (args.equalsIgnoreCase(i, "LIMIT") && i + 2 < args.count()) {
+                offset = longArg(args, i + 1);
+                count = longArg(args, i + 2);
+                i += 2;
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        if (offset < 0) {
+            writeBulks(out, List.of());
+            return;
+        }
+        writeBulks(out, service.zrangeByScore(args.getKey(1), minScore, minExclusive, maxScore, maxExclusive,
+                offset, count, withScores));
+    }
+
+    /**
+     * Writes a wrong number of arguments error unless the command has between {@code min}
+     * and {@code max} arguments, its name included; a negative {@code max} means no limit.
+     *
+     * @return whether the error was written
+     */
+    private static boolean wrongArity(CommandType cmd, CommandArgs args, int min, int max, ReplyBuffer out) {
+        if (args.count() >= min && (max < 0 || args.count() <= max)) {
+            return false;
+        }
+        RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+        return true;
+    }
+
+    /**
+     * For commands taking pairs after the key, such as fields and values.
+     */
+    private static boolean evenArity(CommandType cmd, CommandArgs args, ReplyBuffer out) {
+        if (args.count() % 2 == 0) {
+            return false;
+        }
+        RESPHandler.writeError(out, "wrong number of arguments for '" + cmd.name().toLowerCase() + "' command");
+        return true;
+    }
+
+    /**
+     * @throws RedisException if the argument is not an integer
+     */
+    private static long longArg(CommandArgs args, int index) {
+        try {
+            return args.getLong(index);
+        } catch (NumberFormatException e) {
+            throw new RedisException("ERR " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return copies of the arguments from {@code from} on
+     */
+    private static byte[][] byteArgs(CommandArgs args, int from) {
+        byte[][] values = new byte[args.count() - from][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args.getBytes(from + i);
+        }
+        return values;
+    }
+
+    private static void writeBulks(ReplyBuffer out, List<byte[]> values) {
+        RESPHandler.writeArrayHeader(out, values.size());
+        for (byte[] value : values) {
+            RESPHandler.writeBulk(out, value);
+        }
+    }
+
+    private void mset(CommandArgs args, boolean onlyIfNoneExist, ReplyBuffer out) {
+        byte[][] values = new byte[(args.count() - 1) / 2][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args.getBytes(2 + 2 * i);
+        }
+        boolean set = service.mset(keyArgs(args, 1, 2), values, onlyIfNoneExist);
+        if (onlyIfNoneExist) {
+            RESPHandler.writeInteger(out, set ? 1 : 0);
+        } else {
+            RESPHandler.writeOk(out);
+        }
+    }
+
+    /**
+     * @return the keys at every {@code step}th argument from {@code from}, as views over the request
+     */
+    private static ByteKey[] keyArgs(CommandArgs args, int from, int step) {
+        ByteKey[] keys = new ByteKey[(args.count() - from + step - 1) / step];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = args.getKey(from + i * step);
+        }
+        return keys;
+    }
+
+    /**
+     * SET key value [NX | XX] [EX seconds | PX milliseconds | EXAT unix-time-seconds |
+     * PXAT unix-time-milliseconds | KEEPTTL]
+     */
+    private void set(CommandArgs args, ReplyBuffer out) {
+        StorageEngine.SetCondition condition = StorageEngine.SetCondition.ALWAYS;
+        long expireAt = StorageEngine.NO_EXPIRY;
+        boolean expirySet = false;
+        for (int i = 3; i < args.count(); i++) {
+            if (args.equalsIgnoreCase(i, "NX") && condition == StorageEngine.SetCondition.ALWAYS) {
+                condition = StorageEngine.SetCondition.NX;
+            } else if (args.equalsIgnoreCase(i, "XX") && condition == StorageEngine.SetCondition.ALWAYS) {
+                condition = StorageEngine.SetCondition.XX;
+            } else if (args.equalsIgnoreCase(i, "KEEPTTL") && !expirySet) {
+                expireAt = StorageEngine.KEEP_TTL;
+                expirySet = true;
+            } else if (!expirySet && i + 1 < args.count() && (args.equalsIgnoreCase(i, "EX") || args.equalsIgnoreCase(i, "PX")
+                    || args.equalsIgnoreCase(i, "EXAT") || args.equalsIgnoreCase(i, "PXAT"))) {
+                long amount;
+                try {
+                    amount = args.getLong(i + 1);
+                } catch (NumberFormatException e) {
+                    RESPHandler.writeError(out, e.getMessage());
+                    return;
+                }
+                if (amount <= 0 || amount > Long.MAX_VALUE / 1000) {
+                    RESPHandler.writeError(out, "invalid expire time in 'set' command");
+                    return;
+                }
+                if (args.equalsIgnoreCase(i, "EX")) {
+                    expireAt = System.currentTimeMillis() + amount * 1000;
+                } else if (args.equalsIgnoreCase(i, "PX")) {
+                    expireAt = System.currentTimeMillis() + amount;
+                } else if (args.equalsIgnoreCase(i, "EXAT")) {
+                    expireAt = amount * 1000;
+                } else {
+                    expireAt = amount;
+                }
+                expirySet = true;
+                i++;
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        if (service.set(args.getKey(1), args.getBytes(2), expireAt, condition)) {
+            RESPHandler.writeOk(out);
+        } else {
+            RESPHandler.writeNull(out);
+        }
+    }
+
+    /**
+     * Encodes matching keys straight into the reply as the keyspace is walked, filling in
+     * the array length once it is known.
+     */
+    private void keys(byte[] pattern, ReplyBuffer out) {
+        int mark = RESPHandler.beginDeferredArray(out);
+        int[] count = {0};
+        service.keys(pattern, key -> {
+            RESPHandler.writeBulk(out, key);
+            count[0]++;
+        });
+        RESPHandler.endDeferredArray(out, mark, count[0]);
+    }
+
+    /**
+     * SCAN cursor [MATCH pattern] [COUNT count]
+     */
+    private void scan(CommandArgs args, ReplyBuffer out) {
+        long cursor;
+        try {
+            cursor = args.getLong(1);
+        } catch (NumberFormatException e) {
+            RESPHandler.writeError(out, "invalid cursor");
+            return;
+        }
+        byte[] pattern = null;
+        int count = 10;
+        for (int i = 2; i < args.count(); i += 2) {
+            if (i + 1 >= args.count()) {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+            if (args.equalsIgnoreCase(i, "MATCH")) {
+                pattern = args.getBytes(i + 1);
+            } else if (args.equalsIgnoreCase(i, "COUNT")) {
+                long value;
+                try {
+                    value = args.getLong(i + 1);
+                } catch (NumberFormatException e) {
+                    RESPHandler.writeError(out, e.getMessage());
+                    return;
+                }
+                if (value < 1) {
+                    RESPHandler.writeError(out, "syntax error");
+                    return;
+                }
+                count = (int) Math.min(value, Integer.MAX_VALUE);
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        List<byte[]> keys = new ArrayList<>();
+        long next;
+        try {
+            next = service.scan(cursor, count, pattern, keys::add);
+        } catch (IllegalArgumentException e) {
+            RESPHandler.writeError(out, e.getMessage());
+            return;
+        }
+        RESPHandler.writeArrayHeader(out, 2);
+        RESPHandler.writeBulk(out, Long.toString(next));
+        RESPHandler.writeArrayHeader(out, keys.size());
+        for (byte[] key : keys) {
+            RESPHandler.writeBulk(out, key);
+        }
+    }
+
+    private void expire(CommandArgs args, long unitMillis, ReplyBuffer out) {
+        long amount;
+        try {
+            amount = args.getLong(2);
+        } catch (NumberFormatException e) {
+            RESPHandler.writeError(out, e.getMessage());
+            return;
+        }
+        if (Math.abs(amount) > (Long.MAX_VALUE - System.currentTimeMillis()) / unitMillis) {
+            RESPHandler.writeError(out, "invalid expire time in '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+        long expireAt = System.currentTimeMillis() + amount * unitMillis;
+        RESPHandler.writeInteger(out, service.expireAt(args.getKey(1), expireAt) ? 1 : 0);
+    }
+
+    private void expireAt(CommandArgs args, long unitMillis, ReplyBuffer out) {
+        long amount;
+        try {
+            amount = args.getLong(2);
+        } catch (NumberFormatException e) {
+            RESPHandler.writeError(out, e.getMessage());
+            return;
+        }
+        if (Math.abs(amount) > Long.MAX_VALUE / unitMillis) {
+            RESPHandler.writeError(out, "invalid expire time in '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+        RESPHandler.writeInteger(out, service.expireAt(args.getKey(1), amount * unitMillis) ? 1 : 0);
+    }
+
+    /**
+     * REPLICAOF host port | REPLICAOF NO ONE
+     */
+    private void replicaOf(CommandArgs args, ReplyBuffer out) {
+        if (args.equalsIgnoreCase(1, "NO") && args.equalsIgnoreCase(2, "ONE")) {
+            service.replicaOf(null, 0);
+            RESPHandler.writeOk(out);
+            return;
+        }
+        long port;
+        try {
+            port = args.getLong(2);
+        } catch (NumberFormatException e) {
+            RESPHandler.writeError(out, e.getMessage());
+            return;
+        }
+        if (port <= 0 || port > 65535) {
+            RESPHandler.writeError(out, "Invalid master port");
+            return;
+        }
+        service.replicaOf(args.getString(1), (int) port);
+        RESPHandler.writeOk(out);
+    }
+
+    /**
+     * PSYNC replid offset: turns this connection into a replication link. The sync reply
+     * goes out on the link itself, ahead of the stream.
+     */
+    private void psync(CommandArgs args, ReplyBuffer out) {
+        long offset;
+        try {
+            offset = args.getLong(2);
+        } catch (NumberFormatException e) {
+            RESPHandler.writeError(out, e.getMessage());
+            return;
+        }
+        replicaLink = service.getReplication().attach(service, args.getString(1), offset);
+    }
+
+    /**
+     * Has commands that wait on another server, such as {@code MIGRATE}, leave their work
+     * to {@link #takeDeferred()} rather than block the calling thread, as an event loop
+     * needs.
+     */
+    void deferBlockingCommands() {
+        deferBlocking = true;
+    }
+
+    /**
+     * @return the work of the last command if it was deferred, once; run on another
+     * thread, it returns the command's reply
+     */
+    Supplier<byte[]> takeDeferred() {
+        Supplier<byte[]> work = deferred;
+        deferred = null;
+        return work;
+    }
+
+    /**
+     * @return the replication link this connection became with {@code PSYNC}, once;
+     * the connection must then hand its socket over to it
+     */
+    ReplicationSource.ReplicaLink takeReplicaLink() {
+        ReplicationSource.ReplicaLink link = replicaLink;
+        replicaLink = null;
+        return link;
+    }
+
+    /**
+     * Called before this connection's replies are sent, so that with
+     * {@code appendfsync always} no write is acknowledged before it is on disk.
+     */
+    void awaitDurable() {
+        service.awaitDurable();
+    }
+
+    /**
+     * @param section {@code stats}, {@code commandstats}, {@code latencystats},
+     *                {@code all}, or anything else for the default fields and stats
+     */
+    private String getInfo(String section) {
+        switch (section) {
+            case "stats":
+                return formatInfo(statsInfo());
+            case "commandstats":
+                return formatInfo(commandStatsInfo());
+            case "latencystats":
+                return formatInfo(latencyStatsInfo());
+            case "all":
+            case "everything":
+                return formatInfo(serverInfo()) + formatInfo(statsInfo())
+                        + formatInfo(commandStatsInfo()) + formatInfo(latencyStatsInfo());
+            default:
+                Map<String, String> info = serverInfo();
+                info.putAll(statsInfo());
+                return formatInfo(info);
+        }
+    }
+
+    private Map<String, String> serverInfo() {
+        Map<String, String> info = new HashMap<>();
+        info.put("redis_version", RedisServer.VERSION);
+        info.put("uptime_in_seconds", String.valueOf(RedisServer.uptimeSeconds()));
+        info.put("connected_clients", String.valueOf(RedisServer.connectedClients()));
+        info.put("cluster_enabled", service.getCluster() == null ? "0" : "1");
+        long maxInputBuffer = 0;
+        long maxOutputBuffer = 0;
+        for (RedisServer.ClientInfo client : clients.values()) {
+            maxInputBuffer = Math.max(maxInputBuffer, client.queryBufferSize());
+            maxOutputBuffer = Math.max(maxOutputBuffer, client.outputMemory());
+        }
+        info.put("client_recent_max_input_buffer", String.valueOf(maxInputBuffer));
+        info.put("client_recent_max_output_buffer", String.valueOf(maxOutputBuffer));
+        StorageEngine engine = service.getStorageEngine();
+        info.put("used_memory", String.valueOf(engine.usedMemory()));
+        info.put("used_memory_human", formatMemory(engine.usedMemory()));
+        info.put("used_memory_jvm_heap", String.valueOf(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
+        info.put("total_system_memory", String.valueOf(Runtime.getRuntime().maxMemory()));
+        info.put("total_system_memory_human", formatMemory(Runtime.getRuntime().maxMemory()));
+        info.put("maxmemory", String.valueOf(service.getMaxMemory()));
+        info.put("maxmemory_human", formatMemory(service.getMaxMemory()));
+        info.put("maxmemory_policy", service.getEvictionPolicy().configName());
+        info.put("evicted_keys", String.valueOf(service.evictedKeys()));
+        info.put("expired_keys", String.valueOf(engine.expiredCount()));
+        info.put("rdb_bgsave_in_progress", service.isBackgroundSaveInProgress() ? "1" : "0");
+        info.put("rdb_last_save_time", String.valueOf(service.lastSaveMillis() / 1000));
+        info.put("rdb_last_bgsave_status", service.lastBackgroundSaveOk() ? "ok" : "err");
+        ReplicationSource replication = service.getReplication();
+        ReplicationClient replicationClient = service.getReplicationClient();
+        info.put("role", replicationClient == null ? "master" : "slave");
+        if (replicationClient != null) {
+            info.put("master_host", replicationClient.getHost());
+            info.put("master_port", String.valueOf(replicationClient.getPort()));
+            info.put("master_link_status", replicationClient.isLinkUp() ? "up" : "down");
+            info.put("slave_repl_offset", String.valueOf(replicationClient.offset()));
+        }
+        info.put("connected_slaves", String.valueOf(replication.connectedReplicas()));
+        info.put("master_replid", replication.replid());
+        info.put("master_repl_offset", String.valueOf(replication.offset()));
+        info.put("repl_backlog_size", String.valueOf(replication.getBacklogSize()));
+        info.put("sync_full", String.valueOf(replication.fullSyncs()));
+        info.put("sync_partial_ok", String.valueOf(replication.partialSyncs()));
+        info.put("sync_partial_err", String.valueOf(replication.partialSyncErrors()));
+        info.put("db0", "keys=" + engine.size() + ",expires=" + engine.volatileSize() + ",avg_ttl=0");
+        info.put("storage_engine", engine.name());
+        info.put("shards", String.valueOf(engine.shardCount()));
+        info.put("used_memory_offheap", String.valueOf(engine.offHeapUsedBytes()));
+        info.put("used_memory_offheap_human", formatMemory(engine.offHeapUsedBytes()));
+        info.put("offheap_reserved_memory", String.valueOf(engine.offHeapReservedBytes()));
+        info.put("offheap_reserved_memory_human", formatMemory(engine.offHeapReservedBytes()));
+        return info;
+    }
+
+    private Map<String, String> statsInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        CommandStats stats = service.getCommandStats();
+        info.put("total_connections_received", String.valueOf(RedisServer.totalConnectionsReceived()));
+        info.put("total_commands_processed", String.valueOf(stats.totalCalls()));
+        info.put("instantaneous_ops_per_sec", String.valueOf(stats.instantaneousOpsPerSecond()));
+        info.put("total_net_input_bytes", String.valueOf(RedisServer.netInputBytes()));
+        info.put("total_net_output_bytes", String.valueOf(RedisServer.netOutputBytes()));
+        info.put("evicted_clients", String.valueOf(RedisServer.evictedClients()));
+        info.put("keyspace_hits", String.valueOf(service.keyspaceHits()));
+        info.put("keyspace_misses", String.valueOf(service.keyspaceMisses()));
+        info.put("tracking_clients", String.valueOf(service.getTracking().clientCount()));
+        info.put("tracking_total_keys", String.valueOf(service.getTracking().keyCount()));
+        return info;
+    }
+
+    /**
+     * One {@code cmdstat_<name>} line per command called, as Redis reports them.
+     */
+    private Map<String, String> commandStatsInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        for (CommandStats.Entry entry : service.getCommandStats().snapshot()) {
+            info.put("cmdstat_" + entry.getCommand().name().toLowerCase(), "calls=" + entry.getCalls()
+                    + ",usec=" + entry.getMicros()
+                    + ",usec_per_call=" + String.format(Locale.ROOT, "%.2f", (double) entry.getMicros() / entry.getCalls())
+                    + ",rejected_calls=0,failed_calls=" + entry.getFailedCalls());
+        }
+        return info;
+    }
+
+    private Map<String, String> latencyStatsInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        for (CommandStats.Entry entry : service.getCommandStats().snapshot()) {
+            LatencyHistogram latencies = entry.getLatencies();
+            info.put("latency_percentiles_usec_" + entry.getCommand().name().toLowerCase(),
+                    "p50=" + formatMicros(latencies.getValueAtPercentile(50))
+                            + ",p99=" + formatMicros(latencies.getValueAtPercentile(99))
+                            + ",p99.9=" + formatMicros(latencies.getValueAtPercentile(99.9)));
+        }
+        return info;
+    }
+
+    private static String formatMicros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    private static String formatInfo(Map<String, String> info) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : info.entrySet()) {
+            sb.append(entry.getKey()).append(":").append(entry.getValue()).append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * CLIENT TRACKING ON|OFF [REDIRECT id] [BCAST] [PREFIX prefix ...] [OPTIN] [OPTOUT].
+     * Without RESP3 there is no other way to deliver invalidations, so REDIRECT is
+     * required.
+     */
+    private void clientTracking(CommandArgs args, ReplyBuffer out) {
+        boolean on = args.equalsIgnoreCase(2, "ON");
+        if (!on && !args.equalsIgnoreCase(2, "OFF")) {
+            RESPHandler.writeError(out, "syntax error");
+            return;
+        }
+        long redirect = -1;
+        boolean broadcast = false;
+        boolean optIn = false;
+        boolean optOut = false;
+        List<byte[]> prefixes = new ArrayList<>();
+        for (int i = 3; i < args.count(); i++) {
+            boolean hasValue = i + 1 < args.count();
+            if (args.equalsIgnoreCase(i, "REDIRECT") && hasValue) {
+                redirect = longArg(args, ++i);
+            } else if (args.equalsIgnoreCase(i, "PREFIX") && hasValue) {
+                prefixes.add(args.getBytes(++i));
+            } else if (args.equalsIgnoreCase(i, "BCAST")) {
+                broadcast = true;
+            } else if (args.equalsIgnoreCase(i, "OPTIN")) {
+                optIn = true;
+            } else if (args.equalsIgnoreCase(i, "OPTOUT")) {
+                optOut = true;
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        if (!on) {
+            if (tracking != null) {
+                service.getTracking().disable(clientId());
+                tracking = null;
+            }
+            RESPHandler.writeOk(out);
+            return;
+        }
+        if (!prefixes.isEmpty() && !broadcast) {
+            RESPHandler.writeError(out, "PREFIX option requires BCAST mode to be enabled");
+            return;
+        }
+        if (broadcast && (optIn || optOut)) {
+            RESPHandler.writeError(out, "OPTIN and OPTOUT are not compatible with BCAST");
+            return;
+        }
+        if (optIn && optOut) {
+            RESPHandler.writeError(out, "You can't use both OPTIN and OPTOUT");
+            return;
+        }
+        if (redirect < 0) {
+            RESPHandler.writeError(out, "CLIENT TRACKING needs REDIRECT to a connection subscribed to __redis__:invalidate, as this server only speaks RESP2");
+            return;
+        }
+        CommandExecutor target = null;
+        for (RedisServer.ClientInfo client : clients.values()) {
+            if (client.getId() == redirect) {
+                target = client.getExecutor();
+            }
+        }
+        if (target == null) {
+            RESPHandler.writeError(out, "The client ID you want redirect to does not exist");
+            return;
+        }
+        tracking = new Tracking.Client(clientId(), target, broadcast, prefixes.toArray(new byte[0][]), optIn, optOut);
+        service.getTracking().enable(tracking);
+        RESPHandler.writeOk(out);
+    }
+
+    /**
+     * CLIENT KILL ip:port, which replies OK or fails if there is no such client, or CLIENT
+     * KILL [ID id] [ADDR ip:port] [SKIPME yes|no], which replies how many clients matched
+     * every filter. With SKIPME yes, the default, the calling client is never killed.
+     */
+    private void clientKill(CommandArgs args, ReplyBuffer out) {
+        if (args.count() == 3) {
+            String address = args.getString(2);
+            for (RedisServer.ClientInfo client : clients.values()) {
+                if (client.getAddress().equals(address)) {
+                    client.kill();
+                    RESPHandler.writeOk(out);
+                    return;
+                }
+            }
+            RESPHandler.writeError(out, "No such client");
+            return;
+        }
+        long id = -1;
+        String address = null;
+        boolean skipMe = true;
+        if (args.count() % 2 != 0) {
+            RESPHandler.writeError(out, "syntax error");
+            return;
+        }
+        for (int i = 2; i < args.count(); i += 2) {
+            if (args.equalsIgnoreCase(i, "ID")) {
+                id = longArg(args, i + 1);
+                if (id <= 0) {
+                    RESPHandler.writeError(out, "client-id should be greater than 0");
+                    return;
+                }
+            } else if (args.equalsIgnoreCase(i, "ADDR")) {
+                address = args.getString(i + 1);
+            } else if (args.equalsIgnoreCase(i, "SKIPME")) {
+                if (args.equalsIgnoreCase(i + 1, "YES") || args.equalsIgnoreCase(i + 1, "NO")) {
+                    skipMe = args.equalsIgnoreCase(i + 1, "YES");
+                } else {
+                    RESPHandler.writeError(out, "syntax error");
+                    return;
+                }
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        long killed = 0;
+        for (RedisServer.ClientInfo client : clients.values()) {
+            if ((id >= 0 && client.getId() != id)
+                    || (address != null && !client.getAddress().equals(address))
+                    || (skipMe && client == info)) {
+                continue;
+            }
+            client.kill();
+            killed++;
+        }
+        RESPHandler.writeInteger(out, killed);
+    }
+
+    /**
+     * SLOWLOG GET [count] | LEN | RESET. GET replies, newest first, with each entry's id,
+     * unix time, duration in microseconds, arguments, client address and client name.
+     */
+    private void slowLog(CommandArgs args, ReplyBuffer out) {
+        SlowLog slowLog = service.getSlowLog();
+        if (args.equalsIgnoreCase(1, "GET")) {
+            int count = 10;
+            if (args.count() == 3) {
+                long requested = longArg(args, 2);
+                if (requested < -1) {
+                    RESPHandler.writeError(out, "count should be greater than or equal to -1");
+                    return;
+                }
+                count = (int) Math.min(requested, Integer.MAX_VALUE);
+            }
+            List<SlowLog.Entry> entries = slowLog.newestFirst(count);
+            RESPHandler.writeArrayHeader(out, entries.size());
+            for (SlowLog.Entry entry : entries) {
+                RESPHandler.writeArrayHeader(out, 6);
+                RESPHandler.writeInteger(out, entry.getId());
+                RESPHandler.writeInteger(out, entry.getTimestampSeconds());
+                RESPHandler.writeInteger(out, entry.getMicros());
+                RESPHandler.writeArrayHeader(out, entry.getArgs().length);
+                for (byte[] arg : entry.getArgs()) {
+                    RESPHandler.writeBulk(out, arg);
+                }
+                RESPHandler.writeBulk(out, entry.getAddress());
+                RESPHandler.writeBulk(out, entry.getClientName());
+            }
+        } else if (args.equalsIgnoreCase(1, "LEN") && args.count() == 2) {
+            RESPHandler.writeInteger(out, slowLog.size());
+        } else if (args.equalsIgnoreCase(1, "RESET") && args.count() == 2) {
+            slowLog.reset();
+            RESPHandler.writeOk(out);
+        } else {
+            RESPHandler.writeError(out, "Unknown SLOWLOG subcommand or wrong number of arguments");
+        }
+    }
+
+    /**
+     * MEMORY USAGE key [SAMPLES count] | MEMORY STATS. The sample count is accepted for
+     * compatibility; every entry is accounted exactly, so it has no effect.
+     */
+    private void memory(CommandArgs args, ReplyBuffer out) {
+        if (args.equalsIgnoreCase(1, "USAGE") && (args.count() == 3
+                || args.count() == 5 && args.equalsIgnoreCase(3, "SAMPLES"))) {
+            if (args.count() == 5 && longArg(args, 4) < 0) {
+                RESPHandler.writeError(out, "value is out of range, must be positive");
+                return;
+            }
+            long usage = service.memoryUsage(args.getKey(2));
+            if (usage < 0) {
+                RESPHandler.writeBulk(out, (byte[]) null);
+            } else {
+                RESPHandler.writeInteger(out, usage);
+            }
+        } else if (args.equalsIgnoreCase(1, "STATS") && args.count() == 2) {
+            StorageEngine engine = service.getStorageEngine();
+            long used = engine.usedMemory();
+            long keys = engine.size();
+            RESPHandler.writeArrayHeader(out, 14);
+            RESPHandler.writeBulk(out, "total.allocated");
+            RESPHandler.writeInteger(out, used + engine.offHeapReservedBytes() - engine.offHeapUsedBytes());
+            RESPHandler.writeBulk(out, "dataset.bytes");
+            RESPHandler.writeInteger(out, used);
+            RESPHandler.writeBulk(out, "keys.count");
+            RESPHandler.writeInteger(out, keys);
+            RESPHandler.writeBulk(out, "keys.bytes-per-key");
+            RESPHandler.writeInteger(out, keys == 0 ? 0 : used / keys);
+            RESPHandler.writeBulk(out, "compression.values");
+            RESPHandler.writeInteger(out, engine.compressedValues());
+            RESPHandler.writeBulk(out, "compression.bytes-saved");
+            RESPHandler.writeInteger(out, engine.compressionSavedBytes());
+            RESPHandler.writeBulk(out, "shared-integers.values");
+            RESPHandler.writeInteger(out, engine.sharedIntegerValues());
+        } else {
+            RESPHandler.writeError(out, "unknown subcommand or wrong number of arguments for 'memory' command");
+        }
+    }
+
+    /**
+     * CLUSTER INFO | MYID | NODES | SLOTS | SHARDS | KEYSLOT key | COUNTKEYSINSLOT slot |
+     * GETKEYSINSLOT slot count | ADDSLOTS slot ... | ADDSLOTSRANGE first last ... |
+     * DELSLOTS slot ... | DELSLOTSRANGE first last ... |
+     * SETSLOT slot IMPORTING|MIGRATING|NODE id | SETSLOT slot STABLE | MEET ip port
+     */
+    private void cluster(CommandArgs args, ReplyBuffer out) {
+        Cluster cluster = service.getCluster();
+        if (cluster == null) {
+            RESPHandler.writeError(out, "This instance has cluster support disabled");
+            return;
+        }
+        String subCommand = args.getString(1).toUpperCase(Locale.ROOT);
+        switch (subCommand) {
+            case "INFO": {
+                int assigned = cluster.assignedSlots();
+                long serving = cluster.nodes().stream().filter(node -> !cluster.slotRanges(node).isEmpty()).count();
+                Map<String, String> info = new LinkedHashMap<>();
+                info.put("cluster_state", assigned == HashSlot.SLOTS ? "ok" : "fail");
+                info.put("cluster_slots_assigned", String.valueOf(assigned));
+                info.put("cluster_slots_ok", String.valueOf(assigned));
+                info.put("cluster_slots_pfail", "0");
+                info.put("cluster_slots_fail", "0");
+                info.put("cluster_known_nodes", String.valueOf(cluster.nodes().size()));
+                info.put("cluster_size", String.valueOf(serving));
+                info.put("cluster_current_epoch", String.valueOf(cluster.currentEpoch()));
+                info.put("cluster_my_epoch", String.valueOf(cluster.myself().getConfigEpoch()));
+                RESPHandler.writeBulk(out, formatInfo(info));
+                return;
+            }
+            case "MYID":
+                RESPHandler.writeBulk(out, cluster.myself().getId());
+                return;
+            case "NODES":
+                RESPHandler.writeBulk(out, cluster.describeNodes());
+                return;
+            case "SLOTS": {
+                List<Object[]> ranges = new ArrayList<>();
+                for (Cluster.Node node : cluster.nodes()) {
+                    for (int[] range : cluster.slotRanges(node)) {
+                        ranges.add(new Object[]{range, node});
+                    }
+                }
+                ranges.sort((a, b) -> Integer.compare(((int[]) a[0])[0], ((int[]) b[0])[0]));
+                RESPHandler.writeArrayHeader(out, ranges.size());
+                for (Object[] range : ranges) {
+                    Cluster.Node node = (Cluster.Node) range[1];
+                    RESPHandler.writeArrayHeader(out, 3);
+                    RESPHandler.writeInteger(out, ((int[]) range[0])[0]);
+                    RESPHandler.writeInteger(out, ((int[]) range[0])[1]);
+                    RESPHandler.writeArrayHeader(out, 3);
+                    RESPHandler.writeBulk(out, node.getHost());
+                    RESPHandler.writeInteger(out, node.getPort());
+                    RESPHandler.writeBulk(out, node.getId());
+                }
+                return;
+            }
+            case "SHARDS":
+                RESPHandler.writeArrayHeader(out, cluster.nodes().size());
+                for (Cluster.Node node : cluster.nodes()) {
+                    List<int[]> ranges = cluster.slotRanges(node);
+                    RESPHandler.writeArrayHeader(out, 4);
+                    RESPHandler.writeBulk(out, "slots");
+                    RESPHandler.writeArrayHeader(out, ranges.size() * 2);
+                    for (int[] range : ranges) {
+                        RESPHandler.writeInteger(out, range[0]);
+                        RESPHandler.writeInteger(out, range[1]);
+                    }
+                    RESPHandler.writeBulk(out, "nodes");
+                    RESPHandler.writeArrayHeader(out, 1);
+                    RESPHandler.writeArrayHeader(out, 14);
+                    RESPHandler.writeBulk(out, "id");
+                    RESPHandler.writeBulk(out, node.getId());
+                    RESPHandler.writeBulk(out, "port");
+                    RESPHandler.writeInteger(out, node.getPort());
+                    RESPHandler.writeBulk(out, "ip");
+                    RESPHandler.writeBulk(out, node.getHost());
+                    RESPHandler.writeBulk(out, "endpoint");
+                    RESPHandler.writeBulk(out, node.getHost());
+                    RESPHandler.writeBulk(out, "role");
+                    RESPHandler.writeBulk(out, "master");
+                    RESPHandler.writeBulk(out, "replication-offset");
+                    RESPHandler.writeInteger(out, node == cluster.myself() ? service.getReplication().offset() : 0);
+                    RESPHandler.writeBulk(out, "health");
+                    RESPHandler.writeBulk(out, node.isConnected() ? "online" : "failed");
+                }
+                return;
+            case "KEYSLOT":
+                if (args.count() != 3) {
+                    break;
+                }
+                RESPHandler.writeInteger(out, HashSlot.of(args.getKey(2)));
+                return;
+            case "COUNTKEYSINSLOT":
+                if (args.count() != 3) {
+                    break;
+                }
+                RESPHandler.writeInteger(out, service.countKeysInSlot(slotArg(args, 2)));
+                return;
+            case "GETKEYSINSLOT": {
+                if (args.count() != 4) {
+                    break;
+                }
+                int slot = slotArg(args, 2);
+                long count = longArg(args, 3);
+                if (count < 0) {
+                    RESPHandler.writeError(out, "Invalid number of keys");
+                    return;
+                }
+                writeBulks(out, service.keysInSlot(slot, (int) Math.min(count, Integer.MAX_VALUE)));
+                return;
+            }
+            case "ADDSLOTS":
+            case "DELSLOTS": {
+                if (args.count() < 3) {
+                    break;
+                }
+                int[] slots = new int[args.count() - 2];
+                for (int i = 2; i < args.count(); i++) {
+                    slots[i - 2] = slotArg(args, i);
+                }
+                if (subCommand.equals("ADDSLOTS")) {
+                    cluster.addSlots(slots);
+                } else {
+                    cluster.delSlots(slots);
+                }
+                RESPHandler.writeOk(out);
+                return;
+            }
+            case "ADDSLOTSRANGE":
+            case "DELSLOTSRANGE": {
+                if (args.count() < 4 || args.count() % 2 != 0) {
+                    break;
+                }
+                List<Integer> slots = new ArrayList<>();
+                for (int i = 2; i < args.count(); i += 2) {
+                    int first = slotArg(args, i);
+                    int last = slotArg(args, i + 1);
+                    if (first > last) {
+                        RESPHandler.writeError(out, "start slot number " + first + " is greater than end slot number " + last);
+                        return;
+                    }
+                    for (int slot = first; slot <= last; slot++) {
+                        slots.add(slot);
+                    }
+                }
+                int[] slotArray = slots.stream().mapToInt(Integer::intValue).toArray();
+                if (subCommand.equals("ADDSLOTSRANGE")) {
+                    cluster.addSlots(slotArray);
+                } else {
+                    cluster.delSlots(slotArray);
+                }
+                RESPHandler.writeOk(out);
+                return;
+            }
+            case "SETSLOT": {
+                if (args.count() < 4) {
+                    break;
+                }
+                int slot = slotArg(args, 2);
+                if (args.count() == 4 && args.equalsIgnoreCase(3, "STABLE")) {
+                    cluster.setStable(slot);
+                } else if (args.count() == 5 && args.equalsIgnoreCase(3, "MIGRATING")) {
+                    cluster.setMigrating(slot, args.getString(4));
+                } else if (args.count() == 5 && args.equalsIgnoreCase(3, "IMPORTING")) {
+                    cluster.setImporting(slot, args.getString(4));
+                } else if (args.count() == 5 && args.equalsIgnoreCase(3, "NODE")) {
+                    cluster.setNode(slot, args.getString(4), service.countKeysInSlot(slot) > 0);
+                } else {
+                    RESPHandler.writeError(out, "Invalid CLUSTER SETSLOT action or number of arguments");
+                    return;
+                }
+                RESPHandler.writeOk(out);
+                return;
+            }
+            case "MEET":
+                if (args.count() != 4) {
+                    break;
+                }
+                long port = longArg(args, 3);
+                if (port <= 0 || port > 65535) {
+                    RESPHandler.writeError(out, "Invalid node address specified: " + args.getString(2) + ":" + args.getString(3));
+                    return;
+                }
+                cluster.meet(args.getString(2), (int) port);
+                RESPHandler.writeOk(out);
+                return;
+            default:
+                break;
+        }
+        RESPHandler.writeError(out, "unknown subcommand or wrong number of arguments for 'cluster' command");
+    }
+
+    private static int slotArg(CommandArgs args, int index) {
+        long slot;
+        try {
+            slot = args.getLong(index);
+        } catch (NumberFormatException e) {
+            slot = -1;
+        }
+        if (slot < 0 || slot >= HashSlot.SLOTS) {
+            throw new RedisException("ERR Invalid or out of range slot");
+        }
+        return (int) slot;
+    }
+
+    /**
+     * MIGRATE host port key|"" destination-db timeout [COPY] [REPLACE] [KEYS key ...]
+     */
+    private void migrate(CommandArgs args, ReplyBuffer out) {
+        String host = args.getString(1);
+        long port = longArg(args, 2);
+        long db = longArg(args, 4);
+        long timeout = longArg(args, 5);
+        boolean copy = false;
+        boolean replace = false;
+        int keysFrom = 3;
+        for (int i = 6; i < args.count(); i++) {
+            if (args.equalsIgnoreCase(i, "COPY")) {
+                copy = true;
+            } else if (args.equalsIgnoreCase(i, "REPLACE")) {
+                replace = true;
+            } else if (args.equalsIgnoreCase(i, "KEYS") && i + 1 < args.count()) {
+                if (args.length(3) != 0) {
+                    RESPHandler.writeError(out, "When using MIGRATE KEYS option, the key argument must be set to the empty string");
+                    return;
+                }
+                keysFrom = i + 1;
+                break;
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        if (db != 0) {
+            RESPHandler.writeError(out, "DB index is out of range");
+            return;
+        }
+        if (port <= 0 || port > 65535) {
+            RESPHandler.writeError(out, "Invalid port");
+            return;
+        }
+        int keyCount = keysFrom == 3 ? 1 : args.count() - keysFrom;
+        ByteKey[] keys = new ByteKey[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            // Copied, as the request buffer is reused once the command is deferred
+            keys[i] = args.getKey(keysFrom + i).owned();
+        }
+        int timeoutMillis = timeout <= 0 ? 1000 : (int) Math.min(timeout, Integer.MAX_VALUE);
+        boolean copyKeys = copy;
+        boolean replaceKeys = replace;
+        if (deferBlocking) {
+            deferred = () -> {
+                ReplyBuffer reply = new ReplyBuffer();
+                migrate(host, (int) port, timeoutMillis, keys, copyKeys, replaceKeys, reply);
+                return reply.take();
+            };
+        } else {
+            migrate(host, (int) port, timeoutMillis, keys, copyKeys, replaceKeys, out);
+        }
+    }
+
+    private void migrate(String host, int port, int timeoutMillis, ByteKey[] keys, boolean copy, boolean replace,
+                         ReplyBuffer out) {
+        try (NodeClient target = new NodeClient(host, port, timeoutMillis)) {
+            if (service.migrate(keys, target, copy, replace) == 0) {
+                RESPHandler.writeSimpleString(out, "NOKEY");
+            } else {
+                RESPHandler.writeOk(out);
+            }
+        } catch (IOException e) {
+            RESPHandler.writeCodedError(out, "IOERR error or timeout reading to target instance: " + e.getMessage());
+        } catch (RedisException e) {
+            RESPHandler.writeCodedError(out, e.getMessage());
+        }
+    }
+
+    /**
+     * RESTORE key ttl serialized-value [REPLACE] [ABSTTL]
+     */
+    private void restore(CommandArgs args, ReplyBuffer out) {
+        long ttl = longArg(args, 2);
+        boolean replace = false;
+        boolean absolute = false;
+        for (int i = 4; i < args.count(); i++) {
+            if (args.equalsIgnoreCase(i, "REPLACE")) {
+                replace = true;
+            } else if (args.equalsIgnoreCase(i, "ABSTTL")) {
+                absolute = true;
+            } else {
+                RESPHandler.writeError(out, "syntax error");
+                return;
+            }
+        }
+        if (ttl < 0) {
+            RESPHandler.writeError(out, "Invalid TTL value, must be >= 0");
+            return;
+        }
+        long expireAt = ttl == 0 ? StorageEngine.NO_EXPIRY : absolute ? ttl : System.currentTimeMillis() + ttl;
+        service.restore(args.getKey(1), args.getBytes(3), expireAt, replace);
+        RESPHandler.writeOk(out);
+    }
+
+    private static void writeString(ReplyBuffer out, Object value) {
+        if (value instanceof CompressedValue) {
+            RESPHandler.writeBulk(out, (CompressedValue) value);
+        } else {
+            RESPHandler.writeBulk(out, (byte[]) value);
+        }
+    }
+
+    /**
+     * Remembers the keys a read is about to return, unless the client opted out of it.
+     */
+    private void trackReads(CommandType cmd, CommandArgs args, Boolean caching) {
+        if (tracking.isBroadcast()
+                || tracking.isOptIn() && !Boolean.TRUE.equals(caching)
+                || tracking.isOptOut() && Boolean.FALSE.equals(caching)) {
+            return;
+        }
+        int last = cmd.readKeys() < 0 ? args.count() - 1 : Math.min(cmd.readKeys(), args.count() - 1);
+        for (int i = 1; i <= last; i++) {
+            service.getTracking().keyRead(tracking, args.getKey(i));
+        }
+    }
+
+    long clientId() {
+        return info == null ? 0 : info.getId();
+    }
+
+    private static boolean allowedWhileSubscribed(CommandType cmd) {
+        switch (cmd) {
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+            case PSUBSCRIBE:
+            case PUNSUBSCRIBE:
+            case PING:
+            case QUIT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * SUBSCRIBE channel [channel ...] and PSUBSCRIBE pattern [pattern ...]. Each
+     * subscription is made and confirmed under the subscriber's lock, which publishers
+     * also take to queue a message, so the confirmation is always ahead of the
+     * channel's first message.
+     */
+    private void subscribe(CommandType cmd, CommandArgs args, ReplyBuffer out) {
+        if (delivery == null) {
+            RESPHandler.writeError(out, "'" + cmd.name().toLowerCase() + "' is not allowed on this connection");
+            return;
+        }
+        if (subscriber == null) {
+            subscriber = new PubSub.Subscriber(service.getPubSub(), delivery);
+        }
+        // Replies to earlier commands in the pipeline go first
+        pushReplies(out);
+        boolean patterns = cmd == CommandType.PSUBSCRIBE;
+        PubSub pubSub = service.getPubSub();
+        for (int i = 1; i < args.count(); i++) {
+            ByteKey channel = args.getKey(i);
+            synchronized (subscriber) {
+                if (patterns) {
+                    pubSub.psubscribe(subscriber, channel);
+                } else {
+                    pubSub.subscribe(subscriber, channel);
+                }
+                writeSubscription(out, cmd, channel, subscriber.subscriptions());
+                subscriber.push(out.take());
+            }
+        }
+    }
+
+    /**
+     * UNSUBSCRIBE [channel ...] and PUNSUBSCRIBE [pattern ...]; without arguments, from
+     * every channel or pattern.
+     */
+    private void unsubscribe(CommandType cmd, CommandArgs args, ReplyBuffer out) {
+        boolean patterns = cmd == CommandType.PUNSUBSCRIBE;
+        PubSub pubSub = service.getPubSub();
+        List<ByteKey> channels = new ArrayList<>();
+        if (args.count() > 1) {
+            for (int i = 1; i < args.count(); i++) {
+                channels.add(args.getKey(i));
+            }
+        } else if (subscriber != null) {
+            channels = patterns ? pubSub.patternsOf(subscriber) : pubSub.channelsOf(subscriber);
+        }
+        if (channels.isEmpty()) {
+            writeSubscription(out, cmd, null, subscriber == null ? 0 : subscriber.subscriptions());
+            return;
+        }
+        for (ByteKey channel : channels) {
+            if (subscriber != null) {
+                if (patterns) {
+                    pubSub.punsubscribe(subscriber, channel);
+                } else {
+                    pubSub.unsubscribe(subscriber, channel);
+                }
+            }
+            writeSubscription(out, cmd, channel, subscriber == null ? 0 : subscriber.subscriptions());
+        }
+    }
+
+    private static void writeSubscription(ReplyBuffer out, CommandType cmd, ByteKey channel, int count) {
+        RESPHandler.writeArrayHeader(out, 3);
+        RESPHandler.writeBulk(out, cmd.name().toLowerCase());
+        if (channel == null) {
+            RESPHandler.writeNull(out);
+        } else {
+            RESPHandler.writeBulk(out, channel.toBytes());
+        }
+        RESPHandler.writeInteger(out, count);
+    }
+
+    /**
+     * PUBSUB CHANNELS [pattern] | NUMSUB [channel ...] | NUMPAT
+     */
+    private void pubSub(CommandArgs args, ReplyBuffer out) {
+        PubSub pubSub = service.getPubSub();
+        if (args.equalsIgnoreCase(1, "CHANNELS") && args.count() <= 3) {
+            writeBulks(out, pubSub.activeChannels(args.count() == 3 ? GlobPattern.compile(args.getBytes(2)) : null));
+        } else if (args.equalsIgnoreCase(1, "NUMSUB")) {
+            RESPHandler.writeArrayHeader(out, (args.count() - 2) * 2);
+            for (int i = 2; i < args.count(); i++) {
+                RESPHandler.writeBulk(out, args.getBytes(i));
+                RESPHandler.writeInteger(out, pubSub.subscriberCount(args.getKey(i)));
+            }
+        } else if (args.equalsIgnoreCase(1, "NUMPAT") && args.count() == 2) {
+            RESPHandler.writeInteger(out, pubSub.patternCount());
+        } else {
+            RESPHandler.writeError(out, "Unknown PUBSUB subcommand or wrong number of arguments");
+        }
+    }
+
+    /**
+     * LATENCY HISTOGRAM [command ...]: for each command, its calls and the cumulative
+     * count of calls at or below each power-of-two number of microseconds, as Redis
+     * replies; buckets that add no calls are left out.
+     */
+    private void latencyHistogram(CommandArgs args, ReplyBuffer out) {
+        Set<String> names = new HashSet<>();
+        for (int i = 2; i < args.count(); i++) {
+            names.add(args.getString(i).toLowerCase());
+        }
+        List<CommandStats.Entry> entries = new ArrayList<>();
+        for (CommandStats.Entry entry : service.getCommandStats().snapshot()) {
+            if (names.isEmpty() || names.contains(entry.getCommand().name().toLowerCase())) {
+                entries.add(entry);
+            }
+        }
+        RESPHandler.writeArrayHeader(out, entries.size() * 2);
+        for (CommandStats.Entry entry : entries) {
+            Map<Long, Long> buckets = new LinkedHashMap<>();
+            long[] cumulative = new long[1];
+            entry.getLatencies().forEachBucket((upperBound, count) -> {
+                cumulative[0] += count;
+                long micros = (upperBound + 999) / 1000;
+                buckets.put(micros <= 1 ? 1 : Long.highestOneBit(micros - 1) << 1, cumulative[0]);
+            });
+            RESPHandler.writeBulk(out, entry.getCommand().name().toLowerCase());
+            RESPHandler.writeArrayHeader(out, 4);
+            RESPHandler.writeBulk(out, "calls");
+            RESPHandler.writeInteger(out, entry.getCalls());
+            RESPHandler.writeBulk(out, "histogram_usec");
+            RESPHandler.writeArrayHeader(out, buckets.size() * 2);
+            for (Map.Entry<Long, Long> bucket : buckets.entrySet()) {
+                RESPHandler.writeInteger(out, bucket.getKey());
+                RESPHandler.writeInteger(out, bucket.getValue());
+            }
+        }
+    }
+
+    private String formatMemory(long bytes) {
+        final long K = 1024;
+        final long M = K * K;
+        final long G = M * K;
+        if (bytes < K) return bytes + "B";
+        if (bytes < M) return String.format("%.2fK", (float)bytes / K);
+        if (bytes < G) return String.format("%.2fM", (float)bytes / M);
+        return String.format("%.2fG", (float)bytes / G);
+    }
+
+    private String clientList() {
+        return clients.values().stream()
+                .map(RedisServer.ClientInfo::toString)
+                .collect(Collectors.joining("\n"));
+    }
+
+    private void clientSetName(String name) {
+        clientName = name;
+        clients.get(address).setName(name);
+    }
+
+    private boolean clientSetInfo(String field, String value) {
+        RedisServer.ClientInfo clientInfo = clients.get(address);
+        if (clientInfo != null) {
+            clientInfo.setInfo(field, value);
+            return true;
+        }
+        return false;
+    }
+}
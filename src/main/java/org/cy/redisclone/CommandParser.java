@@ -1,109 +1,237 @@
 package org.cy.redisclone;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Incremental, single-pass RESP request parser.
+ * <p>
+ * Bytes are read straight into a reusable {@link ByteBuffer} owned by the parser and
+ * commands are handed out as {@link CommandArgs} slices over that buffer, so parsing
+ * neither copies arguments nor creates intermediate Strings. Bulk strings are
+ * length-prefixed and therefore binary safe. Parsing state survives across reads, so
+ * a command split over several packets is never re-scanned from its start.
+ * <p>
+ * The buffer grows to fit the largest command received, and shrinks back once it has
+ * been drained while holding far less than its size, so that a connection that once sent
+ * a large value does not keep its buffer for as long as it stays connected.
+ */
 public class CommandParser {
-    private byte[] buffer = new byte[1024];
-    private int position = 0;
-    private Queue<byte[]> completeCommands = new LinkedList<>();
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MIN_READ_SPACE = 512;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_ARGS = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    // As Redis' PROTO_MBULK_BIG_ARG, buffers up to this size are never worth shrinking
+    private static final int SHRINK_THRESHOLD = 32 * 1024;
+
+    private final int initialCapacity;
+    private ByteBuffer buffer;
+    private final CommandArgs args = new CommandArgs();
+    private int readIndex = 0;
+    private int commandStart = 0;
+    private int expectedArgs = -1;
+    private int bulkLength = -1;
+    private int peakBuffered;
+
+    public CommandParser() {
+        this(INITIAL_CAPACITY);
+    }
 
     /**
-     * Appends incoming bytes to the internal buffer and parses commands.
-     *
-     * @param newBytes The incoming bytes to append
+     * @param initialCapacity the size of the read buffer, which bounds how much one read can take in
      */
-    public void appendBytes(byte[] newBytes) {
-        ensureCapacity(newBytes.length);
-        System.arraycopy(newBytes, 0, buffer, position, newBytes.length);
-        position += newBytes.length;
-        parseCommands();
+    public CommandParser(int initialCapacity) {
+        this.initialCapacity = Math.max(initialCapacity, MIN_READ_SPACE);
+        buffer = ByteBuffer.allocate(this.initialCapacity);
     }
 
     /**
-     * Checks if another command is available.
-     *
-     * @return true if there's at least one complete command available, false otherwise
+     * Returns the read buffer, with room for at least a few hundred more bytes, so that a
+     * channel can read directly into it. The buffer is in write mode: its position marks
+     * the end of the bytes received so far.
      */
-    public boolean hasNextCommand() {
-        return !completeCommands.isEmpty();
+    public ByteBuffer writableBuffer() {
+        prepareRead();
+        return buffer;
     }
 
     /**
-     * Retrieves the next complete command.
+     * Reads whatever bytes are available from the stream straight into the read buffer.
      *
-     * @return The next command as a byte array
-     * @throws IllegalStateException if no command is available
+     * @return the number of bytes read, or -1 at end of stream
      */
-    public byte[] getNextCommand() {
-        if (completeCommands.isEmpty()) {
-            throw new IllegalStateException("No command available");
+    public int readFrom(InputStream in) throws IOException {
+        prepareRead();
+        int bytesRead = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (bytesRead > 0) {
+            buffer.position(buffer.position() + bytesRead);
         }
-        return completeCommands.poll();
+        return bytesRead;
     }
 
-    private void ensureCapacity(int additionalCapacity) {
-        if (position + additionalCapacity > buffer.length) {
-            byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + additionalCapacity)];
-            System.arraycopy(buffer, 0, newBuffer, 0, position);
-            buffer = newBuffer;
+    /**
+     * Parses the next complete command from the bytes received so far.
+     *
+     * @return the command's arguments, valid until the next call, or null if more bytes are needed
+     * @throws IllegalStateException if the input is not valid RESP
+     */
+    public CommandArgs next() {
+        byte[] data = buffer.array();
+        int limit = buffer.position();
+        if (limit - commandStart > peakBuffered) {
+            peakBuffered = limit - commandStart;
         }
-    }
+        while (true) {
+            if (expectedArgs < 0) {
+                commandStart = readIndex;
+                if (readIndex >= limit) {
+                    return null;
+                }
+                if (data[readIndex] != '*') {
+                    throw new IllegalStateException("Protocol error: expected '*', got '" + (char) data[readIndex] + "'");
+                }
+                int lineEnd = findLineEnd(data, readIndex + 1, limit);
+                if (lineEnd < 0) {
+                    return null;
+                }
+                long length = parseLength(data, readIndex + 1, lineEnd);
+                if (length > MAX_ARGS) {
+                    throw new IllegalStateException("Protocol error: invalid multibulk length");
+                }
+                readIndex = lineEnd + 2;
+                if (length <= 0) {
+                    // Empty and null arrays carry no command, Redis silently skips them
+                    continue;
+                }
+                expectedArgs = (int) length;
+                args.reset(expectedArgs);
+            }
 
-    private void parseCommands() {
-        int index = 0;
-        while (index < position) {
-            if (buffer[index] == '*') {
-                int arrayLength = parseInteger(index + 1);
-                if (arrayLength == -1) return;
-                index = skipLine(index);
-
-                List<byte[]> elements = new ArrayList<>();
-                for (int i = 0; i < arrayLength; i++) {
-                    if (index >= position || buffer[index] != '$') return;
-                    int strLength = parseInteger(index + 1);
-                    if (strLength == -1) return;
-                    index = skipLine(index);
-
-                    if (index + strLength + 2 > position) return;
-                    byte[] element = new byte[strLength];
-                    System.arraycopy(buffer, index, element, 0, strLength);
-                    elements.add(element);
-                    index += strLength + 2; // Skip string content and \r\n
+            while (args.count() < expectedArgs) {
+                if (bulkLength < 0) {
+                    if (readIndex >= limit) {
+                        return null;
+                    }
+                    if (data[readIndex] != '$') {
+                        throw new IllegalStateException("Protocol error: expected '$', got '" + (char) data[readIndex] + "'");
+                    }
+                    int lineEnd = findLineEnd(data, readIndex + 1, limit);
+                    if (lineEnd < 0) {
+                        return null;
+                    }
+                    long length = parseLength(data, readIndex + 1, lineEnd);
+                    if (length < 0 || length > MAX_BULK_LENGTH) {
+                        throw new IllegalStateException("Protocol error: invalid bulk length");
+                    }
+                    bulkLength = (int) length;
+                    readIndex = lineEnd + 2;
                 }
+                if (limit - readIndex < bulkLength + 2) {
+                    return null;
+                }
+                if (data[readIndex + bulkLength] != '\r' || data[readIndex + bulkLength + 1] != '\n') {
+                    throw new IllegalStateException("Protocol error: bulk string not terminated by CRLF");
+                }
+                args.add(readIndex, bulkLength);
+                readIndex += bulkLength + 2;
+                bulkLength = -1;
+            }
 
-                int commandLength = index;
-                byte[] command = new byte[commandLength];
-                System.arraycopy(buffer, 0, command, 0, commandLength);
-                completeCommands.offer(command);
+            expectedArgs = -1;
+            args.setData(data);
+            return args;
+        }
+    }
 
-                System.arraycopy(buffer, commandLength, buffer, 0, position - commandLength);
-                position -= commandLength;
-                index = 0;
-            } else {
-                throw new IllegalStateException("Malformed RESP at position " + index);
-            }
+    /**
+     * @return the encoded size of the command last returned by {@link #next()}
+     */
+    public int lastCommandLength() {
+        return readIndex - commandStart;
+    }
+
+    /**
+     * @return the bytes received past the last complete command, once {@link #next()} returned null
+     */
+    public int unconsumedBytes() {
+        return buffer.position() - commandStart;
+    }
+
+    /**
+     * @return the size of the read buffer
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Makes room for the next read. Fully consumed input is discarded for free; a partially
+     * received command is moved to the front of the buffer, which grows only when the
+     * command itself does not fit.
+     */
+    private void prepareRead() {
+        int limit = buffer.position();
+        if (expectedArgs < 0 && readIndex >= limit) {
+            buffer.clear();
+            readIndex = 0;
+            commandStart = 0;
+            shrinkIfOversized();
+            return;
+        }
+        int required = limit - commandStart + MIN_READ_SPACE;
+        if (bulkLength >= 0) {
+            required = Math.max(required, readIndex - commandStart + bulkLength + 2);
+        }
+        if (buffer.capacity() - limit >= MIN_READ_SPACE && (bulkLength < 0 || buffer.capacity() >= commandStart + required)) {
+            return;
         }
+        if (required > buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, required));
+            grown.put(buffer.array(), commandStart, limit - commandStart);
+            buffer = grown;
+        } else if (commandStart > 0) {
+            System.arraycopy(buffer.array(), commandStart, buffer.array(), 0, limit - commandStart);
+            buffer.position(limit - commandStart);
+        }
+        args.shift(commandStart);
+        readIndex -= commandStart;
+        commandStart = 0;
     }
 
-    private int parseInteger(int start) {
-        int end = start;
-        while (end < position && buffer[end] != '\r') {
-            end++;
+    /**
+     * Replaces a drained buffer that held less than a quarter of its size since the last
+     * check with one twice that peak, as Redis resizes idle query buffers.
+     */
+    private void shrinkIfOversized() {
+        int capacity = buffer.capacity();
+        if (capacity > SHRINK_THRESHOLD && capacity > initialCapacity && peakBuffered < capacity / 4) {
+            buffer = ByteBuffer.allocate(Math.max(initialCapacity, peakBuffered * 2));
+        }
+        peakBuffered = 0;
+    }
+
+    private static int findLineEnd(byte[] data, int start, int limit) {
+        for (int i = start; i + 1 < limit; i++) {
+            if (data[i] == '\r') {
+                if (data[i + 1] != '\n') {
+                    throw new IllegalStateException("Protocol error: expected CRLF");
+                }
+                return i;
+            }
         }
-        if (end + 1 >= position || buffer[end + 1] != '\n') {
-            return -1;
+        if (limit - start > MAX_LINE_LENGTH) {
+            throw new IllegalStateException("Protocol error: too big header line");
         }
-        String numStr = new String(buffer, start, end - start);
-        return Integer.parseInt(numStr);
+        return -1;
     }
 
-    private int skipLine(int start) {
-        while (start < position && buffer[start] != '\n') {
-            start++;
+    private static long parseLength(byte[] data, int start, int end) {
+        try {
+            return CommandArgs.parseLong(data, start, end - start);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Protocol error: invalid length");
         }
-        return start + 1;
     }
 }
@@ -0,0 +1,172 @@
+package org.cy.redisclone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-command call counts, time spent and latency distributions, as reported by
+ * {@code INFO commandstats}, {@code INFO latencystats} and {@code LATENCY HISTOGRAM}.
+ * <p>
+ * Recording is lock-free and cheap enough to stay on: like {@link java.util.concurrent.atomic.LongAdder},
+ * each thread adds to one of a fixed set of stripes picked by its id, so threads rarely
+ * share a counter. A stripe keeps, per command, the calls, failed calls, total
+ * nanoseconds and a log-linear histogram with four buckets per power of two, allocated
+ * the first time the command runs on that stripe. Readers sum the stripes; a snapshot
+ * taken while commands run may be a few calls behind but never loses one.
+ */
+final class CommandStats {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int CALLS = 0;
+    private static final int FAILED_CALLS = 1;
+    private static final int NANOS = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int BUCKETS = LatencyHistogram.bucketCount(SUB_BUCKET_BITS);
+    private static final int OPS_SAMPLES = 16;
+
+    private final CommandType[] commands = CommandType.values();
+    private final AtomicReferenceArray<AtomicLongArray>[] stripes;
+    private final int stripeMask;
+    private final long[] opsSamples = new long[OPS_SAMPLES];
+    private int opsSampleIndex;
+    private long lastSampleCalls;
+    private long lastSampleNanos = System.nanoTime();
+
+    /**
+     * A command's totals, summed over the stripes.
+     */
+    static final class Entry {
+        private final CommandType command;
+        private long calls;
+        private long failedCalls;
+        private long nanos;
+        private final LatencyHistogram latencies = new LatencyHistogram(SUB_BUCKET_BITS);
+
+        Entry(CommandType command) {
+            this.command = command;
+        }
+
+        public CommandType getCommand() {
+            return command;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getFailedCalls() {
+            return failedCalls;
+        }
+
+        public long getMicros() {
+            return nanos / 1000;
+        }
+
+        /**
+         * @return the latencies in nanoseconds, each rounded up to its bucket's bound
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    CommandStats() {
+        int stripeCount = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1));
+        stripes = new AtomicReferenceArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicReferenceArray<>(commands.length);
+        }
+        stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * Records one call of a command.
+     *
+     * @param failed whether it replied with an error
+     */
+    void record(CommandType command, long nanos, boolean failed) {
+        AtomicReferenceArray<AtomicLongArray> stripe = stripes[(int) Thread.currentThread().threadId() & stripeMask];
+        AtomicLongArray counters = stripe.get(command.ordinal());
+        if (counters == null) {
+            stripe.compareAndSet(command.ordinal(), null, new AtomicLongArray(FIRST_BUCKET + BUCKETS));
+            counters = stripe.get(command.ordinal());
+        }
+        counters.getAndIncrement(CALLS);
+        if (failed) {
+            counters.getAndIncrement(FAILED_CALLS);
+        }
+        counters.getAndAdd(NANOS, nanos);
+        counters.getAndIncrement(FIRST_BUCKET + LatencyHistogram.index(Math.max(nanos, 0), SUB_BUCKET_BITS));
+    }
+
+    /**
+     * @return the commands called at least once, in declaration order
+     */
+    List<Entry> snapshot() {
+        List<Entry> entries = new ArrayList<>();
+        for (CommandType command : commands) {
+            Entry entry = null;
+            for (AtomicReferenceArray<AtomicLongArray> stripe : stripes) {
+                AtomicLongArray counters = stripe.get(command.ordinal());
+                if (counters == null) {
+                    continue;
+                }
+                if (entry == null) {
+                    entry = new Entry(command);
+                }
+                entry.calls += counters.get(CALLS);
+                entry.failedCalls += counters.get(FAILED_CALLS);
+                entry.nanos += counters.get(NANOS);
+                for (int i = 0; i < BUCKETS; i++) {
+                    long count = counters.get(FIRST_BUCKET + i);
+                    if (count != 0) {
+                        entry.latencies.addToBucket(i, count);
+                    }
+                }
+            }
+            if (entry != null && entry.calls > 0) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    long totalCalls() {
+        long total = 0;
+        for (AtomicReferenceArray<AtomicLongArray> stripe : stripes) {
+            for (int i = 0; i < commands.length; i++) {
+                AtomicLongArray counters = stripe.get(i);
+                if (counters != null) {
+                    total += counters.get(CALLS);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Takes a sample of the command rate; called periodically, as Redis does every 100 ms.
+     */
+    synchronized void sampleOpsPerSecond() {
+        long now = System.nanoTime();
+        long calls = totalCalls();
+        long elapsed = Math.max(now - lastSampleNanos, 1);
+        opsSamples[opsSampleIndex++ % OPS_SAMPLES] = (calls - lastSampleCalls) * 1_000_000_000L / elapsed;
+        lastSampleCalls = calls;
+        lastSampleNanos = now;
+    }
+
+    /**
+     * @return the average rate over the last {@value #OPS_SAMPLES} samples
+     */
+    synchronized long instantaneousOpsPerSecond() {
+        int samples = Math.min(opsSampleIndex, OPS_SAMPLES);
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += opsSamples[i];
+        }
+        return samples == 0 ? 0 : sum / samples;
+    }
+}
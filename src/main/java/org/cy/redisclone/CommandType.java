@@ -0,0 +1,242 @@
+package org.cy.redisclone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The commands understood by the server.
+ * <p>
+ * Command names are resolved straight from the request bytes, ignoring case, so
+ * dispatching a command does not need to decode or upper-case its name.
+ */
+enum CommandType {
+    GET,
+    SET(true),
+    DEL(true),
+    KEYS,
+    SCAN,
+    INFO,
+    PING,
+    QUIT,
+    CLIENT,
+    LATENCY,
+    SLOWLOG,
+    MEMORY,
+    CLUSTER,
+    ASKING,
+    MIGRATE(true),
+    DUMP,
+    RESTORE(true),
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    PSUBSCRIBE,
+    PUNSUBSCRIBE,
+    PUBLISH,
+    PUBSUB,
+    EXPIRE(true),
+    PEXPIRE(true),
+    EXPIREAT(true),
+    PEXPIREAT(true),
+    TTL,
+    PTTL,
+    PERSIST(true),
+    REPLICAOF,
+    SLAVEOF,
+    PSYNC,
+    SAVE,
+    BGSAVE,
+    LASTSAVE,
+    SNAPSHOTSET(true),
+    MGET,
+    MSET(true),
+    MSETNX(true),
+    EXISTS,
+    UNLINK(true),
+    INCR(true),
+    DECR(true),
+    INCRBY(true),
+    DECRBY(true),
+    INCRBYFLOAT(true),
+    GETSET(true),
+    APPEND(true),
+    STRLEN,
+    TYPE,
+    OBJECT,
+    HSET(true),
+    HGET,
+    HDEL(true),
+    HINCRBY(true),
+    HGETALL,
+    HLEN,
+    LPUSH(true),
+    RPUSH(true),
+    LPOP(true),
+    RPOP(true),
+    LRANGE,
+    LLEN,
+    SADD(true),
+    SREM(true),
+    SISMEMBER,
+    SMEMBERS,
+    SCARD,
+    ZADD(true),
+    ZREM(true),
+    ZSCORE,
+    ZCARD,
+    ZRANGE,
+    ZRANGEBYSCORE;
+
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final CommandType[][] BY_LENGTH = new CommandType[MAX_NAME_LENGTH + 1][];
+
+    static {
+        List<List<CommandType>> buckets = new ArrayList<>();
+        for (int i = 0; i <= MAX_NAME_LENGTH; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (CommandType type : values()) {
+            buckets.get(type.nameBytes.length).add(type);
+        }
+        for (int i = 0; i <= MAX_NAME_LENGTH; i++) {
+            BY_LENGTH[i] = buckets.get(i).toArray(new CommandType[0]);
+        }
+    }
+
+    private final byte[] nameBytes = name().getBytes(StandardCharsets.US_ASCII);
+    private final boolean write;
+
+    CommandType() {
+        this(false);
+    }
+
+    CommandType(boolean write) {
+        this.write = write;
+    }
+
+    /**
+     * @return whether the command changes the keyspace, which a follower only accepts from its leader
+     */
+    boolean isWrite() {
+        return write;
+    }
+
+    /**
+     * @return how many of the arguments from the first on are keys the command reads, for
+     * client-side caching: 0 for none, -1 for all of them
+     */
+    int readKeys() {
+        switch (this) {
+            case MGET:
+            case EXISTS:
+                return -1;
+            case GET:
+            case STRLEN:
+            case TYPE:
+            case TTL:
+            case PTTL:
+            case HGET:
+            case HGETALL:
+            case HLEN:
+            case LRANGE:
+            case LLEN:
+            case SISMEMBER:
+            case SMEMBERS:
+            case SCARD:
+            case ZSCORE:
+            case ZCARD:
+            case ZRANGE:
+            case ZRANGEBYSCORE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the argument holding the command's first key, for routing it to the node
+     * serving the key's slot; 0 if the command takes no keys
+     */
+    int firstKey() {
+        switch (this) {
+            case KEYS:
+            case SCAN:
+            case INFO:
+            case PING:
+            case QUIT:
+            case CLIENT:
+            case LATENCY:
+            case SLOWLOG:
+            case CLUSTER:
+            case ASKING:
+            case MIGRATE:
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+            case PSUBSCRIBE:
+            case PUNSUBSCRIBE:
+            case PUBLISH:
+            case PUBSUB:
+            case REPLICAOF:
+            case SLAVEOF:
+            case PSYNC:
+            case SAVE:
+            case BGSAVE:
+            case LASTSAVE:
+            case SNAPSHOTSET:
+                return 0;
+            case OBJECT:
+            case MEMORY:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * @return 0 if {@link #firstKey} is the only key, otherwise the distance from one key
+     * to the next, which run to the last argument
+     */
+    int keyStep() {
+        switch (this) {
+            case DEL:
+            case EXISTS:
+            case UNLINK:
+            case MGET:
+                return 1;
+            case MSET:
+            case MSETNX:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Resolves the command named by the first argument.
+     *
+     * @return the command, or null if the name is unknown
+     */
+    static CommandType lookup(CommandArgs args) {
+        int length = args.length(0);
+        if (length > MAX_NAME_LENGTH) {
+            return null;
+        }
+        byte[] data = args.array();
+        int offset = args.offset(0);
+        for (CommandType candidate : BY_LENGTH[length]) {
+            if (candidate.matches(data, offset)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] data, int offset) {
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (CommandArgs.toUpper(data[offset + i]) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+package org.cy.redisclone;
+
+/**
+ * A string value an engine keeps {@link Lz4}-compressed. It is immutable, like stored
+ * {@code byte[]} values, and is decompressed for every read: into a new array for
+ * callers that need the bytes, or straight into a reply for {@code GET}.
+ */
+final class CompressedValue {
+    /**
+     * Array header, length field and object header, for compressed oops.
+     */
+    static final int OVERHEAD = 32;
+
+    private final byte[] block;
+    private final int length;
+
+    private CompressedValue(byte[] block, int length) {
+        this.block = block;
+        this.length = length;
+    }
+
+    /**
+     * @return the compressed value, or null if compression would save less than an
+     * eighth, which is not worth decompressing on every read
+     */
+    static CompressedValue compress(byte[] value) {
+        int maxLength = value.length - value.length / 8 - OVERHEAD;
+        if (maxLength <= 0) {
+            return null;
+        }
+        byte[] block = Lz4.compress(value, maxLength);
+        return block == null ? null : new CompressedValue(block, value.length);
+    }
+
+    /**
+     * @return the length of the original value
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the bytes the compressed form takes on the heap
+     */
+    long memoryUsage() {
+        return OVERHEAD + ((16 + block.length + 7) & ~7L);
+    }
+
+    byte[] decompress() {
+        byte[] value = new byte[length];
+        Lz4.decompress(block, value, 0, length);
+        return value;
+    }
+
+    /**
+     * Writes the original value into {@code dst} from {@code offset}, which must leave
+     * room for {@link #length()} bytes.
+     */
+    void decompressInto(byte[] dst, int offset) {
+        Lz4.decompress(block, dst, offset, length);
+    }
+}
@@ -0,0 +1,408 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-threaded selector loop serving many non-blocking client connections.
+ * <p>
+ * Channels are handed over by the accept thread through {@link #register(SocketChannel)}
+ * and from then on are only ever touched by the loop thread, so per-connection state
+ * needs no synchronization.
+ */
+class EventLoop implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private final RedisServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pushed = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+    // Replicas whose keys were cancelled, only touched by the loop thread
+    private final Queue<Connection> handedOff = new ArrayDeque<>();
+
+    EventLoop(RedisServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing selector", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                startReplicaSenders();
+                registerPending();
+                writePushed();
+                resumeDeferred();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | IllegalStateException e) {
+                        LOGGER.log(Level.FINE, "Error handling client", e);
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        failed(connection, e);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Shutdown requested
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Event loop failed", e);
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            Connection connection = null;
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                LOGGER.fine("New client connected: " + connection.address);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error registering client", e);
+                if (connection != null) {
+                    connection.close();
+                } else {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing more to do
+                    }
+                    server.connectionFailed();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a connection a command failed on unexpectedly, so that the loop goes on
+     * serving the others.
+     */
+    private void failed(Connection connection, RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Unexpected error handling client " + connection.address, e);
+        connection.close();
+    }
+
+    /**
+     * Writes the messages published to subscribers of this loop since the last pass.
+     */
+    private void writePushed() {
+        Connection connection;
+        while ((connection = pushed.poll()) != null) {
+            connection.pushScheduled.set(false);
+            if (connection.closed) {
+                continue;
+            }
+            if (connection.killed) {
+                connection.close();
+                continue;
+            }
+            try {
+                connection.processCommands();
+            } catch (IOException | IllegalStateException e) {
+                LOGGER.log(Level.FINE, "Error handling client", e);
+                connection.close();
+            } catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the replies of deferred commands that finished since the last pass, and goes
+     * on with the commands their connections sent after them.
+     */
+    private void resumeDeferred() {
+        Connection connection;
+        while ((connection = resumed.poll()) != null) {
+            if (connection.closed) {
+                continue;
+            }
+            try {
+                connection.resume();
+            } catch (IOException | IllegalStateException e) {
+                LOGGER.log(Level.FINE, "Error handling client", e);
+                connection.close();
+            } catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Starts the sender threads of replicas handed off before the last select, which
+     * deregistered their channels, so that they may be put in blocking mode.
+     */
+    private void startReplicaSenders() {
+        Connection connection;
+        while ((connection = handedOff.poll()) != null) {
+            Thread sender = new Thread(connection::serveReplica, "redis-replica-sender");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    private class Connection implements PubSub.Delivery {
+        private final SocketChannel channel;
+        private final SocketAddress address;
+        private final RedisServer.ClientInfo info;
+        private final CommandExecutor executor;
+        private final CommandParser parser = new CommandParser();
+        private final ReplyBuffer replies = new ReplyBuffer();
+        private final AtomicBoolean pushScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private boolean closed;
+        private volatile boolean killed;
+        private boolean deferring;
+        private volatile byte[] deferredReply;
+        private ReplicationSource.ReplicaLink replicaLink;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.address = channel.getRemoteAddress();
+            this.info = server.clientConnected(address);
+            this.executor = info.getExecutor();
+            executor.setDelivery(this);
+            executor.deferBlockingCommands();
+        }
+
+        @Override
+        public void wakeUp() {
+            if (pushScheduled.compareAndSet(false, true)) {
+                pushed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            killed = true;
+            wakeUp();
+        }
+
+        void onReadable() throws IOException {
+            int bytesRead = channel.read(parser.writableBuffer());
+            if (bytesRead == -1) {
+                close();
+                return;
+            }
+            if (bytesRead > 0) {
+                info.recordRead(bytesRead);
+                processCommands();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (write()) {
+                // Commands held back while the client was not reading can run now
+                processCommands();
+            }
+        }
+
+        /**
+         * Executes the buffered commands and writes their replies in one go. Once the
+         * pending output passes the high-water mark and the socket will not take it,
+         * the remaining commands stay in the parser and the connection waits for the
+         * client to drain its replies before reading or executing anything else.
+         */
+        private void processCommands() throws IOException {
+            if (deferring) {
+                return;
+            }
+            try {
+                CommandArgs command;
+                while ((command = parser.next()) != null) {
+                    executor.executeCommand(command, replies);
+                    ReplicationSource.ReplicaLink link = executor.takeReplicaLink();
+                    if (link != null) {
+                        handOff(link);
+                        return;
+                    }
+                    Supplier<byte[]> work = executor.takeDeferred();
+                    if (work != null) {
+                        defer(work);
+                        return;
+                    }
+                    if (replies.isAboveHighWaterMark() && !flush()) {
+                        info.recordQueryBuffer(parser);
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                info.recordQueryBuffer(parser);
+            } catch (IllegalStateException e) {
+                RESPHandler.writeError(replies, e.getMessage());
+                replies.writeTo(channel);
+                throw e;
+            }
+            key.interestOps(flushPushed() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Moves a subscriber's queued output to the reply buffer, no more than the
+         * high-water mark at a time so that a slow reader leaves it in the queue where
+         * it counts against the output buffer limit, and writes it.
+         *
+         * @return true if everything was written
+         */
+        private boolean flushPushed() throws IOException {
+            PubSub.Subscriber subscriber = executor.subscriber();
+            while (true) {
+                byte[] bytes;
+                while (subscriber != null && !replies.isAboveHighWaterMark() && (bytes = subscriber.poll()) != null) {
+                    replies.write(bytes);
+                }
+                if (!flush()) {
+                    return false;
+                }
+                if (subscriber == null || !subscriber.hasQueued()) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Runs a command that waits on another server, such as {@code MIGRATE}, on a
+         * virtual thread. Until its reply is back the connection reads and executes
+         * nothing more, so replies keep the order of the commands.
+         */
+        private void defer(Supplier<byte[]> work) {
+            info.recordQueryBuffer(parser);
+            deferring = true;
+            key.interestOps(0);
+            Thread.ofVirtual().name("redis-deferred-command").start(() -> {
+                byte[] reply;
+                try {
+                    reply = work.get();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Deferred command failed for " + address, e);
+                    ReplyBuffer error = new ReplyBuffer();
+                    RESPHandler.writeError(error, e.getMessage());
+                    reply = error.take();
+                }
+                deferredReply = reply;
+                resumed.add(this);
+                selector.wakeup();
+            });
+        }
+
+        private void resume() throws IOException {
+            replies.write(deferredReply);
+            deferredReply = null;
+            deferring = false;
+            processCommands();
+        }
+
+        /**
+         * Gives the channel to a thread of its own that streams the replication feed to a
+         * follower with blocking writes, so a slow follower never stalls this loop. The
+         * thread is started after the loop's next select, which deregisters the channel.
+         */
+        private void handOff(ReplicationSource.ReplicaLink link) throws IOException {
+            if (!flush()) {
+                LOGGER.fine("Replica " + address + " not taking its sync reply yet, the sender writes the rest");
+            }
+            closed = true;
+            key.cancel();
+            replicaLink = link;
+            handedOff.add(this);
+            selector.wakeup();
+        }
+
+        private void serveReplica() {
+            ReplicationSource.ReplicaLink link = replicaLink;
+            try {
+                channel.configureBlocking(true);
+                OutputStream out = Channels.newOutputStream(channel);
+                // The part of the sync reply the non-blocking socket did not take
+                replies.writeTo(out);
+                link.serve(out);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Replica " + address + " disconnected", e);
+            } finally {
+                link.close();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Error closing replica socket", e);
+                }
+                server.clientDisconnected(address);
+            }
+        }
+
+        /**
+         * @return true if all pending replies were written
+         */
+        private boolean flush() throws IOException {
+            executor.awaitDurable();
+            return write();
+        }
+
+        private boolean write() throws IOException {
+            int pending = replies.pending();
+            boolean done = replies.writeTo(channel);
+            info.recordWrite(pending - replies.pending());
+            info.recordOutputBuffer(replies.pending());
+            return done;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+                LOGGER.fine("Client disconnected: " + address);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error closing client socket", e);
+            }
+            executor.close();
+            server.clientDisconnected(address);
+        }
+    }
+}
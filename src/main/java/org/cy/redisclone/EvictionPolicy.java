@@ -0,0 +1,115 @@
+package org.cy.redisclone;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * What to delete when the keyspace grows past {@code maxmemory}.
+ * <p>
+ * Like Redis, eviction is approximate: engines keep a 32-bit access word in each
+ * entry, updated without locks on every read, and evict the best of a small random
+ * sample of keys instead of maintaining a global LRU list. The meaning of the access
+ * word depends on the policy:
+ * <ul>
+ * <li>LRU: the seconds clock of the last access.</li>
+ * <li>LFU: a logarithmic 8-bit access counter in the low byte and the minutes clock of
+ * its last decay in the next 16 bits. The counter grows with probability
+ * 1/((counter - 5) * 10 + 1) and loses one point per idle minute.</li>
+ * </ul>
+ */
+public enum EvictionPolicy {
+    NOEVICTION("noeviction"),
+    ALLKEYS_LRU("allkeys-lru"),
+    ALLKEYS_LFU("allkeys-lfu"),
+    VOLATILE_TTL("volatile-ttl");
+
+    private static final int LFU_INIT_VALUE = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+
+    private final String configName;
+
+    EvictionPolicy(String configName) {
+        this.configName = configName;
+    }
+
+    public String configName() {
+        return configName;
+    }
+
+    public static EvictionPolicy fromString(String value) {
+        for (EvictionPolicy policy : values()) {
+            if (policy.configName.equalsIgnoreCase(value.trim())) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown maxmemory policy: " + value);
+    }
+
+    /**
+     * @return whether only keys with a deadline may be evicted
+     */
+    boolean volatileOnly() {
+        return this == VOLATILE_TTL;
+    }
+
+    /**
+     * @return the access word of a newly written entry
+     */
+    int initialAccess() {
+        if (this == ALLKEYS_LFU) {
+            return (minutesClock() << 8) | LFU_INIT_VALUE;
+        }
+        return secondsClock();
+    }
+
+    /**
+     * @return the access word after one more access; callers skip the store when unchanged
+     */
+    int touch(int access) {
+        switch (this) {
+            case ALLKEYS_LFU:
+                int counter = decayedCounter(access);
+                if (counter < 255) {
+                    double baseValue = Math.max(0, counter - LFU_INIT_VALUE);
+                    if (ThreadLocalRandom.current().nextDouble() < 1.0 / (baseValue * LFU_LOG_FACTOR + 1)) {
+                        counter++;
+                    }
+                }
+                return (minutesClock() << 8) | counter;
+            case ALLKEYS_LRU:
+                return secondsClock();
+            default:
+                return access;
+        }
+    }
+
+    /**
+     * Ranks an eviction candidate; among a sample the highest score is evicted first.
+     */
+    long evictionScore(int access, long expireAt) {
+        switch (this) {
+            case ALLKEYS_LFU:
+                return 255 - decayedCounter(access);
+            case VOLATILE_TTL:
+                return -expireAt;
+            default:
+                // Idle seconds; the clock wraps after 136 years of seconds, so plain subtraction is fine
+                return secondsClock() - access;
+        }
+    }
+
+    private static int decayedCounter(int access) {
+        int counter = access & 0xff;
+        int idleMinutes = (minutesClock() - ((access >>> 8) & 0xffff)) & 0xffff;
+        int periods = idleMinutes / LFU_DECAY_MINUTES;
+        return periods >= counter ? 0 : counter - periods;
+    }
+
+    private static int secondsClock() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+    private static int minutesClock() {
+        return (int) (System.currentTimeMillis() / 60_000) & 0xffff;
+    }
+}
@@ -0,0 +1,152 @@
+package org.cy.redisclone;
+
+import java.util.Arrays;
+
+/**
+ * A compiled Redis glob pattern, as used by KEYS and SCAN MATCH.
+ * <p>
+ * Supports {@code *} (any run of bytes), {@code ?} (any single byte), {@code [abc]},
+ * {@code [^abc]} and {@code [a-z]} classes, and {@code \} to escape the next byte.
+ * Patterns are compiled once into one 256-bit byte set per position, with stars kept as
+ * {@code null}, so matching is a table lookup per byte. Matching backtracks only to the
+ * last star seen, which bounds it to O(key length × pattern length) however many stars
+ * the pattern has.
+ */
+final class GlobPattern {
+    private static final GlobPattern ALL = new GlobPattern(new long[][]{null}, null);
+
+    private final long[][] sets;
+    private final byte[] literal;
+
+    private GlobPattern(long[][] sets, byte[] literal) {
+        this.sets = sets;
+        this.literal = literal;
+    }
+
+    static GlobPattern compile(byte[] pattern) {
+        long[][] sets = new long[pattern.length][];
+        byte[] literal = new byte[pattern.length];
+        boolean isLiteral = true;
+        int count = 0;
+        int i = 0;
+        while (i < pattern.length) {
+            byte b = pattern[i++];
+            switch (b) {
+                case '*':
+                    isLiteral = false;
+                    if (count == 0 || sets[count - 1] != null) {
+                        sets[count++] = null;
+                    }
+                    break;
+                case '?':
+                    isLiteral = false;
+                    sets[count++] = new long[]{-1L, -1L, -1L, -1L};
+                    break;
+                case '[':
+                    isLiteral = false;
+                    long[] set = new long[4];
+                    boolean negate = i < pattern.length && pattern[i] == '^';
+                    if (negate) {
+                        i++;
+                    }
+                    // An unterminated class extends to the end of the pattern, as in Redis
+                    while (i < pattern.length && pattern[i] != ']') {
+                        int from = pattern[i] & 0xff;
+                        if (from == '\\' && i + 1 < pattern.length) {
+                            add(set, pattern[++i] & 0xff);
+                            i++;
+                        } else if (i + 2 < pattern.length && pattern[i + 1] == '-' && pattern[i + 2] != ']') {
+                            int to = pattern[i + 2] & 0xff;
+                            for (int c = Math.min(from, to); c <= Math.max(from, to); c++) {
+                                add(set, c);
+                            }
+                            i += 3;
+                        } else {
+                            add(set, from);
+                            i++;
+                        }
+                    }
+                    i++;
+                    if (negate) {
+                        for (int w = 0; w < set.length; w++) {
+                            set[w] = ~set[w];
+                        }
+                    }
+                    sets[count++] = set;
+                    break;
+                case '\\':
+                    if (i < pattern.length) {
+                        b = pattern[i++];
+                    }
+                    literal[count] = b;
+                    sets[count++] = single(b);
+                    break;
+                default:
+                    literal[count] = b;
+                    sets[count++] = single(b);
+            }
+        }
+        if (count == 1 && sets[0] == null) {
+            return ALL;
+        }
+        return new GlobPattern(Arrays.copyOf(sets, count),
+                isLiteral ? Arrays.copyOf(literal, count) : null);
+    }
+
+    /**
+     * @return the bytes a pattern without wildcards matches exactly, or null
+     */
+    byte[] literal() {
+        return literal;
+    }
+
+    boolean matchesAll() {
+        return this == ALL;
+    }
+
+    boolean matches(byte[] key) {
+        return matches(key, 0, key.length);
+    }
+
+    boolean matches(byte[] key, int offset, int length) {
+        int p = 0;
+        int s = 0;
+        int starP = -1;
+        int starS = 0;
+        while (s < length) {
+            if (p < sets.length) {
+                long[] set = sets[p];
+                if (set == null) {
+                    starP = p++;
+                    starS = s;
+                    continue;
+                }
+                int b = key[offset + s] & 0xff;
+                if ((set[b >>> 6] & (1L << b)) != 0) {
+                    p++;
+                    s++;
+                    continue;
+                }
+            }
+            if (starP < 0) {
+                return false;
+            }
+            p = starP + 1;
+            s = ++starS;
+        }
+        while (p < sets.length && sets[p] == null) {
+            p++;
+        }
+        return p == sets.length;
+    }
+
+    private static long[] single(byte b) {
+        long[] set = new long[4];
+        add(set, b & 0xff);
+        return set;
+    }
+
+    private static void add(long[] set, int b) {
+        set[b >>> 6] |= 1L << b;
+    }
+}
@@ -0,0 +1,58 @@
+package org.cy.redisclone;
+
+/**
+ * Redis Cluster's key to hash slot mapping: CRC16 (XMODEM) of the key modulo
+ * {@value #SLOTS}. When the key contains a non-empty {@code {...}} hash tag only the tag
+ * is hashed, so keys sharing a tag always land in the same slot.
+ */
+final class HashSlot {
+    static final int SLOTS = 16384;
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private HashSlot() {
+    }
+
+    static int of(ByteKey key) {
+        return of(key.data, key.offset(), key.length());
+    }
+
+    static int of(byte[] key) {
+        return of(key, 0, key.length);
+    }
+
+    static int of(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int open = offset; open < end; open++) {
+            if (data[open] == '{') {
+                for (int close = open + 1; close < end; close++) {
+                    if (data[close] == '}') {
+                        if (close > open + 1) {
+                            return crc16(data, open + 1, close) & (SLOTS - 1);
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return crc16(data, offset, end) & (SLOTS - 1);
+    }
+
+    private static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
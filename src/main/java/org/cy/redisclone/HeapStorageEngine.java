@@ -0,0 +1,598 @@
+package org.cy.redisclone;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The default engine: a {@link ConcurrentHashMap} from owned keys to immutable entries
+ * holding the value and its deadline. Changes replace the entry atomically through
+ * {@code compute}, so conditional writes and deadline updates need no extra locking.
+ * <p>
+ * The only mutable field of an entry is its access word, which reads update with a
+ * plain store: a lost update merely makes eviction slightly less accurate. Memory is
+ * accounted as the key and value arrays plus a fixed estimate of the map node, key and
+ * entry objects around them; a collection's size is recorded in its entry when stored,
+ * since the object itself changes in place.
+ * <p>
+ * Like Redis' {@code expires} dictionary, a second set indexes the keys that carry a
+ * deadline, so active expiry and volatile eviction sample only those keys however many
+ * persistent keys surround them. The set is updated inside the map's {@code compute}
+ * calls, which keeps it consistent with the entries per key.
+ * <p>
+ * The map does not expose its buckets, so SCAN cannot use a stateless bucket cursor as
+ * Redis does. Instead a cursor names a map iterator parked between calls; the iterators
+ * are weakly consistent and survive concurrent inserts and resizes. A cursor left idle
+ * for {@value #SCAN_CURSOR_IDLE_MILLIS} ms is dropped and becomes invalid. The server's
+ * own walks hold their iterator themselves and never expire.
+ * <p>
+ * String values holding a small integer are stored as a reference to one of the
+ * {@link SharedIntegers}, and, once a compression threshold is set, values at least that
+ * long are stored as a {@link CompressedValue} if that saves enough. Both are decided
+ * before the entry is replaced, so compressing never happens inside {@code compute}.
+ */
+public class HeapStorageEngine implements StorageEngine {
+    private final ConcurrentHashMap<ByteKey, Entry> dataStore = new ConcurrentHashMap<>();
+    private final Set<ByteKey> volatileKeys = ConcurrentHashMap.newKeySet();
+    private final LongAdder expiredKeys = new LongAdder();
+    private final LongAdder usedMemory = new LongAdder();
+    private final AtomicIntegerArray slotKeys = new AtomicIntegerArray(HashSlot.SLOTS);
+    private final LongAdder compressedValues = new LongAdder();
+    private final LongAdder compressionSavedBytes = new LongAdder();
+    private final LongAdder sharedIntegerValues = new LongAdder();
+    private volatile int compressionThreshold;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+    private volatile Consumer<byte[]> expiryListener = key -> { };
+    private Iterator<ByteKey> expireCursor;
+    private Iterator<Map.Entry<ByteKey, Entry>> evictCursor;
+    private Iterator<ByteKey> volatileEvictCursor;
+    private final AtomicLong lastScanCursor = new AtomicLong();
+    /**
+     * Parked cursors in the order they were last used, guarded by itself.
+     */
+    private final LinkedHashMap<Long, ParkedScan> scanCursors = new LinkedHashMap<>();
+
+    private static final long SCAN_CURSOR_IDLE_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Map node, {@link ByteKey}, entry and table slot, for compressed oops.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Set node and table slot of a key in the index of keys with a deadline.
+     */
+    private static final int VOLATILE_OVERHEAD = 40;
+
+    private static final class Entry {
+        /**
+         * A {@code byte[]}, a {@link CompressedValue} or a {@link RedisObject}.
+         */
+        final Object value;
+        final int valueSize;
+        final long expireAt;
+        int access;
+
+        Entry(Object value, int valueSize, long expireAt, int access) {
+            this.value = value;
+            this.valueSize = valueSize;
+            this.expireAt = expireAt;
+            this.access = access;
+        }
+
+        boolean isVolatile() {
+            return expireAt != NO_EXPIRY;
+        }
+    }
+
+    private static final class ParkedScan {
+        final Iterator<Map.Entry<ByteKey, Entry>> iterator;
+        final long parkedAt;
+
+        ParkedScan(Iterator<Map.Entry<ByteKey, Entry>> iterator, long parkedAt) {
+            this.iterator = iterator;
+            this.parkedAt = parkedAt;
+        }
+    }
+
+    @Override
+    public byte[] get(ByteKey key) {
+        Object value = getObject(key);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        throw RedisObject.wrongType();
+    }
+
+    @Override
+    public Object getObject(ByteKey key) {
+        Entry entry = liveEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.value instanceof CompressedValue ? ((CompressedValue) entry.value).decompress() : entry.value;
+    }
+
+    @Override
+    public Object getEncoded(ByteKey key) {
+        Entry entry = liveEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.value instanceof RedisObject) {
+            throw RedisObject.wrongType();
+        }
+        return entry.value;
+    }
+
+    @Override
+    public boolean set(ByteKey key, byte[] value, long expireAt, SetCondition condition) {
+        byte[] shared = SharedIntegers.lookup(value);
+        if (shared != null) {
+            return store(key, shared, 0, expireAt, condition);
+        }
+        int threshold = compressionThreshold;
+        if (threshold > 0 && value.length >= threshold) {
+            CompressedValue compressed = CompressedValue.compress(value);
+            if (compressed != null) {
+                return store(key, compressed, (int) compressed.memoryUsage(), expireAt, condition);
+            }
+        }
+        return store(key, value, (int) arraySize(value.length), expireAt, condition);
+    }
+
+    @Override
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    @Override
+    public boolean setObject(ByteKey key, RedisObject value, long expireAt, SetCondition condition) {
+        return store(key, value, (int) Math.min(value.memoryUsage(), Integer.MAX_VALUE), expireAt, condition);
+    }
+
+    private boolean store(ByteKey key, Object value, int valueSize, long expireAt, SetCondition condition) {
+        long now = System.currentTimeMillis();
+        boolean[] written = {false};
+        boolean[] expired = {false};
+        dataStore.compute(key.owned(), (k, old) -> {
+            if (old != null && StorageEngine.isExpired(old.expireAt, now)) {
+                trackVolatile(k, old, null);
+                expiredKeys.increment();
+                account(k, old, null);
+                expired[0] = true;
+                old = null;
+            }
+            if (condition == SetCondition.NX && old != null || condition == SetCondition.XX && old == null) {
+                return old;
+            }
+            long deadline = expireAt == KEEP_TTL ? (old == null ? NO_EXPIRY : old.expireAt) : expireAt;
+            EvictionPolicy policy = evictionPolicy;
+            Entry entry = new Entry(value, valueSize, deadline, old == null ? policy.initialAccess() : policy.touch(old.access));
+            trackVolatile(k, old, entry);
+            account(k, old, entry);
+            written[0] = true;
+            return entry;
+        });
+        if (expired[0]) {
+            expiryListener.accept(key.toBytes());
+        }
+        return written[0];
+    }
+
+    @Override
+    public boolean remove(ByteKey key) {
+        Entry[] removed = {null};
+        dataStore.computeIfPresent(key, (k, old) -> {
+            trackVolatile(k, old, null);
+            account(k, old, null);
+            removed[0] = old;
+            return null;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        if (StorageEngine.isExpired(removed[0].expireAt, System.currentTimeMillis())) {
+            expiredKeys.increment();
+            expiryListener.accept(key.toBytes());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(ByteKey key) {
+        return liveEntry(key) != null;
+    }
+
+    @Override
+    public long getExpireAt(ByteKey key) {
+        Entry entry = dataStore.get(key);
+        if (entry == null) {
+            return MISSING;
+        }
+        if (StorageEngine.isExpired(entry.expireAt, System.currentTimeMillis())) {
+            expire(key, entry);
+            return MISSING;
+        }
+        return entry.expireAt;
+    }
+
+    @Override
+    public boolean setExpireAt(ByteKey key, long expireAt) {
+        long now = System.currentTimeMillis();
+        boolean[] changed = {false};
+        boolean[] expired = {false};
+        dataStore.computeIfPresent(key, (k, old) -> {
+            if (StorageEngine.isExpired(old.expireAt, now)) {
+                trackVolatile(k, old, null);
+                expiredKeys.increment();
+                account(k, old, null);
+                expired[0] = true;
+                return null;
+            }
+            if (expireAt == NO_EXPIRY && !old.isVolatile()) {
+                return old;
+            }
+            Entry entry = new Entry(old.value, old.valueSize, expireAt, old.access);
+            trackVolatile(k, old, entry);
+            account(k, old, entry);
+            changed[0] = true;
+            return entry;
+        });
+        if (expired[0]) {
+            expiryListener.accept(key.toBytes());
+        }
+        return changed[0];
+    }
+
+    /**
+     * Walks the index of keys with a deadline with an iterator kept across calls, so
+     * successive cycles cover all of them.
+     */
+    @Override
+    public synchronized int expireSample(long now, int samples) {
+        int sampled = 0;
+        int expired = 0;
+        boolean restarted = false;
+        while (sampled < samples) {
+            if (expireCursor == null || !expireCursor.hasNext()) {
+                if (restarted) {
+                    break;
+                }
+                expireCursor = volatileKeys.iterator();
+                restarted = true;
+                continue;
+            }
+            ByteKey key = expireCursor.next();
+            Entry entry = dataStore.get(key);
+            if (entry == null) {
+                continue;
+            }
+            sampled++;
+            if (StorageEngine.isExpired(entry.expireAt, now) && expire(key, entry)) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    public void setExpiryListener(Consumer<byte[]> listener) {
+        expiryListener = listener;
+    }
+
+    @Override
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        evictionPolicy = policy;
+    }
+
+    /**
+     * Samples consecutive entries of iterators kept across calls, over the whole map or
+     * over the index of keys with a deadline. The iteration order follows the key hashes,
+     * so a window of the table is as good as a random pick for ranking by access.
+     */
+    @Override
+    public synchronized ByteKey evict(int samples) {
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == EvictionPolicy.NOEVICTION) {
+            return null;
+        }
+        ByteKey victimKey = null;
+        Entry victim = null;
+        long victimScore = Long.MIN_VALUE;
+        int sampled = 0;
+        boolean restarted = false;
+        while (sampled < samples) {
+            ByteKey key;
+            Entry entry;
+            if (policy.volatileOnly()) {
+                if (volatileEvictCursor == null || !volatileEvictCursor.hasNext()) {
+                    if (restarted) {
+                        break;
+                    }
+                    volatileEvictCursor = volatileKeys.iterator();
+                    restarted = true;
+                    continue;
+                }
+                key = volatileEvictCursor.next();
+                entry = dataStore.get(key);
+                if (entry == null) {
+                    continue;
+                }
+            } else {
+                if (evictCursor == null || !evictCursor.hasNext()) {
+                    if (restarted) {
+                        break;
+                    }
+                    evictCursor = dataStore.entrySet().iterator();
+                    restarted = true;
+                    continue;
+                }
+                Map.Entry<ByteKey, Entry> candidate = evictCursor.next();
+                key = candidate.getKey();
+                entry = candidate.getValue();
+            }
+            sampled++;
+            long score = policy.evictionScore(entry.access, entry.expireAt);
+            if (victim == null || score > victimScore) {
+                victimKey = key;
+                victim = entry;
+                victimScore = score;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        Entry evicted = victim;
+        dataStore.computeIfPresent(victimKey, (k, current) -> {
+            if (current != evicted) {
+                return current;
+            }
+            trackVolatile(k, current, null);
+            account(k, current, null);
+            return null;
+        });
+        return victimKey;
+    }
+
+    @Override
+    public long usedMemory() {
+        return usedMemory.sum();
+    }
+
+    @Override
+    public long memoryUsage(ByteKey key) {
+        Entry entry = dataStore.get(key);
+        if (entry == null || StorageEngine.isExpired(entry.expireAt, System.currentTimeMillis())) {
+            return -1;
+        }
+        return entrySize(key, entry);
+    }
+
+    @Override
+    public long compressedValues() {
+        return compressedValues.sum();
+    }
+
+    @Override
+    public long compressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public long sharedIntegerValues() {
+        return sharedIntegerValues.sum();
+    }
+
+    @Override
+    public long size() {
+        return dataStore.mappingCount();
+    }
+
+    @Override
+    public long countKeysInSlot(int slot) {
+        return slotKeys.get(slot);
+    }
+
+    @Override
+    public long volatileSize() {
+        return volatileKeys.size();
+    }
+
+    @Override
+    public long expiredCount() {
+        return expiredKeys.sum();
+    }
+
+    @Override
+    public void forEachKey(Consumer<byte[]> action) {
+        long now = System.currentTimeMillis();
+        dataStore.forEach((key, entry) -> {
+            if (!StorageEngine.isExpired(entry.expireAt, now)) {
+                action.accept(key.toBytes());
+            }
+        });
+    }
+
+    @Override
+    public long scan(long cursor, int count, Consumer<byte[]> action) {
+        Iterator<Map.Entry<ByteKey, Entry>> iterator;
+        if (cursor == 0) {
+            iterator = dataStore.entrySet().iterator();
+        } else {
+            // Taking the iterator out of the map gives this call sole use of it
+            ParkedScan parked;
+            synchronized (scanCursors) {
+                parked = scanCursors.remove(cursor);
+            }
+            if (parked == null) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+            iterator = parked.iterator;
+        }
+        if (!visit(iterator, count, action)) {
+            return 0;
+        }
+        long next = lastScanCursor.incrementAndGet();
+        long now = System.currentTimeMillis();
+        synchronized (scanCursors) {
+            Iterator<ParkedScan> oldest = scanCursors.values().iterator();
+            while (oldest.hasNext() && now - oldest.next().parkedAt > SCAN_CURSOR_IDLE_MILLIS) {
+                oldest.remove();
+            }
+            scanCursors.put(next, new ParkedScan(iterator, now));
+        }
+        return next;
+    }
+
+    @Override
+    public KeyWalk walk() {
+        Iterator<Map.Entry<ByteKey, Entry>> iterator = dataStore.entrySet().iterator();
+        return (count, action) -> visit(iterator, count, action);
+    }
+
+    /**
+     * Hands the live keys among the next {@code count} entries to an action.
+     *
+     * @return whether any entries are left
+     */
+    private static boolean visit(Iterator<Map.Entry<ByteKey, Entry>> iterator, int count, Consumer<byte[]> action) {
+        long now = System.currentTimeMillis();
+        for (int visited = 0; visited < count && iterator.hasNext(); visited++) {
+            Map.Entry<ByteKey, Entry> entry = iterator.next();
+            if (!StorageEngine.isExpired(entry.getValue().expireAt, now)) {
+                action.accept(entry.getKey().toBytes());
+            }
+        }
+        return iterator.hasNext();
+    }
+
+    @Override
+    public void clear() {
+        dataStore.clear();
+        volatileKeys.clear();
+        for (int slot = 0; slot < HashSlot.SLOTS; slot++) {
+            slotKeys.set(slot, 0);
+        }
+        usedMemory.reset();
+        compressedValues.reset();
+        compressionSavedBytes.reset();
+        sharedIntegerValues.reset();
+    }
+
+    @Override
+    public String name() {
+        return "heap";
+    }
+
+    @Override
+    public long offHeapUsedBytes() {
+        return 0;
+    }
+
+    @Override
+    public long offHeapReservedBytes() {
+        return 0;
+    }
+
+    /**
+     * Removes an expired entry unless it was replaced in the meantime.
+     */
+    private boolean expire(ByteKey key, Entry entry) {
+        boolean[] expired = {false};
+        dataStore.computeIfPresent(key, (k, current) -> {
+            if (current != entry) {
+                return current;
+            }
+            trackVolatile(k, current, null);
+            expiredKeys.increment();
+            account(k, current, null);
+            expired[0] = true;
+            return null;
+        });
+        if (expired[0]) {
+            expiryListener.accept(key.toBytes());
+        }
+        return expired[0];
+    }
+
+    /**
+     * @return the entry of a key unless it is missing or expired, its access word updated
+     */
+    private Entry liveEntry(ByteKey key) {
+        Entry entry = dataStore.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (StorageEngine.isExpired(entry.expireAt, System.currentTimeMillis())) {
+            expire(key, entry);
+            return null;
+        }
+        touch(entry);
+        return entry;
+    }
+
+    private void touch(Entry entry) {
+        int access = entry.access;
+        int updated = evictionPolicy.touch(access);
+        if (updated != access) {
+            entry.access = updated;
+        }
+    }
+
+    private static long entrySize(ByteKey key, Entry entry) {
+        return ENTRY_OVERHEAD + arraySize(key.length()) + entry.valueSize
+                + (entry.isVolatile() ? VOLATILE_OVERHEAD : 0);
+    }
+
+    /**
+     * Accounts the replacement of an entry by another, either of which may be null; called
+     * from inside {@code compute} like {@link #trackVolatile}.
+     */
+    private void account(ByteKey key, Entry old, Entry current) {
+        usedMemory.add((current == null ? 0 : entrySize(key, current)) - (old == null ? 0 : entrySize(key, old)));
+        if ((old == null) != (current == null)) {
+            slotKeys.addAndGet(HashSlot.of(key), current == null ? -1 : 1);
+        }
+        if (old != null) {
+            countEncoding(old, -1);
+        }
+        if (current != null) {
+            countEncoding(current, 1);
+        }
+    }
+
+    private void countEncoding(Entry entry, int sign) {
+        if (entry.value instanceof CompressedValue) {
+            compressedValues.add(sign);
+            compressionSavedBytes.add(sign * (arraySize(((CompressedValue) entry.value).length()) - entry.valueSize));
+        } else if (entry.valueSize == 0 && entry.value instanceof byte[]) {
+            sharedIntegerValues.add(sign);
+        }
+    }
+
+    private static long arraySize(int length) {
+        return (16 + length + 7) & ~7L;
+    }
+
+    /**
+     * Keeps the index of keys with a deadline in step with a change of entry; called
+     * from inside {@code compute} so it is serialized with other changes to the key.
+     */
+    private void trackVolatile(ByteKey key, Entry old, Entry current) {
+        boolean wasVolatile = old != null && old.isVolatile();
+        boolean isVolatile = current != null && current.isVolatile();
+        if (wasVolatile && !isVolatile) {
+            volatileKeys.remove(key);
+        } else if (isVolatile && !wasVolatile) {
+            volatileKeys.add(key.owned());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.cy.redisclone;
+
+import java.util.Arrays;
+
+/**
+ * The compact encoding of small sets of integers, after Redis' intset: the values sorted
+ * in one byte array, each stored in 2, 4 or 8 bytes depending on the widest value held.
+ * Membership is a binary search; adding a wider value upgrades every element in place.
+ */
+final class IntSet {
+    private byte[] data = new byte[0];
+    private int width = Short.BYTES;
+    private int count;
+
+    int count() {
+        return count;
+    }
+
+    long memoryUsage() {
+        return 24 + data.length;
+    }
+
+    long get(int index) {
+        return read(index, width);
+    }
+
+    boolean contains(long value) {
+        return width(value) <= width && search(value) >= 0;
+    }
+
+    /**
+     * @return false if the value was already there
+     */
+    boolean add(long value) {
+        int needed = width(value);
+        if (needed > width) {
+            upgrade(needed);
+        }
+        int index = search(value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        data = Arrays.copyOf(data, (count + 1) * width);
+        System.arraycopy(data, index * width, data, (index + 1) * width, (count - index) * width);
+        write(index, value);
+        count++;
+        return true;
+    }
+
+    boolean remove(long value) {
+        if (width(value) > width) {
+            return false;
+        }
+        int index = search(value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(data, (index + 1) * width, data, index * width, (count - index - 1) * width);
+        count--;
+        data = Arrays.copyOf(data, count * width);
+        return true;
+    }
+
+    /**
+     * Parses a value the way Redis decides a set member can go in an intset: only the
+     * canonical decimal form of a 64-bit integer, so the member reads back unchanged.
+     *
+     * @return whether the bytes are such a value; its value is then in {@code out[0]}
+     */
+    static boolean parse(byte[] value, long[] out) {
+        int length = value.length;
+        if (length == 0 || length > 20) {
+            return false;
+        }
+        boolean negative = value[0] == '-';
+        int start = negative ? 1 : 0;
+        if (start == length || value[start] == '0' && (length > 1)) {
+            return false;
+        }
+        long result = 0;
+        for (int i = start; i < length; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            // Accumulate negatively so Long.MIN_VALUE parses too
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                return false;
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                return false;
+            }
+            result = -result;
+        }
+        out[0] = result;
+        return true;
+    }
+
+    /**
+     * Writes the decimal digits straight into an array of the exact length.
+     */
+    static byte[] format(long value) {
+        int length = value < 0 ? 2 : 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        byte[] digits = new byte[length];
+        if (value < 0) {
+            digits[0] = '-';
+        }
+        // Negative remainders, so Long.MIN_VALUE needs no special case
+        long rest = value > 0 ? -value : value;
+        for (int i = length - 1; i >= (value < 0 ? 1 : 0); i--) {
+            digits[i] = (byte) ('0' - rest % 10);
+            rest /= 10;
+        }
+        return digits;
+    }
+
+    private int search(long value) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long current = read(mid, width);
+            if (current < value) {
+                low = mid + 1;
+            } else if (current > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void upgrade(int newWidth) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = read(i, width);
+        }
+        width = newWidth;
+        data = new byte[count * width];
+        for (int i = 0; i < count; i++) {
+            write(i, values[i]);
+        }
+    }
+
+    private long read(int index, int width) {
+        int offset = index * width;
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        // Sign-extend from the element width
+        int shift = 64 - width * 8;
+        return (value << shift) >> shift;
+    }
+
+    private void write(int index, long value) {
+        int offset = index * width;
+        for (int i = 0; i < width; i++) {
+            data[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    private static int width(long value) {
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return Short.BYTES;
+        }
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return Integer.BYTES;
+        }
+        return Long.BYTES;
+    }
+}
@@ -0,0 +1,158 @@
+package org.cy.redisclone;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of non-negative values, in the manner of HdrHistogram: with
+ * {@code b} sub-bucket bits, values below {@code 2^(b+1)} are counted exactly and each
+ * power of two above that is split into {@code 2^b} equal buckets. The default of
+ * {@value #DEFAULT_SUB_BUCKET_BITS} bits keeps a reported value within 1% of the recorded
+ * one. Recording is a few shifts and an array increment, with a fixed footprint whatever
+ * the range of values: about 60 KB at the default precision.
+ * <p>
+ * Not thread-safe: give each recording thread its own histogram and {@link #add} them.
+ */
+public final class LatencyHistogram {
+    static final int DEFAULT_SUB_BUCKET_BITS = 7;
+
+    private final int subBucketBits;
+    private final long[] counts;
+    private long totalCount;
+    private long max;
+    private double sum;
+
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param subBucketBits the precision: a bucket spans at most {@code 1/2^subBucketBits}
+     *                      of its values
+     */
+    public LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 16) {
+            throw new IllegalArgumentException("subBucketBits must be between 1 and 16");
+        }
+        this.subBucketBits = subBucketBits;
+        this.counts = new long[bucketCount(subBucketBits)];
+    }
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records the same value {@code count} times.
+     */
+    public void record(long value, long count) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        counts[index(value, subBucketBits)] += count;
+        totalCount += count;
+        sum += (double) value * count;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Histograms of different precision");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the largest value in the bucket holding the given percentile, capped at the
+     * maximum recorded, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i, subBucketBits), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Hands each non-empty bucket's upper bound and count to an action, in increasing order.
+     */
+    public void forEachBucket(BucketConsumer action) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                action.accept(highestEquivalent(i, subBucketBits), counts[i]);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface BucketConsumer {
+        void accept(long upperBound, long count);
+    }
+
+    /**
+     * Adds to a bucket directly, for histograms rebuilt from counts kept elsewhere. The
+     * values are taken to be the bucket's upper bound.
+     */
+    void addToBucket(int index, long count) {
+        long value = highestEquivalent(index, subBucketBits);
+        counts[index] += count;
+        totalCount += count;
+        sum += (double) value * count;
+        max = Math.max(max, value);
+    }
+
+    static int bucketCount(int subBucketBits) {
+        return (65 - subBucketBits) << subBucketBits;
+    }
+
+    static int index(long value, int subBucketBits) {
+        if (value < 2L << subBucketBits) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return (shift << subBucketBits) + (int) (value >>> shift);
+    }
+
+    static long highestEquivalent(int index, int subBucketBits) {
+        if (index < 2 << subBucketBits) {
+            return index;
+        }
+        int shift = (index >>> subBucketBits) - 1;
+        long subBucket = index - ((long) shift << subBucketBits);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
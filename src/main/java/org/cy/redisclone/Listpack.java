@@ -0,0 +1,178 @@
+package org.cy.redisclone;
+
+import java.util.Arrays;
+
+/**
+ * The compact encoding of small collections, after Redis' listpack: entries packed one
+ * after the other in a single byte array, each a varint length followed by its bytes.
+ * <p>
+ * There are no per-entry objects or pointers, so a small collection costs a few bytes
+ * per element over its payload. Lookups, inserts and deletes walk and shift the array,
+ * which is O(n) but stays cheap because collections leave this encoding once they pass a
+ * small number of entries. Positions are byte offsets of entries in the array.
+ */
+final class Listpack {
+    private byte[] data;
+    private int used;
+    private int count;
+
+    Listpack() {
+        this.data = new byte[16];
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the position after the last entry, also where {@link #next(int)} stops
+     */
+    int end() {
+        return used;
+    }
+
+    long memoryUsage() {
+        return 32 + data.length;
+    }
+
+    int next(int position) {
+        return valueStart(position) + length(position);
+    }
+
+    /**
+     * @return the position of the entry at an index, walking from the first
+     */
+    int position(int index) {
+        int position = 0;
+        for (int i = 0; i < index; i++) {
+            position = next(position);
+        }
+        return position;
+    }
+
+    /**
+     * @return the position of the last entry, or -1 when empty
+     */
+    int last() {
+        if (count == 0) {
+            return -1;
+        }
+        return position(count - 1);
+    }
+
+    int length(int position) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[position++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    byte[] get(int position) {
+        int start = valueStart(position);
+        return Arrays.copyOfRange(data, start, start + length(position));
+    }
+
+    boolean equalsAt(int position, byte[] value) {
+        int length = length(position);
+        int start = valueStart(position);
+        return length == value.length && Arrays.equals(data, start, start + length, value, 0, length);
+    }
+
+    int compareAt(int position, byte[] value) {
+        int start = valueStart(position);
+        return Arrays.compareUnsigned(data, start, start + length(position), value, 0, value.length);
+    }
+
+    /**
+     * Looks for an entry among every {@code step}th entry, starting with the first.
+     *
+     * @return its position, or -1
+     */
+    int find(byte[] value, int step) {
+        for (int position = 0; position < used; ) {
+            if (equalsAt(position, value)) {
+                return position;
+            }
+            for (int i = 0; i < step; i++) {
+                position = next(position);
+            }
+        }
+        return -1;
+    }
+
+    void append(byte[] value) {
+        insert(used, value);
+    }
+
+    void insert(int position, byte[] value) {
+        int size = varintSize(value.length) + value.length;
+        ensureCapacity(used + size);
+        System.arraycopy(data, position, data, position + size, used - position);
+        int offset = writeVarint(position, value.length);
+        System.arraycopy(value, 0, data, offset, value.length);
+        used += size;
+        count++;
+    }
+
+    void replace(int position, byte[] value) {
+        int oldSize = next(position) - position;
+        int size = varintSize(value.length) + value.length;
+        ensureCapacity(used - oldSize + size);
+        System.arraycopy(data, position + oldSize, data, position + size, used - position - oldSize);
+        int offset = writeVarint(position, value.length);
+        System.arraycopy(value, 0, data, offset, value.length);
+        used += size - oldSize;
+    }
+
+    /**
+     * Deletes {@code entries} consecutive entries from a position.
+     */
+    void delete(int position, int entries) {
+        int end = position;
+        for (int i = 0; i < entries; i++) {
+            end = next(end);
+        }
+        System.arraycopy(data, end, data, position, used - end);
+        used -= end - position;
+        count -= entries;
+        if (data.length > 64 && used < data.length / 4) {
+            data = Arrays.copyOf(data, data.length / 2);
+        }
+    }
+
+    private int valueStart(int position) {
+        while ((data[position] & 0x80) != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private int writeVarint(int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            data[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1)));
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,429 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load generator in the spirit of {@code redis-benchmark}, for hosts without the Redis
+ * tools. It speaks plain RESP over raw sockets, so it measures this server and a real
+ * Redis alike:
+ * <pre>
+ * java -cp target/classes org.cy.redisclone.LoadGenerator --clients 50 --pipeline 16 --ratio 1:10
+ * </pre>
+ * Each client is a thread with its own connection sending pipelines of {@code SET}s and
+ * {@code GET}s in the configured ratio, on keys drawn uniformly or from a Zipfian
+ * distribution over the keyspace. Every command of a pipeline is recorded with the
+ * pipeline's round-trip time, as {@code redis-benchmark -P} does.
+ */
+public class LoadGenerator {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] GET_HEADER = "*2\r\n$3\r\nGET\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SET_HEADER = "*3\r\n$3\r\nSET\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFILL_BATCH = 1000;
+
+    private final LoadGeneratorConfig config;
+    private final byte[] value;
+    private final Zipf zipf;
+
+    public LoadGenerator(LoadGeneratorConfig config) {
+        this.config = config;
+        this.value = new byte[config.getValueSize()];
+        Arrays.fill(value, (byte) 'x');
+        this.zipf = config.getKeyDistribution() == LoadGeneratorConfig.KeyDistribution.ZIPF
+                ? new Zipf(config.getKeyspace(), config.getZipfTheta()) : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGeneratorConfig config = LoadGeneratorConfig.fromArgs(args);
+        new LoadGenerator(config).run().print(System.out, config);
+    }
+
+    /**
+     * Runs the load to completion: the configured number of requests, or for the
+     * configured duration.
+     *
+     * @throws IOException if a connection fails or the server closes it
+     */
+    public Result run() throws IOException, InterruptedException {
+        if (config.isPrefill()) {
+            prefill();
+        }
+        List<Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < config.getClients(); i++) {
+                long quota = config.getRequests() / config.getClients() + (i < config.getRequests() % config.getClients() ? 1 : 0);
+                clients.add(new Client(connect(), quota));
+            }
+            long start = System.nanoTime();
+            long deadline = config.getDurationSeconds() > 0 ? start + TimeUnit.SECONDS.toNanos(config.getDurationSeconds()) : 0;
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients.size(); i++) {
+                Client client = clients.get(i);
+                Thread thread = new Thread(() -> client.run(deadline), "load-client-" + (i + 1));
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Result result = new Result(System.nanoTime() - start);
+            for (Client client : clients) {
+                if (client.failure != null) {
+                    throw client.failure;
+                }
+                result.add(client);
+            }
+            return result;
+        } finally {
+            for (Client client : clients) {
+                client.socket.close();
+            }
+        }
+    }
+
+    private void prefill() throws IOException {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            ReplyReader in = new ReplyReader(socket.getInputStream());
+            CommandWriter writer = new CommandWriter();
+            for (int from = 0; from < config.getKeyspace(); from += PREFILL_BATCH) {
+                int to = Math.min(from + PREFILL_BATCH, config.getKeyspace());
+                for (int key = from; key < to; key++) {
+                    writer.set(key);
+                }
+                writer.flushTo(out);
+                for (int key = from; key < to; key++) {
+                    if (in.readReply() == ReplyReader.ERROR) {
+                        throw new IOException("Prefill failed: " + in.lastError);
+                    }
+                }
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(config.getHost(), config.getPort());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private int nextKey(ThreadLocalRandom random) {
+        return zipf != null ? zipf.next(random.nextDouble()) : random.nextInt(config.getKeyspace());
+    }
+
+    /**
+     * One connection and the thread driving it.
+     */
+    private final class Client {
+        final Socket socket;
+        final long quota;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long completed;
+        long sets;
+        long hits;
+        long misses;
+        long errors;
+        IOException failure;
+
+        Client(Socket socket, long quota) {
+            this.socket = socket;
+            this.quota = quota;
+        }
+
+        void run(long deadline) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int ratioTotal = config.getSetRatio() + config.getGetRatio();
+            boolean[] isSet = new boolean[config.getPipeline()];
+            try {
+                OutputStream out = socket.getOutputStream();
+                ReplyReader in = new ReplyReader(socket.getInputStream());
+                CommandWriter writer = new CommandWriter();
+                while (deadline != 0 ? System.nanoTime() < deadline : completed < quota) {
+                    int batch = deadline != 0 ? config.getPipeline() : (int) Math.min(config.getPipeline(), quota - completed);
+                    for (int i = 0; i < batch; i++) {
+                        isSet[i] = random.nextInt(ratioTotal) < config.getSetRatio();
+                        if (isSet[i]) {
+                            writer.set(nextKey(random));
+                        } else {
+                            writer.get(nextKey(random));
+                        }
+                    }
+                    long start = System.nanoTime();
+                    writer.flushTo(out);
+                    for (int i = 0; i < batch; i++) {
+                        int reply = in.readReply();
+                        if (reply == ReplyReader.ERROR) {
+                            errors++;
+                        } else if (isSet[i]) {
+                            sets++;
+                        } else if (reply == ReplyReader.NULL) {
+                            misses++;
+                        } else {
+                            hits++;
+                        }
+                    }
+                    latencies.record(System.nanoTime() - start, batch);
+                    completed += batch;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Encodes commands into a reusable buffer, sent with one write per pipeline.
+     */
+    private final class CommandWriter {
+        private final byte[] prefix = config.getKeyPrefix().getBytes(StandardCharsets.UTF_8);
+        private final byte[] valueHeader = ("$" + value.length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        private byte[] buffer = new byte[4096];
+        private int size;
+
+        void get(int key) {
+            write(GET_HEADER);
+            writeKey(key);
+        }
+
+        void set(int key) {
+            write(SET_HEADER);
+            writeKey(key);
+            write(valueHeader);
+            write(value);
+            write(CRLF);
+        }
+
+        void flushTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, size);
+            out.flush();
+            size = 0;
+        }
+
+        private void writeKey(int key) {
+            byte[] digits = IntSet.format(key);
+            write(("$" + (prefix.length + digits.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            write(prefix);
+            write(digits);
+            write(CRLF);
+        }
+
+        private void write(byte[] bytes) {
+            if (size + bytes.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+    }
+
+    /**
+     * Reads and skips whole RESP replies, keeping only their kind.
+     */
+    private static final class ReplyReader {
+        static final int VALUE = 0;
+        static final int NULL = 1;
+        static final int ERROR = 2;
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+        String lastError;
+
+        ReplyReader(InputStream in) {
+            this.in = in;
+        }
+
+        int readReply() throws IOException {
+            int type = readByte();
+            switch (type) {
+                case '+':
+                case ':':
+                    readLine();
+                    return VALUE;
+                case '-':
+                    lastError = readLine();
+                    return ERROR;
+                case '$': {
+                    long length = Long.parseLong(readLine());
+                    if (length < 0) {
+                        return NULL;
+                    }
+                    skip(length + 2);
+                    return VALUE;
+                }
+                case '*': {
+                    long count = Long.parseLong(readLine());
+                    if (count < 0) {
+                        return NULL;
+                    }
+                    for (long i = 0; i < count; i++) {
+                        readReply();
+                    }
+                    return VALUE;
+                }
+                default:
+                    throw new IOException("Protocol error: unexpected reply type '" + (char) type + "'");
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int b = readByte(); b != '\r'; b = readByte()) {
+                line.append((char) b);
+            }
+            readByte();
+            return line.toString();
+        }
+
+        private void skip(long bytes) throws IOException {
+            while (bytes > 0) {
+                if (position == limit) {
+                    fill();
+                }
+                int skipped = (int) Math.min(bytes, limit - position);
+                position += skipped;
+                bytes -= skipped;
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit) {
+                fill();
+            }
+            return buffer[position++];
+        }
+
+        private void fill() throws IOException {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit < 0) {
+                throw new IOException("Connection closed by server");
+            }
+        }
+    }
+
+    /**
+     * Zipfian ranks over {@code [0, n)}, rank 0 the most frequent, by the rejection-free
+     * method of Gray et al. used by YCSB.
+     */
+    static final class Zipf {
+        private final int n;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.zetaN = zeta(n, theta);
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        }
+
+        /**
+         * @param u uniform in {@code [0, 1)}
+         */
+        int next(double u) {
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return Math.min(1, n - 1);
+            }
+            return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * What a run achieved, merged over its clients.
+     */
+    public static final class Result {
+        private final long elapsedNanos;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long completed;
+        private long sets;
+        private long hits;
+        private long misses;
+        private long errors;
+
+        Result(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        private void add(Client client) {
+            latencies.add(client.latencies);
+            completed += client.completed;
+            sets += client.sets;
+            hits += client.hits;
+            misses += client.misses;
+            errors += client.errors;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getSets() {
+            return sets;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return round-trip times in nanoseconds, one per command
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public double getThroughput() {
+            return completed / (elapsedNanos / 1e9);
+        }
+
+        public void print(PrintStream out, LoadGeneratorConfig config) {
+            out.printf("====== %d:%d SET:GET, %s keys ======%n", config.getSetRatio(), config.getGetRatio(),
+                    config.getKeyDistribution().name().toLowerCase());
+            out.printf("  %d requests completed in %.2f seconds%n", completed, elapsedNanos / 1e9);
+            out.printf("  %d parallel clients, pipeline %d%n", config.getClients(), config.getPipeline());
+            out.printf("  %d bytes payload, keyspace of %d%n", config.getValueSize(), config.getKeyspace());
+            out.printf("  %d sets, %d get hits, %d get misses, %d errors%n%n", sets, hits, misses, errors);
+            out.printf("throughput summary: %.2f requests per second%n", getThroughput());
+            out.println("latency summary (msec):");
+            out.printf("%10s %10s %10s %10s %10s %10s %10s%n", "avg", "p50", "p95", "p99", "p99.9", "p99.99", "max");
+            out.printf("%10.3f %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", latencies.getMean() / 1e6,
+                    latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(95) / 1e6,
+                    latencies.getValueAtPercentile(99) / 1e6, latencies.getValueAtPercentile(99.9) / 1e6,
+                    latencies.getValueAtPercentile(99.99) / 1e6, latencies.getMax() / 1e6);
+        }
+    }
+}
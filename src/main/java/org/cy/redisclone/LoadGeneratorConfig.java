@@ -0,0 +1,249 @@
+package org.cy.redisclone;
+
+/**
+ * Settings for {@link LoadGenerator}, read from the command line as {@code --name value}
+ * pairs like {@link ServerConfig}.
+ */
+public class LoadGeneratorConfig {
+    public enum KeyDistribution {
+        UNIFORM,
+        ZIPF;
+
+        public static KeyDistribution fromString(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private String host = "localhost";
+    private int port = 6379;
+    private int clients = 50;
+    private long requests = 100_000;
+    private int durationSeconds;
+    private int pipeline = 1;
+    private int keyspace = 100_000;
+    private String keyPrefix = "key:";
+    private int valueSize = 64;
+    private int setRatio = 1;
+    private int getRatio = 10;
+    private KeyDistribution keyDistribution = KeyDistribution.UNIFORM;
+    private double zipfTheta = 0.99;
+    private boolean prefill;
+
+    public static LoadGeneratorConfig fromArgs(String[] args) {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for option: " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--host":
+                    config.setHost(value);
+                    break;
+                case "--port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "--clients":
+                    config.setClients(Integer.parseInt(value));
+                    break;
+                case "--requests":
+                    config.setRequests(Long.parseLong(value));
+                    break;
+                case "--duration":
+                    config.setDurationSeconds(Integer.parseInt(value));
+                    break;
+                case "--pipeline":
+                    config.setPipeline(Integer.parseInt(value));
+                    break;
+                case "--keyspace":
+                    config.setKeyspace(Integer.parseInt(value));
+                    break;
+                case "--key-prefix":
+                    config.setKeyPrefix(value);
+                    break;
+                case "--value-size":
+                    config.setValueSize((int) ServerConfig.parseMemory(value));
+                    break;
+                case "--ratio":
+                    int colon = value.indexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Expected sets:gets, got: " + value);
+                    }
+                    config.setRatio(Integer.parseInt(value.substring(0, colon)), Integer.parseInt(value.substring(colon + 1)));
+                    break;
+                case "--key-distribution":
+                    config.setKeyDistribution(KeyDistribution.fromString(value));
+                    break;
+                case "--zipf-theta":
+                    config.setZipfTheta(Double.parseDouble(value));
+                    break;
+                case "--prefill":
+                    config.setPrefill(ServerConfig.parseYesNo(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        return config;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public LoadGeneratorConfig setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public LoadGeneratorConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public LoadGeneratorConfig setClients(int clients) {
+        if (clients < 1) {
+            throw new IllegalArgumentException("clients must be at least 1");
+        }
+        this.clients = clients;
+        return this;
+    }
+
+    /**
+     * @return the total number of commands to send, unless a duration is set
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    public LoadGeneratorConfig setRequests(long requests) {
+        if (requests < 1) {
+            throw new IllegalArgumentException("requests must be at least 1");
+        }
+        this.requests = requests;
+        return this;
+    }
+
+    /**
+     * @return how long to run for, or 0 to send {@link #getRequests()} commands instead
+     */
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public LoadGeneratorConfig setDurationSeconds(int durationSeconds) {
+        if (durationSeconds < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    public int getPipeline() {
+        return pipeline;
+    }
+
+    public LoadGeneratorConfig setPipeline(int pipeline) {
+        if (pipeline < 1) {
+            throw new IllegalArgumentException("pipeline must be at least 1");
+        }
+        this.pipeline = pipeline;
+        return this;
+    }
+
+    public int getKeyspace() {
+        return keyspace;
+    }
+
+    public LoadGeneratorConfig setKeyspace(int keyspace) {
+        if (keyspace < 1) {
+            throw new IllegalArgumentException("keyspace must be at least 1");
+        }
+        this.keyspace = keyspace;
+        return this;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public LoadGeneratorConfig setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+        return this;
+    }
+
+    public int getValueSize() {
+        return valueSize;
+    }
+
+    public LoadGeneratorConfig setValueSize(int valueSize) {
+        if (valueSize < 0) {
+            throw new IllegalArgumentException("value-size must not be negative");
+        }
+        this.valueSize = valueSize;
+        return this;
+    }
+
+    public int getSetRatio() {
+        return setRatio;
+    }
+
+    public int getGetRatio() {
+        return getRatio;
+    }
+
+    /**
+     * Sends {@code sets} {@code SET}s for every {@code gets} {@code GET}s, as memtier's
+     * {@code --ratio} does.
+     */
+    public LoadGeneratorConfig setRatio(int sets, int gets) {
+        if (sets < 0 || gets < 0 || sets + gets == 0) {
+            throw new IllegalArgumentException("ratio needs a positive number of sets or gets");
+        }
+        this.setRatio = sets;
+        this.getRatio = gets;
+        return this;
+    }
+
+    public KeyDistribution getKeyDistribution() {
+        return keyDistribution;
+    }
+
+    public LoadGeneratorConfig setKeyDistribution(KeyDistribution keyDistribution) {
+        this.keyDistribution = keyDistribution;
+        return this;
+    }
+
+    public double getZipfTheta() {
+        return zipfTheta;
+    }
+
+    public LoadGeneratorConfig setZipfTheta(double zipfTheta) {
+        if (zipfTheta <= 0 || zipfTheta == 1) {
+            throw new IllegalArgumentException("zipf-theta must be positive and not 1");
+        }
+        this.zipfTheta = zipfTheta;
+        return this;
+    }
+
+    public boolean isPrefill() {
+        return prefill;
+    }
+
+    /**
+     * Whether to {@code SET} every key of the keyspace before measuring, so that
+     * {@code GET}s hit.
+     */
+    public LoadGeneratorConfig setPrefill(boolean prefill) {
+        this.prefill = prefill;
+        return this;
+    }
+}
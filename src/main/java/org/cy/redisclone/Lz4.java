@@ -0,0 +1,197 @@
+package org.cy.redisclone;
+
+/**
+ * A compressor for the LZ4 block format, written for speed over ratio: one pass with a
+ * hash table of recent 4-byte sequences, no entropy coding, and a decoder that is a loop
+ * of array copies.
+ * <p>
+ * A block is a series of sequences, each a token byte holding a literal length and a
+ * match length in its two nibbles (15 meaning more length bytes follow), the literals,
+ * and a 2-byte little-endian offset back to the match. The last sequence has literals
+ * only. As the format requires, the last match starts at least 12 bytes before the end
+ * and the last 5 bytes are literals.
+ */
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    // After 2^SKIP_TRIGGER misses in a row the search step grows, so incompressible input is skipped quickly
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {
+    }
+
+    /**
+     * @param maxLength the most bytes the compressed block may take
+     * @return the compressed block, or null if it would take more than {@code maxLength}
+     */
+    static byte[] compress(byte[] src, int maxLength) {
+        int length = src.length;
+        byte[] dst = new byte[maxLength];
+        int out = 0;
+        int anchor = 0;
+        int matchStartLimit = length - MATCH_FIND_LIMIT;
+        int matchEndLimit = length - LAST_LITERALS;
+        if (length > MATCH_FIND_LIMIT) {
+            int[] table = new int[1 << HASH_BITS];
+            int position = 1;
+            int misses = 1 << SKIP_TRIGGER;
+            while (position <= matchStartLimit) {
+                int hash = hash(readInt(src, position));
+                int candidate = table[hash];
+                table[hash] = position;
+                if (position - candidate > MAX_OFFSET || readInt(src, candidate) != readInt(src, position)) {
+                    position += misses++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                while (position > anchor && candidate > 0 && src[position - 1] == src[candidate - 1]) {
+                    position--;
+                    candidate--;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchEndLimit && src[position + matchLength] == src[candidate + matchLength]) {
+                    matchLength++;
+                }
+                out = writeSequence(src, anchor, position - anchor, position - candidate, matchLength, dst, out);
+                if (out < 0) {
+                    return null;
+                }
+                position += matchLength;
+                anchor = position;
+                misses = 1 << SKIP_TRIGGER;
+                if (position <= matchStartLimit) {
+                    table[hash(readInt(src, position - 2))] = position - 2;
+                }
+            }
+        }
+        out = writeSequence(src, anchor, length - anchor, 0, 0, dst, out);
+        if (out < 0) {
+            return null;
+        }
+        byte[] block = new byte[out];
+        System.arraycopy(dst, 0, block, 0, out);
+        return block;
+    }
+
+    /**
+     * Decompresses a block produced by {@link #compress} into {@code length} bytes of
+     * {@code dst} starting at {@code offset}.
+     *
+     * @throws IllegalStateException if the block does not decompress to exactly that length
+     */
+    static void decompress(byte[] src, byte[] dst, int offset, int length) {
+        int in = 0;
+        int out = offset;
+        int end = offset + length;
+        while (true) {
+            int token = src[in++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int extra;
+                do {
+                    extra = src[in++] & 0xFF;
+                    literalLength += extra;
+                } while (extra == 255);
+            }
+            if (out + literalLength > end) {
+                throw new IllegalStateException("Corrupt LZ4 block: output overrun");
+            }
+            System.arraycopy(src, in, dst, out, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if (in == src.length) {
+                break;
+            }
+            int distance = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int extra;
+                do {
+                    extra = src[in++] & 0xFF;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            matchLength += MIN_MATCH;
+            int match = out - distance;
+            if (distance == 0 || match < offset || out + matchLength > end) {
+                throw new IllegalStateException("Corrupt LZ4 block: bad match");
+            }
+            if (distance >= matchLength) {
+                System.arraycopy(dst, match, dst, out, matchLength);
+            } else {
+                // The match overlaps what it produces, repeating the last distance bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[out + i] = dst[match + i];
+                }
+            }
+            out += matchLength;
+        }
+        if (out != end) {
+            throw new IllegalStateException("Corrupt LZ4 block: expected " + length + " bytes, got " + (out - offset));
+        }
+    }
+
+    /**
+     * Writes literals followed by a match, or the final literals when the match length is 0.
+     *
+     * @return the new output position, or -1 if the sequence does not fit
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int distance, int matchLength,
+                                     byte[] dst, int out) {
+        if (out + encodedLength(literalLength, matchLength) > dst.length) {
+            return -1;
+        }
+        int tokenPosition = out++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            out = writeLength(literalLength - 15, dst, out);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dst, out, literalLength);
+        out += literalLength;
+        if (matchLength > 0) {
+            dst[out++] = (byte) distance;
+            dst[out++] = (byte) (distance >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            if (extra >= 15) {
+                token |= 15;
+                out = writeLength(extra - 15, dst, out);
+            } else {
+                token |= extra;
+            }
+        }
+        dst[tokenPosition] = (byte) token;
+        return out;
+    }
+
+    private static int encodedLength(int literalLength, int matchLength) {
+        int length = 1 + literalLength + (literalLength >= 15 ? (literalLength - 15) / 255 + 1 : 0);
+        if (matchLength > 0) {
+            int extra = matchLength - MIN_MATCH;
+            length += 2 + (extra >= 15 ? (extra - 15) / 255 + 1 : 0);
+        }
+        return length;
+    }
+
+    private static int writeLength(int remaining, byte[] dst, int out) {
+        while (remaining >= 255) {
+            dst[out++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[out++] = (byte) remaining;
+        return out;
+    }
+
+    private static int readInt(byte[] src, int position) {
+        return (src[position] & 0xFF) | (src[position + 1] & 0xFF) << 8
+                | (src[position + 2] & 0xFF) << 16 | (src[position + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.IOException;
+import java.nio.file.Path;
 
 public class Main {
 
@@ -14,8 +15,47 @@ public class Main {
 		handler.setLevel(Level.INFO);
 		rootLogger.addHandler(handler);
 
-		RedisLikeService service = new RedisLikeService();
-		RedisServer server = new RedisServer(6379, service);
+		ServerConfig config = ServerConfig.fromArgs(args);
+		RedisLikeService service = createService(config);
+		if (config.getReplicaOfHost() != null) {
+			service.replicaOf(config.getReplicaOfHost(), config.getReplicaOfPort());
+		}
+		if (config.isClusterEnabled()) {
+			service.enableCluster(config.getClusterAnnounceIp(), config.getPort());
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(service::shutdown));
+		RedisServer server = new RedisServer(config, service);
 		server.start();
 	}
+
+	/**
+	 * Creates the service a config describes and loads its keyspace from disk. Settings
+	 * that shape how values are stored are applied before the load, so that loaded keys
+	 * are stored as written ones would be, and the memory limit after it.
+	 */
+	static RedisLikeService createService(ServerConfig config) throws IOException {
+		RedisLikeService service = new RedisLikeService(StorageEngine.create(config.getStorageEngine(), config.getShards()));
+		service.setShardExecutors(config.isShardExecutors());
+		service.getStorageEngine().setCompressionThreshold(config.getCompressionThreshold());
+		service.setEvictionPolicy(config.getMaxMemoryPolicy());
+		service.setMaxMemorySamples(config.getMaxMemorySamples());
+		service.setSnapshotPath(Path.of(config.getDbFilename()));
+		// As in Redis, the append-only file is the more complete record when both exist
+		if (config.isAppendOnly()) {
+			Path aofPath = Path.of(config.getAppendFilename());
+			AppendOnlyFile.load(aofPath, service);
+			service.setAppendOnlyFile(new AppendOnlyFile(aofPath, config.getAppendFsync()));
+		} else {
+			Snapshot.load(service.getSnapshotPath(), service);
+		}
+		// Not before the load: replayed writes would be refused or evict loaded keys
+		service.setMaxMemory(config.getMaxMemory());
+		service.getReplication().setBacklogSize(config.getReplBacklogSize());
+		service.getPubSub().setOutputBufferLimit(config.getPubsubHardLimit(), config.getPubsubSoftLimit(),
+				config.getPubsubSoftLimitSeconds());
+		service.getTracking().setMaxKeys(config.getTrackingTableMaxKeys());
+		service.getSlowLog().setSlowerThan(config.getSlowlogLogSlowerThan());
+		service.getSlowLog().setMaxLen(config.getSlowlogMaxLen());
+		return service;
+	}
 }
@@ -0,0 +1,133 @@
+package org.cy.redisclone;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A blocking RESP connection to another server, used by the cluster bus and by
+ * {@code MIGRATE}. Commands are buffered by {@link #send} and written by {@link #flush},
+ * so a batch costs one round trip; {@link #read} then returns the replies in order.
+ * <p>
+ * Replies come back as a {@code String} for a status, a {@code Long}, a {@code byte[]}
+ * for a bulk string, a {@code List} for an array, or null. An error reply is thrown as a
+ * {@link RedisException} once it has been read whole, so the replies after it can still
+ * be read; inside an array it becomes a {@code RedisException} element.
+ */
+final class NodeClient implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReplyBuffer pending = new ReplyBuffer();
+
+    /**
+     * @param timeoutMillis how long connecting and each read may take
+     */
+    NodeClient(String host, int port, int timeoutMillis) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE);
+            out = socket.getOutputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    void send(byte[]... args) {
+        RESPHandler.writeArrayHeader(pending, args.length);
+        for (byte[] arg : args) {
+            RESPHandler.writeBulk(pending, arg);
+        }
+    }
+
+    void flush() throws IOException {
+        pending.writeTo(out);
+    }
+
+    /**
+     * Sends one command and waits for its reply.
+     */
+    Object call(byte[]... args) throws IOException {
+        send(args);
+        flush();
+        return read();
+    }
+
+    Object read() throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            throw new IOException("Connection closed");
+        }
+        String line = readLine();
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                throw new RedisException(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int length = Integer.parseInt(line);
+                if (length < 0) {
+                    return null;
+                }
+                byte[] value = in.readNBytes(length);
+                if (value.length < length || in.read() != '\r' || in.read() != '\n') {
+                    throw new IOException("Connection closed in a reply");
+                }
+                return value;
+            }
+            case '*': {
+                int count = Integer.parseInt(line);
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> elements = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    try {
+                        elements.add(read());
+                    } catch (RedisException e) {
+                        elements.add(e);
+                    }
+                }
+                return elements;
+            }
+            default:
+                throw new IOException("Unexpected reply type '" + (char) type + "'");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new IOException("Connection closed in a reply");
+            }
+            line.write(b);
+        }
+        if (in.read() != '\n') {
+            throw new IOException("Malformed reply line");
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
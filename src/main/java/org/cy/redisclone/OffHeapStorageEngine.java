@@ -0,0 +1,707 @@
+package org.cy.redisclone;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * An engine that keeps keys and values in native memory, out of reach of the garbage
+ * collector.
+ * <p>
+ * Each entry is one record in a {@link SlabAllocator} block:
+ * {@code [key length:int][value length:int][deadline:long][access:int][key][value]}. The index is an
+ * open-addressing hash table with linear probing whose only on-heap state is two
+ * parallel arrays, the record addresses and the key hashes, so the heap cost per key is
+ * 12 bytes of table slot regardless of key and value size.
+ * <p>
+ * Collections stay on the heap, where the service changes them in place. Their record
+ * holds no value bytes; the value length field holds {@code -1 - handle} instead, the
+ * handle indexing a table of the objects and the sizes they were last stored with.
+ * <p>
+ * Readers share a read lock and copy values out of native memory; writers take the
+ * write lock, which also guards the allocator. The access word is the one field readers
+ * store to, racing benignly with each other under the read lock.
+ * <p>
+ * SCAN uses Redis' reverse-binary cursor over home buckets, which stays valid across
+ * resizes without any server-side state: a step visits every record whose hash maps to
+ * the buckets it covers, found by probing the cluster that starts at each bucket.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+    private static final int HEADER_SIZE = 20;
+    private static final int EXPIRE_OFFSET = 8;
+    private static final int ACCESS_OFFSET = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.75;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final SlabAllocator allocator = new SlabAllocator();
+    private long[] addresses = new long[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private final int[] slotKeys = new int[HashSlot.SLOTS];
+    private int size;
+    private int tombstones;
+    private int volatileKeys;
+    private long expiredKeys;
+    private int expireCursor;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+    private volatile Consumer<byte[]> expiryListener = key -> { };
+    private RedisObject[] objects = new RedisObject[16];
+    private long[] objectSizes = new long[16];
+    private int[] freeHandles = new int[16];
+    private int freeHandleCount;
+    private int handleCount;
+    private long objectBytes;
+
+    @Override
+    public byte[] get(ByteKey key) {
+        Object value = getObject(key);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        throw RedisObject.wrongType();
+    }
+
+    @Override
+    public Object getObject(ByteKey key) {
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            int slot = find(key, spread(key.hashCode()));
+            if (slot < 0) {
+                return null;
+            }
+            long address = addresses[slot];
+            ByteBuffer buffer = allocator.buffer(address);
+            int offset = SlabAllocator.offset(address);
+            if (!StorageEngine.isExpired(buffer.getLong(offset + EXPIRE_OFFSET), now)) {
+                int access = buffer.getInt(offset + ACCESS_OFFSET);
+                int updated = evictionPolicy.touch(access);
+                if (updated != access) {
+                    buffer.putInt(offset + ACCESS_OFFSET, updated);
+                }
+                int keyLength = buffer.getInt(offset);
+                int valueLength = buffer.getInt(offset + 4);
+                if (valueLength < 0) {
+                    return objects[-1 - valueLength];
+                }
+                byte[] value = new byte[valueLength];
+                buffer.get(offset + HEADER_SIZE + keyLength, value);
+                return value;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        removeIfExpired(key, now);
+        return null;
+    }
+
+    @Override
+    public boolean set(ByteKey key, byte[] value, long expireAt, SetCondition condition) {
+        return store(key, value, null, expireAt, condition);
+    }
+
+    @Override
+    public boolean setObject(ByteKey key, RedisObject value, long expireAt, SetCondition condition) {
+        return store(key, null, value, expireAt, condition);
+    }
+
+    /**
+     * Stores either a string {@code value} or a collection {@code object}.
+     */
+    private boolean store(ByteKey key, byte[] value, RedisObject object, long expireAt, SetCondition condition) {
+        int hash = spread(key.hashCode());
+        int recordSize = HEADER_SIZE + key.length() + (object == null ? value.length : 0);
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash);
+            if (slot >= 0 && StorageEngine.isExpired(expireAt(addresses[slot]), now)) {
+                delete(slot);
+                expiredKeys++;
+                expired = true;
+                slot = -1;
+            }
+            if (condition == SetCondition.NX && slot >= 0 || condition == SetCondition.XX && slot < 0) {
+                return false;
+            }
+            if (slot >= 0) {
+                long address = addresses[slot];
+                long oldExpireAt = expireAt(address);
+                long deadline = expireAt == KEEP_TTL ? oldExpireAt : expireAt;
+                int access = evictionPolicy.touch(allocator.buffer(address).getInt(SlabAllocator.offset(address) + ACCESS_OFFSET));
+                trackVolatile(oldExpireAt, deadline);
+                int handle = replaceObject(address, object);
+                if (allocator.blockSize(address) >= recordSize && recordSize > allocator.blockSize(address) / 2) {
+                    writeRecord(address, key, value, handle, deadline, access);
+                    return true;
+                }
+                allocator.free(address);
+                addresses[slot] = writeRecord(allocator.allocate(recordSize), key, value, handle, deadline, access);
+                return true;
+            }
+            long deadline = expireAt == KEEP_TTL ? NO_EXPIRY : expireAt;
+            if (size + tombstones + 1 > addresses.length * MAX_LOAD) {
+                resize(size + 1 > addresses.length * MAX_LOAD / 2 ? addresses.length * 2 : addresses.length);
+            }
+            slot = freeSlot(hash);
+            if (addresses[slot] == TOMBSTONE) {
+                tombstones--;
+            }
+            int handle = object == null ? -1 : addObject(object);
+            addresses[slot] = writeRecord(allocator.allocate(recordSize), key, value, handle, deadline, evictionPolicy.initialAccess());
+            hashes[slot] = hash;
+            size++;
+            slotKeys[HashSlot.of(key)]++;
+            trackVolatile(NO_EXPIRY, deadline);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+            if (expired) {
+                expiryListener.accept(key.toBytes());
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(ByteKey key) {
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, spread(key.hashCode()));
+            if (slot < 0) {
+                return false;
+            }
+            expired = StorageEngine.isExpired(expireAt(addresses[slot]), now);
+            delete(slot);
+            if (expired) {
+                expiredKeys++;
+            }
+            return !expired;
+        } finally {
+            lock.writeLock().unlock();
+            if (expired) {
+                expiryListener.accept(key.toBytes());
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(ByteKey key) {
+        return getExpireAt(key) != MISSING;
+    }
+
+    @Override
+    public long getExpireAt(ByteKey key) {
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            int slot = find(key, spread(key.hashCode()));
+            if (slot < 0) {
+                return MISSING;
+            }
+            long expireAt = expireAt(addresses[slot]);
+            if (!StorageEngine.isExpired(expireAt, now)) {
+                return expireAt;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        removeIfExpired(key, now);
+        return MISSING;
+    }
+
+    @Override
+    public boolean setExpireAt(ByteKey key, long expireAt) {
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, spread(key.hashCode()));
+            if (slot < 0) {
+                return false;
+            }
+            long address = addresses[slot];
+            long oldExpireAt = expireAt(address);
+            if (StorageEngine.isExpired(oldExpireAt, now)) {
+                delete(slot);
+                expiredKeys++;
+                expired = true;
+                return false;
+            }
+            if (expireAt == NO_EXPIRY && oldExpireAt == NO_EXPIRY) {
+                return false;
+            }
+            allocator.buffer(address).putLong(SlabAllocator.offset(address) + EXPIRE_OFFSET, expireAt);
+            trackVolatile(oldExpireAt, expireAt);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+            if (expired) {
+                expiryListener.accept(key.toBytes());
+            }
+        }
+    }
+
+    /**
+     * Walks the slot array from where the previous call stopped, so successive cycles
+     * cover the whole table. The walk is sized to how sparse keys with a deadline are, so
+     * a step finds about {@code samples} of them, and runs under the read lock; the write
+     * lock is only taken to delete the records found due.
+     */
+    @Override
+    public synchronized int expireSample(long now, int samples) {
+        int[] due = new int[samples];
+        int dueCount = 0;
+        lock.readLock().lock();
+        try {
+            if (volatileKeys == 0) {
+                return 0;
+            }
+            long budget = Math.min(addresses.length, (long) samples * addresses.length / volatileKeys + samples);
+            int sampled = 0;
+            for (; sampled < samples && budget > 0; budget--) {
+                int slot = expireCursor++ & (addresses.length - 1);
+                long address = addresses[slot];
+                if (address == EMPTY || address == TOMBSTONE) {
+                    continue;
+                }
+                long expireAt = expireAt(address);
+                if (expireAt == NO_EXPIRY) {
+                    continue;
+                }
+                sampled++;
+                if (expireAt <= now) {
+                    due[dueCount++] = slot;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (dueCount == 0) {
+            return 0;
+        }
+        byte[][] expired = new byte[dueCount][];
+        int expiredCount = 0;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < dueCount; i++) {
+                // The table may have changed in between; whatever is in the slot now must be due too
+                int slot = due[i];
+                long address = slot < addresses.length ? addresses[slot] : EMPTY;
+                if (address != EMPTY && address != TOMBSTONE && StorageEngine.isExpired(expireAt(address), now)) {
+                    expired[expiredCount++] = readKey(address);
+                    delete(slot);
+                    expiredKeys++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (int i = 0; i < expiredCount; i++) {
+            expiryListener.accept(expired[i]);
+        }
+        return expiredCount;
+    }
+
+    @Override
+    public void setExpiryListener(Consumer<byte[]> listener) {
+        expiryListener = listener;
+    }
+
+    @Override
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        evictionPolicy = policy;
+    }
+
+    /**
+     * Samples consecutive live slots from a random position, which keeps finding
+     * candidates however sparse the table is.
+     */
+    @Override
+    public ByteKey evict(int samples) {
+        EvictionPolicy policy = evictionPolicy;
+        lock.writeLock().lock();
+        try {
+            if (policy == EvictionPolicy.NOEVICTION || size == 0 || policy.volatileOnly() && volatileKeys == 0) {
+                return null;
+            }
+            int victim = -1;
+            long victimScore = Long.MIN_VALUE;
+            int mask = addresses.length - 1;
+            int start = ThreadLocalRandom.current().nextInt();
+            int sampled = 0;
+            for (int i = 0; sampled < samples && i < addresses.length; i++) {
+                int slot = (start + i) & mask;
+                long address = addresses[slot];
+                if (address == EMPTY || address == TOMBSTONE) {
+                    continue;
+                }
+                ByteBuffer buffer = allocator.buffer(address);
+                int offset = SlabAllocator.offset(address);
+                long expireAt = buffer.getLong(offset + EXPIRE_OFFSET);
+                if (policy.volatileOnly() && expireAt == NO_EXPIRY) {
+                    continue;
+                }
+                sampled++;
+                long score = policy.evictionScore(buffer.getInt(offset + ACCESS_OFFSET), expireAt);
+                if (victim < 0 || score > victimScore) {
+                    victim = slot;
+                    victimScore = score;
+                }
+            }
+            if (victim < 0) {
+                return null;
+            }
+            ByteKey key = ByteKey.of(readKey(addresses[victim]));
+            delete(victim);
+            return key;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Native blocks in use plus the on-heap index and collections.
+     */
+    @Override
+    public long usedMemory() {
+        lock.readLock().lock();
+        try {
+            return allocator.usedBytes() + addresses.length * 12L + objectBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The entry's native block and index slot, plus its collection if it holds one.
+     */
+    @Override
+    public long memoryUsage(ByteKey key) {
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            int slot = find(key, spread(key.hashCode()));
+            if (slot < 0) {
+                return -1;
+            }
+            long address = addresses[slot];
+            if (StorageEngine.isExpired(expireAt(address), now)) {
+                return -1;
+            }
+            int valueLength = allocator.buffer(address).getInt(SlabAllocator.offset(address) + 4);
+            return allocator.blockSize(address) + 12L + (valueLength < 0 ? objectSizes[-1 - valueLength] : 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long countKeysInSlot(int slot) {
+        lock.readLock().lock();
+        try {
+            return slotKeys[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long volatileSize() {
+        lock.readLock().lock();
+        try {
+            return volatileKeys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long expiredCount() {
+        lock.readLock().lock();
+        try {
+            return expiredKeys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the table with {@link #scan}, so writers get the lock between batches.
+     */
+    @Override
+    public void forEachKey(Consumer<byte[]> action) {
+        long cursor = 0;
+        do {
+            cursor = scan(cursor, 1024, action);
+        } while (cursor != 0);
+    }
+
+    @Override
+    public long scan(long cursor, int count, Consumer<byte[]> action) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            long mask = addresses.length - 1;
+            int visited = 0;
+            // Like Redis, bound the empty buckets stepped over so a sparse table returns promptly
+            int emptyBudget = count * 10;
+            do {
+                int bucket = (int) (cursor & mask);
+                if (addresses[bucket] == EMPTY) {
+                    emptyBudget--;
+                }
+                for (int slot = bucket; addresses[slot] != EMPTY; slot = (int) ((slot + 1) & mask)) {
+                    long address = addresses[slot];
+                    if (address != TOMBSTONE && (hashes[slot] & mask) == bucket) {
+                        visited++;
+                        if (!StorageEngine.isExpired(expireAt(address), now)) {
+                            action.accept(readKey(address));
+                        }
+                    }
+                }
+                // Increment the cursor from its highest masked bit down, as Redis' dictScan does
+                cursor |= ~mask;
+                cursor = Long.reverse(Long.reverse(cursor) + 1);
+            } while (cursor != 0 && visited < count && emptyBudget > 0);
+            return cursor;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (long address : addresses) {
+                if (address != EMPTY && address != TOMBSTONE) {
+                    allocator.free(address);
+                }
+            }
+            addresses = new long[INITIAL_CAPACITY];
+            hashes = new int[INITIAL_CAPACITY];
+            size = 0;
+            Arrays.fill(slotKeys, 0);
+            tombstones = 0;
+            volatileKeys = 0;
+            objects = new RedisObject[16];
+            objectSizes = new long[16];
+            freeHandleCount = 0;
+            handleCount = 0;
+            objectBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "offheap";
+    }
+
+    @Override
+    public long offHeapUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocator.usedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long offHeapReservedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocator.reservedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeIfExpired(ByteKey key, long now) {
+        boolean expired = false;
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, spread(key.hashCode()));
+            if (slot >= 0 && StorageEngine.isExpired(expireAt(addresses[slot]), now)) {
+                delete(slot);
+                expiredKeys++;
+                expired = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (expired) {
+            expiryListener.accept(key.toBytes());
+        }
+    }
+
+    private void delete(int slot) {
+        long address = addresses[slot];
+        trackVolatile(expireAt(address), NO_EXPIRY);
+        replaceObject(address, null);
+        addresses[slot] = TOMBSTONE;
+        size--;
+        slotKeys[HashSlot.of(readKey(address))]--;
+        tombstones++;
+        allocator.free(address);
+    }
+
+    private void trackVolatile(long oldExpireAt, long newExpireAt) {
+        if (oldExpireAt != NO_EXPIRY) {
+            volatileKeys--;
+        }
+        if (newExpireAt != NO_EXPIRY) {
+            volatileKeys++;
+        }
+    }
+
+    /**
+     * Stores a record's new collection, if any, in place of its current one: the same
+     * object keeps its handle and has its size accounted again, a different one releases
+     * the old handle.
+     *
+     * @return the handle of the new collection, or -1 for none
+     */
+    private int replaceObject(long address, RedisObject object) {
+        int valueLength = allocator.buffer(address).getInt(SlabAllocator.offset(address) + 4);
+        if (valueLength < 0) {
+            int handle = -1 - valueLength;
+            if (objects[handle] == object) {
+                objectBytes += object.memoryUsage() - objectSizes[handle];
+                objectSizes[handle] = object.memoryUsage();
+                return handle;
+            }
+            objects[handle] = null;
+            objectBytes -= objectSizes[handle];
+            if (freeHandleCount == freeHandles.length) {
+                freeHandles = Arrays.copyOf(freeHandles, freeHandleCount * 2);
+            }
+            freeHandles[freeHandleCount++] = handle;
+        }
+        return object == null ? -1 : addObject(object);
+    }
+
+    private int addObject(RedisObject object) {
+        int handle;
+        if (freeHandleCount > 0) {
+            handle = freeHandles[--freeHandleCount];
+        } else {
+            if (handleCount == objects.length) {
+                objects = Arrays.copyOf(objects, handleCount * 2);
+                objectSizes = Arrays.copyOf(objectSizes, handleCount * 2);
+            }
+            handle = handleCount++;
+        }
+        objects[handle] = object;
+        objectSizes[handle] = object.memoryUsage();
+        objectBytes += objectSizes[handle];
+        return handle;
+    }
+
+    private long expireAt(long address) {
+        return allocator.buffer(address).getLong(SlabAllocator.offset(address) + EXPIRE_OFFSET);
+    }
+
+    private int find(ByteKey key, int hash) {
+        int mask = addresses.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = addresses[slot];
+            if (address == EMPTY) {
+                return -1;
+            }
+            if (address != TOMBSTONE && hashes[slot] == hash && keyEquals(address, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private int freeSlot(int hash) {
+        int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while (addresses[slot] != EMPTY && addresses[slot] != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Rehashes into a table of the given capacity, which also drops all tombstones.
+     */
+    private void resize(int capacity) {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        tombstones = 0;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != EMPTY && oldAddresses[i] != TOMBSTONE) {
+                int slot = freeSlot(oldHashes[i]);
+                addresses[slot] = oldAddresses[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private boolean keyEquals(long address, ByteKey key) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = SlabAllocator.offset(address);
+        int keyLength = buffer.getInt(offset);
+        if (keyLength != key.length()) {
+            return false;
+        }
+        return buffer.slice(offset + HEADER_SIZE, keyLength)
+                .mismatch(ByteBuffer.wrap(key.data, key.offset(), keyLength)) == -1;
+    }
+
+    private byte[] readKey(long address) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = SlabAllocator.offset(address);
+        byte[] key = new byte[buffer.getInt(offset)];
+        buffer.get(offset + HEADER_SIZE, key);
+        return key;
+    }
+
+    /**
+     * Writes a record holding either a string value or a collection handle.
+     */
+    private long writeRecord(long address, ByteKey key, byte[] value, int handle, long expireAt, int access) {
+        ByteBuffer buffer = allocator.buffer(address);
+        int offset = SlabAllocator.offset(address);
+        buffer.putInt(offset, key.length());
+        buffer.putInt(offset + 4, handle >= 0 ? -1 - handle : value.length);
+        buffer.putLong(offset + EXPIRE_OFFSET, expireAt);
+        buffer.putInt(offset + ACCESS_OFFSET, access);
+        buffer.put(offset + HEADER_SIZE, key.data, key.offset(), key.length());
+        if (handle < 0) {
+            buffer.put(offset + HEADER_SIZE + key.length(), value);
+        }
+        return address;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,312 @@
+package org.cy.redisclone;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The channel and pattern registry behind {@code SUBSCRIBE}, {@code PSUBSCRIBE} and
+ * {@code PUBLISH}.
+ * <p>
+ * A published message is encoded once per channel, and once per matching pattern, and
+ * the same immutable array is queued to every subscriber. Each subscribed connection
+ * then writes its queue from its own thread, or its event loop, so a publisher never
+ * waits on a subscriber's socket. Queued bytes count against Redis'
+ * {@code client-output-buffer-limit pubsub}: a subscriber over the hard limit, or over
+ * the soft limit for longer than its grace period, is disconnected instead of letting
+ * its queue grow.
+ */
+final class PubSub {
+    private static final Logger LOGGER = Logger.getLogger(PubSub.class.getName());
+    private static final byte[] MESSAGE = RedisObject.ascii("message");
+    private static final byte[] PMESSAGE = RedisObject.ascii("pmessage");
+    static final long DEFAULT_HARD_LIMIT = 32 * 1024 * 1024;
+    static final long DEFAULT_SOFT_LIMIT = 8 * 1024 * 1024;
+    static final int DEFAULT_SOFT_LIMIT_SECONDS = 60;
+
+    private final ConcurrentHashMap<ByteKey, Set<Subscriber>> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteKey, PatternSubscribers> patterns = new ConcurrentHashMap<>();
+    private volatile long hardLimit = DEFAULT_HARD_LIMIT;
+    private volatile long softLimit = DEFAULT_SOFT_LIMIT;
+    private volatile long softLimitNanos = TimeUnit.SECONDS.toNanos(DEFAULT_SOFT_LIMIT_SECONDS);
+
+    /**
+     * How a connection gets its queued messages onto the wire, which depends on the
+     * server mode. Both methods may be called from any thread.
+     */
+    interface Delivery {
+        /**
+         * Called after bytes were queued.
+         */
+        void wakeUp();
+
+        /**
+         * Drops the connection, whose output buffer limit was exceeded or which was
+         * killed.
+         */
+        void disconnect();
+    }
+
+    /**
+     * A connection's subscriptions and its queue of encoded messages and replies.
+     */
+    static final class Subscriber {
+        private final PubSub pubSub;
+        private final Delivery delivery;
+        // Only changed by the connection's own thread
+        private final Set<ByteKey> channels = new HashSet<>();
+        private final Set<ByteKey> patterns = new HashSet<>();
+        private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private volatile long overSoftLimitSince;
+        private volatile boolean closed;
+
+        Subscriber(PubSub pubSub, Delivery delivery) {
+            this.pubSub = pubSub;
+            this.delivery = delivery;
+        }
+
+        int subscriptions() {
+            return channels.size() + patterns.size();
+        }
+
+        int channelCount() {
+            return channels.size();
+        }
+
+        int patternCount() {
+            return patterns.size();
+        }
+
+        /**
+         * Queues bytes for the connection, or disconnects it if that takes it over its
+         * output buffer limit. Holding the subscriber's lock keeps publishers from
+         * queuing in between.
+         */
+        synchronized void push(byte[] bytes) {
+            if (closed) {
+                return;
+            }
+            long queued = queuedBytes.addAndGet(bytes.length);
+            if (pubSub.overLimit(this, queued)) {
+                closed = true;
+                LOGGER.warning("Disconnecting subscriber with " + queued + " bytes queued: output buffer limit reached");
+                delivery.disconnect();
+                return;
+            }
+            queue.add(bytes);
+            delivery.wakeUp();
+        }
+
+        /**
+         * @return the oldest queued bytes, or null if there are none
+         */
+        byte[] poll() {
+            byte[] bytes = queue.poll();
+            if (bytes != null) {
+                queuedBytes.addAndGet(-bytes.length);
+            }
+            return bytes;
+        }
+
+        boolean hasQueued() {
+            return !queue.isEmpty();
+        }
+
+        long queuedBytes() {
+            return queuedBytes.get();
+        }
+    }
+
+    private static final class PatternSubscribers {
+        final GlobPattern pattern;
+        final byte[] name;
+        final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+        PatternSubscribers(ByteKey name) {
+            this.name = name.toBytes();
+            this.pattern = GlobPattern.compile(this.name);
+        }
+    }
+
+    /**
+     * @param hardLimit   bytes queued at which a subscriber is disconnected, 0 for none
+     * @param softLimit   bytes queued a subscriber may stay above for at most
+     *                    {@code softSeconds}, 0 for none
+     */
+    void setOutputBufferLimit(long hardLimit, long softLimit, int softSeconds) {
+        this.hardLimit = hardLimit;
+        this.softLimit = softLimit;
+        this.softLimitNanos = TimeUnit.SECONDS.toNanos(softSeconds);
+    }
+
+    /**
+     * @return the number of subscribers the message was queued for, counting a
+     * connection once per matching channel or pattern
+     */
+    long publish(ByteKey channel, byte[] message) {
+        long receivers = 0;
+        byte[] channelBytes = channel.toBytes();
+        Set<Subscriber> subscribers = channels.get(channel);
+        if (subscribers != null && !subscribers.isEmpty()) {
+            byte[] encoded = encode(MESSAGE, null, channelBytes, message);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.push(encoded);
+                receivers++;
+            }
+        }
+        if (!patterns.isEmpty()) {
+            for (PatternSubscribers pattern : patterns.values()) {
+                if (pattern.subscribers.isEmpty() || !pattern.pattern.matches(channelBytes)) {
+                    continue;
+                }
+                byte[] encoded = encode(PMESSAGE, pattern.name, channelBytes, message);
+                for (Subscriber subscriber : pattern.subscribers) {
+                    subscriber.push(encoded);
+                    receivers++;
+                }
+            }
+        }
+        return receivers;
+    }
+
+    /**
+     * @return whether the subscription is new
+     */
+    boolean subscribe(Subscriber subscriber, ByteKey channel) {
+        channel = channel.owned();
+        if (!subscriber.channels.add(channel)) {
+            return false;
+        }
+        channels.compute(channel, (key, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = ConcurrentHashMap.newKeySet();
+            }
+            subscribers.add(subscriber);
+            return subscribers;
+        });
+        return true;
+    }
+
+    boolean unsubscribe(Subscriber subscriber, ByteKey channel) {
+        if (!subscriber.channels.remove(channel)) {
+            return false;
+        }
+        channels.computeIfPresent(channel, (key, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        return true;
+    }
+
+    boolean psubscribe(Subscriber subscriber, ByteKey pattern) {
+        pattern = pattern.owned();
+        if (!subscriber.patterns.add(pattern)) {
+            return false;
+        }
+        patterns.compute(pattern, (key, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new PatternSubscribers(key);
+            }
+            subscribers.subscribers.add(subscriber);
+            return subscribers;
+        });
+        return true;
+    }
+
+    boolean punsubscribe(Subscriber subscriber, ByteKey pattern) {
+        if (!subscriber.patterns.remove(pattern)) {
+            return false;
+        }
+        patterns.computeIfPresent(pattern, (key, subscribers) -> {
+            subscribers.subscribers.remove(subscriber);
+            return subscribers.subscribers.isEmpty() ? null : subscribers;
+        });
+        return true;
+    }
+
+    /**
+     * @return the subscriber's channels or patterns, for unsubscribing from all of them
+     */
+    List<ByteKey> channelsOf(Subscriber subscriber) {
+        return new ArrayList<>(subscriber.channels);
+    }
+
+    List<ByteKey> patternsOf(Subscriber subscriber) {
+        return new ArrayList<>(subscriber.patterns);
+    }
+
+    /**
+     * Removes every subscription of a connection that went away.
+     */
+    void close(Subscriber subscriber) {
+        subscriber.closed = true;
+        for (ByteKey channel : channelsOf(subscriber)) {
+            unsubscribe(subscriber, channel);
+        }
+        for (ByteKey pattern : patternsOf(subscriber)) {
+            punsubscribe(subscriber, pattern);
+        }
+    }
+
+    /**
+     * @param pattern the glob channels must match, or null for all
+     * @return the channels with at least one subscriber
+     */
+    List<byte[]> activeChannels(GlobPattern pattern) {
+        List<byte[]> result = new ArrayList<>();
+        for (ByteKey channel : channels.keySet()) {
+            if (pattern == null || pattern.matches(channel.toBytes())) {
+                result.add(channel.toBytes());
+            }
+        }
+        return result;
+    }
+
+    long subscriberCount(ByteKey channel) {
+        Set<Subscriber> subscribers = channels.get(channel);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    long patternCount() {
+        return patterns.size();
+    }
+
+    private boolean overLimit(Subscriber subscriber, long queued) {
+        long hard = hardLimit;
+        if (hard > 0 && queued > hard) {
+            return true;
+        }
+        long soft = softLimit;
+        if (soft <= 0 || queued <= soft) {
+            subscriber.overSoftLimitSince = 0;
+            return false;
+        }
+        long now = System.nanoTime();
+        long since = subscriber.overSoftLimitSince;
+        if (since == 0) {
+            subscriber.overSoftLimitSince = now;
+            return false;
+        }
+        return now - since > softLimitNanos;
+    }
+
+    private static byte[] encode(byte[] kind, byte[] pattern, byte[] channel, byte[] message) {
+        ReplyBuffer out = new ReplyBuffer();
+        RESPHandler.writeArrayHeader(out, pattern == null ? 3 : 4);
+        RESPHandler.writeBulk(out, kind);
+        if (pattern != null) {
+            RESPHandler.writeBulk(out, pattern);
+        }
+        RESPHandler.writeBulk(out, channel);
+        RESPHandler.writeBulk(out, message);
+        return out.take();
+    }
+}
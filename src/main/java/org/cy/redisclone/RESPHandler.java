@@ -1,104 +1,141 @@
 package org.cy.redisclone;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Encodes RESP replies straight into a {@link ReplyBuffer}.
+ * <p>
+ * Lengths are always byte lengths. Constant replies, small integers and the length
+ * headers of small bulk strings and arrays are encoded once at startup and shared,
+ * so framing the reply of a GET or SET does not allocate.
+ */
 public class RESPHandler {
-    private static int lastParsedIndex;
-
-    public static List<Object> parseRequest(String input) throws IllegalArgumentException {
-        lastParsedIndex = 0;
-        List<Object> parsed = new ArrayList<>();
-        String[] lines = input.split("\r\n");
-        for (int i = 0; i < lines.length; i++) {
-            if (lines[i].isEmpty()) {
-                lastParsedIndex += 2; // Count the \r\n
-                continue;
-            }
-            char type = lines[i].charAt(0);
-            String value = lines[i].substring(1);
-            switch (type) {
-                case '*':
-                    int arrayLength = Integer.parseInt(value);
-                    List<Object> array = new ArrayList<>();
-                    for (int j = 0; j < arrayLength; j++) {
-                        if (++i >= lines.length) {
-                            throw new IllegalArgumentException("Incomplete RESP array");
-                        }
-                        array.add(parseBulkString(lines, i));
-                        if (lines[i].startsWith("$") && !lines[i].equals("$-1")) {
-                            i++;
-                        }
-                    }
-                    parsed.add(array);
-                    break;
-                case '+':
-                case ':':
-                case '$':
-                    parsed.add(parseBulkString(lines, i));
-                    if (type == '$' && !value.equals("-1")) {
-                        i++;
-                    }
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unsupported RESP type: " + type);
-            }
-            lastParsedIndex = input.indexOf("\r\n", lastParsedIndex) + 2;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] OK = ascii("+OK\r\n");
+    private static final byte[] PONG = ascii("+PONG\r\n");
+    private static final byte[] NULL_BULK = ascii("$-1\r\n");
+    private static final byte[] NULL_ARRAY = ascii("*-1\r\n");
+    private static final byte[] ERR_PREFIX = ascii("-ERR ");
+    private static final int SHARED_INTEGERS = 10000;
+    private static final int SHARED_HEADERS = 1024;
+    private static final byte[][] INTEGERS = new byte[SHARED_INTEGERS][];
+    private static final byte[][] BULK_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] ARRAY_HEADERS = new byte[SHARED_HEADERS][];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = ascii(":" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            BULK_HEADERS[i] = ascii("$" + i + "\r\n");
+            ARRAY_HEADERS[i] = ascii("*" + i + "\r\n");
         }
-        return parsed;
-    }
-
-    private static String parseBulkString(String[] lines, int i) throws IllegalArgumentException {
-        if (lines[i].startsWith("$")) {
-            int length = Integer.parseInt(lines[i].substring(1));
-            if (length == -1) {
-                return null;
-            }
-            if (i + 1 >= lines.length) {
-                throw new IllegalArgumentException("Incomplete bulk string");
-            }
-            return lines[i + 1];
-        } else {
-            return lines[i].substring(1);
+    }
+
+    public static void writeOk(ReplyBuffer out) {
+        out.write(OK);
+    }
+
+    public static void writePong(ReplyBuffer out) {
+        out.write(PONG);
+    }
+
+    public static void writeNull(ReplyBuffer out) {
+        out.write(NULL_BULK);
+    }
+
+    public static void writeNullArray(ReplyBuffer out) {
+        out.write(NULL_ARRAY);
+    }
+
+    /**
+     * Writes a status reply; the text must not contain CR or LF.
+     */
+    public static void writeSimpleString(ReplyBuffer out, String value) {
+        out.write((byte) '+');
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    public static void writeError(ReplyBuffer out, String message) {
+        out.write(ERR_PREFIX);
+        out.write(message.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes an error reply whose message already starts with its error code, such as
+     * {@code WRONGTYPE} or {@code MOVED}.
+     */
+    public static void writeCodedError(ReplyBuffer out, String message) {
+        out.write((byte) '-');
+        out.write(message.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    public static void writeInteger(ReplyBuffer out, long value) {
+        if (value >= 0 && value < SHARED_INTEGERS) {
+            out.write(INTEGERS[(int) value]);
+            return;
         }
+        out.write((byte) ':');
+        out.writeDecimal(value);
+        out.write(CRLF);
     }
 
-    public static int getLastParsedIndex() {
-        return lastParsedIndex;
-    }
-
-    public static String formatResponse(Object response) {
-        StringBuilder sb = new StringBuilder();
-        if (response == null) {
-            sb.append("$-1\r\n");
-        } else if (response instanceof String) {
-            String strResponse = (String) response;
-            if (strResponse.equals("OK") || strResponse.equals("PONG")) {
-                sb.append("+").append(strResponse).append("\r\n");
-            } else {
-                sb.append("$").append(strResponse.length()).append("\r\n");
-                sb.append(strResponse).append("\r\n");
-            }
-        } else if (response instanceof Long) {
-            sb.append(":").append(response).append("\r\n");
-        } else if (response instanceof List) {
-            List<?> list = (List<?>) response;
-            sb.append("*").append(list.size()).append("\r\n");
-            for (Object item : list) {
-                sb.append(formatResponse(item));
-            }
-        } else if (response instanceof String[]) {
-            String[] array = (String[]) response;
-            sb.append("*").append(array.length).append("\r\n");
-            for (String item : array) {
-                sb.append("$").append(item.length()).append("\r\n");
-                sb.append(item).append("\r\n");
-            }
-        } else if (response instanceof Error) {
-            sb.append("-ERR ").append(((Error) response).getMessage()).append("\r\n");
-        } else {
-            throw new IllegalArgumentException("Unsupported response type: " + response.getClass());
+    public static void writeBulk(ReplyBuffer out, byte[] value) {
+        if (value == null) {
+            out.write(NULL_BULK);
+            return;
         }
-        return sb.toString();
+        writeBulk(out, value, 0, value.length);
+    }
+
+    public static void writeBulk(ReplyBuffer out, byte[] data, int offset, int length) {
+        writeHeader(out, '$', BULK_HEADERS, length);
+        out.write(data, offset, length);
+        out.write(CRLF);
+    }
+
+    public static void writeBulk(ReplyBuffer out, CompressedValue value) {
+        writeHeader(out, '$', BULK_HEADERS, value.length());
+        out.write(value);
+        out.write(CRLF);
+    }
+
+    public static void writeBulk(ReplyBuffer out, String value) {
+        writeBulk(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void writeArrayHeader(ReplyBuffer out, int length) {
+        writeHeader(out, '*', ARRAY_HEADERS, length);
+    }
+
+    /**
+     * Starts an array whose length is only known once its elements are written, the way
+     * Redis' {@code addReplyDeferredLen} does.
+     *
+     * @return the mark to pass to {@link #endDeferredArray}
+     */
+    public static int beginDeferredArray(ReplyBuffer out) {
+        return out.mark();
+    }
+
+    public static void endDeferredArray(ReplyBuffer out, int mark, int length) {
+        out.insert(mark, length < ARRAY_HEADERS.length ? ARRAY_HEADERS[length] : ascii("*" + length + "\r\n"));
+    }
+
+    private static void writeHeader(ReplyBuffer out, char type, byte[][] shared, int length) {
+        if (length < shared.length) {
+            out.write(shared[length]);
+            return;
+        }
+        out.write((byte) type);
+        out.writeDecimal(length);
+        out.write(CRLF);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
     }
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package org.cy.redisclone;
+
+/**
+ * A command failure that is reported to the client as an error reply. The message
+ * starts with the error code, such as {@code OOM} or {@code WRONGTYPE}.
+ */
+public class RedisException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RedisException(String message) {
+        super(message);
+    }
+}
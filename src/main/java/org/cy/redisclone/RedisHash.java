@@ -0,0 +1,142 @@
+package org.cy.redisclone;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A hash: a listpack of alternating fields and values while small, then a hash map.
+ */
+final class RedisHash extends RedisObject {
+    private static final byte[] HSET = ascii("HSET");
+    /**
+     * Map node and table slot, {@link ByteKey} and the field and value array headers.
+     */
+    private static final int ENTRY_OVERHEAD = 88;
+
+    private Listpack listpack = new Listpack();
+    private HashMap<ByteKey, byte[]> table;
+    private long tableBytes;
+
+    @Override
+    public Type type() {
+        return Type.HASH;
+    }
+
+    @Override
+    public String encoding() {
+        return table == null ? "listpack" : "hashtable";
+    }
+
+    @Override
+    public int size() {
+        return table == null ? listpack.count() / 2 : table.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return table == null ? 32 + listpack.memoryUsage() : 64 + table.size() * 4L + tableBytes;
+    }
+
+    byte[] get(byte[] field) {
+        if (table != null) {
+            return table.get(ByteKey.of(field));
+        }
+        int position = listpack.find(field, 2);
+        return position < 0 ? null : listpack.get(listpack.next(position));
+    }
+
+    /**
+     * @return true if the field is new
+     */
+    boolean put(byte[] field, byte[] value) {
+        if (table == null) {
+            int position = listpack.find(field, 2);
+            if (position >= 0 && fitsCompact(value)) {
+                listpack.replace(listpack.next(position), value);
+                return false;
+            }
+            if (position < 0 && size() < MAX_COMPACT_ENTRIES && fitsCompact(field) && fitsCompact(value)) {
+                listpack.append(field);
+                listpack.append(value);
+                return true;
+            }
+            convert();
+        }
+        byte[] old = table.put(ByteKey.of(field), value);
+        if (old != null) {
+            tableBytes += arraySize(value.length) - arraySize(old.length);
+            return false;
+        }
+        tableBytes += ENTRY_OVERHEAD + arraySize(field.length) + arraySize(value.length);
+        return true;
+    }
+
+    boolean remove(byte[] field) {
+        if (table != null) {
+            byte[] old = table.remove(ByteKey.of(field));
+            if (old == null) {
+                return false;
+            }
+            tableBytes -= ENTRY_OVERHEAD + arraySize(field.length) + arraySize(old.length);
+            return true;
+        }
+        int position = listpack.find(field, 2);
+        if (position < 0) {
+            return false;
+        }
+        listpack.delete(position, 2);
+        return true;
+    }
+
+    void forEach(BiConsumer<byte[], byte[]> action) {
+        if (table != null) {
+            for (Map.Entry<ByteKey, byte[]> entry : table.entrySet()) {
+                action.accept(entry.getKey().toBytes(), entry.getValue());
+            }
+            return;
+        }
+        forEachCompact(action);
+    }
+
+    @Override
+    void forEachElement(Consumer<byte[]> action) {
+        forEach((field, value) -> {
+            action.accept(field);
+            action.accept(value);
+        });
+    }
+
+    @Override
+    byte[] rebuildCommand() {
+        return HSET;
+    }
+
+    @Override
+    int elementsPerEntry() {
+        return 2;
+    }
+
+    @Override
+    void readEntry(byte[][] elements) {
+        put(elements[0], elements[1]);
+    }
+
+    private void convert() {
+        table = new HashMap<>();
+        forEachCompact((field, value) -> {
+            table.put(ByteKey.of(field), value);
+            tableBytes += ENTRY_OVERHEAD + arraySize(field.length) + arraySize(value.length);
+        });
+        listpack = null;
+    }
+
+    private void forEachCompact(BiConsumer<byte[], byte[]> action) {
+        for (int position = 0; position < listpack.end(); ) {
+            int valuePosition = listpack.next(position);
+            action.accept(listpack.get(position), listpack.get(valuePosition));
+            position = listpack.next(valuePosition);
+        }
+    }
+}
@@ -1,34 +1,1592 @@
 package org.cy.redisclone;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * The keyspace. Keys and values are raw bytes end to end: the server passes key slices
+ * of the request buffer in and writes the stored value arrays straight into replies.
+ * Stored values are shared with callers and must be treated as immutable.
+ * <p>
+ * Hashes, lists, sets and sorted sets are the exception: they are {@link RedisObject}s
+ * changed in place, so every command on one, reads included, runs under the key's write
+ * lock and stores the object again so the engine accounts for its new size. A collection
+ * left empty is deleted.
+ * <p>
+ * Entries live in a pluggable {@link StorageEngine}, on the heap by default, optionally
+ * split into shards by {@link ShardedStorageEngine}. With shard executors on, writes run
+ * on a single thread per shard.
+ * <p>
+ * Keys with a deadline are expired lazily when accessed and by an active cycle that
+ * runs ten times a second on a background thread. Like Redis, each cycle samples
+ * {@value #EXPIRE_SAMPLES} keys with a deadline at a time and keeps going only while
+ * more than a quarter of a sample turned out to be expired, within a budget of 25% of
+ * the tick, so expired keys cannot pile up and the cycle never hogs the keyspace.
+ * <p>
+ * With a {@code maxmemory} limit set, every write first evicts keys chosen by the
+ * {@link EvictionPolicy} until the memory accounted by the engine is back under the
+ * limit, or fails with an {@code OOM} error when nothing can be evicted. Under the
+ * limit the check is a single comparison.
+ * <p>
+ * With an {@link AppendOnlyFile} attached, every change is logged as the command that
+ * reproduces it, with relative expiry turned into absolute deadlines. The same records
+ * feed the {@link ReplicationSource} that followers stream from. A change and its record
+ * are made under one of {@value #WRITE_LOCK_STRIPES} per-key locks, so writes to the same
+ * key reach the log and followers in the order they were applied. Multi-key writes take
+ * the locks of all their keys, each stripe once and in stripe order, and run on the
+ * calling thread even with shard executors on.
+ * <p>
+ * {@code SAVE} writes a {@link Snapshot} while holding every write lock, so it is
+ * point-in-time and blocks writers, but not readers, for its duration. {@code BGSAVE}
+ * walks the keyspace on a background thread instead, reading each key under its own
+ * write lock: every key is saved in a state it really had, but changes made during the
+ * walk may or may not be included.
+ * <p>
+ * After {@code REPLICAOF host port} the service follows another server through a
+ * {@link ReplicationClient} and clients may no longer write to it.
+ */
+public final class RedisLikeService {
+    private static final Logger LOGGER = Logger.getLogger(RedisLikeService.class.getName());
+    private static final long EXPIRE_CYCLE_PERIOD_MILLIS = 100;
+    private static final long EXPIRE_CYCLE_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(EXPIRE_CYCLE_PERIOD_MILLIS) / 4;
+    private static final int EXPIRE_SAMPLES = 20;
+    private static final String OOM_ERROR = "OOM command not allowed when used memory > 'maxmemory'.";
+    private static final int WRITE_LOCK_STRIPES = 256;
+    private static final byte[] SET = ascii("SET");
+    private static final byte[] DEL = ascii("DEL");
+    private static final byte[] PXAT = ascii("PXAT");
+    private static final byte[] KEEPTTL = ascii("KEEPTTL");
+    private static final byte[] PEXPIREAT = ascii("PEXPIREAT");
+    private static final byte[] PERSIST = ascii("PERSIST");
+    private static final byte[] APPEND = ascii("APPEND");
+    private static final byte[] HSET = ascii("HSET");
+    private static final byte[] HDEL = ascii("HDEL");
+    private static final byte[] LPUSH = ascii("LPUSH");
+    private static final byte[] RPUSH = ascii("RPUSH");
+    private static final byte[] LPOP = ascii("LPOP");
+    private static final byte[] RPOP = ascii("RPOP");
+    private static final byte[] SADD = ascii("SADD");
+    private static final byte[] SREM = ascii("SREM");
+    private static final byte[] ZADD = ascii("ZADD");
+    private static final byte[] ZREM = ascii("ZREM");
+    private static final byte[] ASKING = ascii("ASKING");
+    private static final byte[] RESTORE = ascii("RESTORE");
+    private static final byte[] REPLACE = ascii("REPLACE");
+    private static final byte DUMP_STRING = 0;
+    private static final byte DUMP_OBJECT = 1;
+    private static final int SLOT_SCAN_COUNT = 1000;
+    // How many times MIGRATE sends keys that were written to while in flight
+    private static final int MIGRATE_ROUNDS = 3;
+
+    private final StorageEngine engine;
+    private final ScheduledExecutorService cron;
+    private final LongAdder evictedKeys = new LongAdder();
+    private final LongAdder keyspaceHits = new LongAdder();
+    private final LongAdder keyspaceMisses = new LongAdder();
+    private final CommandStats commandStats = new CommandStats();
+    private final SlowLog slowLog = new SlowLog();
+    private volatile long maxMemory;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+    private volatile int maxMemorySamples = 5;
+    private final Object[] writeLocks = new Object[WRITE_LOCK_STRIPES];
+    private volatile AppendOnlyFile appendOnlyFile;
+    private final ReplicationSource replication = new ReplicationSource();
+    private final PubSub pubSub = new PubSub();
+    private final Tracking tracking = new Tracking();
+    private volatile ReplicationClient replicationClient;
+    private volatile Cluster cluster;
+    // Keys MIGRATE has in flight, noting whether they are written to meanwhile
+    private final ConcurrentHashMap<ByteKey, MigratingKey> migratingKeys = new ConcurrentHashMap<>();
+    private volatile ExecutorService[] shardExecutors;
+    private final Object saveLock = new Object();
+    private volatile Path snapshotPath = Path.of("dump.snap");
+    private volatile boolean backgroundSaveInProgress;
+    private volatile boolean lastBackgroundSaveOk = true;
+    private volatile long lastSaveMillis = System.currentTimeMillis();
+
+    public RedisLikeService() {
+        this(new HeapStorageEngine());
+    }
+
+    public RedisLikeService(StorageEngine engine) {
+        this.engine = engine;
+        // Expiry is not a write, so it does not pass through propagate()
+        engine.setExpiryListener(tracking::keyChanged);
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+        this.cron = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-active-expire");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cron.scheduleAtFixedRate(this::activeExpireCycle,
+                EXPIRE_CYCLE_PERIOD_MILLIS, EXPIRE_CYCLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        cron.scheduleAtFixedRate(commandStats::sampleOpsPerSecond,
+                EXPIRE_CYCLE_PERIOD_MILLIS, EXPIRE_CYCLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public StorageEngine getStorageEngine() {
+        return engine;
+    }
+
+    /**
+     * Empties the keyspace, telling every client with tracking on to drop all it cached.
+     */
+    void clearKeyspace() {
+        engine.clear();
+        tracking.allKeysChanged();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * @param maxMemory the limit in bytes, 0 for none
+     */
+    public void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        engine.setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * @param samples how many keys each eviction compares; more is closer to exact LRU/LFU
+     */
+    public void setMaxMemorySamples(int samples) {
+        this.maxMemorySamples = samples;
+    }
+
+    public long evictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    /**
+     * @return how many key lookups by read commands found the key
+     */
+    public long keyspaceHits() {
+        return keyspaceHits.sum();
+    }
+
+    public long keyspaceMisses() {
+        return keyspaceMisses.sum();
+    }
+
+    CommandStats getCommandStats() {
+        return commandStats;
+    }
+
+    SlowLog getSlowLog() {
+        return slowLog;
+    }
+
+    /**
+     * Starts logging changes to an append-only file; attach it after replaying the file.
+     */
+    public void setAppendOnlyFile(AppendOnlyFile appendOnlyFile) {
+        this.appendOnlyFile = appendOnlyFile;
+    }
+
+    public AppendOnlyFile getAppendOnlyFile() {
+        return appendOnlyFile;
+    }
+
+    PubSub getPubSub() {
+        return pubSub;
+    }
+
+    Tracking getTracking() {
+        return tracking;
+    }
+
+    public ReplicationSource getReplication() {
+        return replication;
+    }
+
+    /**
+     * @return the cluster this node is part of, or null when cluster mode is off
+     */
+    Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Turns cluster mode on, with this node owning no slots yet.
+     *
+     * @param host the address other nodes and clients reach this node at
+     */
+    public synchronized void enableCluster(String host, int port) {
+        if (cluster == null) {
+            cluster = new Cluster(host, port);
+            cluster.start();
+        }
+    }
+
+    /**
+     * @return the link to the leader, or null if this server is not a follower
+     */
+    public ReplicationClient getReplicationClient() {
+        return replicationClient;
+    }
+
+    /**
+     * Follows the server at {@code host:port}, replacing its keyspace with the leader's
+     * once the first sync completes, or with a null host stops following and keeps the
+     * data, as {@code REPLICAOF NO ONE} does.
+     */
+    public synchronized void replicaOf(String host, int port) {
+        if (replicationClient != null) {
+            replicationClient.stop();
+            replicationClient = null;
+        }
+        if (host != null) {
+            replicationClient = new ReplicationClient(this, host, port);
+            replicationClient.start();
+            LOGGER.info("Replicating from " + host + ":" + port);
+        }
+    }
+
+    /**
+     * Runs every write on a single thread per shard of the engine, so writers to a shard
+     * never contend with each other; the calling thread waits for the result. Reads stay
+     * on the calling thread.
+     */
+    public synchronized void setShardExecutors(boolean enabled) {
+        ExecutorService[] previous = shardExecutors;
+        if (enabled && previous == null) {
+            ExecutorService[] executors = new ExecutorService[engine.shardCount()];
+            for (int i = 0; i < executors.length; i++) {
+                String name = "redis-shard-" + i;
+                executors[i] = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            shardExecutors = executors;
+        } else if (!enabled && previous != null) {
+            shardExecutors = null;
+            for (ExecutorService executor : previous) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    public boolean hasShardExecutors() {
+        return shardExecutors != null;
+    }
+
+    public Path getSnapshotPath() {
+        return snapshotPath;
+    }
+
+    public void setSnapshotPath(Path snapshotPath) {
+        this.snapshotPath = snapshotPath;
+    }
+
+    /**
+     * Writes a point-in-time snapshot, blocking writes until it is on disk.
+     *
+     * @return the number of keys saved
+     * @throws RedisException if a background save is running
+     */
+    public long save() throws IOException {
+        synchronized (saveLock) {
+            if (backgroundSaveInProgress) {
+                throw new RedisException("ERR Background save already in progress");
+            }
+            long[] keys = new long[1];
+            IOException[] failure = new IOException[1];
+            blockWrites(0, () -> {
+                try {
+                    keys[0] = Snapshot.save(snapshotPath, this);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            lastSaveMillis = System.currentTimeMillis();
+            return keys[0];
+        }
+    }
+
+    /**
+     * Starts writing a snapshot on a background thread.
+     *
+     * @throws RedisException if a save is already running
+     */
+    public void backgroundSave() {
+        synchronized (saveLock) {
+            if (backgroundSaveInProgress) {
+                throw new RedisException("ERR Background save already in progress");
+            }
+            backgroundSaveInProgress = true;
+        }
+        Thread thread = new Thread(() -> {
+            boolean ok = false;
+            try {
+                Snapshot.save(snapshotPath, this);
+                ok = true;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Background save failed", e);
+            } finally {
+                synchronized (saveLock) {
+                    lastBackgroundSaveOk = ok;
+                    if (ok) {
+                        lastSaveMillis = System.currentTimeMillis();
+                    }
+                    backgroundSaveInProgress = false;
+                }
+            }
+        }, "redis-bgsave");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isBackgroundSaveInProgress() {
+        return backgroundSaveInProgress;
+    }
+
+    public boolean lastBackgroundSaveOk() {
+        return lastBackgroundSaveOk;
+    }
+
+    /**
+     * @return when the last successful save finished, or startup if none has
+     */
+    public long lastSaveMillis() {
+        return lastSaveMillis;
+    }
+
+    /**
+     * Called before replies are sent: with {@code appendfsync always}, waits until the
+     * changes made by the calling thread are on disk.
+     */
+    public void awaitDurable() {
+        AppendOnlyFile aof = appendOnlyFile;
+        if (aof != null) {
+            aof.awaitDurable();
+        }
+    }
+
+    /**
+     * Stops the background expiry cycle and replication, and flushes the append-only file.
+     */
+    public void shutdown() {
+        cron.shutdownNow();
+        Cluster current = cluster;
+        if (current != null) {
+            current.stop();
+        }
+        replicaOf(null, 0);
+        setShardExecutors(false);
+        AppendOnlyFile aof = appendOnlyFile;
+        if (aof != null) {
+            try {
+                aof.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Closing the AOF failed", e);
+            }
+        }
+    }
+
+    public byte[] get(byte[] key) {
+        return get(ByteKey.of(key));
+    }
+
+    public byte[] get(ByteKey key) {
+        return countLookup(engine.get(key));
+    }
+
+    /**
+     * @return the string at the key as stored, a {@code byte[]} or a {@link CompressedValue}
+     * to decompress into the reply; null if missing
+     */
+    public Object getEncoded(ByteKey key) {
+        return countLookup(engine.getEncoded(key));
+    }
+
+    /**
+     * @return the string at the key, or null if it is missing or holds a collection, as
+     * {@code MGET} replies
+     */
+    public byte[] getIfString(ByteKey key) {
+        Object value = countLookup(engine.getObject(key));
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    public boolean exists(ByteKey key) {
+        return engine.containsKey(key);
+    }
+
+    public void set(byte[] key, byte[] value) {
+        set(ByteKey.of(key), value);
+    }
+
+    public void set(ByteKey key, byte[] value) {
+        set(key, value, StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+    }
+
+    /**
+     * Sets a key with an optional deadline ({@link StorageEngine#NO_EXPIRY} or
+     * {@link StorageEngine#KEEP_TTL}) under an NX/XX condition.
+     *
+     * @return false if the condition prevented the write
+     */
+    public boolean set(ByteKey key, byte[] value, long expireAt, StorageEngine.SetCondition condition) {
+        freeMemoryIfNeeded();
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                if (!engine.set(key, value, expireAt, condition)) {
+                    return false;
+                }
+                // Once applied the write is unconditional, so NX/XX need not be logged
+                if (expireAt == StorageEngine.NO_EXPIRY) {
+                    propagate(SET, key.toBytes(), value);
+                } else if (expireAt == StorageEngine.KEEP_TTL) {
+                    propagate(SET, key.toBytes(), value, KEEPTTL);
+                } else {
+                    propagate(SET, key.toBytes(), value, PXAT, ascii(Long.toString(expireAt)));
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Adds to the integer at a key, starting from 0 if it is missing, and keeps its
+     * deadline. The digits are parsed and written straight from and to the stored bytes.
+     *
+     * @return the new value
+     * @throws RedisException if the value is not an integer or the result would overflow
+     */
+    public long incrBy(ByteKey key, long increment) {
+        long[] result = new long[1];
+        updateString(key, current -> {
+            long value = 0;
+            if (current != null) {
+                if (!IntSet.parse(current, result)) {
+                    throw new RedisException("ERR value is not an integer or out of range");
+                }
+                value = result[0];
+            }
+            try {
+                result[0] = Math.addExact(value, increment);
+            } catch (ArithmeticException e) {
+                throw new RedisException("ERR increment or decrement would overflow");
+            }
+            return SharedIntegers.of(result[0]);
+        });
+        return result[0];
+    }
+
+    /**
+     * Adds to the number at a key, starting from 0 if it is missing, and keeps its deadline.
+     *
+     * @return the new value as stored, without an exponent or trailing zeros
+     */
+    public byte[] incrByFloat(ByteKey key, double increment) {
+        return updateString(key, current -> {
+            double value = current == null ? 0 : RedisSortedSet.parseScore(current);
+            double result = value + increment;
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                throw new RedisException("ERR increment would produce NaN or Infinity");
+            }
+            return ascii(new BigDecimal(Double.toString(result)).stripTrailingZeros().toPlainString());
+        });
+    }
+
+    /**
+     * Appends to the string at a key, creating it if it is missing, and keeps its deadline.
+     *
+     * @return the new length
+     */
+    public long append(ByteKey key, byte[] suffix) {
+        byte[] value = updateString(key, current -> {
+            if (current == null) {
+                return suffix;
+            }
+            byte[] appended = Arrays.copyOf(current, current.length + suffix.length);
+            System.arraycopy(suffix, 0, appended, current.length, suffix.length);
+            return appended;
+        }, APPEND, key.toBytes(), suffix);
+        return value.length;
+    }
+
+    /**
+     * Sets a key and drops its deadline.
+     *
+     * @return the previous value, or null if there was none
+     */
+    public byte[] getSet(ByteKey key, byte[] value) {
+        freeMemoryIfNeeded();
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                byte[] old = engine.get(key);
+                engine.set(key, value, StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+                propagate(SET, key.toBytes(), value);
+                return old;
+            }
+        });
+    }
+
+    public long strlen(ByteKey key) {
+        Object value = engine.getEncoded(key);
+        if (value instanceof CompressedValue) {
+            return ((CompressedValue) value).length();
+        }
+        return value == null ? 0 : ((byte[]) value).length;
+    }
+
+    /**
+     * @return the bytes accounted to a key, or -1 if it is missing
+     */
+    public long memoryUsage(ByteKey key) {
+        return engine.memoryUsage(key);
+    }
+
+    public boolean del(byte[] key) {
+        return del(ByteKey.of(key));
+    }
+
+    public boolean del(ByteKey key) {
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                if (!engine.remove(key)) {
+                    return false;
+                }
+                propagate(DEL, key.toBytes());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Deletes several keys as one change that no other write interleaves with.
+     *
+     * @return the number of keys that existed
+     */
+    public long del(ByteKey[] keys) {
+        if (keys.length == 1) {
+            return del(keys[0]) ? 1 : 0;
+        }
+        checkWritable();
+        return underWriteLocks(keys, () -> {
+            long deleted = 0;
+            for (ByteKey key : keys) {
+                if (engine.remove(key)) {
+                    propagate(DEL, key.toBytes());
+                    deleted++;
+                }
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Sets several keys, as {@code MSET} and {@code MSETNX}. No other write interleaves
+     * with the batch, but a reader may see some of the keys set before the others.
+     *
+     * @param onlyIfNoneExist set nothing if any of the keys exists
+     * @return false if a key existed and nothing was set
+     */
+    public boolean mset(ByteKey[] keys, byte[][] values, boolean onlyIfNoneExist) {
+        freeMemoryIfNeeded();
+        checkWritable();
+        return underWriteLocks(keys, () -> {
+            if (onlyIfNoneExist) {
+                for (ByteKey key : keys) {
+                    if (engine.containsKey(key)) {
+                        return false;
+                    }
+                }
+            }
+            for (int i = 0; i < keys.length; i++) {
+                engine.set(keys[i], values[i], StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+                propagate(SET, keys[i].toBytes(), values[i]);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Sets the deadline of an existing key; a deadline in the past deletes the key.
+     *
+     * @return false if the key does not exist
+     */
+    public boolean expireAt(ByteKey key, long expireAtMillis) {
+        if (expireAtMillis <= System.currentTimeMillis()) {
+            return del(key);
+        }
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                if (!engine.setExpireAt(key, expireAtMillis)) {
+                    return false;
+                }
+                propagate(PEXPIREAT, key.toBytes(), ascii(Long.toString(expireAtMillis)));
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return the remaining time to live in milliseconds, -1 if the key has no deadline,
+     * or -2 if it does not exist
+     */
+    public long pttl(ByteKey key) {
+        long expireAt = engine.getExpireAt(key);
+        if (expireAt == StorageEngine.MISSING) {
+            return -2;
+        }
+        if (expireAt == StorageEngine.NO_EXPIRY) {
+            return -1;
+        }
+        return Math.max(0, expireAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Removes the deadline of a key.
+     *
+     * @return false if the key does not exist or has no deadline
+     */
+    public boolean persist(ByteKey key) {
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                if (!engine.setExpireAt(key, StorageEngine.NO_EXPIRY)) {
+                    return false;
+                }
+                propagate(PERSIST, key.toBytes());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return {@code none}, {@code string} or the collection type of a key
+     */
+    public String type(ByteKey key) {
+        Object value = lockedValue(key);
+        if (value == null) {
+            return "none";
+        }
+        return value instanceof RedisObject ? ((RedisObject) value).type().typeName() : "string";
+    }
+
+    /**
+     * @return the encoding {@code OBJECT ENCODING} reports, or null if the key does not exist
+     */
+    public String encoding(ByteKey key) {
+        Object value = lockedValue(key);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof RedisObject) {
+            return ((RedisObject) value).encoding();
+        }
+        // Redis' string encodings, by what the value would be stored as there
+        byte[] bytes = (byte[]) value;
+        if (IntSet.parse(bytes, new long[1])) {
+            return "int";
+        }
+        return bytes.length <= 44 ? "embstr" : "raw";
+    }
+
+    /**
+     * Sets fields of a hash, creating it if needed.
+     *
+     * @return the number of fields that were new
+     */
+    public long hset(ByteKey key, byte[][] fieldsAndValues) {
+        freeMemoryIfNeeded();
+        return updateObject(key, RedisHash.class, RedisHash::new, hash -> {
+            long added = 0;
+            for (int i = 0; i < fieldsAndValues.length; i += 2) {
+                if (hash.put(fieldsAndValues[i], fieldsAndValues[i + 1])) {
+                    added++;
+                }
+            }
+            propagate(command(HSET, key, fieldsAndValues));
+            return added;
+        }, 0L);
+    }
+
+    public byte[] hget(ByteKey key, byte[] field) {
+        return readObject(key, RedisHash.class, hash -> hash.get(field), null);
+    }
+
+    /**
+     * @return the number of fields removed
+     */
+    public long hdel(ByteKey key, byte[][] fields) {
+        return updateObject(key, RedisHash.class, null, hash -> {
+            long removed = 0;
+            for (byte[] field : fields) {
+                if (hash.remove(field)) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                propagate(command(HDEL, key, fields));
+            }
+            return removed;
+        }, 0L);
+    }
+
+    /**
+     * Adds to the integer value of a hash field, which starts at 0.
+     *
+     * @return the new value
+     * @throws RedisException if the field is not an integer or would overflow
+     */
+    public long hincrby(ByteKey key, byte[] field, long increment) {
+        freeMemoryIfNeeded();
+        return updateObject(key, RedisHash.class, RedisHash::new, hash -> {
+            byte[] current = hash.get(field);
+            long[] parsed = {0};
+            if (current != null && !IntSet.parse(current, parsed)) {
+                throw new RedisException("ERR hash value is not an integer");
+            }
+            long value;
+            try {
+                value = Math.addExact(parsed[0], increment);
+            } catch (ArithmeticException e) {
+                throw new RedisException("ERR increment or decrement would overflow");
+            }
+            byte[] formatted = IntSet.format(value);
+            hash.put(field, formatted);
+            // The result, so replaying the log needs no arithmetic
+            propagate(HSET, key.toBytes(), field, formatted);
+            return value;
+        }, 0L);
+    }
+
+    /**
+     * @return the fields and values of a hash, alternating
+     */
+    public List<byte[]> hgetall(ByteKey key) {
+        return readObject(key, RedisHash.class, hash -> {
+            List<byte[]> result = new ArrayList<>(hash.size() * 2);
+            hash.forEach((field, value) -> {
+                result.add(field);
+                result.add(value);
+            });
+            return result;
+        }, List.of());
+    }
+
+    public long hlen(ByteKey key) {
+        return readObject(key, RedisHash.class, hash -> (long) hash.size(), 0L);
+    }
+
+    /**
+     * Pushes elements one after the other at the head or tail of a list, creating it if needed.
+     *
+     * @return the length of the list
+     */
+    public long push(ByteKey key, byte[][] elements, boolean left) {
+        freeMemoryIfNeeded();
+        return updateObject(key, RedisList.class, RedisList::new, list -> {
+            for (byte[] element : elements) {
+                list.push(element, left);
+            }
+            propagate(command(left ? LPUSH : RPUSH, key, elements));
+            return (long) list.size();
+        }, 0L);
+    }
 
-public class RedisLikeService {
-    private final ConcurrentHashMap<String, String> dataStore = new ConcurrentHashMap<>();
+    /**
+     * Pops up to {@code count} elements from the head or tail of a list.
+     *
+     * @return the elements, or null if the key does not exist
+     */
+    public List<byte[]> pop(ByteKey key, long count, boolean left) {
+        return updateObject(key, RedisList.class, null, list -> {
+            List<byte[]> popped = new ArrayList<>();
+            while (popped.size() < count && list.size() > 0) {
+                popped.add(list.pop(left));
+            }
+            if (!popped.isEmpty()) {
+                propagate(left ? LPOP : RPOP, key.toBytes(), ascii(Integer.toString(popped.size())));
+            }
+            return popped;
+        }, null);
+    }
 
-    public String get(String key) {
-        return dataStore.get(key);
+    public List<byte[]> lrange(ByteKey key, long start, long stop) {
+        return readObject(key, RedisList.class, list -> list.range(start, stop), List.of());
     }
 
-    public void set(String key, String value) {
-        dataStore.put(key, value);
+    public long llen(ByteKey key) {
+        return readObject(key, RedisList.class, list -> (long) list.size(), 0L);
     }
 
-    public boolean del(String key) {
-        return dataStore.remove(key) != null;
+    /**
+     * @return the number of members that were new
+     */
+    public long sadd(ByteKey key, byte[][] members) {
+        freeMemoryIfNeeded();
+        return updateObject(key, RedisSet.class, RedisSet::new, set -> {
+            long added = 0;
+            for (byte[] member : members) {
+                if (set.add(member)) {
+                    added++;
+                }
+            }
+            if (added > 0) {
+                propagate(command(SADD, key, members));
+            }
+            return added;
+        }, 0L);
     }
 
-    public Set<String> keys(String pattern) {
-        if ("*".equals(pattern)) {
-            return dataStore.keySet();
+    /**
+     * @return the number of members removed
+     */
+    public long srem(ByteKey key, byte[][] members) {
+        return updateObject(key, RedisSet.class, null, set -> {
+            long removed = 0;
+            for (byte[] member : members) {
+                if (set.remove(member)) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                propagate(command(SREM, key, members));
+            }
+            return removed;
+        }, 0L);
+    }
+
+    public boolean sismember(ByteKey key, byte[] member) {
+        return readObject(key, RedisSet.class, set -> set.contains(member), false);
+    }
+
+    public List<byte[]> smembers(ByteKey key) {
+        return readObject(key, RedisSet.class, RedisSet::members, List.of());
+    }
+
+    public long scard(ByteKey key) {
+        return readObject(key, RedisSet.class, set -> (long) set.size(), 0L);
+    }
+
+    /**
+     * Adds members to a sorted set or updates their scores, as {@code ZADD}.
+     *
+     * @param condition NX to only add new members, XX to only update existing ones
+     * @param greaterOnly only update a score to a greater one
+     * @param lessOnly only update a score to a lesser one
+     * @param countChanged count updated members as well as added ones, as {@code CH}
+     * @return the number of members added, or added and updated with {@code countChanged}
+     */
+    public long zadd(ByteKey key, double[] scores, byte[][] members, StorageEngine.SetCondition condition,
+                     boolean greaterOnly, boolean lessOnly, boolean countChanged) {
+        freeMemoryIfNeeded();
+        Supplier<RedisSortedSet> create = condition == StorageEngine.SetCondition.XX ? null : RedisSortedSet::new;
+        return updateObject(key, RedisSortedSet.class, create, zset -> {
+            long added = 0;
+            long updated = 0;
+            List<byte[]> applied = new ArrayList<>();
+            for (int i = 0; i < members.length; i++) {
+                Double current = zset.score(members[i]);
+                if (current == null ? condition == StorageEngine.SetCondition.XX
+                        : condition == StorageEngine.SetCondition.NX || greaterOnly && scores[i] <= current
+                        || lessOnly && scores[i] >= current || scores[i] == current) {
+                    continue;
+                }
+                if (zset.add(scores[i], members[i])) {
+                    added++;
+                } else {
+                    updated++;
+                }
+                applied.add(RedisSortedSet.formatScore(scores[i]));
+                applied.add(members[i]);
+            }
+            if (!applied.isEmpty()) {
+                propagate(command(ZADD, key, applied.toArray(new byte[0][])));
+            }
+            return countChanged ? added + updated : added;
+        }, 0L);
+    }
+
+    public Double zscore(ByteKey key, byte[] member) {
+        return readObject(key, RedisSortedSet.class, zset -> zset.score(member), null);
+    }
+
+    /**
+     * @return the number of members removed
+     */
+    public long zrem(ByteKey key, byte[][] members) {
+        return updateObject(key, RedisSortedSet.class, null, zset -> {
+            long removed = 0;
+            for (byte[] member : members) {
+                if (zset.remove(member)) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                propagate(command(ZREM, key, members));
+            }
+            return removed;
+        }, 0L);
+    }
+
+    public long zcard(ByteKey key) {
+        return readObject(key, RedisSortedSet.class, zset -> (long) zset.size(), 0L);
+    }
+
+    /**
+     * @return the members ranked {@code start} to {@code stop}, each followed by its
+     * formatted score if {@code withScores}
+     */
+    public List<byte[]> zrange(ByteKey key, long start, long stop, boolean withScores) {
+        return readObject(key, RedisSortedSet.class,
+                zset -> flatten(zset.rangeByRank(start, stop), withScores), List.of());
+    }
+
+    /**
+     * @param count the most members to return, or negative for all
+     * @return the members scored between {@code min} and {@code max}, each followed by its
+     * formatted score if {@code withScores}
+     */
+    public List<byte[]> zrangeByScore(ByteKey key, double min, boolean minExclusive, double max, boolean maxExclusive,
+                                      long offset, long count, boolean withScores) {
+        return readObject(key, RedisSortedSet.class, zset -> flatten(
+                zset.rangeByScore(min, minExclusive, max, maxExclusive, offset, count), withScores), List.of());
+    }
+
+    /**
+     * Stores a collection received whole, as from a leader's full sync, replacing the
+     * key; it is logged as the commands that rebuild it.
+     */
+    public void restore(ByteKey key, RedisObject object, long expireAt) {
+        checkWritable();
+        onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                storeWhole(key, object, expireAt);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Stores a value produced by {@link #dump}, as {@code RESTORE} does.
+     *
+     * @throws RedisException if the payload is corrupt, or the key exists and
+     *                        {@code replace} is not set
+     */
+    public void restore(ByteKey key, byte[] payload, long expireAt, boolean replace) {
+        Object value = undump(payload);
+        freeMemoryIfNeeded();
+        checkWritable();
+        onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                if (!replace && engine.containsKey(key)) {
+                    throw new RedisException("BUSYKEY Target key name already exists.");
+                }
+                storeWhole(key, value, expireAt);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return the value at a key in the form {@code RESTORE} takes, or null if missing
+     */
+    public byte[] dump(ByteKey key) {
+        Object value = lockedValue(key);
+        return value == null ? null : dumpValue(value);
+    }
+
+    /**
+     * Moves keys to another server, as {@code MIGRATE} does: each key found is sent as a
+     * {@code RESTORE}, preceded by {@code ASKING} in cluster mode, in one pipelined batch,
+     * and deleted here once the target has stored it, unless {@code copy} is set.
+     * <p>
+     * No lock is held while waiting for the target, so writes to other keys go on. A key
+     * is read under its write lock, and a write to it in the meantime is noticed when it
+     * is logged; such a key is not deleted but sent again, or its deletion passed on, until
+     * a round finds it unchanged.
+     *
+     * @return the number of keys that existed
+     * @throws RedisException if the target refused a key, which is then kept here, or if
+     *                        a key is already being migrated or kept changing
+     */
+    public long migrate(ByteKey[] keys, NodeClient target, boolean copy, boolean replace) throws IOException {
+        checkWritable();
+        Map<ByteKey, MigratingKey> claimed = new LinkedHashMap<>();
+        try {
+            for (ByteKey key : keys) {
+                ByteKey owned = key.owned();
+                if (claimed.containsKey(owned)) {
+                    continue;
+                }
+                MigratingKey marker = new MigratingKey();
+                if (migratingKeys.putIfAbsent(owned, marker) != null) {
+                    throw new RedisException("TRYAGAIN Key is already being migrated");
+                }
+                claimed.put(owned, marker);
+            }
+            long found = 0;
+            RedisException refused = null;
+            List<ByteKey> round = new ArrayList<>(claimed.keySet());
+            for (int attempt = 0; !round.isEmpty(); attempt++) {
+                if (attempt == MIGRATE_ROUNDS) {
+                    throw new RedisException("TRYAGAIN Keys kept changing during MIGRATE");
+                }
+                List<ByteKey> sent = sendKeys(round, claimed, target, attempt > 0, replace);
+                if (attempt == 0) {
+                    found = sent.size();
+                }
+                List<ByteKey> changed = new ArrayList<>();
+                for (ByteKey key : sent) {
+                    if (cluster != null) {
+                        target.read();
+                    }
+                    try {
+                        target.read();
+                    } catch (RedisException e) {
+                        refused = e;
+                        continue;
+                    }
+                    if (copy) {
+                        continue;
+                    }
+                    synchronized (writeLock(key)) {
+                        if (claimed.get(key).changed) {
+                            changed.add(key);
+                        } else if (engine.remove(key)) {
+                            propagate(DEL, key.toBytes());
+                        }
+                    }
+                }
+                round = changed;
+            }
+            if (refused != null) {
+                throw new RedisException("ERR Target instance replied with error: " + refused.getMessage());
+            }
+            return found;
+        } finally {
+            claimed.forEach(migratingKeys::remove);
         }
-        if (pattern.endsWith("*")) {
-            String prefix = pattern.substring(0, pattern.length() - 1);
-            return dataStore.keySet().stream()
-                    .filter(key -> key.startsWith(prefix))
-                    .collect(Collectors.toSet());
+    }
+
+    /**
+     * Reads each key under its write lock and pipelines it to the target. Keys missing
+     * here are left out the first time; afterwards they were deleted since, and the
+     * target deletes them too.
+     *
+     * @param again whether the target already got the keys in an earlier round
+     * @return the keys sent, in order
+     */
+    private List<ByteKey> sendKeys(List<ByteKey> keys, Map<ByteKey, MigratingKey> claimed, NodeClient target,
+                                   boolean again, boolean replace) throws IOException {
+        List<ByteKey> sent = new ArrayList<>(keys.size());
+        for (ByteKey key : keys) {
+            byte[] payload = null;
+            long expireAt;
+            synchronized (writeLock(key)) {
+                claimed.get(key).changed = false;
+                Object value = engine.getObject(key);
+                expireAt = engine.getExpireAt(key);
+                if (value != null && expireAt != StorageEngine.MISSING) {
+                    payload = dumpValue(value);
+                }
+            }
+            if (payload == null && !again) {
+                continue;
+            }
+            // The target accepts keys of a slot it is importing only after ASKING
+            if (cluster != null) {
+                target.send(ASKING);
+            }
+            if (payload == null) {
+                target.send(DEL, key.toBytes());
+            } else {
+                long ttl = expireAt == StorageEngine.NO_EXPIRY ? 0 : Math.max(1, expireAt - System.currentTimeMillis());
+                byte[] ttlBytes = ascii(Long.toString(ttl));
+                if (replace || again) {
+                    target.send(RESTORE, key.toBytes(), ttlBytes, payload, REPLACE);
+                } else {
+                    target.send(RESTORE, key.toBytes(), ttlBytes, payload);
+                }
+            }
+            sent.add(key);
         }
-        return dataStore.containsKey(pattern) ? Set.of(pattern) : Set.of();
+        target.flush();
+        return sent;
+    }
+
+    public long countKeysInSlot(int slot) {
+        return engine.countKeysInSlot(slot);
+    }
+
+    /**
+     * Walks the keyspace for keys in a hash slot, like {@code KEYS} walks it for a pattern,
+     * stopping once it found as many as the slot holds.
+     *
+     * @param count the most keys to return
+     */
+    public List<byte[]> keysInSlot(int slot, int count) {
+        int limit = (int) Math.min(count, engine.countKeysInSlot(slot));
+        if (limit == 0) {
+            return List.of();
+        }
+        Set<ByteKey> found = new HashSet<>();
+        List<byte[]> keys = new ArrayList<>();
+        StorageEngine.KeyWalk walk = engine.walk();
+        boolean more;
+        do {
+            more = walk.next(SLOT_SCAN_COUNT, key -> {
+                if (keys.size() < limit && HashSlot.of(key) == slot && found.add(ByteKey.of(key))) {
+                    keys.add(key);
+                }
+            });
+        } while (more && keys.size() < limit);
+        return keys;
+    }
+
+    /**
+     * Stores a whole value received from elsewhere, replacing the key; a collection is
+     * logged as the commands that rebuild it.
+     */
+    private void storeWhole(ByteKey key, Object value, long expireAt) {
+        byte[] keyBytes = key.toBytes();
+        if (value instanceof RedisObject) {
+            RedisObject object = (RedisObject) value;
+            engine.setObject(key, object, expireAt, StorageEngine.SetCondition.ALWAYS);
+            propagate(DEL, keyBytes);
+            object.forEachRebuildCommand(keyBytes, this::propagate);
+        } else {
+            engine.set(key, (byte[]) value, expireAt, StorageEngine.SetCondition.ALWAYS);
+            propagate(SET, keyBytes, (byte[]) value);
+        }
+        if (expireAt != StorageEngine.NO_EXPIRY) {
+            propagate(PEXPIREAT, keyBytes, ascii(Long.toString(expireAt)));
+        }
+    }
+
+    /**
+     * The {@code DUMP} payload: a type byte, the string or the serialized collection, and
+     * a CRC32C of both.
+     */
+    private static byte[] dumpValue(Object value) {
+        boolean object = value instanceof RedisObject;
+        byte[] body = object ? ((RedisObject) value).serialize() : (byte[]) value;
+        byte[] payload = new byte[1 + body.length + 4];
+        payload[0] = object ? DUMP_OBJECT : DUMP_STRING;
+        System.arraycopy(body, 0, payload, 1, body.length);
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, body.length + 1);
+        int checksum = (int) crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            payload[body.length + 1 + i] = (byte) (checksum >>> (24 - 8 * i));
+        }
+        return payload;
+    }
+
+    private static Object undump(byte[] payload) {
+        RedisException corrupt = new RedisException("ERR DUMP payload version or checksum are wrong");
+        if (payload.length < 5 || payload[0] != DUMP_STRING && payload[0] != DUMP_OBJECT) {
+            throw corrupt;
+        }
+        int bodyEnd = payload.length - 4;
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, bodyEnd);
+        int checksum = 0;
+        for (int i = 0; i < 4; i++) {
+            checksum = checksum << 8 | payload[bodyEnd + i] & 0xFF;
+        }
+        if (checksum != (int) crc.getValue()) {
+            throw corrupt;
+        }
+        byte[] body = Arrays.copyOfRange(payload, 1, bodyEnd);
+        if (payload[0] == DUMP_STRING) {
+            return body;
+        }
+        try {
+            return RedisObject.deserialize(body);
+        } catch (IllegalArgumentException e) {
+            throw corrupt;
+        }
+    }
+
+    private static List<byte[]> flatten(List<RedisSortedSet.Scored> members, boolean withScores) {
+        List<byte[]> result = new ArrayList<>(withScores ? members.size() * 2 : members.size());
+        for (RedisSortedSet.Scored scored : members) {
+            result.add(scored.member);
+            if (withScores) {
+                result.add(RedisSortedSet.formatScore(scored.score));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the string at a key with a function of it, null when it is missing, under
+     * the key's write lock, keeping its deadline. The change is logged as {@code command},
+     * or as a {@code SET ... KEEPTTL} of the result when none is given, so replaying the
+     * log needs no arithmetic.
+     *
+     * @return the new value
+     * @throws RedisException with a {@code WRONGTYPE} error if the key holds a collection
+     */
+    private byte[] updateString(ByteKey key, UnaryOperator<byte[]> change, byte[]... command) {
+        freeMemoryIfNeeded();
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                byte[] value = change.apply(engine.get(key));
+                engine.set(key, value, StorageEngine.KEEP_TTL, StorageEngine.SetCondition.ALWAYS);
+                if (command.length == 0) {
+                    propagate(SET, key.toBytes(), value, KEEPTTL);
+                } else {
+                    propagate(command);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Reads a value under the key's write lock, which a collection needs since it changes in place.
+     */
+    private Object lockedValue(ByteKey key) {
+        synchronized (writeLock(key)) {
+            return engine.getObject(key);
+        }
+    }
+
+    /**
+     * Reads the collection at a key under the key's write lock.
+     *
+     * @return the result, or {@code missing} if the key does not exist
+     * @throws RedisException with a {@code WRONGTYPE} error if the key holds another type
+     */
+    private <T extends RedisObject, R> R readObject(ByteKey key, Class<T> type, Function<T, R> read, R missing) {
+        synchronized (writeLock(key)) {
+            Object value = countLookup(engine.getObject(key));
+            if (value == null) {
+                return missing;
+            }
+            if (!type.isInstance(value)) {
+                throw RedisObject.wrongType();
+            }
+            return read.apply(type.cast(value));
+        }
+    }
+
+    private <T> T countLookup(T value) {
+        (value == null ? keyspaceMisses : keyspaceHits).increment();
+        return value;
+    }
+
+    /**
+     * Changes the collection at a key in place under the key's write lock, creating it
+     * first if {@code create} is given, then stores it again so the engine accounts for
+     * its new size, or deletes the key if it was left empty. The change logs itself.
+     *
+     * @return the result, or {@code missing} if the key does not exist and is not created
+     * @throws RedisException with a {@code WRONGTYPE} error if the key holds another type
+     */
+    private <T extends RedisObject, R> R updateObject(ByteKey key, Class<T> type, Supplier<T> create,
+                                                      Function<T, R> change, R missing) {
+        checkWritable();
+        return onShard(key, () -> {
+            synchronized (writeLock(key)) {
+                long expireAt = engine.getExpireAt(key);
+                Object value = expireAt == StorageEngine.MISSING ? null : engine.getObject(key);
+                T object;
+                if (value == null) {
+                    if (create == null) {
+                        return missing;
+                    }
+                    object = create.get();
+                    expireAt = StorageEngine.NO_EXPIRY;
+                } else if (type.isInstance(value)) {
+                    object = type.cast(value);
+                } else {
+                    throw RedisObject.wrongType();
+                }
+                R result = change.apply(object);
+                if (object.size() == 0) {
+                    engine.remove(key);
+                } else {
+                    engine.setObject(key, object, expireAt, StorageEngine.SetCondition.ALWAYS);
+                }
+                return result;
+            }
+        });
+    }
+
+    private static byte[][] command(byte[] name, ByteKey key, byte[][] args) {
+        byte[][] command = new byte[args.length + 2][];
+        command[0] = name;
+        command[1] = key.toBytes();
+        System.arraycopy(args, 0, command, 2, args.length);
+        return command;
+    }
+
+    public List<byte[]> keys(byte[] pattern) {
+        List<byte[]> result = new ArrayList<>();
+        keys(pattern, result::add);
+        return result;
+    }
+
+    /**
+     * Hands every key matching a Redis glob pattern to an action as the keyspace is
+     * walked, without collecting them first. A pattern without wildcards is a single lookup.
+     */
+    public void keys(byte[] pattern, Consumer<byte[]> action) {
+        GlobPattern glob = GlobPattern.compile(pattern);
+        if (glob.literal() != null) {
+            if (engine.containsKey(ByteKey.of(glob.literal()))) {
+                action.accept(glob.literal());
+            }
+        } else if (glob.matchesAll()) {
+            engine.forEachKey(action);
+        } else {
+            engine.forEachKey(key -> {
+                if (glob.matches(key)) {
+                    action.accept(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * One SCAN step: visits about {@code count} keys from a cursor and hands those
+     * matching the pattern, if any, to an action.
+     *
+     * @return the cursor to continue from, 0 once the keyspace has been covered
+     * @throws IllegalArgumentException for a cursor that is not valid
+     */
+    public long scan(long cursor, int count, byte[] pattern, Consumer<byte[]> action) {
+        if (pattern == null) {
+            return engine.scan(cursor, count, action);
+        }
+        GlobPattern glob = GlobPattern.compile(pattern);
+        return engine.scan(cursor, count, key -> {
+            if (glob.matches(key)) {
+                action.accept(key);
+            }
+        });
+    }
+
+    /**
+     * Called before writes that may grow the keyspace. Each eviction is logged and
+     * replicated as a {@code DEL}, so followers and a replayed log lose the same keys. A
+     * follower leaves the limit to its leader, whose evictions reach it that way, and
+     * applies the replication stream whatever its own memory use.
+     *
+     * @throws RedisException with an {@code OOM} error if over the limit and nothing can be evicted
+     */
+    void freeMemoryIfNeeded() {
+        long limit = maxMemory;
+        if (limit <= 0 || replicationClient != null) {
+            return;
+        }
+        while (engine.usedMemory() > limit) {
+            ByteKey evicted = engine.evict(maxMemorySamples);
+            if (evicted == null) {
+                throw new RedisException(OOM_ERROR);
+            }
+            evictedKeys.increment();
+            synchronized (writeLock(evicted)) {
+                // A write that recreated the key since has been propagated already
+                if (!engine.containsKey(evicted)) {
+                    propagate(DEL, evicted.toBytes());
+                }
+            }
+        }
+    }
+
+    private Object writeLock(ByteKey key) {
+        return writeLocks[key.hashCode() & (WRITE_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Runs a write on the thread of the key's shard when shard executors are on, and on
+     * the calling thread otherwise. The key may be a view over the caller's request
+     * buffer: the caller waits, so the buffer stays valid.
+     */
+    private <T> T onShard(ByteKey key, Supplier<T> write) {
+        ExecutorService[] executors = shardExecutors;
+        if (executors == null) {
+            return write.get();
+        }
+        // The shard thread logs the write, but it is the caller that awaits its fsync
+        AppendOnlyFile aof = appendOnlyFile;
+        long[] appended = new long[1];
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return write.get();
+                } finally {
+                    if (aof != null) {
+                        appended[0] = aof.takeAppended();
+                    }
+                }
+            }, executors[engine.shardOf(key)]).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            if (appended[0] != 0) {
+                aof.recordAppended(appended[0]);
+            }
+        }
+    }
+
+    /**
+     * Runs a write holding the locks of several keys, taken in stripe order like
+     * {@link #blockWrites(int, Runnable)} does, so two multi-key writes cannot deadlock.
+     */
+    private <T> T underWriteLocks(ByteKey[] keys, Supplier<T> write) {
+        int[] stripes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            stripes[i] = keys[i].hashCode() & (WRITE_LOCK_STRIPES - 1);
+        }
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                stripes[distinct++] = stripes[i];
+            }
+        }
+        return underWriteLocks(stripes, 0, distinct, write);
+    }
+
+    private <T> T underWriteLocks(int[] stripes, int from, int to, Supplier<T> write) {
+        if (from == to) {
+            return write.get();
+        }
+        synchronized (writeLocks[stripes[from]]) {
+            return underWriteLocks(stripes, from + 1, to, write);
+        }
+    }
+
+    /**
+     * Runs an action with no change to the key in progress, so that what it reads is
+     * ordered with the key's changes in the log and the replication stream.
+     */
+    void underWriteLock(ByteKey key, Runnable action) {
+        synchronized (writeLock(key)) {
+            action.run();
+        }
+    }
+
+    /**
+     * Runs an action holding every write lock, nested one stripe at a time.
+     */
+    private void blockWrites(int stripe, Runnable action) {
+        if (stripe == writeLocks.length) {
+            action.run();
+            return;
+        }
+        synchronized (writeLocks[stripe]) {
+            blockWrites(stripe + 1, action);
+        }
+    }
+
+    /**
+     * Waits for the changes in progress when called to finish.
+     */
+    void awaitWriters() {
+        for (Object lock : writeLocks) {
+            synchronized (lock) {
+                // Entering is enough: the holder has finished its change
+            }
+        }
+    }
+
+    private void checkWritable() {
+        AppendOnlyFile aof = appendOnlyFile;
+        if (aof != null) {
+            aof.checkWritable();
+        }
+    }
+
+    /**
+     * Hands an applied change to the append-only file, to followers and to the clients
+     * caching the key; called under the key's write lock. The key is always the
+     * command's first argument.
+     */
+    private void propagate(byte[]... args) {
+        AppendOnlyFile aof = appendOnlyFile;
+        if (aof != null) {
+            aof.append(args);
+        }
+        replication.feed(args);
+        tracking.keyChanged(args[1]);
+        if (!migratingKeys.isEmpty()) {
+            MigratingKey migrating = migratingKeys.get(ByteKey.of(args[1]));
+            if (migrating != null) {
+                migrating.changed = true;
+            }
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    void activeExpireCycle() {
+        try {
+            long deadline = System.nanoTime() + EXPIRE_CYCLE_BUDGET_NANOS;
+            do {
+                int expired = engine.expireSample(System.currentTimeMillis(), EXPIRE_SAMPLES);
+                if (expired <= EXPIRE_SAMPLES / 4) {
+                    return;
+                }
+            } while (System.nanoTime() < deadline);
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, so log it and try again next tick
+            LOGGER.log(Level.SEVERE, "Active expire cycle failed", e);
+        }
+    }
+
+    private static final class MigratingKey {
+        volatile boolean changed;
     }
 }
\ No newline at end of file
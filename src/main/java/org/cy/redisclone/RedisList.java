@@ -0,0 +1,163 @@
+package org.cy.redisclone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A list: a listpack while small, then a growable ring of element arrays, which pushes
+ * and pops at both ends in O(1) and reaches any index in O(1) for {@code LRANGE}.
+ */
+final class RedisList extends RedisObject {
+    private static final byte[] RPUSH = ascii("RPUSH");
+
+    private Listpack listpack = new Listpack();
+    private byte[][] ring;
+    private int head;
+    private int count;
+    private long elementBytes;
+
+    @Override
+    public Type type() {
+        return Type.LIST;
+    }
+
+    @Override
+    public String encoding() {
+        return ring == null ? "listpack" : "ringbuffer";
+    }
+
+    @Override
+    public int size() {
+        return ring == null ? listpack.count() : count;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return ring == null ? 32 + listpack.memoryUsage() : 48 + arraySize(ring.length * 4) + elementBytes;
+    }
+
+    void push(byte[] element, boolean left) {
+        if (ring == null) {
+            if (listpack.count() < MAX_COMPACT_ENTRIES && fitsCompact(element)) {
+                if (left) {
+                    listpack.insert(0, element);
+                } else {
+                    listpack.append(element);
+                }
+                return;
+            }
+            convert();
+        }
+        if (count == ring.length) {
+            grow();
+        }
+        if (left) {
+            head = (head - 1) & (ring.length - 1);
+            ring[head] = element;
+        } else {
+            ring[(head + count) & (ring.length - 1)] = element;
+        }
+        count++;
+        elementBytes += arraySize(element.length);
+    }
+
+    /**
+     * @return the element taken from one end, or null if the list is empty
+     */
+    byte[] pop(boolean left) {
+        if (ring == null) {
+            int position = left ? 0 : listpack.last();
+            if (position < 0) {
+                return null;
+            }
+            byte[] element = listpack.get(position);
+            listpack.delete(position, 1);
+            return element;
+        }
+        if (count == 0) {
+            return null;
+        }
+        int index = left ? head : (head + count - 1) & (ring.length - 1);
+        byte[] element = ring[index];
+        ring[index] = null;
+        if (left) {
+            head = (head + 1) & (ring.length - 1);
+        }
+        count--;
+        elementBytes -= arraySize(element.length);
+        return element;
+    }
+
+    /**
+     * @return the elements from {@code start} to {@code stop} inclusive, with Redis'
+     * negative indexes counting from the end
+     */
+    List<byte[]> range(long start, long stop) {
+        int size = size();
+        if (start < 0) {
+            start = Math.max(0, size + start);
+        }
+        if (stop < 0) {
+            stop = size + stop;
+        }
+        stop = Math.min(stop, size - 1);
+        List<byte[]> result = new ArrayList<>();
+        if (start > stop) {
+            return result;
+        }
+        if (ring != null) {
+            for (long i = start; i <= stop; i++) {
+                result.add(ring[(int) ((head + i) & (ring.length - 1))]);
+            }
+            return result;
+        }
+        int position = listpack.position((int) start);
+        for (long i = start; i <= stop; i++) {
+            result.add(listpack.get(position));
+            position = listpack.next(position);
+        }
+        return result;
+    }
+
+    @Override
+    void forEachElement(Consumer<byte[]> action) {
+        range(0, -1).forEach(action);
+    }
+
+    @Override
+    byte[] rebuildCommand() {
+        return RPUSH;
+    }
+
+    @Override
+    int elementsPerEntry() {
+        return 1;
+    }
+
+    @Override
+    void readEntry(byte[][] elements) {
+        push(elements[0], false);
+    }
+
+    private void convert() {
+        List<byte[]> elements = range(0, -1);
+        ring = new byte[Integer.highestOneBit(Math.max(elements.size(), 8) * 2 - 1)][];
+        head = 0;
+        count = 0;
+        listpack = null;
+        for (byte[] element : elements) {
+            ring[count++] = element;
+            elementBytes += arraySize(element.length);
+        }
+    }
+
+    private void grow() {
+        byte[][] grown = new byte[ring.length * 2][];
+        for (int i = 0; i < count; i++) {
+            grown[i] = ring[(head + i) & (ring.length - 1)];
+        }
+        ring = grown;
+        head = 0;
+    }
+}
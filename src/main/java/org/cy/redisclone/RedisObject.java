@@ -0,0 +1,189 @@
+package org.cy.redisclone;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A value other than a string: a hash, list, set or sorted set.
+ * <p>
+ * Collections are mutable and not thread-safe. The service reads and changes them only
+ * under the key's write lock, and hands the engine the same object back after each change
+ * so it can account for the new size. Each type starts in a compact packed encoding and
+ * converts for good to a hash table or skip list once it holds more than a small number
+ * of entries, or an entry longer than {@value #MAX_COMPACT_VALUE} bytes, as Redis does
+ * with its {@code *-max-listpack-*} limits.
+ * <p>
+ * The serialized form, used by snapshots and full syncs, is a type byte and the element
+ * count followed by length-prefixed elements.
+ */
+public abstract class RedisObject {
+    static final String WRONGTYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    static final int MAX_COMPACT_ENTRIES = 128;
+    static final int MAX_COMPACT_VALUE = 64;
+    private static final int REBUILD_BATCH = 64;
+
+    public enum Type {
+        HASH,
+        LIST,
+        SET,
+        ZSET;
+
+        public String typeName() {
+            return name().toLowerCase();
+        }
+    }
+
+    public abstract Type type();
+
+    /**
+     * @return the name {@code OBJECT ENCODING} reports
+     */
+    public abstract String encoding();
+
+    /**
+     * @return the number of elements, fields or members
+     */
+    public abstract int size();
+
+    /**
+     * @return an estimate of the heap used by the object and its contents
+     */
+    public abstract long memoryUsage();
+
+    /**
+     * Hands the elements, in the order {@link #read} expects them back, to an action.
+     */
+    abstract void forEachElement(Consumer<byte[]> action);
+
+    /**
+     * @return the command that adds the given elements, as produced by {@link #forEachElement}
+     */
+    abstract byte[] rebuildCommand();
+
+    /**
+     * @return how many consecutive elements make one entry, such as a field and its value
+     */
+    abstract int elementsPerEntry();
+
+    /**
+     * Adds one entry read back from {@link #forEachElement}.
+     */
+    abstract void readEntry(byte[][] elements);
+
+    static RedisException wrongType() {
+        return new RedisException(WRONGTYPE);
+    }
+
+    public byte[] serialize() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(type().ordinal());
+        writeVarint(out, size() * elementsPerEntry());
+        forEachElement(element -> {
+            writeVarint(out, element.length);
+            out.write(element, 0, element.length);
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a serialized object
+     */
+    public static RedisObject deserialize(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        RedisObject object;
+        try {
+            object = create(Type.values()[buffer.get()]);
+            int elements = readVarint(buffer);
+            byte[][] entry = new byte[object.elementsPerEntry()][];
+            for (int i = 0; i < elements; i++) {
+                byte[] element = new byte[readVarint(buffer)];
+                buffer.get(element);
+                entry[i % entry.length] = element;
+                if (i % entry.length == entry.length - 1) {
+                    object.readEntry(entry);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed serialized object", e);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Malformed serialized object");
+        }
+        return object;
+    }
+
+    static RedisObject create(Type type) {
+        switch (type) {
+            case HASH:
+                return new RedisHash();
+            case LIST:
+                return new RedisList();
+            case SET:
+                return new RedisSet();
+            default:
+                return new RedisSortedSet();
+        }
+    }
+
+    /**
+     * Hands an action the commands that recreate this object at a key, batching entries,
+     * for logs and followers that only replay commands.
+     */
+    void forEachRebuildCommand(byte[] key, Consumer<byte[][]> action) {
+        int perEntry = elementsPerEntry();
+        List<byte[]> command = new ArrayList<>();
+        forEachElement(element -> {
+            if (command.isEmpty()) {
+                command.add(rebuildCommand());
+                command.add(key);
+            }
+            command.add(element);
+            if (command.size() - 2 == REBUILD_BATCH * perEntry) {
+                action.accept(command.toArray(new byte[0][]));
+                command.clear();
+            }
+        });
+        if (!command.isEmpty()) {
+            action.accept(command.toArray(new byte[0][]));
+        }
+    }
+
+    static boolean fitsCompact(byte[] value) {
+        return value.length <= MAX_COMPACT_VALUE;
+    }
+
+    static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Estimated heap size of a byte array with its header.
+     */
+    static long arraySize(int length) {
+        return (16 + length + 7) & ~7L;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -2,237 +2,560 @@ package org.cy.redisclone;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 public class RedisServer {
     private static final Logger LOGGER = Logger.getLogger(RedisServer.class.getName());
-    private static final String VERSION = "1.0.0";
+    static final String VERSION = "1.0.0";
+    private static final byte[] MAX_CLIENTS_ERROR = "-ERR max number of clients reached\r\n".getBytes(StandardCharsets.UTF_8);
     private static long startTime;
-    private static int connectedClients = 0;
+    private static final AtomicInteger connectedClients = new AtomicInteger();
+    private static final LongAdder totalConnections = new LongAdder();
+    private static final AtomicLong nextClientId = new AtomicLong();
+    private static final LongAdder netInputBytes = new LongAdder();
+    private static final LongAdder netOutputBytes = new LongAdder();
+    private static final LongAdder evictedClients = new LongAdder();
+    private static final long CLIENT_EVICTION_PERIOD_MILLIS = 100;
     private final int port;
     private final RedisLikeService service;
+    private final ServerMode mode;
+    private final int ioThreads;
+    private final Semaphore connectionSlots;
+    private final long maxMemoryClients;
     private final ConcurrentHashMap<SocketAddress, ClientInfo> clients = new ConcurrentHashMap<>();
 
     public RedisServer(int port, RedisLikeService service) {
-        this.port = port;
+        this(new ServerConfig().setPort(port), service);
+    }
+
+    public RedisServer(ServerConfig config, RedisLikeService service) {
+        this.port = config.getPort();
         this.service = service;
+        this.mode = config.getMode();
+        this.ioThreads = config.getIoThreads();
+        this.connectionSlots = new Semaphore(config.getMaxClients());
+        this.maxMemoryClients = config.getMaxMemoryClients();
         startTime = System.currentTimeMillis();
     }
 
     public void start() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            LOGGER.info("Server listening on port " + port);
+        if (maxMemoryClients > 0) {
+            startClientEviction();
+        }
+        switch (mode) {
+            case THREAD:
+                startThreadPerConnection(runnable -> new Thread(runnable).start());
+                break;
+            case VIRTUAL:
+                startVirtualThreads();
+                break;
+            case NIO:
+                startEventLoops();
+                break;
+            default:
+                throw new IllegalStateException("Unsupported server mode: " + mode);
+        }
+    }
+
+    private void startThreadPerConnection(Executor executor) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 1024)) {
+            LOGGER.info("Server listening on port " + port + " in " + mode + " mode");
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket, service, clients)).start();
+                if (!connectionSlots.tryAcquire()) {
+                    rejectConnection(clientSocket);
+                    continue;
+                }
+                clientSocket.setTcpNoDelay(true);
+                executor.execute(new ClientHandler(clientSocket, this));
+            }
+        }
+    }
+
+    /**
+     * Runs every connection on its own virtual thread. {@link ClientHandler} only
+     * blocks inside socket reads and writes, which unmount the virtual thread, and
+     * holds no monitor while doing so, so carrier threads are never pinned.
+     */
+    private void startVirtualThreads() throws IOException {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            startThreadPerConnection(executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Accepts connections on the calling thread and hands them round-robin to a
+     * fixed set of selector event loops, one per I/O thread.
+     */
+    private void startEventLoops() throws IOException {
+        EventLoop[] loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop(this);
+            Thread thread = new Thread(loops[i], "redis-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            LOGGER.info("Server listening on port " + port + " with " + ioThreads + " event loops");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (!connectionSlots.tryAcquire()) {
+                    rejectConnection(channel.socket());
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    private void rejectConnection(Socket socket) {
+        LOGGER.warning("Rejecting connection from " + socket.getRemoteSocketAddress() + ": max number of clients reached");
+        try (socket) {
+            socket.getOutputStream().write(MAX_CLIENTS_ERROR);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error rejecting client", e);
+        }
+    }
+
+    ClientInfo clientConnected(SocketAddress address) {
+        connectedClients.incrementAndGet();
+        totalConnections.increment();
+        // Set up completely before it is published, as CLIENT LIST and eviction read it from other threads
+        ClientInfo info = new ClientInfo(nextClientId.incrementAndGet(), address, "",
+                client -> new CommandExecutor(service, clients, address, client, false));
+        clients.put(address, info);
+        return info;
+    }
+
+    /**
+     * Gives back the slot of a connection that failed before it was set up.
+     */
+    void connectionFailed() {
+        connectionSlots.release();
+    }
+
+    void clientDisconnected(SocketAddress address) {
+        connectedClients.decrementAndGet();
+        clients.remove(address);
+        connectionSlots.release();
+    }
+
+    private void startClientEviction() {
+        ScheduledExecutorService cron = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redis-client-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cron.scheduleAtFixedRate(this::evictClients,
+                CLIENT_EVICTION_PERIOD_MILLIS, CLIENT_EVICTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disconnects the clients using the most memory, leaving out those that set
+     * {@code CLIENT NO-EVICT on}, until all of them together are within
+     * {@code maxmemory-clients}, as Redis does.
+     */
+    void evictClients() {
+        long total = 0;
+        List<ClientInfo> candidates = new ArrayList<>();
+        Map<ClientInfo, Long> memory = new HashMap<>();
+        for (ClientInfo client : clients.values()) {
+            long used = client.memory();
+            total += used;
+            if (!client.isNoEvict()) {
+                candidates.add(client);
+                memory.put(client, used);
+            }
+        }
+        if (total <= maxMemoryClients) {
+            return;
+        }
+        candidates.sort(Comparator.comparingLong(memory::get).reversed());
+        for (ClientInfo client : candidates) {
+            if (total <= maxMemoryClients) {
+                break;
             }
+            LOGGER.warning("Evicting client " + client.getAddress() + " using " + memory.get(client)
+                    + " bytes: maxmemory-clients reached");
+            client.kill();
+            total -= memory.get(client);
+            evictedClients.increment();
         }
     }
 
-    private static class ClientHandler implements Runnable {
+    static long uptimeSeconds() {
+        return (System.currentTimeMillis() - startTime) / 1000;
+    }
+
+    static int connectedClients() {
+        return connectedClients.get();
+    }
+
+    static long totalConnectionsReceived() {
+        return totalConnections.sum();
+    }
+
+    static void recordNetInput(long bytes) {
+        netInputBytes.add(bytes);
+    }
+
+    static void recordNetOutput(long bytes) {
+        netOutputBytes.add(bytes);
+    }
+
+    static long netInputBytes() {
+        return netInputBytes.sum();
+    }
+
+    static long netOutputBytes() {
+        return netOutputBytes.sum();
+    }
+
+    static long evictedClients() {
+        return evictedClients.sum();
+    }
+
+    /**
+     * Serves one connection with blocking I/O. Once the client subscribes, its output
+     * goes through a queue written by a virtual thread of its own, since this thread
+     * spends its time blocked reading.
+     */
+    private static class ClientHandler implements Runnable, PubSub.Delivery {
         private final Socket clientSocket;
-        private final RedisLikeService service;
-        private final ConcurrentHashMap<SocketAddress, ClientInfo> clients;
-        private String clientName = "";
+        private final RedisServer server;
+        private final SocketAddress address;
+        private final ClientInfo info;
+        private final CommandExecutor executor;
+        private volatile Thread pushWriter;
+        private volatile boolean disconnected;
 
-        public ClientHandler(Socket socket, RedisLikeService service, ConcurrentHashMap<SocketAddress, ClientInfo> clients) {
+        public ClientHandler(Socket socket, RedisServer server) {
             this.clientSocket = socket;
-            this.service = service;
-            this.clients = clients;
-            connectedClients++;
-            clients.put(socket.getRemoteSocketAddress(), new ClientInfo(socket.getRemoteSocketAddress(), ""));
+            this.server = server;
+            this.address = socket.getRemoteSocketAddress();
+            this.info = server.clientConnected(address);
+            this.executor = info.getExecutor();
+            executor.setDelivery(this);
+        }
+
+        @Override
+        public void wakeUp() {
+            Thread writer = pushWriter;
+            if (writer == null) {
+                synchronized (this) {
+                    if (pushWriter == null) {
+                        pushWriter = Thread.ofVirtual().name("redis-push-writer").start(this::writePushed);
+                    }
+                    writer = pushWriter;
+                }
+            }
+            LockSupport.unpark(writer);
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing client socket", e);
+            }
+        }
+
+        private void writePushed() {
+            PubSub.Subscriber subscriber = executor.subscriber();
+            try {
+                OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), ReplyBuffer.HIGH_WATER_MARK);
+                while (!clientSocket.isClosed()) {
+                    byte[] bytes;
+                    while ((bytes = subscriber.poll()) != null) {
+                        info.recordWrite(bytes.length);
+                        out.write(bytes);
+                    }
+                    out.flush();
+                    LockSupport.park(this);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error writing to subscriber " + address, e);
+            }
         }
 
         @Override
         public void run() {
-            LOGGER.info("New client connected: " + clientSocket.getInetAddress());
+            LOGGER.fine("New client connected: " + clientSocket.getInetAddress());
             try (
                     InputStream in = clientSocket.getInputStream();
                     OutputStream out = clientSocket.getOutputStream()
             ) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
                 CommandParser parser = new CommandParser();
+                ReplyBuffer replies = new ReplyBuffer();
 
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    parser.appendBytes(Arrays.copyOf(buffer, bytesRead));
-
-                    while (parser.hasNextCommand()) {
-                        try {
-                            byte[] commandBytes = parser.getNextCommand();
-                            String command = new String(commandBytes, StandardCharsets.UTF_8);
-                            List<Object> parsed = RESPHandler.parseRequest(command);
-                            String response = executeCommand(parsed);
-                            out.write(response.getBytes(StandardCharsets.UTF_8));
-                            out.flush();
-                        } catch (IllegalStateException e) {
-                            // This shouldn't happen because we check hasNextCommand(), but handle it just in case
-                            LOGGER.warning("Unexpected error: " + e.getMessage());
-                            break;
+                int bytesRead;
+                while ((bytesRead = parser.readFrom(in)) != -1) {
+                    info.recordRead(bytesRead);
+                    CommandArgs command;
+                    while ((command = parser.next()) != null) {
+                        executor.executeCommand(command, replies);
+                        ReplicationSource.ReplicaLink link = executor.takeReplicaLink();
+                        if (link != null) {
+                            // A follower: this thread now streams the replication feed to it
+                            flush(replies, out);
+                            link.serve(out);
+                            return;
+                        }
+                        if (replies.isAboveHighWaterMark()) {
+                            executor.awaitDurable();
+                            flush(replies, out);
                         }
                     }
+                    info.recordQueryBuffer(parser);
+                    // One write for every command that arrived in this read
+                    executor.awaitDurable();
+                    flush(replies, out);
                 }
+            } catch (IllegalStateException e) {
+                LOGGER.fine("Closing client " + address + " after " + e.getMessage());
+                ReplyBuffer error = new ReplyBuffer();
+                RESPHandler.writeError(error, e.getMessage());
+                writeQuietly(error);
             } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Error handling client", e);
+                LOGGER.log(disconnected ? Level.FINE : Level.SEVERE, "Error handling client", e);
             } finally {
                 try {
                     clientSocket.close();
-                    LOGGER.info("Client disconnected: " + clientSocket.getInetAddress());
+                    LOGGER.fine("Client disconnected: " + clientSocket.getInetAddress());
                 } catch (IOException e) {
                     LOGGER.log(Level.SEVERE, "Error closing client socket", e);
                 }
-                connectedClients--;
-                clients.remove(clientSocket.getRemoteSocketAddress());
+                executor.close();
+                Thread writer = pushWriter;
+                if (writer != null) {
+                    LockSupport.unpark(writer);
+                }
+                server.clientDisconnected(address);
             }
         }
 
-        private String executeCommand(List<Object> parsed) {
-            if (parsed.isEmpty() || !(parsed.get(0) instanceof List)) {
-                return RESPHandler.formatResponse(new Error("Invalid command format"));
-            }
+        private void flush(ReplyBuffer replies, OutputStream out) throws IOException {
+            int pending = replies.pending();
+            // Shown by CLIENT LIST while a slow reader keeps this thread blocked in the write
+            info.recordOutputBuffer(pending);
+            replies.writeTo(out);
+            info.recordWrite(pending);
+            info.recordOutputBuffer(0);
+        }
 
-            List<String> args = (List<String>) parsed.get(0);
-            if (args.isEmpty()) {
-                return RESPHandler.formatResponse(new Error("Empty command"));
+        private void writeQuietly(ReplyBuffer response) {
+            try {
+                response.writeTo(clientSocket.getOutputStream());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error writing to client", e);
             }
+        }
+    }
 
-            String cmd = args.get(0).toUpperCase();
+    /**
+     * A connection as {@code CLIENT LIST} shows it. Its counters are updated by the
+     * connection's own thread as it reads, executes and writes, without locking, and read
+     * by whichever connection lists the clients, which may see them slightly behind.
+     */
+    static class ClientInfo {
+        private final long id;
+        private final SocketAddress address;
+        private final long createdMillis = System.currentTimeMillis();
+        private volatile String name;
+        private final Map<String, String> info = new ConcurrentHashMap<>();
+        private final CommandExecutor executor;
+        private volatile long lastInteractionMillis = createdMillis;
+        private volatile long netInput;
+        private final AtomicLong netOutput = new AtomicLong();
+        private volatile int queryBuffer;
+        private volatile int queryBufferSize;
+        private volatile int outputBuffer;
+        private volatile boolean noEvict;
+        // Updated for every command, so left plain rather than volatile
+        private CommandType lastCommand;
+        private long commands;
 
-            switch (cmd) {
-                case "GET":
-                    if (args.size() != 2) {
-                        return RESPHandler.formatResponse(new Error("wrong number of arguments for 'get' command"));
-                    }
-                    return RESPHandler.formatResponse(service.get(args.get(1)));
-                case "SET":
-                    if (args.size() != 3) {
-                        return RESPHandler.formatResponse(new Error("wrong number of arguments for 'set' command"));
-                    }
-                    service.set(args.get(1), args.get(2));
-                    return RESPHandler.formatResponse("OK");
-                case "DEL":
-                    if (args.size() != 2) {
-                        return RESPHandler.formatResponse(new Error("wrong number of arguments for 'del' command"));
-                    }
-                    boolean deleted = service.del(args.get(1));
-                    return RESPHandler.formatResponse(deleted ? 1L : 0L);
-                case "KEYS":
-                    if (args.size() != 2) {
-                        return RESPHandler.formatResponse(new Error("wrong number of arguments for 'keys' command"));
-                    }
-                    Set<String> keys = service.keys(args.get(1));
-                    return RESPHandler.formatResponse(keys.toArray(new String[0]));
-                case "INFO":
-                    return RESPHandler.formatResponse(getInfo());
-                case "PING":
-                    return RESPHandler.formatResponse("PONG");
-                case "QUIT":
-                    return RESPHandler.formatResponse("OK");
-                case "CLIENT":
-                    if (args.size() < 2) {
-                        return RESPHandler.formatResponse(new Error("Wrong number of arguments for CLIENT command"));
-                    }
-                    String subCommand = args.get(1).toUpperCase();
-                    switch (subCommand) {
-                        case "LIST":
-                            return RESPHandler.formatResponse(clientList());
-                        case "SETNAME":
-                            if (args.size() != 3) {
-                                return RESPHandler.formatResponse(new Error("Wrong number of arguments for CLIENT SETNAME"));
-                            }
-                            return RESPHandler.formatResponse(clientSetName(args.get(2)));
-                        case "SETINFO":
-                            if (args.size() != 4) {
-                                return RESPHandler.formatResponse(new Error("Wrong number of arguments for CLIENT SETINFO"));
-                            }
-                            return RESPHandler.formatResponse(clientSetInfo(args.get(2), args.get(3)));
-                        default:
-                            return RESPHandler.formatResponse(new Error("Unknown CLIENT subcommand"));
-                    }
-                default:
-                    return RESPHandler.formatResponse(new Error("unknown command '" + cmd + "'"));
-            }
+        /**
+         * @param executor creates the connection's executor, given this client
+         */
+        public ClientInfo(long id, SocketAddress address, String name, Function<ClientInfo, CommandExecutor> executor) {
+            this.id = id;
+            this.address = address;
+            this.name = name;
+            this.executor = executor.apply(this);
         }
 
-        private String getInfo() {
-            Map<String, String> info = new HashMap<>();
-            info.put("redis_version", VERSION);
-            info.put("uptime_in_seconds", String.valueOf((System.currentTimeMillis() - startTime) / 1000));
-            info.put("connected_clients", String.valueOf(connectedClients));
-            info.put("used_memory", String.valueOf(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
-            info.put("used_memory_human", formatMemory(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
-            info.put("total_system_memory", String.valueOf(Runtime.getRuntime().maxMemory()));
-            info.put("total_system_memory_human", formatMemory(Runtime.getRuntime().maxMemory()));
+        public long getId() {
+            return id;
+        }
 
-            StringBuilder sb = new StringBuilder();
-            for (Map.Entry<String, String> entry : info.entrySet()) {
-                sb.append(entry.getKey()).append(":").append(entry.getValue()).append("\r\n");
+        /**
+         * @return the address as ip:port, the form {@code CLIENT KILL} takes
+         */
+        public String getAddress() {
+            if (address instanceof InetSocketAddress inet && inet.getAddress() != null) {
+                return inet.getAddress().getHostAddress() + ":" + inet.getPort();
             }
-            return sb.toString();
+            return address.toString();
         }
 
-        private String formatMemory(long bytes) {
-            final long K = 1024;
-            final long M = K * K;
-            final long G = M * K;
-            if (bytes < K) return bytes + "B";
-            if (bytes < M) return String.format("%.2fK", (float)bytes / K);
-            if (bytes < G) return String.format("%.2fM", (float)bytes / M);
-            return String.format("%.2fG", (float)bytes / G);
+        public String getName() {
+            return name;
         }
 
-        private String clientList() {
-            return clients.values().stream()
-                    .map(ClientInfo::toString)
-                    .collect(Collectors.joining("\n"));
+        CommandExecutor getExecutor() {
+            return executor;
         }
 
-        private String clientSetName(String name) {
-            clientName = name;
-            clients.get(clientSocket.getRemoteSocketAddress()).setName(name);
-            return "OK";
+        public void setName(String name) {
+            this.name = name;
         }
 
-        private String clientSetInfo(String field, String value) {
-            ClientInfo clientInfo = clients.get(clientSocket.getRemoteSocketAddress());
-            if (clientInfo != null) {
-                clientInfo.setInfo(field, value);
-                return "OK";
-            }
-            return "ERR Client not found";
+        public void setInfo(String field, String value) {
+            info.put(field, value);
         }
-    }
 
-    private static class ClientInfo {
-        private final SocketAddress address;
-        private String name;
-        private final Map<String, String> info = new HashMap<>();
+        boolean isNoEvict() {
+            return noEvict;
+        }
 
-        public ClientInfo(SocketAddress address, String name) {
-            this.address = address;
-            this.name = name;
+        void setNoEvict(boolean noEvict) {
+            this.noEvict = noEvict;
         }
 
-        public void setName(String name) {
-            this.name = name;
+        long ageSeconds() {
+            return (System.currentTimeMillis() - createdMillis) / 1000;
         }
 
-        public void setInfo(String field, String value) {
-            info.put(field, value);
+        int queryBufferSize() {
+            return queryBufferSize;
+        }
+
+        int outputBuffer() {
+            return outputBuffer;
+        }
+
+        void recordRead(int bytes) {
+            netInput += bytes;
+            lastInteractionMillis = System.currentTimeMillis();
+            recordNetInput(bytes);
+        }
+
+        /**
+         * May be called by a subscriber's writer thread as well as the connection's own.
+         */
+        void recordWrite(long bytes) {
+            netOutput.addAndGet(bytes);
+            recordNetOutput(bytes);
+        }
+
+        /**
+         * Notes what the parser holds once it has run every complete command it was given.
+         */
+        void recordQueryBuffer(CommandParser parser) {
+            queryBuffer = parser.unconsumedBytes();
+            queryBufferSize = parser.capacity();
+        }
+
+        void recordOutputBuffer(int pending) {
+            outputBuffer = pending;
+        }
+
+        void recordCommand(CommandType command) {
+            lastCommand = command;
+            commands++;
+        }
+
+        /**
+         * @return the bytes held for the connection: its read buffer, its unwritten replies
+         * and its queued messages
+         */
+        long memory() {
+            return queryBufferSize + outputMemory();
+        }
+
+        /**
+         * @return the bytes of unwritten replies and queued messages
+         */
+        long outputMemory() {
+            PubSub.Subscriber subscriber = executor.subscriber();
+            return outputBuffer + (subscriber == null ? 0 : subscriber.queuedBytes());
+        }
+
+        /**
+         * Disconnects the client, from any thread.
+         */
+        void kill() {
+            executor.kill();
         }
 
         @Override
         public String toString() {
+            long now = System.currentTimeMillis();
+            PubSub.Subscriber subscriber = executor.subscriber();
+            Tracking.Client tracking = executor.tracking();
+            StringBuilder flags = new StringBuilder();
+            if (subscriber != null && subscriber.subscriptions() > 0) {
+                flags.append('P');
+            }
+            if (tracking != null) {
+                flags.append(tracking.isBroadcast() ? "tB" : "t");
+            }
+            if (noEvict) {
+                flags.append('e');
+            }
+            CommandType command = lastCommand;
             StringBuilder sb = new StringBuilder();
-            sb.append("id=").append(address.toString())
+            sb.append("id=").append(id)
+                    .append(" addr=").append(getAddress())
                     .append(" name=").append(name)
-                    .append(" addr=").append(address.toString())
-                    .append(" fd=0 age=0 idle=0 flags=N db=0 sub=0 psub=0 multi=-1 qbuf=0 qbuf-free=0 obl=0 oll=0 omem=0 events=r cmd=NULL");
+                    .append(" age=").append((now - createdMillis) / 1000)
+                    .append(" idle=").append((now - lastInteractionMillis) / 1000)
+                    .append(" flags=").append(flags.length() == 0 ? "N" : flags)
+                    .append(" db=0")
+                    .append(" sub=").append(subscriber == null ? 0 : subscriber.channelCount())
+                    .append(" psub=").append(subscriber == null ? 0 : subscriber.patternCount())
+                    .append(" multi=-1")
+                    .append(" qbuf=").append(queryBuffer)
+                    .append(" qbuf-free=").append(queryBufferSize - queryBuffer)
+                    .append(" rbs=").append(queryBufferSize)
+                    .append(" obl=").append(outputBuffer)
+                    .append(" omem=").append(subscriber == null ? 0 : subscriber.queuedBytes())
+                    .append(" tot-mem=").append(memory())
+                    .append(" cmd=").append(command == null ? "NULL" : command.name().toLowerCase())
+                    .append(" redir=").append(tracking == null ? -1 : tracking.redirectId())
+                    .append(" tot-net-in=").append(netInput)
+                    .append(" tot-net-out=").append(netOutput.get())
+                    .append(" tot-cmds=").append(commands);
 
             for (Map.Entry<String, String> entry : info.entrySet()) {
                 sb.append(" ").append(entry.getKey()).append("=").append(entry.getValue());
@@ -0,0 +1,166 @@
+package org.cy.redisclone;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A set: an {@link IntSet} while every member is an integer and there are at most
+ * {@value #MAX_INTSET_ENTRIES} of them, a listpack while small otherwise, then a hash set.
+ */
+final class RedisSet extends RedisObject {
+    private static final byte[] SADD = ascii("SADD");
+    static final int MAX_INTSET_ENTRIES = 512;
+    /**
+     * Map node and table slot, {@link ByteKey} and the member array header.
+     */
+    private static final int ENTRY_OVERHEAD = 72;
+
+    private IntSet intset = new IntSet();
+    private Listpack listpack;
+    private HashSet<ByteKey> table;
+    private long tableBytes;
+    private final long[] parsed = new long[1];
+
+    @Override
+    public Type type() {
+        return Type.SET;
+    }
+
+    @Override
+    public String encoding() {
+        return intset != null ? "intset" : listpack != null ? "listpack" : "hashtable";
+    }
+
+    @Override
+    public int size() {
+        return intset != null ? intset.count() : listpack != null ? listpack.count() : table.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        if (intset != null) {
+            return 32 + intset.memoryUsage();
+        }
+        return listpack != null ? 32 + listpack.memoryUsage() : 64 + table.size() * 4L + tableBytes;
+    }
+
+    boolean contains(byte[] member) {
+        if (intset != null) {
+            return IntSet.parse(member, parsed) && intset.contains(parsed[0]);
+        }
+        if (listpack != null) {
+            return listpack.find(member, 1) >= 0;
+        }
+        return table.contains(ByteKey.of(member));
+    }
+
+    /**
+     * @return false if the member was already there
+     */
+    boolean add(byte[] member) {
+        if (intset != null) {
+            if (IntSet.parse(member, parsed)) {
+                if (intset.count() < MAX_INTSET_ENTRIES || intset.contains(parsed[0])) {
+                    return intset.add(parsed[0]);
+                }
+            }
+            if (intset.count() < MAX_COMPACT_ENTRIES && fitsCompact(member)) {
+                toListpack();
+            } else {
+                toTable();
+            }
+        }
+        if (listpack != null) {
+            if (listpack.find(member, 1) >= 0) {
+                return false;
+            }
+            if (listpack.count() < MAX_COMPACT_ENTRIES && fitsCompact(member)) {
+                listpack.append(member);
+                return true;
+            }
+            toTable();
+        }
+        if (!table.add(ByteKey.of(member))) {
+            return false;
+        }
+        tableBytes += ENTRY_OVERHEAD + arraySize(member.length);
+        return true;
+    }
+
+    boolean remove(byte[] member) {
+        if (intset != null) {
+            return IntSet.parse(member, parsed) && intset.remove(parsed[0]);
+        }
+        if (listpack != null) {
+            int position = listpack.find(member, 1);
+            if (position < 0) {
+                return false;
+            }
+            listpack.delete(position, 1);
+            return true;
+        }
+        if (!table.remove(ByteKey.of(member))) {
+            return false;
+        }
+        tableBytes -= ENTRY_OVERHEAD + arraySize(member.length);
+        return true;
+    }
+
+    List<byte[]> members() {
+        List<byte[]> members = new ArrayList<>(size());
+        forEachElement(members::add);
+        return members;
+    }
+
+    @Override
+    void forEachElement(Consumer<byte[]> action) {
+        if (intset != null) {
+            for (int i = 0; i < intset.count(); i++) {
+                action.accept(IntSet.format(intset.get(i)));
+            }
+        } else if (listpack != null) {
+            for (int position = 0; position < listpack.end(); position = listpack.next(position)) {
+                action.accept(listpack.get(position));
+            }
+        } else {
+            for (ByteKey member : table) {
+                action.accept(member.toBytes());
+            }
+        }
+    }
+
+    @Override
+    byte[] rebuildCommand() {
+        return SADD;
+    }
+
+    @Override
+    int elementsPerEntry() {
+        return 1;
+    }
+
+    @Override
+    void readEntry(byte[][] elements) {
+        add(elements[0]);
+    }
+
+    private void toListpack() {
+        Listpack converted = new Listpack();
+        forEachElement(converted::append);
+        listpack = converted;
+        intset = null;
+    }
+
+    private void toTable() {
+        HashSet<ByteKey> converted = new HashSet<>();
+        forEachElement(member -> {
+            converted.add(ByteKey.of(member));
+            tableBytes += ENTRY_OVERHEAD + arraySize(member.length);
+        });
+        table = converted;
+        intset = null;
+        listpack = null;
+    }
+}
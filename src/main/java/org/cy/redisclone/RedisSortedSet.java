@@ -0,0 +1,427 @@
+package org.cy.redisclone;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * A sorted set, ordered by score and then by member bytes: a listpack of member and
+ * score pairs kept in order while small, then Redis' pairing of a skip list with a hash
+ * map from member to score. The skip list records how many nodes each link spans, so
+ * both a rank and a score are found in O(log n).
+ */
+final class RedisSortedSet extends RedisObject {
+    private static final byte[] ZADD = ascii("ZADD");
+    private static final int MAX_LEVEL = 32;
+    /**
+     * Skip list node with its arrays for an average of 1.33 levels, and the map entry.
+     */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private Listpack listpack = new Listpack();
+    private SkipList skipList;
+    private HashMap<ByteKey, Double> scores;
+    private long tableBytes;
+
+    /**
+     * A member with its score, as returned by range queries.
+     */
+    static final class Scored {
+        final byte[] member;
+        final double score;
+
+        Scored(byte[] member, double score) {
+            this.member = member;
+            this.score = score;
+        }
+    }
+
+    @Override
+    public Type type() {
+        return Type.ZSET;
+    }
+
+    @Override
+    public String encoding() {
+        return skipList == null ? "listpack" : "skiplist";
+    }
+
+    @Override
+    public int size() {
+        return skipList == null ? listpack.count() / 2 : skipList.length;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return skipList == null ? 32 + listpack.memoryUsage() : 96 + scores.size() * 4L + tableBytes;
+    }
+
+    /**
+     * @return the member's score, or null if it is not in the set
+     */
+    Double score(byte[] member) {
+        if (skipList != null) {
+            return scores.get(ByteKey.of(member));
+        }
+        int position = listpack.find(member, 2);
+        return position < 0 ? null : decodeScore(listpack.get(listpack.next(position)));
+    }
+
+    /**
+     * Adds a member or moves it to a new score.
+     *
+     * @return true if the member is new
+     */
+    boolean add(double score, byte[] member) {
+        if (skipList == null) {
+            if (fitsCompact(member) && (size() < MAX_COMPACT_ENTRIES || score(member) != null)) {
+                boolean added = removeCompact(member) == null;
+                insertCompact(score, member);
+                return added;
+            }
+            convert();
+        }
+        Double old = scores.put(ByteKey.of(member), score);
+        if (old != null) {
+            skipList.delete(old, member);
+            skipList.insert(score, member);
+            return false;
+        }
+        skipList.insert(score, member);
+        tableBytes += ENTRY_OVERHEAD + arraySize(member.length);
+        return true;
+    }
+
+    boolean remove(byte[] member) {
+        if (skipList == null) {
+            return removeCompact(member) != null;
+        }
+        Double old = scores.remove(ByteKey.of(member));
+        if (old == null) {
+            return false;
+        }
+        skipList.delete(old, member);
+        tableBytes -= ENTRY_OVERHEAD + arraySize(member.length);
+        return true;
+    }
+
+    /**
+     * @return the members ranked {@code start} to {@code stop} inclusive, with Redis'
+     * negative indexes counting from the highest
+     */
+    List<Scored> rangeByRank(long start, long stop) {
+        int size = size();
+        if (start < 0) {
+            start = Math.max(0, size + start);
+        }
+        if (stop < 0) {
+            stop = size + stop;
+        }
+        stop = Math.min(stop, size - 1);
+        List<Scored> result = new ArrayList<>();
+        if (start > stop) {
+            return result;
+        }
+        if (skipList != null) {
+            Node node = skipList.byRank(start + 1);
+            for (long i = start; i <= stop; i++, node = node.forward[0]) {
+                result.add(new Scored(node.member, node.score));
+            }
+            return result;
+        }
+        int position = listpack.position((int) start * 2);
+        for (long i = start; i <= stop; i++) {
+            int scorePosition = listpack.next(position);
+            result.add(new Scored(listpack.get(position), decodeScore(listpack.get(scorePosition))));
+            position = listpack.next(scorePosition);
+        }
+        return result;
+    }
+
+    /**
+     * @param count the most members to return, or negative for all
+     * @return the members with a score between {@code min} and {@code max} in order,
+     * skipping the first {@code offset}
+     */
+    List<Scored> rangeByScore(double min, boolean minExclusive, double max, boolean maxExclusive, long offset, long count) {
+        List<Scored> result = new ArrayList<>();
+        if (skipList != null) {
+            for (Node node = skipList.firstAtLeast(min, minExclusive); node != null && count != 0; node = node.forward[0]) {
+                if (!belowMax(node.score, max, maxExclusive)) {
+                    break;
+                }
+                if (offset > 0) {
+                    offset--;
+                    continue;
+                }
+                result.add(new Scored(node.member, node.score));
+                count--;
+            }
+            return result;
+        }
+        for (int position = 0; position < listpack.end() && count != 0; ) {
+            int scorePosition = listpack.next(position);
+            double score = decodeScore(listpack.get(scorePosition));
+            if (!belowMax(score, max, maxExclusive)) {
+                break;
+            }
+            if (aboveMin(score, min, minExclusive)) {
+                if (offset > 0) {
+                    offset--;
+                } else {
+                    result.add(new Scored(listpack.get(position), score));
+                    count--;
+                }
+            }
+            position = listpack.next(scorePosition);
+        }
+        return result;
+    }
+
+    @Override
+    void forEachElement(Consumer<byte[]> action) {
+        for (Scored scored : rangeByRank(0, -1)) {
+            action.accept(formatScore(scored.score));
+            action.accept(scored.member);
+        }
+    }
+
+    @Override
+    byte[] rebuildCommand() {
+        return ZADD;
+    }
+
+    @Override
+    int elementsPerEntry() {
+        return 2;
+    }
+
+    @Override
+    void readEntry(byte[][] elements) {
+        add(parseScore(elements[0]), elements[1]);
+    }
+
+    /**
+     * Formats a score as Redis replies with it: integers without a fraction, infinities
+     * as {@code inf} and {@code -inf}, and otherwise the shortest form that parses back
+     * to the same double.
+     */
+    static byte[] formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return ascii(score > 0 ? "inf" : "-inf");
+        }
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            return ascii(Long.toString((long) score));
+        }
+        return ascii(Double.toString(score));
+    }
+
+    /**
+     * @throws RedisException if the bytes are not a number
+     */
+    static double parseScore(byte[] value) {
+        String text = new String(value, StandardCharsets.US_ASCII);
+        if (text.equalsIgnoreCase("inf") || text.equalsIgnoreCase("+inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (text.equalsIgnoreCase("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            double score = Double.parseDouble(text);
+            if (!Double.isNaN(score) && !text.isEmpty() && !Character.isWhitespace(text.charAt(0))
+                    && !Character.isWhitespace(text.charAt(text.length() - 1))) {
+                return score;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new RedisException("ERR value is not a valid float");
+    }
+
+    static boolean aboveMin(double score, double min, boolean exclusive) {
+        return exclusive ? score > min : score >= min;
+    }
+
+    static boolean belowMax(double score, double max, boolean exclusive) {
+        return exclusive ? score < max : score <= max;
+    }
+
+    private Double removeCompact(byte[] member) {
+        int position = listpack.find(member, 2);
+        if (position < 0) {
+            return null;
+        }
+        double score = decodeScore(listpack.get(listpack.next(position)));
+        listpack.delete(position, 2);
+        return score;
+    }
+
+    private void insertCompact(double score, byte[] member) {
+        int position = 0;
+        while (position < listpack.end()) {
+            int scorePosition = listpack.next(position);
+            double current = decodeScore(listpack.get(scorePosition));
+            if (current > score || current == score && listpack.compareAt(position, member) > 0) {
+                break;
+            }
+            position = listpack.next(scorePosition);
+        }
+        listpack.insert(position, encodeScore(score));
+        listpack.insert(position, member);
+    }
+
+    private void convert() {
+        List<Scored> members = rangeByRank(0, -1);
+        skipList = new SkipList();
+        scores = new HashMap<>();
+        listpack = null;
+        for (Scored scored : members) {
+            scores.put(ByteKey.of(scored.member), scored.score);
+            skipList.insert(scored.score, scored.member);
+            tableBytes += ENTRY_OVERHEAD + arraySize(scored.member.length);
+        }
+    }
+
+    private static byte[] encodeScore(double score) {
+        return ByteBuffer.allocate(Double.BYTES).putDouble(score).array();
+    }
+
+    private static double decodeScore(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getDouble();
+    }
+
+    private static final class Node {
+        final byte[] member;
+        final double score;
+        final Node[] forward;
+        final long[] span;
+
+        Node(int level, double score, byte[] member) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new long[level];
+        }
+
+        boolean before(double otherScore, byte[] otherMember) {
+            return score < otherScore || score == otherScore && Arrays.compareUnsigned(member, otherMember) < 0;
+        }
+    }
+
+    /**
+     * Redis' zskiplist: each link also stores the number of level-0 nodes it skips.
+     */
+    private static final class SkipList {
+        private final Node header = new Node(MAX_LEVEL, 0, null);
+        private int level = 1;
+        private int length;
+
+        void insert(double score, byte[] member) {
+            Node[] update = new Node[MAX_LEVEL];
+            long[] rank = new long[MAX_LEVEL];
+            Node x = header;
+            for (int i = level - 1; i >= 0; i--) {
+                rank[i] = i == level - 1 ? 0 : rank[i + 1];
+                while (x.forward[i] != null && x.forward[i].before(score, member)) {
+                    rank[i] += x.span[i];
+                    x = x.forward[i];
+                }
+                update[i] = x;
+            }
+            int newLevel = randomLevel();
+            if (newLevel > level) {
+                for (int i = level; i < newLevel; i++) {
+                    rank[i] = 0;
+                    update[i] = header;
+                    header.span[i] = length;
+                }
+                level = newLevel;
+            }
+            x = new Node(newLevel, score, member);
+            for (int i = 0; i < newLevel; i++) {
+                x.forward[i] = update[i].forward[i];
+                update[i].forward[i] = x;
+                x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+                update[i].span[i] = rank[0] - rank[i] + 1;
+            }
+            for (int i = newLevel; i < level; i++) {
+                update[i].span[i]++;
+            }
+            length++;
+        }
+
+        void delete(double score, byte[] member) {
+            Node[] update = new Node[MAX_LEVEL];
+            Node x = header;
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.forward[i] != null && x.forward[i].before(score, member)) {
+                    x = x.forward[i];
+                }
+                update[i] = x;
+            }
+            x = x.forward[0];
+            if (x == null || x.score != score || !Arrays.equals(x.member, member)) {
+                return;
+            }
+            for (int i = 0; i < level; i++) {
+                if (update[i].forward[i] == x) {
+                    update[i].span[i] += x.span[i] - 1;
+                    update[i].forward[i] = x.forward[i];
+                } else {
+                    update[i].span[i]--;
+                }
+            }
+            while (level > 1 && header.forward[level - 1] == null) {
+                level--;
+            }
+            length--;
+        }
+
+        /**
+         * @param rank 1-based
+         */
+        Node byRank(long rank) {
+            long traversed = 0;
+            Node x = header;
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.forward[i] != null && traversed + x.span[i] <= rank) {
+                    traversed += x.span[i];
+                    x = x.forward[i];
+                }
+                if (traversed == rank) {
+                    return x;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the first node with a score not below {@code min}, or null
+         */
+        Node firstAtLeast(double min, boolean exclusive) {
+            Node x = header;
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.forward[i] != null && !aboveMin(x.forward[i].score, min, exclusive)) {
+                    x = x.forward[i];
+                }
+            }
+            return x.forward[0];
+        }
+
+        private static int randomLevel() {
+            int level = 1;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            // Each level is kept with a probability of 1/4, as in Redis
+            while (level < MAX_LEVEL && (random.nextInt() & 3) == 0) {
+                level++;
+            }
+            return level;
+        }
+    }
+}
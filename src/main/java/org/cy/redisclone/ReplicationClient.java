@@ -0,0 +1,170 @@
+package org.cy.redisclone;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The follower side of replication, started by {@code REPLICAOF host port}.
+ * <p>
+ * A background thread connects to the leader, asks for the stream with
+ * {@code PSYNC <replid> <offset>} and applies what it receives through the regular command
+ * path. The offset counts the bytes of every command applied from the stream, snapshot
+ * records excepted, so after a dropped link the thread reconnects and resumes from where
+ * it stopped; only when the leader no longer has those bytes does it start over with a
+ * full sync, which empties the keyspace first.
+ */
+public class ReplicationClient {
+    private static final Logger LOGGER = Logger.getLogger(ReplicationClient.class.getName());
+    private static final long RECONNECT_DELAY_MILLIS = 500;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_REPLY_LINE = 1024;
+
+    private final RedisLikeService service;
+    private final String host;
+    private final int port;
+    private final Thread thread;
+    private volatile boolean stopped;
+    private volatile boolean linkUp;
+    private volatile Socket socket;
+    private volatile String replid = "?";
+    private volatile long offset = -1;
+
+    ReplicationClient(RedisLikeService service, String host, int port) {
+        this.service = service;
+        this.host = host;
+        this.port = port;
+        this.thread = new Thread(this::run, "redis-replication");
+        thread.setDaemon(true);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isLinkUp() {
+        return linkUp;
+    }
+
+    /**
+     * @return the replication offset applied so far, -1 before the first sync
+     */
+    public long offset() {
+        return offset;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        dropLink();
+        thread.interrupt();
+    }
+
+    /**
+     * Closes the connection to the leader; the thread reconnects and resumes by offset.
+     */
+    void dropLink() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing replication link", e);
+            }
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                if (stopped) {
+                    return;
+                }
+                s.setTcpNoDelay(true);
+                sync(s);
+            } catch (IOException | IllegalStateException e) {
+                if (!stopped) {
+                    LOGGER.log(Level.INFO, "Replication link to " + host + ":" + port + " lost: " + e.getMessage());
+                }
+            } finally {
+                linkUp = false;
+                socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void sync(Socket s) throws IOException {
+        OutputStream out = s.getOutputStream();
+        ReplyBuffer request = new ReplyBuffer();
+        RESPHandler.writeArrayHeader(request, 3);
+        RESPHandler.writeBulk(request, "PSYNC");
+        RESPHandler.writeBulk(request, replid);
+        RESPHandler.writeBulk(request, Long.toString(offset));
+        request.writeTo(out);
+
+        InputStream in = new BufferedInputStream(s.getInputStream(), READ_BUFFER_SIZE);
+        String reply = readLine(in);
+        if (reply.startsWith("+FULLRESYNC ")) {
+            String[] parts = reply.split(" ");
+            service.clearKeyspace();
+            replid = parts[1];
+            offset = Long.parseLong(parts[2]);
+            LOGGER.info("Full sync with " + host + ":" + port + " from offset " + offset);
+        } else if (reply.startsWith("+CONTINUE")) {
+            LOGGER.info("Partial resync with " + host + ":" + port + " from offset " + offset);
+        } else {
+            throw new IOException("Unexpected PSYNC reply: " + reply);
+        }
+        linkUp = true;
+
+        CommandParser parser = new CommandParser(READ_BUFFER_SIZE);
+        CommandExecutor executor = new CommandExecutor(service, new ConcurrentHashMap<>(),
+                new InetSocketAddress(host, port), true);
+        ReplyBuffer replies = new ReplyBuffer();
+        while (parser.readFrom(in) != -1) {
+            CommandArgs command;
+            while ((command = parser.next()) != null) {
+                boolean snapshot = CommandType.lookup(command) == CommandType.SNAPSHOTSET;
+                executor.executeCommand(command, replies);
+                if (!snapshot) {
+                    offset += parser.lastCommandLength();
+                }
+            }
+            // The leader does not read replies
+            replies.writeTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1 || line.length() > MAX_REPLY_LINE) {
+                throw new IOException("Replication link closed during PSYNC");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,366 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The leader side of replication: the stream of changes sent to followers and the
+ * backlog that lets a follower resume from its offset after a dropped link.
+ * <p>
+ * Every change logged by the service is encoded once and copied into a circular
+ * in-memory backlog and into the output buffer of each connected follower. Nothing here
+ * writes to a socket: each follower has a sender thread that drains its buffer, so a
+ * slow follower only grows its own buffer, and is dropped once that passes
+ * {@value #REPLICA_OUTPUT_LIMIT} bytes, instead of slowing down writes on the leader.
+ * <p>
+ * A follower connects with {@code PSYNC <replid> <offset>}. If it last followed this
+ * leader and the backlog still holds everything after its offset it gets
+ * {@code +CONTINUE} and the missing bytes. Otherwise it gets
+ * {@code +FULLRESYNC <replid> <offset>}: the live stream starts from the current offset
+ * while a snapshot thread walks the keyspace and slips one {@code SNAPSHOTSET} record per
+ * key into the same buffer. Each record is taken under the key's write lock, so it lands
+ * after every earlier change to that key and before every later one, which makes the
+ * walk need no point-in-time copy of the keyspace. Snapshot records do not count
+ * towards the replication offset.
+ * <p>
+ * Nothing is kept until the first follower connects.
+ */
+public class ReplicationSource {
+    private static final Logger LOGGER = Logger.getLogger(ReplicationSource.class.getName());
+    static final int DEFAULT_BACKLOG_SIZE = 1024 * 1024;
+    private static final int REPLICA_OUTPUT_LIMIT = 256 * 1024 * 1024;
+    private static final int SNAPSHOT_HIGH_WATER_MARK = 4 * 1024 * 1024;
+    private static final int SNAPSHOT_BATCH = 1024;
+    static final byte[] SNAPSHOTSET = ascii("SNAPSHOTSET");
+    private static final byte[] OBJECT = ascii("OBJECT");
+
+    private final String replid = randomReplid();
+    private final Object activation = new Object();
+    private final List<ReplicaLink> replicas = new ArrayList<>();
+    private final ReplyBuffer scratch = new ReplyBuffer();
+    private final OutputStream fanOut = new OutputStream() {
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            appendToBacklog(bytes, offset, length);
+            for (ReplicaLink replica : replicas) {
+                replica.enqueue(bytes, offset, length);
+            }
+        }
+    };
+    private volatile boolean active;
+    private int backlogSize = DEFAULT_BACKLOG_SIZE;
+    private byte[] backlog;
+    private long offset;
+    private long backlogStart;
+    private long fullSyncs;
+    private long partialSyncs;
+    private long partialSyncErrors;
+
+    public String replid() {
+        return replid;
+    }
+
+    public synchronized long offset() {
+        return offset;
+    }
+
+    public synchronized int connectedReplicas() {
+        return replicas.size();
+    }
+
+    public synchronized int getBacklogSize() {
+        return backlogSize;
+    }
+
+    /**
+     * Takes effect when the backlog is created, on the first follower connection.
+     */
+    public synchronized void setBacklogSize(int backlogSize) {
+        this.backlogSize = backlogSize;
+    }
+
+    public synchronized long fullSyncs() {
+        return fullSyncs;
+    }
+
+    public synchronized long partialSyncs() {
+        return partialSyncs;
+    }
+
+    public synchronized long partialSyncErrors() {
+        return partialSyncErrors;
+    }
+
+    /**
+     * Adds one change to the stream; called under the key's write lock.
+     */
+    void feed(byte[]... args) {
+        if (!active) {
+            return;
+        }
+        synchronized (this) {
+            RESPHandler.writeArrayHeader(scratch, args.length);
+            for (byte[] arg : args) {
+                RESPHandler.writeBulk(scratch, arg);
+            }
+            try {
+                scratch.writeTo(fanOut);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Handles {@code PSYNC}: queues the sync reply and whatever the follower is missing
+     * on a new link, which the connection then hands its socket to with
+     * {@link ReplicaLink#serve(OutputStream)}.
+     *
+     * @param service the service whose changes this stream carries
+     * @param requestedReplid the leader the follower last followed, or {@code ?}
+     * @param requestedOffset the offset it reached, or -1
+     */
+    ReplicaLink attach(RedisLikeService service, String requestedReplid, long requestedOffset) {
+        activate(service);
+        ReplicaLink link = new ReplicaLink();
+        synchronized (this) {
+            if (replid.equals(requestedReplid) && requestedOffset >= backlogStart && requestedOffset <= offset) {
+                partialSyncs++;
+                link.enqueue(ascii("+CONTINUE " + replid + "\r\n"));
+                copyBacklog(requestedOffset, link);
+                replicas.add(link);
+                LOGGER.info("Partial resync of replica from offset " + requestedOffset);
+                return link;
+            }
+            if (!"?".equals(requestedReplid)) {
+                partialSyncErrors++;
+            }
+            fullSyncs++;
+            link.enqueue(ascii("+FULLRESYNC " + replid + " " + offset + "\r\n"));
+            replicas.add(link);
+            LOGGER.info("Full resync of replica from offset " + offset);
+        }
+        Thread snapshot = new Thread(() -> sendSnapshot(service, link), "redis-replica-snapshot");
+        snapshot.setDaemon(true);
+        snapshot.start();
+        return link;
+    }
+
+    /**
+     * Starts keeping the stream. Writes that checked {@link #active} before it was set may
+     * still be running; waiting for every write lock once lets them finish, so that from
+     * here on every change is either in the stream or visible to a snapshot.
+     */
+    private void activate(RedisLikeService service) {
+        // Not this monitor: writers take it while holding their write lock
+        synchronized (activation) {
+            if (active) {
+                return;
+            }
+            synchronized (this) {
+                backlog = new byte[backlogSize];
+                backlogStart = offset;
+                active = true;
+            }
+            service.awaitWriters();
+        }
+    }
+
+    private void sendSnapshot(RedisLikeService service, ReplicaLink link) {
+        StorageEngine engine = service.getStorageEngine();
+        List<byte[]> batch = new ArrayList<>(SNAPSHOT_BATCH);
+        ReplyBuffer record = new ReplyBuffer();
+        StorageEngine.KeyWalk walk = engine.walk();
+        boolean more;
+        long keys = 0;
+        try {
+            do {
+                batch.clear();
+                more = walk.next(SNAPSHOT_BATCH, batch::add);
+                for (byte[] key : batch) {
+                    if (!link.awaitBelow(SNAPSHOT_HIGH_WATER_MARK)) {
+                        return;
+                    }
+                    ByteKey byteKey = ByteKey.of(key);
+                    service.underWriteLock(byteKey, () -> {
+                        Object value = engine.getObject(byteKey);
+                        long expireAt = engine.getExpireAt(byteKey);
+                        if (value == null || expireAt == StorageEngine.MISSING) {
+                            return;
+                        }
+                        boolean object = value instanceof RedisObject;
+                        RESPHandler.writeArrayHeader(record, object ? 5 : 4);
+                        RESPHandler.writeBulk(record, SNAPSHOTSET);
+                        RESPHandler.writeBulk(record, key);
+                        RESPHandler.writeBulk(record, object ? ((RedisObject) value).serialize() : (byte[]) value);
+                        RESPHandler.writeBulk(record, ascii(Long.toString(expireAt)));
+                        if (object) {
+                            RESPHandler.writeBulk(record, OBJECT);
+                        }
+                        synchronized (this) {
+                            try {
+                                record.writeTo(link.enqueuer);
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    });
+                    keys++;
+                }
+            } while (more);
+            LOGGER.info("Snapshot of " + keys + " keys queued for replica");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Snapshot for replica failed", e);
+            link.close();
+        }
+    }
+
+    private void appendToBacklog(byte[] bytes, int from, int length) {
+        int capacity = backlog.length;
+        if (length >= capacity) {
+            from += length - capacity;
+            offset += length - capacity;
+            length = capacity;
+        }
+        int position = (int) (offset % capacity);
+        int first = Math.min(length, capacity - position);
+        System.arraycopy(bytes, from, backlog, position, first);
+        System.arraycopy(bytes, from + first, backlog, 0, length - first);
+        offset += length;
+        backlogStart = Math.max(backlogStart, offset - capacity);
+    }
+
+    private void copyBacklog(long from, ReplicaLink link) {
+        int capacity = backlog.length;
+        int position = (int) (from % capacity);
+        int length = (int) (offset - from);
+        int first = Math.min(length, capacity - position);
+        link.enqueue(backlog, position, first);
+        link.enqueue(backlog, 0, length - first);
+    }
+
+    private static String randomReplid() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder sb = new StringBuilder(40);
+        for (int i = 0; i < 40; i++) {
+            sb.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * One follower's output: bytes queued by the leader under its monitor and written
+     * to the follower's socket by the thread running {@link #serve(OutputStream)}.
+     */
+    class ReplicaLink {
+        private ReplyBuffer output = new ReplyBuffer();
+        private ReplyBuffer spare = new ReplyBuffer();
+        private boolean closed;
+        private final OutputStream enqueuer = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                enqueue(bytes, offset, length);
+            }
+        };
+
+        private void enqueue(byte[] bytes) {
+            enqueue(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Called with the source's monitor held.
+         */
+        private void enqueue(byte[] bytes, int offset, int length) {
+            if (closed || length == 0) {
+                return;
+            }
+            if (output.pending() + length > REPLICA_OUTPUT_LIMIT) {
+                LOGGER.warning("Replica output buffer over " + REPLICA_OUTPUT_LIMIT + " bytes, dropping the replica");
+                close();
+                return;
+            }
+            boolean wasEmpty = output.isEmpty();
+            output.write(bytes, offset, length);
+            if (wasEmpty) {
+                ReplicationSource.this.notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the snapshot may queue more without crowding out the live stream.
+         *
+         * @return false once the link is closed
+         */
+        private boolean awaitBelow(int pending) {
+            synchronized (ReplicationSource.this) {
+                while (!closed && output.pending() >= pending) {
+                    try {
+                        ReplicationSource.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return !closed;
+            }
+        }
+
+        void close() {
+            synchronized (ReplicationSource.this) {
+                closed = true;
+                replicas.remove(this);
+                ReplicationSource.this.notifyAll();
+            }
+        }
+
+        /**
+         * Writes the follower's stream to its socket until the link fails or is dropped.
+         */
+        void serve(OutputStream out) throws IOException {
+            try {
+                while (true) {
+                    ReplyBuffer batch;
+                    synchronized (ReplicationSource.this) {
+                        while (output.isEmpty() && !closed) {
+                            ReplicationSource.this.wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        batch = output;
+                        output = spare;
+                        spare = batch;
+                        // Wakes a snapshot waiting for room
+                        ReplicationSource.this.notifyAll();
+                    }
+                    batch.writeTo(out);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Per-connection output buffer that collects the replies of every command parsed from
+ * one read, so that a pipelined batch goes out in a single write instead of one small
+ * write per command.
+ * <p>
+ * Callers flush early once {@link #isAboveHighWaterMark()} reports true, which bounds
+ * the memory a deep pipeline can pin. A buffer that grew for an unusually large reply
+ * is released again after it has been written out.
+ */
+public class ReplyBuffer {
+    static final int HIGH_WATER_MARK = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 4 * HIGH_WATER_MARK;
+
+    private byte[] data = new byte[INITIAL_CAPACITY];
+    private int size = 0;
+    private int flushed = 0;
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+    }
+
+    /**
+     * Decompresses a value straight into the buffer, without an intermediate copy.
+     */
+    public void write(CompressedValue value) {
+        ensureCapacity(value.length());
+        value.decompressInto(data, size);
+        size += value.length();
+    }
+
+    public void write(byte b) {
+        ensureCapacity(1);
+        data[size++] = b;
+    }
+
+    /**
+     * Writes the decimal ASCII digits of a number without going through a String.
+     */
+    public void writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            write("-9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            data[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * @return the current position, for a later {@link #insert}; valid until the next flush
+     */
+    public int mark() {
+        return size - flushed;
+    }
+
+    /**
+     * Inserts bytes at a marked position, shifting everything written since.
+     */
+    public void insert(int mark, byte[] bytes) {
+        ensureCapacity(bytes.length);
+        int position = flushed + mark;
+        System.arraycopy(data, position, data, position + bytes.length, size - position);
+        System.arraycopy(bytes, 0, data, position, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * @return the message of the error reply written at a marked position, or null if the
+     * reply there is not an error
+     */
+    public String errorAt(int mark) {
+        int position = flushed + mark;
+        if (position >= size || data[position] != '-') {
+            return null;
+        }
+        int end = position + 1;
+        while (end < size && data[end] != '\r') {
+            end++;
+        }
+        return new String(data, position + 1, end - position - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of bytes written but not yet flushed
+     */
+    public int pending() {
+        return size - flushed;
+    }
+
+    /**
+     * @return a copy of the pending bytes, which are then discarded
+     */
+    public byte[] take() {
+        byte[] bytes = Arrays.copyOfRange(data, flushed, size);
+        reset();
+        return bytes;
+    }
+
+    public boolean isEmpty() {
+        return size == flushed;
+    }
+
+    public boolean isAboveHighWaterMark() {
+        return pending() >= HIGH_WATER_MARK;
+    }
+
+    /**
+     * Writes all pending bytes to a blocking stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (isEmpty()) {
+            return;
+        }
+        out.write(data, flushed, size - flushed);
+        reset();
+    }
+
+    /**
+     * Writes as many pending bytes as a non-blocking channel accepts.
+     *
+     * @return true if everything was written
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (!isEmpty()) {
+            flushed += channel.write(ByteBuffer.wrap(data, flushed, size - flushed));
+        }
+        if (isEmpty()) {
+            reset();
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        size = 0;
+        flushed = 0;
+        if (data.length > MAX_RETAINED_CAPACITY) {
+            data = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional <= data.length) {
+            return;
+        }
+        if (flushed > 0) {
+            System.arraycopy(data, flushed, data, 0, size - flushed);
+            size -= flushed;
+            flushed = 0;
+            if (size + additional <= data.length) {
+                return;
+            }
+        }
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + additional));
+    }
+}
@@ -0,0 +1,450 @@
+package org.cy.redisclone;
+
+/**
+ * Startup settings for {@link RedisServer}.
+ * <p>
+ * Options are read from the command line as {@code --name value} pairs, mirroring
+ * the names used by Redis' own configuration where one exists.
+ */
+public class ServerConfig {
+    private int port = 6379;
+    private ServerMode mode = ServerMode.THREAD;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int maxClients = 10000;
+    private String storageEngine = "heap";
+    private long maxMemory;
+    private EvictionPolicy maxMemoryPolicy = EvictionPolicy.NOEVICTION;
+    private int maxMemorySamples = 5;
+    private boolean appendOnly;
+    private String appendFilename = "appendonly.aof";
+    private AppendOnlyFile.Fsync appendFsync = AppendOnlyFile.Fsync.EVERYSEC;
+    private int shards = 1;
+    private boolean shardExecutors;
+    private String dbFilename = "dump.snap";
+    private String replicaOfHost;
+    private int replicaOfPort;
+    private int replBacklogSize = ReplicationSource.DEFAULT_BACKLOG_SIZE;
+    private long pubsubHardLimit = PubSub.DEFAULT_HARD_LIMIT;
+    private long pubsubSoftLimit = PubSub.DEFAULT_SOFT_LIMIT;
+    private int pubsubSoftLimitSeconds = PubSub.DEFAULT_SOFT_LIMIT_SECONDS;
+    private int trackingTableMaxKeys = Tracking.DEFAULT_MAX_KEYS;
+    private long maxMemoryClients;
+    private long slowlogLogSlowerThan = SlowLog.DEFAULT_SLOWER_THAN_MICROS;
+    private int slowlogMaxLen = SlowLog.DEFAULT_MAX_LEN;
+    private int compressionThreshold;
+    private boolean clusterEnabled;
+    private String clusterAnnounceIp = "127.0.0.1";
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for option: " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port":
+                    config.setPort(Integer.parseInt(value));
+                    break;
+                case "--server-mode":
+                    config.setMode(ServerMode.fromString(value));
+                    break;
+                case "--io-threads":
+                    config.setIoThreads(Integer.parseInt(value));
+                    break;
+                case "--maxclients":
+                    config.setMaxClients(Integer.parseInt(value));
+                    break;
+                case "--storage-engine":
+                    config.setStorageEngine(value);
+                    break;
+                case "--shards":
+                    config.setShards(Integer.parseInt(value));
+                    break;
+                case "--shard-executors":
+                    config.setShardExecutors(parseYesNo(value));
+                    break;
+                case "--maxmemory":
+                    config.setMaxMemory(parseMemory(value));
+                    break;
+                case "--maxmemory-policy":
+                    config.setMaxMemoryPolicy(EvictionPolicy.fromString(value));
+                    break;
+                case "--maxmemory-samples":
+                    config.setMaxMemorySamples(Integer.parseInt(value));
+                    break;
+                case "--appendonly":
+                    config.setAppendOnly(parseYesNo(value));
+                    break;
+                case "--appendfilename":
+                    config.setAppendFilename(value);
+                    break;
+                case "--appendfsync":
+                    config.setAppendFsync(AppendOnlyFile.Fsync.fromString(value));
+                    break;
+                case "--dbfilename":
+                    config.setDbFilename(value);
+                    break;
+                case "--replicaof":
+                    int colon = value.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Expected host:port, got: " + value);
+                    }
+                    config.setReplicaOf(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+                    break;
+                case "--repl-backlog-size":
+                    config.setReplBacklogSize((int) parseMemory(value));
+                    break;
+                case "--client-output-buffer-limit-pubsub":
+                    String[] limits = value.trim().split("\\s+");
+                    if (limits.length != 3) {
+                        throw new IllegalArgumentException("Expected '<hard> <soft> <soft seconds>', got: " + value);
+                    }
+                    config.setPubsubOutputBufferLimit(parseMemory(limits[0]), parseMemory(limits[1]), Integer.parseInt(limits[2]));
+                    break;
+                case "--tracking-table-max-keys":
+                    config.setTrackingTableMaxKeys(Integer.parseInt(value));
+                    break;
+                case "--maxmemory-clients":
+                    config.setMaxMemoryClients(parseMemory(value));
+                    break;
+                case "--slowlog-log-slower-than":
+                    config.setSlowlogLogSlowerThan(Long.parseLong(value));
+                    break;
+                case "--slowlog-max-len":
+                    config.setSlowlogMaxLen(Integer.parseInt(value));
+                    break;
+                case "--compression-threshold":
+                    config.setCompressionThreshold(Math.toIntExact(parseMemory(value)));
+                    break;
+                case "--cluster-enabled":
+                    config.setClusterEnabled(parseYesNo(value));
+                    break;
+                case "--cluster-announce-ip":
+                    config.setClusterAnnounceIp(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(ServerMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ServerConfig setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1");
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    public ServerConfig setMaxClients(int maxClients) {
+        if (maxClients < 1) {
+            throw new IllegalArgumentException("maxclients must be at least 1");
+        }
+        this.maxClients = maxClients;
+        return this;
+    }
+
+    public String getStorageEngine() {
+        return storageEngine;
+    }
+
+    public ServerConfig setStorageEngine(String storageEngine) {
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public ServerConfig setMaxMemory(long maxMemory) {
+        if (maxMemory < 0) {
+            throw new IllegalArgumentException("maxmemory must not be negative");
+        }
+        this.maxMemory = maxMemory;
+        return this;
+    }
+
+    public EvictionPolicy getMaxMemoryPolicy() {
+        return maxMemoryPolicy;
+    }
+
+    public ServerConfig setMaxMemoryPolicy(EvictionPolicy maxMemoryPolicy) {
+        this.maxMemoryPolicy = maxMemoryPolicy;
+        return this;
+    }
+
+    public int getMaxMemorySamples() {
+        return maxMemorySamples;
+    }
+
+    public ServerConfig setMaxMemorySamples(int maxMemorySamples) {
+        if (maxMemorySamples < 1) {
+            throw new IllegalArgumentException("maxmemory-samples must be at least 1");
+        }
+        this.maxMemorySamples = maxMemorySamples;
+        return this;
+    }
+
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    public ServerConfig setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+        return this;
+    }
+
+    public String getAppendFilename() {
+        return appendFilename;
+    }
+
+    public ServerConfig setAppendFilename(String appendFilename) {
+        this.appendFilename = appendFilename;
+        return this;
+    }
+
+    public AppendOnlyFile.Fsync getAppendFsync() {
+        return appendFsync;
+    }
+
+    public ServerConfig setAppendFsync(AppendOnlyFile.Fsync appendFsync) {
+        this.appendFsync = appendFsync;
+        return this;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public ServerConfig setShards(int shards) {
+        if (shards < 1 || shards > HashSlot.SLOTS || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("shards must be a power of two between 1 and " + HashSlot.SLOTS);
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    public boolean isShardExecutors() {
+        return shardExecutors;
+    }
+
+    public ServerConfig setShardExecutors(boolean shardExecutors) {
+        this.shardExecutors = shardExecutors;
+        return this;
+    }
+
+    public String getDbFilename() {
+        return dbFilename;
+    }
+
+    public ServerConfig setDbFilename(String dbFilename) {
+        this.dbFilename = dbFilename;
+        return this;
+    }
+
+    public String getReplicaOfHost() {
+        return replicaOfHost;
+    }
+
+    public int getReplicaOfPort() {
+        return replicaOfPort;
+    }
+
+    /**
+     * @param host the leader to follow at startup, or null to start as a leader
+     */
+    public ServerConfig setReplicaOf(String host, int port) {
+        this.replicaOfHost = host;
+        this.replicaOfPort = port;
+        return this;
+    }
+
+    public int getReplBacklogSize() {
+        return replBacklogSize;
+    }
+
+    public ServerConfig setReplBacklogSize(int replBacklogSize) {
+        if (replBacklogSize < 1) {
+            throw new IllegalArgumentException("repl-backlog-size must be at least 1");
+        }
+        this.replBacklogSize = replBacklogSize;
+        return this;
+    }
+
+    public long getPubsubHardLimit() {
+        return pubsubHardLimit;
+    }
+
+    public long getPubsubSoftLimit() {
+        return pubsubSoftLimit;
+    }
+
+    public int getPubsubSoftLimitSeconds() {
+        return pubsubSoftLimitSeconds;
+    }
+
+    /**
+     * Redis' {@code client-output-buffer-limit pubsub}: a subscriber is disconnected once
+     * its pending output passes {@code hard} bytes, or stays above {@code soft} bytes for
+     * longer than {@code softSeconds}. A limit of 0 disables it.
+     */
+    public ServerConfig setPubsubOutputBufferLimit(long hard, long soft, int softSeconds) {
+        if (hard < 0 || soft < 0 || softSeconds < 0) {
+            throw new IllegalArgumentException("client-output-buffer-limit values must not be negative");
+        }
+        this.pubsubHardLimit = hard;
+        this.pubsubSoftLimit = soft;
+        this.pubsubSoftLimitSeconds = softSeconds;
+        return this;
+    }
+
+    public int getTrackingTableMaxKeys() {
+        return trackingTableMaxKeys;
+    }
+
+    /**
+     * @param trackingTableMaxKeys the most keys remembered for {@code CLIENT TRACKING}, 0
+     *                             for no limit
+     */
+    public ServerConfig setTrackingTableMaxKeys(int trackingTableMaxKeys) {
+        if (trackingTableMaxKeys < 0) {
+            throw new IllegalArgumentException("tracking-table-max-keys must not be negative");
+        }
+        this.trackingTableMaxKeys = trackingTableMaxKeys;
+        return this;
+    }
+
+    public long getMaxMemoryClients() {
+        return maxMemoryClients;
+    }
+
+    /**
+     * @param maxMemoryClients the bytes all connections together may hold in buffers before
+     *                         the largest are disconnected, 0 for no limit
+     */
+    public ServerConfig setMaxMemoryClients(long maxMemoryClients) {
+        if (maxMemoryClients < 0) {
+            throw new IllegalArgumentException("maxmemory-clients must not be negative");
+        }
+        this.maxMemoryClients = maxMemoryClients;
+        return this;
+    }
+
+    public long getSlowlogLogSlowerThan() {
+        return slowlogLogSlowerThan;
+    }
+
+    /**
+     * @param micros how long a command must run to enter the slow log; 0 logs every
+     *               command, and a negative value none
+     */
+    public ServerConfig setSlowlogLogSlowerThan(long micros) {
+        this.slowlogLogSlowerThan = micros;
+        return this;
+    }
+
+    public int getSlowlogMaxLen() {
+        return slowlogMaxLen;
+    }
+
+    public ServerConfig setSlowlogMaxLen(int slowlogMaxLen) {
+        if (slowlogMaxLen < 0) {
+            throw new IllegalArgumentException("slowlog-max-len must not be negative");
+        }
+        this.slowlogMaxLen = slowlogMaxLen;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold the length from which string values are stored
+     *                             compressed by the heap engine, 0 for never
+     */
+    public ServerConfig setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compression-threshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public boolean isClusterEnabled() {
+        return clusterEnabled;
+    }
+
+    public ServerConfig setClusterEnabled(boolean clusterEnabled) {
+        this.clusterEnabled = clusterEnabled;
+        return this;
+    }
+
+    public String getClusterAnnounceIp() {
+        return clusterAnnounceIp;
+    }
+
+    /**
+     * @param clusterAnnounceIp the address other nodes and redirected clients use to
+     *                          reach this one
+     */
+    public ServerConfig setClusterAnnounceIp(String clusterAnnounceIp) {
+        this.clusterAnnounceIp = clusterAnnounceIp;
+        return this;
+    }
+
+    static boolean parseYesNo(String value) {
+        switch (value.trim().toLowerCase()) {
+            case "yes":
+                return true;
+            case "no":
+                return false;
+            default:
+                throw new IllegalArgumentException("Expected yes or no, got: " + value);
+        }
+    }
+
+    /**
+     * Parses a byte count with an optional Redis-style unit: {@code 100mb}, {@code 1gb}, {@code 512k}.
+     */
+    static long parseMemory(String value) {
+        String lower = value.trim().toLowerCase();
+        String[] units = {"gb", "mb", "kb", "g", "m", "k", "b"};
+        long[] multipliers = {1L << 30, 1L << 20, 1L << 10, 1_000_000_000L, 1_000_000L, 1_000L, 1};
+        for (int i = 0; i < units.length; i++) {
+            if (lower.endsWith(units[i])) {
+                return Long.parseLong(lower.substring(0, lower.length() - units[i].length())) * multipliers[i];
+            }
+        }
+        return Long.parseLong(lower);
+    }
+}
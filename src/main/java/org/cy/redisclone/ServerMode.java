@@ -0,0 +1,25 @@
+package org.cy.redisclone;
+
+/**
+ * Connection handling strategy used by {@link RedisServer}.
+ */
+public enum ServerMode {
+    /**
+     * One platform thread per connection doing blocking socket I/O.
+     */
+    THREAD,
+
+    /**
+     * One virtual thread per connection doing blocking socket I/O.
+     */
+    VIRTUAL,
+
+    /**
+     * Non-blocking I/O multiplexed over a fixed number of selector event loops.
+     */
+    NIO;
+
+    public static ServerMode fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
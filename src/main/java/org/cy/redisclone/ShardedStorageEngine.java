@@ -0,0 +1,297 @@
+package org.cy.redisclone;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Partitions the keyspace over a power-of-two number of independent engines, routing
+ * each key by its Redis Cluster {@link HashSlot}. Every shard has its own table, memory
+ * accounting, locks and expiry and eviction cursors, so writers on different shards
+ * never touch the same memory; keys sharing a {@code {hash tag}} share a shard.
+ * <p>
+ * Walks go shard by shard: a SCAN cursor carries the shard index in its low bits and
+ * the shard's own cursor above them. Eviction takes from the shard using the most
+ * memory, which keeps shards even, and active expiry samples every shard.
+ */
+public class ShardedStorageEngine implements StorageEngine {
+    private final StorageEngine[] shards;
+    private final int shardBits;
+
+    public ShardedStorageEngine(int shardCount, Supplier<StorageEngine> factory) {
+        if (shardCount < 1 || shardCount > HashSlot.SLOTS || Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("Shard count must be a power of two between 1 and " + HashSlot.SLOTS);
+        }
+        this.shards = new StorageEngine[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = factory.get();
+        }
+        this.shardBits = Integer.numberOfTrailingZeros(shardCount);
+    }
+
+    @Override
+    public int shardOf(ByteKey key) {
+        return HashSlot.of(key) & (shards.length - 1);
+    }
+
+    private StorageEngine shard(ByteKey key) {
+        return shards[shardOf(key)];
+    }
+
+    @Override
+    public int shardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public byte[] get(ByteKey key) {
+        return shard(key).get(key);
+    }
+
+    @Override
+    public boolean set(ByteKey key, byte[] value, long expireAt, SetCondition condition) {
+        return shard(key).set(key, value, expireAt, condition);
+    }
+
+    @Override
+    public Object getObject(ByteKey key) {
+        return shard(key).getObject(key);
+    }
+
+    @Override
+    public Object getEncoded(ByteKey key) {
+        return shard(key).getEncoded(key);
+    }
+
+    @Override
+    public boolean setObject(ByteKey key, RedisObject value, long expireAt, SetCondition condition) {
+        return shard(key).setObject(key, value, expireAt, condition);
+    }
+
+    @Override
+    public boolean remove(ByteKey key) {
+        return shard(key).remove(key);
+    }
+
+    @Override
+    public boolean containsKey(ByteKey key) {
+        return shard(key).containsKey(key);
+    }
+
+    @Override
+    public long getExpireAt(ByteKey key) {
+        return shard(key).getExpireAt(key);
+    }
+
+    @Override
+    public boolean setExpireAt(ByteKey key, long expireAt) {
+        return shard(key).setExpireAt(key, expireAt);
+    }
+
+    /**
+     * Samples every shard and reports the most expired sample, so the caller keeps going
+     * while any one shard still has many keys to expire.
+     */
+    @Override
+    public int expireSample(long now, int samples) {
+        int worst = 0;
+        for (StorageEngine shard : shards) {
+            worst = Math.max(worst, shard.expireSample(now, samples));
+        }
+        return worst;
+    }
+
+    @Override
+    public void setExpiryListener(Consumer<byte[]> listener) {
+        for (StorageEngine shard : shards) {
+            shard.setExpiryListener(listener);
+        }
+    }
+
+    @Override
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        for (StorageEngine shard : shards) {
+            shard.setEvictionPolicy(policy);
+        }
+    }
+
+    @Override
+    public ByteKey evict(int samples) {
+        StorageEngine largest = shards[0];
+        for (StorageEngine shard : shards) {
+            if (shard.usedMemory() > largest.usedMemory()) {
+                largest = shard;
+            }
+        }
+        ByteKey evicted = largest.evict(samples);
+        if (evicted != null) {
+            return evicted;
+        }
+        // Under volatile-ttl the largest shard may have nothing to evict
+        for (StorageEngine shard : shards) {
+            if (shard != largest && (evicted = shard.evict(samples)) != null) {
+                return evicted;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long usedMemory() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.usedMemory();
+        }
+        return total;
+    }
+
+    @Override
+    public long memoryUsage(ByteKey key) {
+        return shard(key).memoryUsage(key);
+    }
+
+    @Override
+    public void setCompressionThreshold(int bytes) {
+        for (StorageEngine shard : shards) {
+            shard.setCompressionThreshold(bytes);
+        }
+    }
+
+    @Override
+    public long compressedValues() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.compressedValues();
+        }
+        return total;
+    }
+
+    @Override
+    public long compressionSavedBytes() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.compressionSavedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long sharedIntegerValues() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.sharedIntegerValues();
+        }
+        return total;
+    }
+
+    @Override
+    public long size() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.size();
+        }
+        return total;
+    }
+
+    /**
+     * Asks the one shard a slot's keys all live in.
+     */
+    @Override
+    public long countKeysInSlot(int slot) {
+        return shards[slot & (shards.length - 1)].countKeysInSlot(slot);
+    }
+
+    @Override
+    public long volatileSize() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.volatileSize();
+        }
+        return total;
+    }
+
+    @Override
+    public long expiredCount() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.expiredCount();
+        }
+        return total;
+    }
+
+    @Override
+    public void forEachKey(Consumer<byte[]> action) {
+        for (StorageEngine shard : shards) {
+            shard.forEachKey(action);
+        }
+    }
+
+    @Override
+    public long scan(long cursor, int count, Consumer<byte[]> action) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        int index = (int) (cursor & (shards.length - 1));
+        long next = shards[index].scan(cursor >>> shardBits, count, action);
+        if (next != 0) {
+            if (next >>> (63 - shardBits) != 0) {
+                throw new IllegalStateException("Shard cursor too large: " + next);
+            }
+            return (next << shardBits) | index;
+        }
+        // The next shard's walk starts from its cursor 0, which encodes as just its index
+        return index + 1 < shards.length ? index + 1 : 0;
+    }
+
+    /**
+     * Walks the shards one after another, each with a walk of its own.
+     */
+    @Override
+    public KeyWalk walk() {
+        return new KeyWalk() {
+            private int index;
+            private KeyWalk current = shards[0].walk();
+
+            @Override
+            public boolean next(int count, Consumer<byte[]> action) {
+                if (current.next(count, action)) {
+                    return true;
+                }
+                if (++index == shards.length) {
+                    return false;
+                }
+                current = shards[index].walk();
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        for (StorageEngine shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public String name() {
+        return shards[0].name();
+    }
+
+    @Override
+    public long offHeapUsedBytes() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.offHeapUsedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long offHeapReservedBytes() {
+        long total = 0;
+        for (StorageEngine shard : shards) {
+            total += shard.offHeapReservedBytes();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,48 @@
+package org.cy.redisclone;
+
+/**
+ * The decimal forms of 0 to {@value #COUNT} - 1 as shared arrays, after Redis' shared
+ * integer objects: an engine that stores one of these values keeps a reference to the
+ * shared array rather than an array of its own, so a keyspace of small counters and
+ * flags costs only its keys and entries.
+ */
+final class SharedIntegers {
+    static final int COUNT = 10_000;
+    private static final byte[][] VALUES = new byte[COUNT][];
+
+    static {
+        for (int i = 0; i < COUNT; i++) {
+            VALUES[i] = IntSet.format(i);
+        }
+    }
+
+    private SharedIntegers() {
+    }
+
+    /**
+     * @return the shared array holding the same bytes as {@code value}, or null if it is
+     * not the canonical form of an integer in the pool
+     */
+    static byte[] lookup(byte[] value) {
+        int length = value.length;
+        if (length == 0 || length > 4 || value[0] == '0' && length > 1) {
+            return null;
+        }
+        int number = 0;
+        for (byte b : value) {
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            number = number * 10 + digit;
+        }
+        return VALUES[number];
+    }
+
+    /**
+     * @return the decimal form of a number, shared if it is in the pool
+     */
+    static byte[] of(long value) {
+        return value >= 0 && value < COUNT ? VALUES[(int) value] : IntSet.format(value);
+    }
+}
@@ -0,0 +1,160 @@
+package org.cy.redisclone;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A memcached-style slab allocator over native memory.
+ * <p>
+ * Native memory is reserved in 1 MB direct pages. Each page is carved into equal
+ * blocks of one size class, classes growing by 25% from 32 bytes, and freed blocks go
+ * to a per-class free list for reuse, so allocation and release are O(1) and waste
+ * at most a quarter of a block. Requests above {@link #MAX_SLAB_BLOCK} get a page of
+ * their own, dropped when freed for the garbage collector to reclaim.
+ * <p>
+ * Blocks are addressed by a {@code long} packing the page index in the high half and
+ * the offset within the page in the low half; 0 is never a valid address. The
+ * allocator is not thread-safe, callers serialize access.
+ */
+class SlabAllocator {
+    static final int PAGE_SIZE = 1 << 20;
+    static final int MAX_SLAB_BLOCK = PAGE_SIZE / 4;
+    private static final int MIN_BLOCK = 32;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int HUGE = -1;
+
+    private final int[] classSizes;
+    private final long[][] freeLists;
+    private final int[] freeCounts;
+    private final int[] currentPage;
+    private final int[] currentOffset;
+    private ByteBuffer[] pages = new ByteBuffer[16];
+    private int[] pageClasses = new int[16];
+    private int pageCount = 1;
+    private final List<Integer> releasedPages = new ArrayList<>();
+    private long usedBytes;
+    private long reservedBytes;
+
+    SlabAllocator() {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_BLOCK; size < MAX_SLAB_BLOCK; size = (int) Math.ceil(size * GROWTH_FACTOR / 8) * 8) {
+            sizes.add(size);
+        }
+        sizes.add(MAX_SLAB_BLOCK);
+        classSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        freeLists = new long[classSizes.length][16];
+        freeCounts = new int[classSizes.length];
+        currentPage = new int[classSizes.length];
+        currentOffset = new int[classSizes.length];
+        Arrays.fill(currentOffset, PAGE_SIZE);
+    }
+
+    /**
+     * @return the address of a block of at least {@code size} bytes
+     */
+    long allocate(int size) {
+        if (size > MAX_SLAB_BLOCK) {
+            int page = newPage(ByteBuffer.allocateDirect(size), HUGE);
+            usedBytes += size;
+            return address(page, 0);
+        }
+        int sizeClass = sizeClass(size);
+        int blockSize = classSizes[sizeClass];
+        usedBytes += blockSize;
+        if (freeCounts[sizeClass] > 0) {
+            return freeLists[sizeClass][--freeCounts[sizeClass]];
+        }
+        if (currentOffset[sizeClass] + blockSize > PAGE_SIZE) {
+            currentPage[sizeClass] = newPage(ByteBuffer.allocateDirect(PAGE_SIZE), sizeClass);
+            currentOffset[sizeClass] = 0;
+        }
+        long address = address(currentPage[sizeClass], currentOffset[sizeClass]);
+        currentOffset[sizeClass] += blockSize;
+        return address;
+    }
+
+    void free(long address) {
+        int page = page(address);
+        int sizeClass = pageClasses[page];
+        if (sizeClass == HUGE) {
+            // The page is left to the garbage collector
+            int capacity = pages[page].capacity();
+            usedBytes -= capacity;
+            reservedBytes -= capacity;
+            pages[page] = null;
+            releasedPages.add(page);
+            return;
+        }
+        usedBytes -= classSizes[sizeClass];
+        if (freeCounts[sizeClass] == freeLists[sizeClass].length) {
+            freeLists[sizeClass] = Arrays.copyOf(freeLists[sizeClass], freeLists[sizeClass].length * 2);
+        }
+        freeLists[sizeClass][freeCounts[sizeClass]++] = address;
+    }
+
+    /**
+     * @return the usable size of the block at an address
+     */
+    int blockSize(long address) {
+        int page = page(address);
+        int sizeClass = pageClasses[page];
+        return sizeClass == HUGE ? pages[page].capacity() : classSizes[sizeClass];
+    }
+
+    ByteBuffer buffer(long address) {
+        return pages[page(address)];
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    long reservedBytes() {
+        return reservedBytes;
+    }
+
+    private int sizeClass(int size) {
+        int low = 0;
+        int high = classSizes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classSizes[mid] < size) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int newPage(ByteBuffer buffer, int sizeClass) {
+        int page;
+        if (!releasedPages.isEmpty()) {
+            page = releasedPages.remove(releasedPages.size() - 1);
+        } else {
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+                pageClasses = Arrays.copyOf(pageClasses, pageClasses.length * 2);
+            }
+            page = pageCount++;
+        }
+        pages[page] = buffer;
+        pageClasses[page] = sizeClass;
+        reservedBytes += buffer.capacity();
+        return page;
+    }
+
+    private static long address(int page, int offset) {
+        return ((long) page << 32) | offset;
+    }
+
+    private static int page(long address) {
+        return (int) (address >>> 32);
+    }
+}
@@ -0,0 +1,156 @@
+package org.cy.redisclone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The commands that took longer than {@code slowlog-log-slower-than} microseconds, as
+ * listed by {@code SLOWLOG GET}: a ring buffer of the last {@code slowlog-max-len}.
+ * <p>
+ * Commands below the threshold cost one comparison; only slow ones copy their arguments
+ * and take the log's lock. As in Redis, at most {@value #MAX_ARGS} arguments of at most
+ * {@value #MAX_ARG_LENGTH} bytes each are kept.
+ */
+final class SlowLog {
+    static final long DEFAULT_SLOWER_THAN_MICROS = 10_000;
+    static final int DEFAULT_MAX_LEN = 128;
+    private static final int MAX_ARGS = 32;
+    private static final int MAX_ARG_LENGTH = 128;
+
+    private volatile long slowerThanNanos = DEFAULT_SLOWER_THAN_MICROS * 1000;
+    private int maxLen = DEFAULT_MAX_LEN;
+    private Entry[] entries = new Entry[DEFAULT_MAX_LEN];
+    // The slot the next entry goes to, and how many slots are filled
+    private int next;
+    private int size;
+    private long nextId;
+
+    /**
+     * One logged command.
+     */
+    static final class Entry {
+        private final long id;
+        private final long timestampSeconds;
+        private final long micros;
+        private final byte[][] args;
+        private final String address;
+        private final String clientName;
+
+        Entry(long id, long timestampSeconds, long micros, byte[][] args, String address, String clientName) {
+            this.id = id;
+            this.timestampSeconds = timestampSeconds;
+            this.micros = micros;
+            this.args = args;
+            this.address = address;
+            this.clientName = clientName;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getTimestampSeconds() {
+            return timestampSeconds;
+        }
+
+        public long getMicros() {
+            return micros;
+        }
+
+        public byte[][] getArgs() {
+            return args;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getClientName() {
+            return clientName;
+        }
+    }
+
+    /**
+     * @param micros how long a command must run to be logged; 0 logs every command, and a
+     *               negative value none
+     */
+    void setSlowerThan(long micros) {
+        this.slowerThanNanos = micros < 0 ? Long.MAX_VALUE : micros * 1000;
+    }
+
+    /**
+     * @param maxLen how many entries are kept; the oldest are dropped first
+     */
+    synchronized void setMaxLen(int maxLen) {
+        List<Entry> kept = newestFirst(maxLen);
+        this.maxLen = maxLen;
+        entries = new Entry[Math.max(maxLen, 1)];
+        size = 0;
+        next = 0;
+        for (int i = kept.size() - 1; i >= 0; i--) {
+            add(kept.get(i));
+        }
+    }
+
+    /**
+     * Logs a command if it ran at least the threshold.
+     */
+    void record(CommandArgs args, long nanos, RedisServer.ClientInfo client) {
+        if (nanos < slowerThanNanos) {
+            return;
+        }
+        int count = Math.min(args.count(), MAX_ARGS);
+        byte[][] kept = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            if (i == MAX_ARGS - 1 && args.count() > MAX_ARGS) {
+                kept[i] = RedisObject.ascii("... (" + (args.count() - MAX_ARGS + 1) + " more arguments)");
+                break;
+            }
+            byte[] arg = args.getBytes(i);
+            if (arg.length > MAX_ARG_LENGTH) {
+                byte[] more = (" ... (" + (arg.length - MAX_ARG_LENGTH) + " more bytes)").getBytes(StandardCharsets.US_ASCII);
+                byte[] truncated = Arrays.copyOf(arg, MAX_ARG_LENGTH + more.length);
+                System.arraycopy(more, 0, truncated, MAX_ARG_LENGTH, more.length);
+                arg = truncated;
+            }
+            kept[i] = arg;
+        }
+        long timestamp = System.currentTimeMillis() / 1000;
+        synchronized (this) {
+            if (maxLen > 0) {
+                add(new Entry(nextId++, timestamp, nanos / 1000, kept, client.getAddress(), client.getName()));
+            }
+        }
+    }
+
+    /**
+     * @param count how many entries to return, negative for all
+     * @return the newest entries first
+     */
+    synchronized List<Entry> newestFirst(int count) {
+        int n = count < 0 ? size : Math.min(count, size);
+        List<Entry> result = new ArrayList<>(n);
+        for (int i = 1; i <= n; i++) {
+            result.add(entries[Math.floorMod(next - i, entries.length)]);
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void reset() {
+        Arrays.fill(entries, null);
+        size = 0;
+        next = 0;
+    }
+
+    private void add(Entry entry) {
+        entries[next] = entry;
+        next = (next + 1) % entries.length;
+        size = Math.min(size + 1, entries.length);
+    }
+}
@@ -0,0 +1,352 @@
+package org.cy.redisclone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshots of the keyspace, written by {@code SAVE} and {@code BGSAVE} and
+ * loaded at startup.
+ * <p>
+ * The file is an 8-byte magic followed by blocks of about {@value #BLOCK_SIZE} bytes,
+ * each with a header holding its payload length, its record count and the CRC32C of its
+ * payload. A record is a flags byte, varint key and value lengths, the deadline when the
+ * key has one, then the key and value bytes; a collection's value is its
+ * {@link RedisObject#serialize() serialized} form. A header with a length of -1 and the total
+ * key count ends the file, so a truncated snapshot is refused rather than half loaded.
+ * <p>
+ * Blocks are filled in memory and written with one sequential write each, to a temporary
+ * file renamed over the snapshot once it is complete and fsynced. Loading walks the block
+ * headers, memory-maps runs of blocks up to {@value #LOAD_SEGMENT_SIZE} bytes and decodes
+ * them on all cores at once, inserting straight into the storage engine.
+ */
+public final class Snapshot {
+    private static final Logger LOGGER = Logger.getLogger(Snapshot.class.getName());
+    private static final byte[] MAGIC = "RCSNAP01".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int END_OF_FILE = -1;
+    private static final long LOAD_SEGMENT_SIZE = 16L << 20;
+    private static final int SCAN_BATCH = 1024;
+    private static final int FLAG_EXPIRES = 1;
+    private static final int FLAG_OBJECT = 2;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes the keyspace to {@code path}. Each key is read under its write lock; callers
+     * that hold every write lock, as {@code SAVE} does, get a point-in-time snapshot.
+     * Saves to the same path must not run concurrently.
+     *
+     * @return the number of keys written
+     */
+    public static long save(Path path, RedisLikeService service) throws IOException {
+        long start = System.nanoTime();
+        Path temp = path.resolveSibling("temp-" + ProcessHandle.current().pid() + ".snap");
+        StorageEngine engine = service.getStorageEngine();
+        long keys;
+        long bytes;
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockWriter writer = new BlockWriter(file);
+            List<byte[]> batch = new ArrayList<>(SCAN_BATCH);
+            StorageEngine.KeyWalk walk = engine.walk();
+            boolean more;
+            do {
+                batch.clear();
+                more = walk.next(SCAN_BATCH, batch::add);
+                for (byte[] key : batch) {
+                    ByteKey byteKey = ByteKey.of(key);
+                    byte[][] value = new byte[1][];
+                    boolean[] object = new boolean[1];
+                    long[] expireAt = new long[1];
+                    service.underWriteLock(byteKey, () -> {
+                        Object stored = engine.getObject(byteKey);
+                        object[0] = stored instanceof RedisObject;
+                        value[0] = object[0] ? ((RedisObject) stored).serialize() : (byte[]) stored;
+                        expireAt[0] = engine.getExpireAt(byteKey);
+                    });
+                    if (value[0] != null && expireAt[0] != StorageEngine.MISSING) {
+                        writer.add(key, value[0], expireAt[0], object[0]);
+                    }
+                }
+            } while (more);
+            writer.finish();
+            file.force(true);
+            keys = writer.keys;
+            bytes = file.size();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        LOGGER.info(String.format("Saved %d keys (%.1f MB) to %s in %.3f s", keys, bytes / 1e6, path, seconds));
+        return keys;
+    }
+
+    /**
+     * Loads a snapshot into the service's storage engine, skipping keys whose deadline has
+     * passed. Meant for startup, before clients connect: the keys are neither logged nor
+     * replicated.
+     *
+     * @return the number of keys loaded, 0 if there is no snapshot
+     * @throws IOException if the file is not a snapshot, is truncated or fails its checksums
+     */
+    public static long load(Path path, RedisLikeService service) throws IOException {
+        return load(path, service, Runtime.getRuntime().availableProcessors());
+    }
+
+    static long load(Path path, RedisLikeService service, int threads) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> segments = new ArrayList<>();
+            long expectedKeys = readIndex(file, path, segments);
+            StorageEngine engine = service.getStorageEngine();
+            AtomicLong loaded = new AtomicLong();
+            long now = System.currentTimeMillis();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, segments.size())), runnable -> {
+                Thread thread = new Thread(runnable, "redis-snapshot-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (long[] segment : segments) {
+                    futures.add(pool.submit(() -> {
+                        loaded.addAndGet(loadSegment(file, path, segment[0], segment[1], engine, now));
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("Loading snapshot " + path + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading snapshot " + path, e);
+            } finally {
+                pool.shutdownNow();
+            }
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            LOGGER.info(String.format("Loaded %d of %d keys (%.1f MB) from snapshot %s in %.3f s: %.0f keys/s, %.1f MB/s",
+                    loaded.get(), expectedKeys, file.size() / 1e6, path, seconds,
+                    loaded.get() / seconds, file.size() / 1e6 / seconds));
+            return loaded.get();
+        }
+    }
+
+    /**
+     * Checks the magic and walks the block headers, grouping consecutive blocks into
+     * segments of {@code [offset, length]} that are mapped and loaded as one.
+     *
+     * @return the key count recorded at the end of the file
+     */
+    private static long readIndex(FileChannel file, Path path, List<long[]> segments) throws IOException {
+        long size = file.size();
+        ByteBuffer header = ByteBuffer.allocate(Math.max(MAGIC.length, BLOCK_HEADER_SIZE + Long.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+        header.limit(MAGIC.length);
+        readFully(file, header, 0, path);
+        if (!Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)) {
+            throw new IOException(path + " is not a snapshot");
+        }
+        long position = MAGIC.length;
+        long segmentStart = position;
+        while (true) {
+            header.clear().limit(BLOCK_HEADER_SIZE);
+            readFully(file, header, position, path);
+            int length = header.getInt(0);
+            if (length == END_OF_FILE) {
+                if (position > segmentStart) {
+                    segments.add(new long[]{segmentStart, position - segmentStart});
+                }
+                header.clear().limit(Long.BYTES);
+                readFully(file, header, position + BLOCK_HEADER_SIZE, path);
+                return header.getLong(0);
+            }
+            if (length < 0 || position + BLOCK_HEADER_SIZE + length > size) {
+                throw new IOException("Snapshot " + path + " is truncated at offset " + position);
+            }
+            position += BLOCK_HEADER_SIZE + length;
+            if (position - segmentStart >= LOAD_SEGMENT_SIZE) {
+                segments.add(new long[]{segmentStart, position - segmentStart});
+                segmentStart = position;
+            }
+        }
+    }
+
+    private static long loadSegment(FileChannel file, Path path, long offset, long length, StorageEngine engine, long now)
+            throws IOException {
+        MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        CRC32C crc = new CRC32C();
+        long loaded = 0;
+        while (mapped.hasRemaining()) {
+            int blockStart = mapped.position();
+            int payloadLength = mapped.getInt();
+            int records = mapped.getInt();
+            int checksum = mapped.getInt();
+            int payloadEnd = mapped.position() + payloadLength;
+            crc.reset();
+            crc.update(mapped.duplicate().limit(payloadEnd));
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Snapshot " + path + " fails its checksum in the block at offset " + (offset + blockStart));
+            }
+            for (int i = 0; i < records; i++) {
+                int flags = mapped.get();
+                int keyLength = readVarint(mapped);
+                int valueLength = readVarint(mapped);
+                long expireAt = (flags & FLAG_EXPIRES) != 0 ? mapped.getLong() : StorageEngine.NO_EXPIRY;
+                byte[] key = new byte[keyLength];
+                mapped.get(key);
+                byte[] value = new byte[valueLength];
+                mapped.get(value);
+                if (expireAt != StorageEngine.NO_EXPIRY && expireAt <= now) {
+                    continue;
+                }
+                if ((flags & FLAG_OBJECT) != 0) {
+                    RedisObject object;
+                    try {
+                        object = RedisObject.deserialize(value);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Snapshot " + path + " has a malformed value in the block at offset "
+                                + (offset + blockStart), e);
+                    }
+                    engine.setObject(ByteKey.of(key), object, expireAt, StorageEngine.SetCondition.ALWAYS);
+                } else {
+                    engine.set(ByteKey.of(key), value, expireAt, StorageEngine.SetCondition.ALWAYS);
+                }
+                loaded++;
+            }
+            if (mapped.position() != payloadEnd) {
+                throw new IOException("Snapshot " + path + " has a malformed block at offset " + (offset + blockStart));
+            }
+        }
+        return loaded;
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Packs records into a block buffer and writes each full block with one write.
+     */
+    private static final class BlockWriter {
+        private final FileChannel file;
+        private final CRC32C crc = new CRC32C();
+        private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE + Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private int records;
+        private long keys;
+
+        BlockWriter(FileChannel file) throws IOException {
+            this.file = file;
+            writeFully(ByteBuffer.wrap(MAGIC));
+        }
+
+        void add(byte[] key, byte[] value, long expireAt, boolean object) throws IOException {
+            int size = 1 + 5 + 5 + Long.BYTES + key.length + value.length;
+            if (block.remaining() < size) {
+                flush();
+                if (block.capacity() < size) {
+                    block = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            boolean expires = expireAt != StorageEngine.NO_EXPIRY;
+            block.put((byte) ((expires ? FLAG_EXPIRES : 0) | (object ? FLAG_OBJECT : 0)));
+            writeVarint(key.length);
+            writeVarint(value.length);
+            if (expires) {
+                block.putLong(expireAt);
+            }
+            block.put(key);
+            block.put(value);
+            records++;
+            keys++;
+        }
+
+        void finish() throws IOException {
+            flush();
+            header.clear();
+            header.putInt(END_OF_FILE).putInt(0).putInt(0).putLong(keys).flip();
+            writeFully(header);
+        }
+
+        private void flush() throws IOException {
+            if (records == 0) {
+                return;
+            }
+            block.flip();
+            crc.reset();
+            crc.update(block.duplicate());
+            header.clear();
+            header.putInt(block.remaining()).putInt(records).putInt((int) crc.getValue()).flip();
+            ByteBuffer[] buffers = {header, block};
+            while (block.hasRemaining()) {
+                file.write(buffers);
+            }
+            if (block.capacity() > BLOCK_SIZE) {
+                block = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                block.clear();
+            }
+            records = 0;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                block.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            block.put((byte) value);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+        }
+    }
+}
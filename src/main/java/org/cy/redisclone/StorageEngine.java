@@ -0,0 +1,292 @@
+package org.cy.redisclone;
+
+import java.util.function.Consumer;
+
+/**
+ * Where {@link RedisLikeService} keeps its keys and values.
+ * <p>
+ * Implementations must be safe for concurrent use. Keys passed in may be views over
+ * a request buffer ({@link ByteKey#view}); an engine that retains a key must keep an
+ * owned copy. Values are stored as given and handed back without copying where the
+ * engine allows it, so neither side may modify them. An engine may store a string in a
+ * smaller encoding, compressed or shared with other keys, and then hands back a decoded
+ * copy from {@link #get}; {@link #getEncoded} returns the stored form. Collections, held as
+ * {@link RedisObject}s, are the exception: the service changes them in place under the
+ * key's write lock and stores them again with {@link #setObject} to update their size.
+ * <p>
+ * Every entry may carry an expiry deadline in epoch milliseconds, stored with the entry
+ * itself. Engines treat an entry whose deadline has passed as absent and delete it when
+ * they come across it.
+ * <p>
+ * Engines also account the memory each entry takes and keep a per-entry access word
+ * for approximate eviction, interpreted according to the {@link EvictionPolicy} they
+ * were given. Reads update it without taking any lock.
+ */
+public interface StorageEngine {
+    /**
+     * Deadline of an entry that never expires.
+     */
+    long NO_EXPIRY = 0;
+
+    /**
+     * Deadline argument of {@link #set} that keeps the current deadline of the entry.
+     */
+    long KEEP_TTL = -1;
+
+    /**
+     * Returned by {@link #getExpireAt} for a missing key.
+     */
+    long MISSING = -2;
+
+    enum SetCondition {
+        ALWAYS,
+        /** Only set the key if it does not exist. */
+        NX,
+        /** Only set the key if it already exists. */
+        XX
+    }
+
+    /**
+     * @return the value of a string key, or null if missing
+     * @throws RedisException with a {@code WRONGTYPE} error if the key holds a collection
+     */
+    byte[] get(ByteKey key);
+
+    /**
+     * @return the value of a key of any type: a {@code byte[]} for a string or the key's
+     * {@link RedisObject}; null if missing
+     */
+    Object getObject(ByteKey key);
+
+    /**
+     * @return the stored form of a string key: a {@code byte[]} or a {@link CompressedValue}
+     * that the caller can decompress straight into a reply; null if missing
+     * @throws RedisException with a {@code WRONGTYPE} error if the key holds a collection
+     */
+    default Object getEncoded(ByteKey key) {
+        return get(key);
+    }
+
+    /**
+     * Stores a collection like {@link #set} stores a string. Storing the object a key
+     * already holds accounts for the changes made to it since.
+     *
+     * @return false if the condition prevented the write
+     */
+    boolean setObject(ByteKey key, RedisObject value, long expireAt, SetCondition condition);
+
+    /**
+     * Stores a value with a deadline ({@link #NO_EXPIRY} or {@link #KEEP_TTL} allowed).
+     *
+     * @return false if the condition prevented the write
+     */
+    boolean set(ByteKey key, byte[] value, long expireAt, SetCondition condition);
+
+    default void put(ByteKey key, byte[] value) {
+        set(key, value, NO_EXPIRY, SetCondition.ALWAYS);
+    }
+
+    boolean remove(ByteKey key);
+
+    boolean containsKey(ByteKey key);
+
+    /**
+     * @return the deadline of a key, {@link #NO_EXPIRY} if it has none, or {@link #MISSING}
+     */
+    long getExpireAt(ByteKey key);
+
+    /**
+     * Sets or, with {@link #NO_EXPIRY}, clears the deadline of an existing key.
+     *
+     * @return false if the key does not exist or, when clearing, had no deadline
+     */
+    boolean setExpireAt(ByteKey key, long expireAt);
+
+    /**
+     * One step of active expiry: examines up to {@code samples} keys that carry a
+     * deadline, resuming where the previous call stopped, and deletes those that are due.
+     *
+     * @return the number of keys deleted
+     */
+    int expireSample(long now, int samples);
+
+    /**
+     * Sets the action called with every key the engine deletes because its deadline
+     * passed, whether found on access or by {@link #expireSample}. It runs after the
+     * deletion, outside the engine's locks.
+     */
+    void setExpiryListener(Consumer<byte[]> listener);
+
+    /**
+     * Tells the engine which access statistics to keep and how to pick eviction victims.
+     */
+    void setEvictionPolicy(EvictionPolicy policy);
+
+    /**
+     * Evicts the best candidate among up to {@code samples} keys picked at random,
+     * according to the current eviction policy.
+     *
+     * @return the key evicted, or null if no key could be evicted
+     */
+    ByteKey evict(int samples);
+
+    /**
+     * @return the estimated bytes taken by keys, values and per-entry overhead
+     */
+    long usedMemory();
+
+    /**
+     * @return the bytes accounted to one entry, as summed by {@link #usedMemory}, or -1 if
+     * the key is missing
+     */
+    long memoryUsage(ByteKey key);
+
+    /**
+     * Stores string values of at least {@code bytes} bytes compressed from now on, where
+     * that saves memory; 0 turns compression off. Engines that cannot compress ignore it.
+     */
+    default void setCompressionThreshold(int bytes) {
+    }
+
+    /**
+     * @return the number of string values stored compressed
+     */
+    default long compressedValues() {
+        return 0;
+    }
+
+    /**
+     * @return the bytes compression saves over storing those values as they are
+     */
+    default long compressionSavedBytes() {
+        return 0;
+    }
+
+    /**
+     * @return the number of string values stored as a shared small integer
+     */
+    default long sharedIntegerValues() {
+        return 0;
+    }
+
+    long size();
+
+    /**
+     * @return the number of keys in a hash slot, counting expired ones not yet removed,
+     * kept up to date as keys come and go so that it costs no walk
+     */
+    long countKeysInSlot(int slot);
+
+    /**
+     * @return the number of keys that carry a deadline
+     */
+    long volatileSize();
+
+    /**
+     * @return the number of keys deleted because their deadline passed
+     */
+    long expiredCount();
+
+    /**
+     * Visits every key. Keys added or removed during the walk may or may not be seen.
+     */
+    void forEachKey(Consumer<byte[]> action);
+
+    /**
+     * One step of an incremental walk over the keyspace, visiting about {@code count}
+     * entries. A walk started with cursor 0 and continued with each returned cursor until
+     * 0 comes back visits every key that existed for its whole duration at least once,
+     * however the keyspace changes in between.
+     *
+     * @return the cursor to continue from, 0 when the walk is complete
+     * @throws IllegalArgumentException if the cursor was not returned by this engine
+     */
+    long scan(long cursor, int count, Consumer<byte[]> action);
+
+    /**
+     * Starts a walk over the keyspace for the server's own use, such as a snapshot or a
+     * full sync, with the guarantees of {@link #scan}. Clients cannot invalidate a walk
+     * however many scans they leave unfinished, so it may be paused for as long as its
+     * reader needs.
+     */
+    default KeyWalk walk() {
+        return new KeyWalk() {
+            private long cursor;
+
+            @Override
+            public boolean next(int count, Consumer<byte[]> action) {
+                cursor = scan(cursor, count, action);
+                return cursor != 0;
+            }
+        };
+    }
+
+    void clear();
+
+    /**
+     * @return a short name for INFO, such as {@code heap}
+     */
+    String name();
+
+    /**
+     * @return the bytes of native memory in use for keys and values, 0 for on-heap engines
+     */
+    long offHeapUsedBytes();
+
+    /**
+     * @return the bytes of native memory reserved from the operating system
+     */
+    long offHeapReservedBytes();
+
+    /**
+     * @return how many independent partitions the keyspace is split over
+     */
+    default int shardCount() {
+        return 1;
+    }
+
+    /**
+     * @return the index of the partition owning a key, below {@link #shardCount()}
+     */
+    default int shardOf(ByteKey key) {
+        return 0;
+    }
+
+    /**
+     * A walk over the keyspace started by {@link #walk()}.
+     */
+    interface KeyWalk {
+        /**
+         * Visits about {@code count} more entries. Not to be called again once it has
+         * returned false.
+         *
+         * @return false once the whole keyspace has been walked
+         */
+        boolean next(int count, Consumer<byte[]> action);
+    }
+
+    static boolean isExpired(long expireAt, long now) {
+        return expireAt != NO_EXPIRY && expireAt <= now;
+    }
+
+    /**
+     * @param shards a power of two; above 1 the keyspace is split over that many engines of the type
+     */
+    static StorageEngine create(String type, int shards) {
+        if (shards == 1) {
+            return create(type);
+        }
+        return new ShardedStorageEngine(shards, () -> create(type));
+    }
+
+    static StorageEngine create(String type) {
+        switch (type.trim().toLowerCase()) {
+            case "heap":
+                return new HeapStorageEngine();
+            case "offheap":
+                return new OffHeapStorageEngine();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + type);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.cy.redisclone;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Server-assisted client-side caching, as set up by {@code CLIENT TRACKING}.
+ * <p>
+ * In the default mode the server remembers which clients read which keys, in a table
+ * from key to the sorted ids of those clients, and when a key changes tells each of them
+ * once and forgets the key until it is read again. The table holds at most
+ * {@code tracking-table-max-keys} keys: beyond that, keys are dropped and their clients
+ * told to invalidate them, as if they had changed. In broadcast mode ({@code BCAST})
+ * nothing is remembered; a client is told about every change to a key starting with one
+ * of its prefixes.
+ * <p>
+ * This server speaks RESP2 only, so invalidations reach clients the RESP2 way: as
+ * messages on the {@code __redis__:invalidate} channel, pushed to the connection given
+ * with {@code REDIRECT}, which must be subscribed.
+ */
+final class Tracking {
+    static final int DEFAULT_MAX_KEYS = 1_000_000;
+    private static final byte[] MESSAGE = RedisObject.ascii("message");
+    private static final byte[] CHANNEL = RedisObject.ascii("__redis__:invalidate");
+
+    private final ConcurrentHashMap<ByteKey, long[]> table = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Client> clients = new ConcurrentHashMap<>();
+    private final List<Client> broadcastClients = new CopyOnWriteArrayList<>();
+    private volatile int maxKeys = DEFAULT_MAX_KEYS;
+
+    /**
+     * A connection with tracking on.
+     */
+    static final class Client {
+        private final long id;
+        private final CommandExecutor redirect;
+        private final byte[][] prefixes;
+        private final boolean broadcast;
+        private final boolean optIn;
+        private final boolean optOut;
+
+        /**
+         * @param prefixes for broadcast mode, the key prefixes to hear about; none for all keys
+         */
+        Client(long id, CommandExecutor redirect, boolean broadcast, byte[][] prefixes, boolean optIn, boolean optOut) {
+            this.id = id;
+            this.redirect = redirect;
+            this.broadcast = broadcast;
+            this.prefixes = prefixes;
+            this.optIn = optIn;
+            this.optOut = optOut;
+        }
+
+        long redirectId() {
+            return redirect.clientId();
+        }
+
+        boolean isBroadcast() {
+            return broadcast;
+        }
+
+        boolean isOptIn() {
+            return optIn;
+        }
+
+        boolean isOptOut() {
+            return optOut;
+        }
+
+        private boolean matches(byte[] key) {
+            if (prefixes.length == 0) {
+                return true;
+            }
+            for (byte[] prefix : prefixes) {
+                if (key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void send(byte[] message) {
+            PubSub.Subscriber subscriber = redirect.subscriber();
+            if (subscriber != null && subscriber.subscriptions() > 0) {
+                subscriber.push(message);
+            }
+        }
+    }
+
+    /**
+     * @param maxKeys the most keys the table remembers, 0 for no limit
+     */
+    void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+        trim();
+    }
+
+    void enable(Client client) {
+        disable(client.id);
+        clients.put(client.id, client);
+        if (client.broadcast) {
+            broadcastClients.add(client);
+        }
+    }
+
+    /**
+     * Turns tracking off for a client. Keys it read stay in the table until they change
+     * or are dropped, and are then skipped.
+     */
+    void disable(long id) {
+        Client client = clients.remove(id);
+        if (client != null && client.broadcast) {
+            broadcastClients.remove(client);
+        }
+    }
+
+    int clientCount() {
+        return clients.size();
+    }
+
+    long keyCount() {
+        return table.size();
+    }
+
+    /**
+     * Remembers that a client read a key, before the read, so that a change made while
+     * it runs is not missed.
+     */
+    void keyRead(Client client, ByteKey key) {
+        long id = client.id;
+        table.compute(key.owned(), (k, ids) -> {
+            if (ids == null) {
+                return new long[]{id};
+            }
+            int position = Arrays.binarySearch(ids, id);
+            if (position >= 0) {
+                return ids;
+            }
+            position = -position - 1;
+            long[] grown = new long[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, position);
+            grown[position] = id;
+            System.arraycopy(ids, position, grown, position + 1, ids.length - position);
+            return grown;
+        });
+        if (maxKeys > 0 && table.size() > maxKeys) {
+            trim();
+        }
+    }
+
+    /**
+     * Tells the clients that may cache a key that it changed; called for every change,
+     * under the key's write lock, and for every key that expired.
+     */
+    void keyChanged(byte[] key) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        byte[] message = null;
+        long[] ids = table.isEmpty() ? null : table.remove(ByteKey.of(key));
+        if (ids != null) {
+            message = encode(key);
+            for (long id : ids) {
+                Client client = clients.get(id);
+                if (client != null && !client.broadcast) {
+                    client.send(message);
+                }
+            }
+        }
+        for (Client client : broadcastClients) {
+            if (client.matches(key)) {
+                if (message == null) {
+                    message = encode(key);
+                }
+                client.send(message);
+            }
+        }
+    }
+
+    /**
+     * Tells every client with tracking on that all keys changed, after the keyspace was
+     * emptied. As in Redis, the message carries a null array in place of the keys.
+     */
+    void allKeysChanged() {
+        table.clear();
+        if (clients.isEmpty()) {
+            return;
+        }
+        byte[] message = encode(null);
+        for (Client client : clients.values()) {
+            client.send(message);
+        }
+    }
+
+    /**
+     * Drops keys until the table is within its limit, telling their clients to drop
+     * them too.
+     */
+    private void trim() {
+        int limit = maxKeys;
+        if (limit <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<ByteKey, long[]>> entries = table.entrySet().iterator();
+        while (table.size() > limit && entries.hasNext()) {
+            Map.Entry<ByteKey, long[]> entry = entries.next();
+            if (table.remove(entry.getKey(), entry.getValue())) {
+                byte[] message = encode(entry.getKey().toBytes());
+                for (long id : entry.getValue()) {
+                    Client client = clients.get(id);
+                    if (client != null) {
+                        client.send(message);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key the key changed, or null for all of them
+     */
+    private static byte[] encode(byte[] key) {
+        ReplyBuffer out = new ReplyBuffer();
+        RESPHandler.writeArrayHeader(out, 3);
+        RESPHandler.writeBulk(out, MESSAGE);
+        RESPHandler.writeBulk(out, CHANNEL);
+        if (key == null) {
+            RESPHandler.writeNullArray(out);
+        } else {
+            RESPHandler.writeArrayHeader(out, 1);
+            RESPHandler.writeBulk(out, key);
+        }
+        return out.take();
+    }
+}
@@ -0,0 +1,181 @@
+package org.cy.redisclone;
+
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.ZAddArgs;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the integration suite with every write logged to an append-only file fsynced
+ * before each reply, and checks that replaying the file restores the keyspace.
+ */
+public class AofRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+    private Path aofPath;
+
+    @Override
+    protected RedisLikeService createService() {
+        try {
+            aofPath = Files.createTempFile("redisclone", ".aof");
+            aofPath.toFile().deleteOnExit();
+            RedisLikeService service = createUnloggedService();
+            service.setAppendOnlyFile(new AppendOnlyFile(aofPath, AppendOnlyFile.Fsync.ALWAYS));
+            return service;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected RedisLikeService createUnloggedService() {
+        return new RedisLikeService();
+    }
+
+    @Test
+    void testWriteIsInFileWhenAcknowledged() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            String key = "aofAcked" + i;
+            syncCommands.set(key, "value");
+            String log = Files.readString(aofPath, StandardCharsets.ISO_8859_1);
+            assertTrue(log.contains("$" + key.length() + "\r\n" + key + "\r\n"), key);
+        }
+    }
+
+    @Test
+    void testReplayRestoresKeyspace() throws IOException {
+        syncCommands.set("aofKey", "first");
+        syncCommands.set("aofKey", "second");
+        syncCommands.set("aofDeleted", "value");
+        syncCommands.del("aofDeleted");
+        syncCommands.set("aofTtlKey", "value", SetArgs.Builder.ex(1000));
+        syncCommands.set("aofPersisted", "value", SetArgs.Builder.ex(1000));
+        syncCommands.persist("aofPersisted");
+        syncCommands.expire("aofExpiring", 500);
+        syncCommands.set("aofExpiring", "value");
+        syncCommands.expire("aofExpiring", 500);
+
+        // With appendfsync always every acknowledged write is already in the file
+        RedisLikeService restored = new RedisLikeService();
+        assertTrue(AppendOnlyFile.load(aofPath, restored) >= 8);
+        assertEquals("second", string(restored.get(bytes("aofKey"))));
+        assertNull(restored.get(bytes("aofDeleted")));
+        assertEquals(1000, restored.pttl(ByteKey.of("aofTtlKey")) / 1000, 1);
+        assertEquals(-1, restored.pttl(ByteKey.of("aofPersisted")));
+        assertEquals(500, restored.pttl(ByteKey.of("aofExpiring")) / 1000, 1);
+        restored.shutdown();
+    }
+
+    @Test
+    void testReplayRestoresCollectionsAndCounters() throws IOException {
+        syncCommands.hset("aofHash", "field", "1");
+        syncCommands.hincrby("aofHash", "field", 2);
+        syncCommands.rpush("aofList", "a", "b", "c");
+        syncCommands.rpop("aofList", 2);
+        syncCommands.sadd("aofSet", "1", "2");
+        syncCommands.srem("aofSet", "1");
+        syncCommands.zadd("aofZset", 1, "member");
+        syncCommands.zadd("aofZset", ZAddArgs.Builder.gt(), 3, "member");
+        syncCommands.set("aofCounter", "1", SetArgs.Builder.ex(1000));
+        syncCommands.incrby("aofCounter", 41);
+        syncCommands.incrbyfloat("aofFloat", 0.5);
+        syncCommands.append("aofAppended", "ab");
+        syncCommands.append("aofAppended", "cd");
+
+        RedisLikeService restored = new RedisLikeService();
+        AppendOnlyFile.load(aofPath, restored);
+        assertEquals("3", string(restored.hget(ByteKey.of("aofHash"), bytes("field"))));
+        assertEquals(1L, restored.llen(ByteKey.of("aofList")));
+        assertFalse(restored.sismember(ByteKey.of("aofSet"), bytes("1")));
+        assertTrue(restored.sismember(ByteKey.of("aofSet"), bytes("2")));
+        assertEquals(3.0, restored.zscore(ByteKey.of("aofZset"), bytes("member")));
+        assertEquals("42", string(restored.get(bytes("aofCounter"))));
+        assertEquals(1000, restored.pttl(ByteKey.of("aofCounter")) / 1000, 1);
+        assertEquals("0.5", string(restored.get(bytes("aofFloat"))));
+        assertEquals("abcd", string(restored.get(bytes("aofAppended"))));
+        restored.shutdown();
+    }
+
+    @Test
+    void testTruncatedTailIsDropped() throws IOException {
+        Path copy = Files.createTempFile("redisclone", ".aof");
+        copy.toFile().deleteOnExit();
+        byte[] complete = "*3\r\n$3\r\nSET\r\n$4\r\nkey1\r\n$3\r\none\r\n".getBytes(StandardCharsets.US_ASCII);
+        Files.write(copy, complete);
+        Files.write(copy, "*3\r\n$3\r\nSET\r\n$4\r\nkey2\r\n$3\r\ntw".getBytes(StandardCharsets.US_ASCII),
+                StandardOpenOption.APPEND);
+
+        RedisLikeService restored = new RedisLikeService();
+        assertEquals(1, AppendOnlyFile.load(copy, restored));
+        assertEquals("one", string(restored.get(bytes("key1"))));
+        assertNull(restored.get(bytes("key2")));
+        assertEquals(complete.length, Files.size(copy));
+        restored.shutdown();
+    }
+
+    @Test
+    void testRestartCompressesReplayedValues() throws IOException {
+        String value = "compressible ".repeat(100);
+        syncCommands.set("aofCompressed", value);
+        Path copy = Files.createTempFile("redisclone", ".aof");
+        copy.toFile().deleteOnExit();
+        Files.copy(aofPath, copy, StandardCopyOption.REPLACE_EXISTING);
+
+        RedisLikeService restored = Main.createService(new ServerConfig().setAppendOnly(true)
+                .setAppendFilename(copy.toString()).setCompressionThreshold(256));
+        try {
+            assertEquals(value, string(restored.get(bytes("aofCompressed"))));
+            assertTrue(restored.getStorageEngine().compressedValues() >= 1);
+            assertTrue(restored.getStorageEngine().compressionSavedBytes() > 0);
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void testRestartReplaysEverythingBeforeApplyingMaxMemory() throws IOException {
+        syncCommands.set("aofOverLimit", "value");
+        Path copy = Files.createTempFile("redisclone", ".aof");
+        copy.toFile().deleteOnExit();
+        Files.copy(aofPath, copy, StandardCopyOption.REPLACE_EXISTING);
+
+        RedisLikeService restored = Main.createService(new ServerConfig().setAppendOnly(true)
+                .setAppendFilename(copy.toString()).setMaxMemory(1));
+        try {
+            assertEquals("value", string(restored.get(bytes("aofOverLimit"))));
+            assertEquals(1, restored.getMaxMemory());
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void testFailingCommandStopsReplay() throws IOException {
+        Path copy = Files.createTempFile("redisclone", ".aof");
+        copy.toFile().deleteOnExit();
+        Files.write(copy, ("*3\r\n$3\r\nSET\r\n$4\r\nkey1\r\n$3\r\none\r\n"
+                + "*2\r\n$4\r\nINCR\r\n$4\r\nkey1\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        RedisLikeService restored = new RedisLikeService();
+        try {
+            IOException e = assertThrows(IOException.class, () -> AppendOnlyFile.load(copy, restored));
+            assertTrue(e.getMessage().contains("command 2"), e.getMessage());
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,370 @@
+package org.cy.redisclone;
+
+import io.lettuce.core.MigrateArgs;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.models.slots.ClusterSlotRange;
+import io.lettuce.core.cluster.models.slots.ClusterSlotsParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the integration suite against a single cluster node serving every hash slot, and
+ * checks redirects and slot migration between nodes started on other loopback ports.
+ */
+public class ClusterRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+
+    @Override
+    protected RedisServer createServer(int port, RedisLikeService service) {
+        service.enableCluster("127.0.0.1", port);
+        int[] slots = new int[HashSlot.SLOTS];
+        for (int slot = 0; slot < slots.length; slot++) {
+            slots[slot] = slot;
+        }
+        service.getCluster().addSlots(slots);
+        return new RedisServer(port, service);
+    }
+
+    @Test
+    void testClusterInfoOnSingleNode() {
+        String info = syncCommands.clusterInfo();
+        assertTrue(info.contains("cluster_state:ok"));
+        assertTrue(info.contains("cluster_slots_assigned:16384"));
+        assertTrue(info.contains("cluster_known_nodes:1"));
+        assertEquals(1, infoField("cluster_enabled"));
+
+        String id = syncCommands.clusterMyId();
+        assertEquals(40, id.length());
+        assertTrue(syncCommands.clusterNodes().startsWith(id + " 127.0.0.1:" + port + "@" + port + " myself,master"));
+        assertEquals(12182, syncCommands.clusterKeyslot("foo"));
+
+        List<Object> slots = syncCommands.clusterSlots();
+        assertEquals(1, slots.size());
+        ClusterSlotRange range = ClusterSlotsParser.parse(slots).get(0);
+        assertEquals(0, range.getFrom());
+        assertEquals(16383, range.getTo());
+
+        syncCommands.set("{slotKeys}a", "1");
+        syncCommands.set("{slotKeys}b", "2");
+        int slot = syncCommands.clusterKeyslot("{slotKeys}").intValue();
+        assertEquals(2, syncCommands.clusterCountKeysInSlot(slot));
+        assertEquals(1, syncCommands.clusterGetKeysInSlot(slot, 1).size());
+        assertThrows(RedisCommandExecutionException.class, () -> syncCommands.clusterCountKeysInSlot(16384));
+        assertThrows(RedisCommandExecutionException.class, () -> syncCommands.clusterAddSlots(0));
+    }
+
+    @Test
+    void testSlotKeyCountsFollowTheKeyspace() throws InterruptedException {
+        ByteKey a = ByteKey.of("{counted}a");
+        ByteKey b = ByteKey.of("{counted}b");
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        int slot = HashSlot.of(a);
+        for (String type : List.of("heap", "offheap")) {
+            for (int shards : new int[]{1, 4}) {
+                StorageEngine engine = StorageEngine.create(type, shards);
+                String name = type + " x" + shards;
+                engine.set(a, value, StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+                engine.set(a, value, StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+                engine.set(b, value, StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+                assertEquals(2, engine.countKeysInSlot(slot), name);
+                assertEquals(0, engine.countKeysInSlot((slot + 1) % HashSlot.SLOTS), name);
+
+                assertTrue(engine.remove(a), name);
+                assertEquals(1, engine.countKeysInSlot(slot), name);
+                engine.setExpireAt(b, System.currentTimeMillis() + 1);
+                awaitTrue(() -> !engine.containsKey(b));
+                assertEquals(0, engine.countKeysInSlot(slot), name);
+
+                engine.set(a, value, StorageEngine.NO_EXPIRY, StorageEngine.SetCondition.ALWAYS);
+                engine.clear();
+                assertEquals(0, engine.countKeysInSlot(slot), name);
+            }
+        }
+    }
+
+    @Test
+    void testMovedRedirects() throws Exception {
+        try (Node first = new Node(); Node second = new Node()) {
+            first.commands.clusterAddSlots(slots(0, 8191));
+            second.commands.clusterAddSlots(slots(8192, 16383));
+            first.commands.clusterMeet("127.0.0.1", second.port);
+            awaitTrue(() -> first.commands.clusterInfo().contains("cluster_state:ok")
+                    && second.commands.clusterInfo().contains("cluster_state:ok"));
+            assertTrue(second.commands.clusterInfo().contains("cluster_known_nodes:2"));
+
+            // foo hashes to 12182, bar to 5061
+            second.commands.set("foo", "1");
+            first.commands.set("bar", "2");
+            RedisCommandExecutionException moved = assertThrows(RedisCommandExecutionException.class,
+                    () -> first.commands.get("foo"));
+            assertEquals("MOVED 12182 127.0.0.1:" + second.port, moved.getMessage());
+            assertThrows(RedisCommandExecutionException.class, () -> first.commands.mget("foo", "bar"));
+
+            RedisClusterClient clusterClient = RedisClusterClient.create("redis://127.0.0.1:" + first.port);
+            try (StatefulRedisClusterConnection<String, String> connection = clusterClient.connect()) {
+                RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+                assertEquals("1", commands.get("foo"));
+                assertEquals("2", commands.get("bar"));
+                for (int i = 0; i < 100; i++) {
+                    commands.set("spread" + i, String.valueOf(i));
+                }
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(String.valueOf(i), commands.get("spread" + i));
+                }
+            } finally {
+                clusterClient.shutdown();
+            }
+            assertEquals(100, first.service.getStorageEngine().size() + second.service.getStorageEngine().size() - 2);
+            assertTrue(first.service.getStorageEngine().size() > 1);
+            assertTrue(second.service.getStorageEngine().size() > 1);
+        }
+    }
+
+    @Test
+    void testSlotMigration() throws Exception {
+        try (Node source = new Node(); Node target = new Node()) {
+            source.commands.clusterAddSlots(slots(0, 16383));
+            source.commands.clusterMeet("127.0.0.1", target.port);
+            awaitTrue(() -> target.commands.clusterInfo().contains("cluster_state:ok")
+                    && source.commands.clusterInfo().contains("cluster_known_nodes:2"));
+            String sourceId = source.commands.clusterMyId();
+            String targetId = target.commands.clusterMyId();
+            int slot = source.commands.clusterKeyslot("{moving}").intValue();
+            source.commands.set("{moving}1", "one");
+            source.commands.set("{moving}2", "two");
+            source.commands.hset("{moving}3", "field", "three");
+            source.commands.pexpire("{moving}1", 60_000);
+
+            target.commands.clusterSetSlotImporting(slot, sourceId);
+            source.commands.clusterSetSlotMigrating(slot, targetId);
+            assertEquals("OK", source.commands.migrate("127.0.0.1", target.port, 0, 5000,
+                    MigrateArgs.Builder.keys("{moving}1", "{moving}3")));
+
+            // Keys still here are served, moved ones are asked for on the target
+            assertEquals("two", source.commands.get("{moving}2"));
+            RedisCommandExecutionException ask = assertThrows(RedisCommandExecutionException.class,
+                    () -> source.commands.get("{moving}1"));
+            assertEquals("ASK " + slot + " 127.0.0.1:" + target.port, ask.getMessage());
+            assertThrows(RedisCommandExecutionException.class, () -> source.commands.mget("{moving}1", "{moving}2"));
+
+            RedisCommandExecutionException moved = assertThrows(RedisCommandExecutionException.class,
+                    () -> target.commands.get("{moving}1"));
+            assertTrue(moved.getMessage().startsWith("MOVED " + slot));
+            assertEquals("OK", target.commands.asking());
+            assertEquals("one", target.commands.get("{moving}1"));
+            target.commands.asking();
+            assertTrue(target.commands.pttl("{moving}1") > 0);
+            target.commands.asking();
+            assertEquals("three", target.commands.hget("{moving}3", "field"));
+
+            // SETSLOT NODE is refused while the source still holds keys of the slot
+            assertThrows(RedisCommandExecutionException.class, () -> source.commands.clusterSetSlotNode(slot, targetId));
+            assertEquals("OK", source.commands.migrate("127.0.0.1", target.port, "{moving}2", 0, 5000));
+            assertEquals(0, source.commands.clusterCountKeysInSlot(slot));
+            target.commands.clusterSetSlotNode(slot, targetId);
+            source.commands.clusterSetSlotNode(slot, targetId);
+
+            assertEquals(3, target.commands.clusterCountKeysInSlot(slot));
+            assertEquals("two", target.commands.get("{moving}2"));
+            moved = assertThrows(RedisCommandExecutionException.class, () -> source.commands.get("{moving}2"));
+            assertEquals("MOVED " + slot + " 127.0.0.1:" + target.port, moved.getMessage());
+            // The target's new epoch wins, so the source keeps its view after the next bus rounds
+            Thread.sleep(500);
+            assertEquals(target.service.getCluster().myself().getId(), source.service.getCluster().owner(slot).getId());
+            assertTrue(target.service.getCluster().myself().getConfigEpoch() > 0);
+        }
+    }
+
+    @Test
+    void testMigrateWaitsForTargetWithoutBlocking() throws Exception {
+        try (Node source = new Node(ServerMode.NIO); SlowTarget target = new SlowTarget()) {
+            source.commands.clusterAddSlots(slots(0, 16383));
+            source.commands.set("inflight", "before");
+            // A key sharing the write lock stripe of the migrating one
+            int stripe = ByteKey.of("inflight").hashCode() & 255;
+            String neighbour = null;
+            for (int i = 0; neighbour == null; i++) {
+                if ((ByteKey.of("neighbour" + i).hashCode() & 255) == stripe) {
+                    neighbour = "neighbour" + i;
+                }
+            }
+
+            RedisFuture<String> migrated;
+            try (StatefulRedisConnection<String, String> migrating = source.client.connect()) {
+                migrated = migrating.async().migrate("127.0.0.1", target.port, "inflight", 0, 10_000);
+                assertTrue(target.firstRestore.await(5, TimeUnit.SECONDS));
+                // The only event loop and the key's lock stripe stay free while the target holds its replies
+                assertEquals("PONG", source.commands.ping());
+                assertEquals("OK", source.commands.set(neighbour, "1"));
+                assertEquals("OK", source.commands.set("inflight", "after"));
+                assertFalse(migrated.isDone());
+                target.release.countDown();
+                assertEquals("OK", migrated.get(5, TimeUnit.SECONDS));
+            }
+
+            // Written to in flight, so sent again with the new value before being deleted
+            List<List<String>> restores = target.restores();
+            assertEquals(2, restores.size());
+            assertTrue(restores.get(0).get(3).contains("before"));
+            assertTrue(restores.get(1).get(3).contains("after"));
+            assertEquals("REPLACE", restores.get(1).get(4));
+            assertEquals(0, source.commands.exists("inflight"));
+            assertEquals("1", source.commands.get(neighbour));
+        }
+    }
+
+    private static int[] slots(int first, int last) {
+        return IntStream.rangeClosed(first, last).toArray();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in time");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * A cluster node with no slots, on a port of its own.
+     */
+    private static final class Node implements AutoCloseable {
+        final RedisLikeService service = new RedisLikeService();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final int port;
+        final RedisClient client;
+        final StatefulRedisConnection<String, String> connection;
+        final RedisCommands<String, String> commands;
+
+        Node() throws IOException, InterruptedException {
+            this(ServerMode.THREAD);
+        }
+
+        Node(ServerMode mode) throws IOException, InterruptedException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            service.enableCluster("127.0.0.1", port);
+            ServerConfig config = new ServerConfig().setPort(port).setMode(mode).setIoThreads(1);
+            executor.submit(() -> {
+                try {
+                    new RedisServer(config, service).start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            Thread.sleep(300);
+            client = RedisClient.create("redis://127.0.0.1:" + port);
+            connection = client.connect();
+            commands = connection.sync();
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+            client.shutdown();
+            service.shutdown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers every command with {@code +OK}, but holds back the reply to the first
+     * {@code RESTORE} until released, and records the {@code RESTORE}s it gets.
+     */
+    private static final class SlowTarget implements AutoCloseable {
+        final ServerSocket server = new ServerSocket(0);
+        final int port = server.getLocalPort();
+        final CountDownLatch firstRestore = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final List<List<String>> restores = new CopyOnWriteArrayList<>();
+        private final Thread thread = new Thread(this::serve, "slow-target");
+
+        SlowTarget() throws IOException {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        List<List<String>> restores() {
+            return restores;
+        }
+
+        private void serve() {
+            try (Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    List<String> command = readCommand(in);
+                    if (command.get(0).equalsIgnoreCase("RESTORE")) {
+                        restores.add(command);
+                        if (restores.size() == 1) {
+                            firstRestore.countDown();
+                            release.await();
+                        }
+                    }
+                    out.write("+OK\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The source closed the connection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static List<String> readCommand(DataInputStream in) throws IOException {
+            int count = Integer.parseInt(readLine(in).substring(1));
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] arg = new byte[Integer.parseInt(readLine(in).substring(1))];
+                in.readFully(arg);
+                readLine(in);
+                args.add(new String(arg, StandardCharsets.ISO_8859_1));
+            }
+            return args;
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.readUnsignedByte()) != '\r') {
+                line.append((char) b);
+            }
+            in.readUnsignedByte();
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            release.countDown();
+            server.close();
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost {@link CommandStats} adds to every command: two {@code System.nanoTime()}
+ * calls and the striped counter updates, alone and from many threads at once.
+ * <pre>
+ * mvn -Pbenchmark test -Djmh.args="CommandStatsBenchmark"
+ * mvn -Pbenchmark test -Djmh.args="CommandStatsBenchmark -t 8"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class CommandStatsBenchmark {
+    private final CommandStats stats = new CommandStats();
+
+    @Benchmark
+    public void record() {
+        long start = System.nanoTime();
+        stats.record(CommandType.GET, System.nanoTime() - start, false);
+    }
+
+    @Benchmark
+    public long nanoTimeOnly() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+}
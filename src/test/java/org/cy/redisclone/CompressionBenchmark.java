@@ -0,0 +1,92 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code GET} of large JSON-like values into a reply buffer, as the executor writes them,
+ * with compression off ({@code compressionThreshold} 0) and on. The memory per key of
+ * the prefilled keyspace is printed once per trial.
+ * <pre>
+ * mvn -Pbenchmark test -Djmh.args="CompressionBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CompressionBenchmark {
+    private static final int KEY_COUNT = 10_000;
+
+    @Param({"0", "1024"})
+    public int compressionThreshold;
+
+    @Param({"4096", "65536"})
+    public int valueSize;
+
+    private RedisLikeService service;
+    private ByteKey[] keys;
+
+    @State(Scope.Thread)
+    public static class Reply {
+        final ReplyBuffer out = new ReplyBuffer();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = new RedisLikeService(StorageEngine.create("heap"));
+        service.getStorageEngine().setCompressionThreshold(compressionThreshold);
+        keys = new ByteKey[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = ByteKey.of(("doc:" + i).getBytes(StandardCharsets.US_ASCII));
+            service.set(keys[i], document(i, valueSize));
+        }
+        StorageEngine engine = service.getStorageEngine();
+        System.out.printf("%n%d keys of %d bytes, threshold %d: %d bytes/key, %d compressed%n", KEY_COUNT, valueSize,
+                compressionThreshold, engine.usedMemory() / engine.size(), engine.compressedValues());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.getStorageEngine().clear();
+        service.shutdown();
+    }
+
+    @Benchmark
+    public int get(Reply reply) throws IOException {
+        Object value = service.getEncoded(keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)]);
+        if (value instanceof CompressedValue) {
+            RESPHandler.writeBulk(reply.out, (CompressedValue) value);
+        } else {
+            RESPHandler.writeBulk(reply.out, (byte[]) value);
+        }
+        int length = reply.out.pending();
+        reply.out.writeTo(OutputStream.nullOutputStream());
+        return length;
+    }
+
+    /**
+     * @return a JSON array of records with repeated field names and varying values, about
+     * as compressible as typical API payloads
+     */
+    private static byte[] document(int seed, int size) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder json = new StringBuilder(size + 128).append('[');
+        for (int i = 0; json.length() < size - 2; i++) {
+            json.append("{\"id\":").append(seed * 1000 + i)
+                    .append(",\"user\":\"user").append(random.nextInt(100_000))
+                    .append("\",\"score\":").append(random.nextInt(1000))
+                    .append(",\"active\":").append(random.nextBoolean())
+                    .append(",\"tags\":[\"a\",\"b\"]},");
+        }
+        json.setLength(Math.min(json.length(), size - 1));
+        return json.append(']').toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,123 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the server modes under a connection storm: 32 client threads repeatedly
+ * connect, PING and disconnect while a population of idle connections is held open.
+ * <p>
+ * Setup prints the heap retained per idle connection and the number of live platform
+ * threads, which is where the thread-per-connection mode pays for its native stacks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@Threads(32)
+public class ConnectionStormBenchmark {
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int PONG_LENGTH = "+PONG\r\n".length();
+
+    @Param({"THREAD", "VIRTUAL", "NIO"})
+    public ServerMode mode;
+
+    @Param({"1000", "10000"})
+    public int idleConnections;
+
+    private int port;
+    private final List<Socket> idle = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig()
+                .setPort(port)
+                .setMode(mode)
+                .setMaxClients(idleConnections + 1024);
+        RedisServer server = new RedisServer(config, new RedisLikeService());
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServer();
+
+        long heapBefore = usedHeap();
+        for (int i = 0; i < idleConnections; i++) {
+            idle.add(connectAndPing());
+        }
+        long heapAfter = usedHeap();
+        System.out.printf("%n%s: %d idle connections, %d heap bytes/connection, %d live threads%n",
+                mode, idleConnections, (heapAfter - heapBefore) / idleConnections,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        idle.clear();
+    }
+
+    @Benchmark
+    public void connectPingClose() throws IOException {
+        connectAndPing().close();
+    }
+
+    private Socket connectAndPing() throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write(PING);
+        InputStream in = socket.getInputStream();
+        byte[] reply = new byte[PONG_LENGTH];
+        int read = 0;
+        while (read < reply.length) {
+            int n = in.read(reply, read, reply.length - read);
+            if (n == -1) {
+                throw new IOException("Connection closed by server");
+            }
+            read += n;
+        }
+        return socket;
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                connectAndPing().close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
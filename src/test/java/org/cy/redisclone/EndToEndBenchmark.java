@@ -0,0 +1,150 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code GET} and {@code SET} over loopback against a running {@link RedisServer}, each
+ * benchmark thread with its own connection sending pipelines of {@code depth} commands.
+ * The score counts pipelines, so multiply by the depth for commands per second. Vary the
+ * client count with JMH's {@code -t}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final int KEYS = 10_000;
+    private static final int VALUE_SIZE = 64;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"THREAD", "NIO"})
+        public ServerMode mode;
+
+        int port;
+        RedisLikeService service;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            service = new RedisLikeService();
+            byte[] value = new byte[VALUE_SIZE];
+            for (int i = 0; i < KEYS; i++) {
+                service.set(("key:" + i).getBytes(StandardCharsets.US_ASCII), value);
+            }
+            RedisServer server = new RedisServer(new ServerConfig().setPort(port).setMode(mode), service);
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "benchmark-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            service.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({"1", "16", "64"})
+        public int depth;
+
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private byte[] gets;
+        private byte[] sets;
+        private byte[] replies;
+        private int getRepliesLength;
+        private int setRepliesLength;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws Exception {
+            socket = connectWithRetry(server.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = socket.getInputStream();
+            ByteArrayOutputStream getBatch = new ByteArrayOutputStream();
+            ByteArrayOutputStream setBatch = new ByteArrayOutputStream();
+            String value = "v".repeat(VALUE_SIZE);
+            for (int i = 0; i < depth; i++) {
+                String key = "key:" + (i * 7919 % KEYS);
+                getBatch.writeBytes(command("GET", key));
+                setBatch.writeBytes(command("SET", key, value));
+            }
+            gets = getBatch.toByteArray();
+            sets = setBatch.toByteArray();
+            // Every key exists with a value of the same size, so the replies have a fixed length
+            getRepliesLength = depth * ("$" + VALUE_SIZE + "\r\n\r\n").length() + depth * VALUE_SIZE;
+            setRepliesLength = depth * "+OK\r\n".length();
+            replies = new byte[Math.max(getRepliesLength, setRepliesLength)];
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        int roundTrip(byte[] batch, int repliesLength) throws IOException {
+            out.write(batch);
+            int read = 0;
+            while (read < repliesLength) {
+                int n = in.read(replies, read, repliesLength - read);
+                if (n == -1) {
+                    throw new IOException("Connection closed by server");
+                }
+                read += n;
+            }
+            return read;
+        }
+
+        private static byte[] command(String... args) {
+            StringBuilder command = new StringBuilder("*").append(args.length).append("\r\n");
+            for (String arg : args) {
+                command.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+            }
+            return command.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private static Socket connectWithRetry(int port) throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new Socket("localhost", port);
+                } catch (IOException e) {
+                    if (attempt == 100) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int get(Client client) throws IOException {
+        return client.roundTrip(client.gets, client.getRepliesLength);
+    }
+
+    @Benchmark
+    public int set(Client client) throws IOException {
+        return client.roundTrip(client.sets, client.setRepliesLength);
+    }
+}
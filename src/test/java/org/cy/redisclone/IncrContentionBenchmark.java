@@ -0,0 +1,45 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code INCR} on a single hot key from 32 threads, the worst case for the per-key write
+ * lock: every increment parses, formats and stores the counter under the same stripe.
+ * <pre>
+ * mvn -Pbenchmark test -Djmh.args="IncrContentionBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(32)
+public class IncrContentionBenchmark {
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    private RedisLikeService service;
+    private ByteKey key;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = new RedisLikeService(StorageEngine.create(engine, 1));
+        key = ByteKey.of("counter".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.getStorageEngine().clear();
+        service.shutdown();
+    }
+
+    @Benchmark
+    public long incr() {
+        return service.incrBy(key, 1);
+    }
+}
@@ -0,0 +1,73 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RedisLikeService} without the protocol: {@code GET} and {@code SET} on random
+ * keys of a prefilled keyspace, and a {@code KEYS} walk of the whole keyspace. Vary the
+ * thread count with JMH's {@code -t}, e.g.
+ * <pre>
+ * mvn -Pbenchmark test -Djmh.args="KeyspaceBenchmark -t 4"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:MaxDirectMemorySize=4g"})
+public class KeyspaceBenchmark {
+    private static final byte[] MATCH_ALL = {'*'};
+
+    @Param({"10000", "1000000"})
+    public int keyCount;
+
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    private RedisLikeService service;
+    private ByteKey[] keys;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = new RedisLikeService(StorageEngine.create(engine));
+        keys = new ByteKey[keyCount];
+        value = new byte[64];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = ByteKey.of(("key:" + i).getBytes(StandardCharsets.US_ASCII));
+            service.set(keys[i], value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.getStorageEngine().clear();
+        service.shutdown();
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return service.get(keys[ThreadLocalRandom.current().nextInt(keyCount)]);
+    }
+
+    @Benchmark
+    public ByteKey set() {
+        ByteKey key = keys[ThreadLocalRandom.current().nextInt(keyCount)];
+        service.set(key, value);
+        return key;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long keys() {
+        long[] matched = new long[1];
+        service.keys(MATCH_ALL, key -> matched[0]++);
+        return matched[0];
+    }
+}
@@ -0,0 +1,12 @@
+package org.cy.redisclone;
+
+/**
+ * Runs the integration suite against the selector based event-loop server mode.
+ */
+public class NioRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+
+    @Override
+    protected RedisServer createServer(int port, RedisLikeService service) {
+        return new RedisServer(new ServerConfig().setPort(port).setMode(ServerMode.NIO).setIoThreads(2), service);
+    }
+}
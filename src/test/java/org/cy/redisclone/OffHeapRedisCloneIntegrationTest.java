@@ -0,0 +1,12 @@
+package org.cy.redisclone;
+
+/**
+ * Runs the integration suite with keys and values held by the off-heap storage engine.
+ */
+public class OffHeapRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+
+    @Override
+    protected RedisLikeService createService() {
+        return new RedisLikeService(new OffHeapStorageEngine());
+    }
+}
@@ -0,0 +1,98 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The protocol layer without sockets: parsing a pipelined batch of {@code SET} requests
+ * as it arrives in read-sized chunks, and encoding the common reply shapes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({"1", "64"})
+    public int pipeline;
+
+    private byte[] requests;
+    private byte[] value;
+    private CommandParser parser;
+    private ReplyBuffer replies;
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        value = new byte[valueSize];
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (int i = 0; i < pipeline; i++) {
+            String key = "key:" + i;
+            batch.writeBytes(("*3\r\n$3\r\nSET\r\n$" + key.length() + "\r\n" + key + "\r\n$" + valueSize + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            batch.writeBytes(value);
+            batch.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        requests = batch.toByteArray();
+        parser = new CommandParser();
+        replies = new ReplyBuffer();
+    }
+
+    /**
+     * Feeds the batch in chunks of whatever room the read buffer has, as a socket read
+     * would, parsing after each chunk.
+     */
+    @Benchmark
+    public int parse(Blackhole blackhole) {
+        int commands = 0;
+        int fed = 0;
+        while (fed < requests.length) {
+            ByteBuffer buffer = parser.writableBuffer();
+            int chunk = Math.min(buffer.remaining(), requests.length - fed);
+            buffer.put(requests, fed, chunk);
+            fed += chunk;
+            for (CommandArgs args = parser.next(); args != null; args = parser.next()) {
+                blackhole.consume(args.getKey(1));
+                commands++;
+            }
+        }
+        return commands;
+    }
+
+    @Benchmark
+    public void encodeBulks() throws IOException {
+        for (int i = 0; i < pipeline; i++) {
+            RESPHandler.writeBulk(replies, value);
+        }
+        replies.writeTo(sink);
+    }
+
+    @Benchmark
+    public void encodeStatusAndIntegers() throws IOException {
+        for (int i = 0; i < pipeline; i++) {
+            RESPHandler.writeOk(replies);
+            RESPHandler.writeInteger(replies, i * 1_000_003L);
+        }
+        replies.writeTo(sink);
+    }
+
+    @Benchmark
+    public void encodeArray() throws IOException {
+        RESPHandler.writeArrayHeader(replies, pipeline);
+        for (int i = 0; i < pipeline; i++) {
+            RESPHandler.writeBulk(replies, value);
+        }
+        replies.writeTo(sink);
+    }
+}
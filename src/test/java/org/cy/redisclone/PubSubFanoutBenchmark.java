@@ -0,0 +1,174 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publish-to-deliver latency: one {@code PUBLISH} to a channel with {@code subscribers}
+ * connections, timed until every subscriber has read the whole message. The subscribers
+ * are read by a single selector thread, as a fleet of application nodes would each read
+ * their own socket.
+ * <pre>
+ * mvn -Pbenchmark test -Djmh.args="PubSubFanoutBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class PubSubFanoutBenchmark {
+    private static final String CHANNEL = "invalidate";
+    private static final int PAYLOAD_SIZE = 64;
+
+    @Param({"THREAD", "NIO"})
+    public ServerMode mode;
+
+    @Param({"1000"})
+    public int subscribers;
+
+    private RedisLikeService service;
+    private Socket publisher;
+    private InputStream publisherIn;
+    private byte[] publish;
+    private final byte[] publishReply = new byte[64];
+    private int messageLength;
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private Selector selector;
+    private Thread reader;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private long expectedBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        service = new RedisLikeService();
+        RedisServer server = new RedisServer(new ServerConfig().setPort(port).setMode(mode), service);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        String payload = "p".repeat(PAYLOAD_SIZE);
+        publish = command("PUBLISH", CHANNEL, payload);
+        messageLength = ("*3\r\n$7\r\nmessage\r\n$" + CHANNEL.length() + "\r\n" + CHANNEL + "\r\n$"
+                + PAYLOAD_SIZE + "\r\n" + payload + "\r\n").length();
+        byte[] subscribe = command("SUBSCRIBE", CHANNEL);
+        int confirmationLength = ("*3\r\n$9\r\nsubscribe\r\n$" + CHANNEL.length() + "\r\n" + CHANNEL + "\r\n:1\r\n").length();
+        selector = Selector.open();
+        for (int i = 0; i < subscribers; i++) {
+            SocketChannel channel = connectWithRetry(port);
+            channel.write(ByteBuffer.wrap(subscribe));
+            ByteBuffer confirmation = ByteBuffer.allocate(confirmationLength);
+            while (confirmation.hasRemaining()) {
+                if (channel.read(confirmation) == -1) {
+                    throw new IOException("Subscriber disconnected");
+                }
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channels.add(channel);
+        }
+        reader = new Thread(this::readMessages, "benchmark-subscribers");
+        reader.setDaemon(true);
+        reader.start();
+
+        publisher = new Socket("localhost", port);
+        publisher.setTcpNoDelay(true);
+        publisherIn = publisher.getInputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.interrupt();
+        selector.close();
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        publisher.close();
+        service.shutdown();
+    }
+
+    @Benchmark
+    public long publishAndDeliver() throws IOException {
+        expectedBytes += (long) messageLength * subscribers;
+        publisher.getOutputStream().write(publish);
+        // The reply is the receiver count, ":1000\r\n"
+        int read = 0;
+        while (read < 3 || publishReply[read - 1] != '\n') {
+            int n = publisherIn.read(publishReply, read, publishReply.length - read);
+            if (n == -1) {
+                throw new IOException("Publisher disconnected");
+            }
+            read += n;
+        }
+        while (receivedBytes.get() < expectedBytes) {
+            Thread.onSpinWait();
+        }
+        return expectedBytes;
+    }
+
+    private void readMessages() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    int n;
+                    while ((n = channel.read(buffer)) > 0) {
+                        receivedBytes.addAndGet(n);
+                        buffer.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | java.nio.channels.ClosedSelectorException e) {
+            // Torn down
+        }
+    }
+
+    private static byte[] command(String... args) {
+        StringBuilder command = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            command.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        return command.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static SocketChannel connectWithRetry(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return SocketChannel.open(new InetSocketAddress("localhost", port));
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -1,28 +1,86 @@
 package org.cy.redisclone;
 
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.KillArgs;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.ZAddArgs;
 import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.NestedMultiOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import org.junit.jupiter.api.*;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 public class RedisCloneIntegrationTest {
+    private static final ProtocolKeyword LATENCY = new ProtocolKeyword() {
+        @Override
+        public byte[] getBytes() {
+            return name().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String name() {
+            return "LATENCY";
+        }
+    };
+
+    private static final ProtocolKeyword MEMORY = new ProtocolKeyword() {
+        @Override
+        public byte[] getBytes() {
+            return name().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String name() {
+            return "MEMORY";
+        }
+    };
 
     private RedisServer server;
+    protected RedisLikeService service;
     private RedisClient redisClient;
     private StatefulRedisConnection<String, String> connection;
-    private RedisCommands<String, String> syncCommands;
+    protected RedisCommands<String, String> syncCommands;
     private ExecutorService executorService;
-    private int port;
+    protected int port;
 
     @BeforeAll
     void setUp() throws IOException {
@@ -34,8 +92,8 @@ public class RedisCloneIntegrationTest {
         // Start the server in a separate thread
         executorService = Executors.newSingleThreadExecutor();
         executorService.submit(() -> {
-            RedisLikeService service = new RedisLikeService();
-            server = new RedisServer(port, service);
+            service = createService();
+            server = createServer(port, service);
             try {
                 server.start();
             } catch (IOException e) {
@@ -56,6 +114,14 @@ public class RedisCloneIntegrationTest {
         syncCommands = connection.sync();
     }
 
+    protected RedisLikeService createService() {
+        return new RedisLikeService();
+    }
+
+    protected RedisServer createServer(int port, RedisLikeService service) {
+        return new RedisServer(port, service);
+    }
+
     @AfterAll
     void tearDown() {
         connection.close();
@@ -75,6 +141,57 @@ public class RedisCloneIntegrationTest {
         assertEquals("testValue", value);
     }
 
+    @Test
+    void testValueWithCrlf() {
+        syncCommands.set("crlfKey", "line1\r\nline2\r\n");
+        assertEquals("line1\r\nline2\r\n", syncCommands.get("crlfKey"));
+    }
+
+    @Test
+    void testNonAsciiValue() {
+        syncCommands.set("unicodeKey", "h\u00e9llo w\u00f6rld \u2713");
+        assertEquals("h\u00e9llo w\u00f6rld \u2713", syncCommands.get("unicodeKey"));
+    }
+
+    @Test
+    void testBinaryKeyAndValue() {
+        byte[] key = {0, (byte) 0xff, 'k', '\r', '\n'};
+        byte[] value = {(byte) 0xc3, 0, (byte) 0x80, (byte) 0xfe, '\r', '\n', 0};
+        try (StatefulRedisConnection<byte[], byte[]> binary = redisClient.connect(ByteArrayCodec.INSTANCE)) {
+            binary.sync().set(key, value);
+            assertArrayEquals(value, binary.sync().get(key));
+            assertEquals(1L, binary.sync().del(key));
+        }
+    }
+
+    @Test
+    void testLargeValue() {
+        String value = "x".repeat(1024 * 1024);
+        syncCommands.set("largeKey", value);
+        assertEquals(value, syncCommands.get("largeKey"));
+    }
+
+    @Test
+    void testPipelining() throws Exception {
+        int commands = 10000;
+        try (StatefulRedisConnection<String, String> pipelined = redisClient.connect()) {
+            RedisAsyncCommands<String, String> async = pipelined.async();
+            pipelined.setAutoFlushCommands(false);
+            List<RedisFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < commands; i++) {
+                futures.add(async.set("pipelined", "value" + i));
+                futures.add(async.get("pipelined"));
+            }
+            pipelined.flushCommands();
+
+            // Each GET must observe the SET queued right before it
+            for (int i = 0; i < commands; i++) {
+                assertEquals("OK", futures.get(2 * i).get(10, TimeUnit.SECONDS));
+                assertEquals("value" + i, futures.get(2 * i + 1).get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
     @Test
     void testDel() {
         syncCommands.set("deleteMe", "toBeDeleted");
@@ -83,6 +200,54 @@ public class RedisCloneIntegrationTest {
         assertNull(syncCommands.get("deleteMe"));
     }
 
+    @Test
+    void testMsetAndMget() {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put("mset:" + i, "value" + i);
+        }
+        assertEquals("OK", syncCommands.mset(values));
+        List<KeyValue<String, String>> read = syncCommands.mget("mset:0", "mset:missing", "mset:99");
+        assertEquals("value0", read.get(0).getValue());
+        assertFalse(read.get(1).hasValue());
+        assertEquals("value99", read.get(2).getValue());
+        assertEquals(100L, syncCommands.del(values.keySet().toArray(new String[0])));
+    }
+
+    @Test
+    void testMsetnx() {
+        assertTrue(syncCommands.msetnx(Map.of("msetnx:a", "1", "msetnx:b", "2")));
+        assertFalse(syncCommands.msetnx(Map.of("msetnx:b", "3", "msetnx:c", "4")));
+        assertEquals("2", syncCommands.get("msetnx:b"));
+        assertNull(syncCommands.get("msetnx:c"));
+        syncCommands.del("msetnx:a", "msetnx:b");
+    }
+
+    @Test
+    void testMultiKeyDelAndExists() {
+        syncCommands.set("multi:a", "1");
+        syncCommands.set("multi:b", "2");
+        assertEquals(3L, syncCommands.exists("multi:a", "multi:b", "multi:missing", "multi:a"));
+        assertEquals(2L, syncCommands.del("multi:a", "multi:missing", "multi:b", "multi:a"));
+        assertEquals(0L, syncCommands.exists("multi:a", "multi:b"));
+        RedisCommandExecutionException e = assertThrows(RedisCommandExecutionException.class,
+                () -> syncCommands.dispatch(io.lettuce.core.protocol.CommandType.MSET, new StatusOutput<>(StringCodec.UTF8),
+                        new io.lettuce.core.protocol.CommandArgs<>(StringCodec.UTF8).add("multi:a").add("1").add("multi:b")));
+        assertTrue(e.getMessage().contains("wrong number of arguments"));
+    }
+
+    @Test
+    void testUnlink() {
+        String large = "x".repeat(2 * 1024 * 1024);
+        syncCommands.set("unlink:large", large);
+        syncCommands.set("unlink:small", "value");
+        assertEquals(2L, syncCommands.unlink("unlink:large", "unlink:small", "unlink:missing"));
+        assertEquals(0L, syncCommands.exists("unlink:large", "unlink:small"));
+        syncCommands.set("unlink:large", large);
+        assertEquals(large, syncCommands.get("unlink:large"));
+        syncCommands.del("unlink:large");
+    }
+
     @Test
     void testKeys() {
         syncCommands.set("key1", "value1");
@@ -93,6 +258,633 @@ public class RedisCloneIntegrationTest {
         assertEquals(2, keys.size());
         assertTrue(keys.contains("key1"));
         assertTrue(keys.contains("key2"));
+
+        assertEquals(List.of("key1"), syncCommands.keys("k?y[^2]"));
+        assertEquals(List.of("anotherKey"), syncCommands.keys("*[A-K]ey"));
+        assertEquals(List.of("key2"), syncCommands.keys("key2"));
+        assertTrue(syncCommands.keys("key\\*").isEmpty());
+    }
+
+    @Test
+    void testAbandonedScansLeaveOtherCursorsValid() throws Exception {
+        setAll("scanKept:", 0, 100);
+        ScanArgs args = ScanArgs.Builder.matches("scanKept:*").limit(10);
+        KeyScanCursor<String> cursor = syncCommands.scan(args);
+        StorageEngine.KeyWalk walk = service.getStorageEngine().walk();
+        Set<String> walked = new HashSet<>();
+        walk.next(10, key -> walked.add(new String(key, StandardCharsets.UTF_8)));
+        // More unfinished scans than any count-bounded cursor table would keep
+        for (int i = 0; i < 2000; i++) {
+            syncCommands.scan(ScanArgs.Builder.limit(1));
+        }
+
+        Set<String> seen = new HashSet<>(cursor.getKeys());
+        while (!cursor.isFinished()) {
+            cursor = syncCommands.scan(cursor, args);
+            seen.addAll(cursor.getKeys());
+        }
+        while (walk.next(100, key -> walked.add(new String(key, StandardCharsets.UTF_8)))) {
+            // Walk on to the end
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(seen.contains("scanKept:" + i), "missing scanKept:" + i);
+            assertTrue(walked.contains("scanKept:" + i), "walk missed scanKept:" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            syncCommands.del("scanKept:" + i);
+        }
+    }
+
+    @Test
+    void testScan() throws Exception {
+        setAll("scanKey:", 0, 2000);
+        Set<String> seen = new HashSet<>();
+        ScanArgs args = ScanArgs.Builder.matches("scanKey:*").limit(100);
+        KeyScanCursor<String> cursor = syncCommands.scan(args);
+        int added = 0;
+        while (true) {
+            seen.addAll(cursor.getKeys());
+            if (cursor.isFinished()) {
+                break;
+            }
+            // Keys added mid-scan, with enough of them to force resizes, must not hide existing ones
+            setAll("scanAdded:", added, added + 50);
+            added += 50;
+            cursor = syncCommands.scan(cursor, args);
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(seen.contains("scanKey:" + i), "missing scanKey:" + i);
+        }
+        assertTrue(seen.stream().allMatch(key -> key.startsWith("scanKey:")));
+        assertEquals(2000, syncCommands.keys("scanKey:*").size());
+
+        RedisAsyncCommands<String, String> async = connection.async();
+        List<RedisFuture<Long>> deletes = new ArrayList<>();
+        for (String key : syncCommands.keys("scan*")) {
+            deletes.add(async.del(key));
+        }
+        for (RedisFuture<Long> delete : deletes) {
+            delete.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private void setAll(String prefix, int from, int to) throws Exception {
+        RedisAsyncCommands<String, String> async = connection.async();
+        List<RedisFuture<String>> futures = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            futures.add(async.set(prefix + i, "value"));
+        }
+        for (RedisFuture<String> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void testSetWithExpiry() {
+        assertEquals("OK", syncCommands.set("exKey", "value", SetArgs.Builder.ex(100)));
+        long ttl = syncCommands.ttl("exKey");
+        assertTrue(ttl > 98 && ttl <= 100, "ttl was " + ttl);
+
+        assertEquals("OK", syncCommands.set("pxKey", "value", SetArgs.Builder.px(100_000)));
+        long pttl = syncCommands.pttl("pxKey");
+        assertTrue(pttl > 98_000 && pttl <= 100_000, "pttl was " + pttl);
+    }
+
+    @Test
+    void testSetNxXx() {
+        assertEquals("OK", syncCommands.set("nxKey", "first", SetArgs.Builder.nx()));
+        assertNull(syncCommands.set("nxKey", "second", SetArgs.Builder.nx()));
+        assertEquals("first", syncCommands.get("nxKey"));
+
+        assertNull(syncCommands.set("xxMissing", "value", SetArgs.Builder.xx()));
+        assertNull(syncCommands.get("xxMissing"));
+        assertEquals("OK", syncCommands.set("nxKey", "third", SetArgs.Builder.xx()));
+        assertEquals("third", syncCommands.get("nxKey"));
+    }
+
+    @Test
+    void testExpireTtlPersist() {
+        assertEquals(-2L, syncCommands.ttl("ttlKey"));
+        assertFalse(syncCommands.expire("ttlKey", 10));
+
+        syncCommands.set("ttlKey", "value");
+        assertEquals(-1L, syncCommands.ttl("ttlKey"));
+        assertTrue(syncCommands.expire("ttlKey", 10));
+        assertEquals(10L, syncCommands.ttl("ttlKey"));
+        assertTrue(syncCommands.pexpire("ttlKey", 20_000));
+        assertTrue(syncCommands.pttl("ttlKey") > 19_000);
+
+        assertTrue(syncCommands.persist("ttlKey"));
+        assertFalse(syncCommands.persist("ttlKey"));
+        assertEquals(-1L, syncCommands.ttl("ttlKey"));
+
+        // A plain SET clears the deadline, KEEPTTL keeps it
+        syncCommands.expire("ttlKey", 10);
+        syncCommands.set("ttlKey", "other", SetArgs.Builder.keepttl());
+        assertEquals(10L, syncCommands.ttl("ttlKey"));
+        syncCommands.set("ttlKey", "other");
+        assertEquals(-1L, syncCommands.ttl("ttlKey"));
+
+        assertTrue(syncCommands.expire("ttlKey", -1));
+        assertNull(syncCommands.get("ttlKey"));
+    }
+
+    @Test
+    void testLazyExpiry() throws InterruptedException {
+        syncCommands.set("lazyKey", "value", SetArgs.Builder.px(50));
+        assertEquals("value", syncCommands.get("lazyKey"));
+        Thread.sleep(100);
+        assertNull(syncCommands.get("lazyKey"));
+        assertEquals(-2L, syncCommands.ttl("lazyKey"));
+    }
+
+    @Test
+    void testActiveExpiry() throws InterruptedException {
+        long expiredBefore = infoField("expired_keys");
+        for (int i = 0; i < 200; i++) {
+            syncCommands.set("activeKey" + i, "value", SetArgs.Builder.px(50));
+        }
+        // Never touched again, so only the background cycle can remove them
+        long deadline = System.currentTimeMillis() + 5000;
+        while (infoField("expired_keys") - expiredBefore < 200 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(infoField("expired_keys") - expiredBefore >= 200);
+    }
+
+    @Test
+    void testMaxMemoryEviction() {
+        long limit = infoField("used_memory") + 64 * 1024;
+        long evictedBefore = infoField("evicted_keys");
+        service.setEvictionPolicy(EvictionPolicy.ALLKEYS_LRU);
+        service.setMaxMemory(limit);
+        try {
+            String value = "v".repeat(1024);
+            for (int i = 0; i < 1000; i++) {
+                syncCommands.set("lruKey" + i, value);
+            }
+            assertTrue(infoField("evicted_keys") > evictedBefore);
+            assertTrue(infoField("used_memory") <= limit + 2048);
+            assertEquals(value, syncCommands.get("lruKey999"));
+        } finally {
+            service.setMaxMemory(0);
+            service.setEvictionPolicy(EvictionPolicy.NOEVICTION);
+        }
+    }
+
+    @Test
+    void testVolatileTtlEvictsOnlyKeysWithDeadline() {
+        syncCommands.set("persistentKey", "value");
+        service.setEvictionPolicy(EvictionPolicy.VOLATILE_TTL);
+        service.setMaxMemory(infoField("used_memory") + 16 * 1024);
+        try {
+            for (int i = 0; i < 200; i++) {
+                syncCommands.set("ttlEvictKey" + i, "v".repeat(256), SetArgs.Builder.ex(1000 + i));
+            }
+            assertEquals("value", syncCommands.get("persistentKey"));
+            // The sooner a key expires the likelier it was evicted, and the last one was just written
+            assertEquals(1000 + 199L, syncCommands.ttl("ttlEvictKey199"), 1);
+        } finally {
+            service.setMaxMemory(0);
+            service.setEvictionPolicy(EvictionPolicy.NOEVICTION);
+        }
+    }
+
+    @Test
+    void testNoEvictionRejectsWrites() {
+        syncCommands.set("oomKey", "value");
+        service.setMaxMemory(1);
+        try {
+            RedisCommandExecutionException e = assertThrows(RedisCommandExecutionException.class,
+                    () -> syncCommands.set("oomKey", "other"));
+            assertTrue(e.getMessage().startsWith("OOM"));
+            assertEquals("value", syncCommands.get("oomKey"));
+        } finally {
+            service.setMaxMemory(0);
+        }
+    }
+
+    @Test
+    void testIncrDecr() {
+        assertEquals(1L, syncCommands.incr("counter"));
+        assertEquals(11L, syncCommands.incrby("counter", 10));
+        assertEquals(10L, syncCommands.decr("counter"));
+        assertEquals(-5L, syncCommands.decrby("counter", 15));
+        assertEquals("-5", syncCommands.get("counter"));
+        assertEquals("int", syncCommands.objectEncoding("counter"));
+        syncCommands.expire("counter", 1000);
+        syncCommands.incr("counter");
+        assertEquals(1000L, syncCommands.ttl("counter"), 1);
+
+        syncCommands.set("counter", String.valueOf(Long.MAX_VALUE));
+        RedisCommandExecutionException e = assertThrows(RedisCommandExecutionException.class,
+                () -> syncCommands.incr("counter"));
+        assertTrue(e.getMessage().contains("overflow"));
+        syncCommands.set("counter", "007");
+        e = assertThrows(RedisCommandExecutionException.class, () -> syncCommands.incr("counter"));
+        assertTrue(e.getMessage().contains("not an integer"));
+        syncCommands.del("counter");
+    }
+
+    @Test
+    void testConcurrentIncr() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    try (StatefulRedisConnection<String, String> own = redisClient.connect()) {
+                        for (int i = 0; i < 500; i++) {
+                            own.sync().incr("hotCounter");
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals("4000", syncCommands.get("hotCounter"));
+        syncCommands.del("hotCounter");
+    }
+
+    @Test
+    void testIncrByFloat() {
+        assertEquals(10.5, syncCommands.incrbyfloat("float", 10.5));
+        assertEquals(3.0, syncCommands.incrbyfloat("float", -7.5));
+        assertEquals("3", syncCommands.get("float"));
+        syncCommands.set("float", "5.0e3");
+        assertEquals(5000.1, syncCommands.incrbyfloat("float", 0.1));
+        syncCommands.set("float", "abc");
+        assertThrows(RedisCommandExecutionException.class, () -> syncCommands.incrbyfloat("float", 1));
+        syncCommands.del("float");
+    }
+
+    @Test
+    void testAppendStrlenGetset() {
+        assertEquals(5L, syncCommands.append("appended", "Hello"));
+        assertEquals(11L, syncCommands.append("appended", " World"));
+        assertEquals("Hello World", syncCommands.get("appended"));
+        assertEquals(11L, syncCommands.strlen("appended"));
+        assertEquals(0L, syncCommands.strlen("appended:missing"));
+        syncCommands.expire("appended", 1000);
+        assertEquals("Hello World", syncCommands.getset("appended", "replaced"));
+        assertEquals(-1L, syncCommands.ttl("appended"));
+        assertNull(syncCommands.getset("appended:missing", "value"));
+        syncCommands.del("appended", "appended:missing");
+    }
+
+    @Test
+    void testLoadGenerator() throws Exception {
+        LoadGeneratorConfig config = new LoadGeneratorConfig()
+                .setPort(port)
+                .setClients(4)
+                .setRequests(2000)
+                .setPipeline(8)
+                .setKeyspace(100)
+                .setKeyPrefix("load:")
+                .setKeyDistribution(LoadGeneratorConfig.KeyDistribution.ZIPF)
+                .setPrefill(true);
+        LoadGenerator.Result result = new LoadGenerator(config).run();
+        assertEquals(2000, result.getCompleted());
+        assertEquals(0, result.getErrors());
+        assertEquals(0, result.getMisses());
+        assertEquals(2000, result.getSets() + result.getHits());
+        assertEquals(2000, result.getLatencies().getTotalCount());
+        assertTrue(result.getLatencies().getValueAtPercentile(50) <= result.getLatencies().getMax());
+        assertEquals(64, syncCommands.strlen("load:99"));
+        String[] keys = new String[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "load:" + i;
+        }
+        assertEquals(100L, syncCommands.del(keys));
+    }
+
+    @Test
+    void testHash() {
+        assertEquals(2L, syncCommands.hset("hash", Map.of("a", "1", "b", "2")));
+        assertFalse(syncCommands.hset("hash", "a", "10"));
+        assertEquals("10", syncCommands.hget("hash", "a"));
+        assertEquals(15L, syncCommands.hincrby("hash", "a", 5));
+        assertEquals(3L, syncCommands.hincrby("hash", "c", 3));
+        assertEquals(Map.of("a", "15", "b", "2", "c", "3"), syncCommands.hgetall("hash"));
+        assertEquals("listpack", syncCommands.objectEncoding("hash"));
+        assertThrows(RedisCommandExecutionException.class, () -> syncCommands.hincrby("hash", "b", Long.MAX_VALUE));
+        syncCommands.hset("hash", "long", "x".repeat(RedisObject.MAX_COMPACT_VALUE + 1));
+        assertEquals("hashtable", syncCommands.objectEncoding("hash"));
+        assertEquals(4L, syncCommands.hlen("hash"));
+        assertEquals(4L, syncCommands.hdel("hash", "a", "b", "c", "long", "missing"));
+        assertEquals(0L, syncCommands.exists("hash"));
+    }
+
+    @Test
+    void testList() {
+        assertEquals(3L, syncCommands.rpush("list", "b", "c", "d"));
+        assertEquals(4L, syncCommands.lpush("list", "a"));
+        assertEquals(List.of("a", "b", "c", "d"), syncCommands.lrange("list", 0, -1));
+        assertEquals(List.of("c", "d"), syncCommands.lrange("list", -2, 10));
+        assertEquals("d", syncCommands.rpop("list"));
+        assertEquals(List.of("a", "b"), syncCommands.lpop("list", 2));
+        assertEquals("listpack", syncCommands.objectEncoding("list"));
+        for (int i = 0; i < 200; i++) {
+            syncCommands.rpush("list", "item" + i);
+        }
+        assertEquals("ringbuffer", syncCommands.objectEncoding("list"));
+        assertEquals(201L, syncCommands.llen("list"));
+        assertEquals(List.of("c", "item0"), syncCommands.lrange("list", 0, 1));
+        assertEquals("item199", syncCommands.rpop("list"));
+        syncCommands.del("list");
+        assertNull(syncCommands.lpop("list"));
+    }
+
+    @Test
+    void testSetEncodings() {
+        assertEquals(3L, syncCommands.sadd("set", "1", "2", "3", "2"));
+        assertEquals("intset", syncCommands.objectEncoding("set"));
+        assertTrue(syncCommands.sismember("set", "2"));
+        assertFalse(syncCommands.sismember("set", "02"));
+        syncCommands.sadd("set", "member");
+        assertEquals("listpack", syncCommands.objectEncoding("set"));
+        assertEquals(Set.of("1", "2", "3", "member"), syncCommands.smembers("set"));
+        for (int i = 0; i < 200; i++) {
+            syncCommands.sadd("set", "member" + i);
+        }
+        assertEquals("hashtable", syncCommands.objectEncoding("set"));
+        assertEquals(204L, syncCommands.scard("set"));
+        assertEquals(1L, syncCommands.srem("set", "1", "missing"));
+        assertFalse(syncCommands.sismember("set", "1"));
+        syncCommands.del("set");
+    }
+
+    @Test
+    void testSortedSet() {
+        assertEquals(3L, syncCommands.zadd("zset", 2.0, "b", 1.0, "a", 3.0, "c"));
+        assertEquals(List.of("a", "b", "c"), syncCommands.zrange("zset", 0, -1));
+        assertEquals(1L, syncCommands.zadd("zset", ZAddArgs.Builder.ch(), 0.5, "c"));
+        assertEquals(0L, syncCommands.zadd("zset", ZAddArgs.Builder.gt(), 0.1, "c"));
+        assertEquals(0.5, syncCommands.zscore("zset", "c"));
+        assertEquals(List.of("c", "a", "b"), syncCommands.zrange("zset", 0, -1));
+        assertEquals(List.of("a", "b"), syncCommands.zrangebyscore("zset", Range.create(1, 2)));
+        assertEquals(List.of("b"), syncCommands.zrangebyscore("zset",
+                Range.from(Range.Boundary.excluding(1), Range.Boundary.unbounded())));
+        assertEquals("listpack", syncCommands.objectEncoding("zset"));
+        for (int i = 0; i < 200; i++) {
+            syncCommands.zadd("zset", 10 + i, "member" + i);
+        }
+        assertEquals("skiplist", syncCommands.objectEncoding("zset"));
+        assertEquals(List.of(ScoredValue.just(2, "b"), ScoredValue.just(10, "member0")),
+                syncCommands.zrangeWithScores("zset", 2, 3));
+        assertEquals(List.of("member10", "member11"), syncCommands.zrangebyscore("zset",
+                Range.create(15, 30), Limit.create(5, 2)));
+        assertEquals(2L, syncCommands.zrem("zset", "a", "member0", "missing"));
+        assertEquals(201L, syncCommands.zcard("zset"));
+        syncCommands.del("zset");
+    }
+
+    @Test
+    void testTypeAndWrongType() {
+        syncCommands.set("typed:string", "value");
+        syncCommands.sadd("typed:set", "member");
+        assertEquals("string", syncCommands.type("typed:string"));
+        assertEquals("set", syncCommands.type("typed:set"));
+        assertEquals("none", syncCommands.type("typed:missing"));
+        RedisCommandExecutionException e = assertThrows(RedisCommandExecutionException.class,
+                () -> syncCommands.get("typed:set"));
+        assertTrue(e.getMessage().startsWith("WRONGTYPE"));
+        assertThrows(RedisCommandExecutionException.class, () -> syncCommands.lpush("typed:string", "x"));
+        assertFalse(syncCommands.mget("typed:set").get(0).hasValue());
+        syncCommands.set("typed:set", "overwritten");
+        assertEquals("string", syncCommands.type("typed:set"));
+        syncCommands.del("typed:string", "typed:set");
+    }
+
+    @Test
+    void testCommandStats() {
+        syncCommands.set("stats:key", "value");
+        long calls = commandCalls("get");
+        long hits = infoField("keyspace_hits");
+        long misses = infoField("keyspace_misses");
+        assertEquals("value", syncCommands.get("stats:key"));
+        assertEquals("value", syncCommands.get("stats:key"));
+        assertNull(syncCommands.get("stats:missing"));
+        assertEquals(calls + 3, commandCalls("get"));
+        assertEquals(hits + 2, infoField("keyspace_hits"));
+        assertEquals(misses + 1, infoField("keyspace_misses"));
+
+        assertThrows(RedisCommandExecutionException.class, () -> syncCommands.incr("stats:key"));
+        assertTrue(syncCommands.info("commandstats").contains(",rejected_calls=0,failed_calls=1\r\n"));
+        assertTrue(syncCommands.info("latencystats").contains("latency_percentiles_usec_get:p50="));
+        String stats = syncCommands.info("stats");
+        assertTrue(stats.contains("total_net_input_bytes:"));
+        assertTrue(stats.contains("instantaneous_ops_per_sec:"));
+        assertFalse(stats.contains("redis_version"));
+        assertTrue(infoField("total_commands_processed") > calls);
+        assertTrue(infoField("total_net_output_bytes") > 0);
+        syncCommands.del("stats:key");
+    }
+
+    @Test
+    void testLatencyHistogram() {
+        syncCommands.set("latency:key", "value");
+        syncCommands.get("latency:key");
+        List<Object> reply = syncCommands.dispatch(LATENCY, new NestedMultiOutput<>(StringCodec.UTF8),
+                new io.lettuce.core.protocol.CommandArgs<>(StringCodec.UTF8).add("HISTOGRAM").add("get").add("unknown"));
+        assertEquals(2, reply.size());
+        assertEquals("get", reply.get(0));
+        List<?> histogram = (List<?>) reply.get(1);
+        assertEquals("calls", histogram.get(0));
+        long calls = (Long) histogram.get(1);
+        assertEquals(commandCalls("get"), calls);
+        assertEquals("histogram_usec", histogram.get(2));
+        List<?> buckets = (List<?>) histogram.get(3);
+        assertEquals(0, buckets.size() % 2);
+        assertEquals(calls, buckets.get(buckets.size() - 1));
+        long bound = (Long) buckets.get(0);
+        assertEquals(bound, Long.highestOneBit(bound));
+        syncCommands.del("latency:key");
+    }
+
+    @Test
+    void testPubSub() throws Exception {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        try (StatefulRedisPubSubConnection<String, String> pubSub = redisClient.connectPubSub()) {
+            pubSub.addListener(new RedisPubSubAdapter<>() {
+                @Override
+                public void message(String channel, String message) {
+                    received.add(channel + "=" + message);
+                }
+
+                @Override
+                public void message(String pattern, String channel, String message) {
+                    received.add(pattern + ":" + channel + "=" + message);
+                }
+            });
+            // One channel per call: Lettuce completes a command on its first confirmation
+            pubSub.sync().subscribe("news.tech");
+            pubSub.sync().subscribe("news.art");
+            pubSub.sync().psubscribe("news.*");
+            assertEquals(Map.of("news.tech", 1L, "news.none", 0L), syncCommands.pubsubNumsub("news.tech", "news.none"));
+            assertEquals(1L, syncCommands.pubsubNumpat());
+            assertEquals(Set.of("news.tech", "news.art"), new HashSet<>(syncCommands.pubsubChannels("news.*")));
+
+            assertEquals(2L, syncCommands.publish("news.tech", "hello"));
+            assertEquals(0L, syncCommands.publish("weather", "sunny"));
+            Set<String> messages = new HashSet<>();
+            messages.add(received.poll(5, TimeUnit.SECONDS));
+            messages.add(received.poll(5, TimeUnit.SECONDS));
+            assertEquals(Set.of("news.tech=hello", "news.*:news.tech=hello"), messages);
+
+            pubSub.sync().unsubscribe();
+            pubSub.sync().punsubscribe();
+            assertEquals(0L, syncCommands.publish("news.tech", "gone"));
+            assertTrue(syncCommands.pubsubChannels().isEmpty());
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void testSlowSubscriberDisconnected() throws Exception {
+        service.getPubSub().setOutputBufferLimit(256 * 1024, 0, 0);
+        try (Socket subscriber = new Socket()) {
+            subscriber.setReceiveBufferSize(4096);
+            subscriber.connect(new InetSocketAddress("localhost", port));
+            subscriber.getOutputStream().write("*2\r\n$9\r\nSUBSCRIBE\r\n$4\r\nslow\r\n".getBytes(StandardCharsets.US_ASCII));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (syncCommands.pubsubNumsub("slow").get("slow") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1L, syncCommands.pubsubNumsub("slow").get("slow"));
+            // Never read: once the socket buffers are full, the queue passes the hard limit
+            String message = "x".repeat(64 * 1024);
+            for (int i = 0; i < 1000 && syncCommands.publish("slow", message) > 0; i++) {
+                Thread.sleep(1);
+            }
+            deadline = System.currentTimeMillis() + 5000;
+            while (syncCommands.pubsubNumsub("slow").get("slow") > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0L, syncCommands.pubsubNumsub("slow").get("slow"));
+        } finally {
+            service.getPubSub().setOutputBufferLimit(PubSub.DEFAULT_HARD_LIMIT, PubSub.DEFAULT_SOFT_LIMIT,
+                    PubSub.DEFAULT_SOFT_LIMIT_SECONDS);
+        }
+    }
+
+    @Test
+    void testClientTracking() throws Exception {
+        try (Socket invalidations = new Socket("localhost", port);
+             StatefulRedisConnection<String, String> tracked = redisClient.connect();
+             StatefulRedisConnection<String, String> broadcast = redisClient.connect()) {
+            invalidations.setSoTimeout(5000);
+            OutputStream out = invalidations.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(invalidations.getInputStream(), StandardCharsets.US_ASCII));
+            out.write("*2\r\n$6\r\nCLIENT\r\n$2\r\nID\r\n".getBytes(StandardCharsets.US_ASCII));
+            long redirect = Long.parseLong(in.readLine().substring(1));
+            out.write("*2\r\n$9\r\nSUBSCRIBE\r\n$20\r\n__redis__:invalidate\r\n".getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < 6; i++) {
+                in.readLine();
+            }
+
+            assertThrows(RedisCommandExecutionException.class, () -> tracked.sync().clientTracking(TrackingArgs.Builder.enabled()));
+            assertEquals("OK", tracked.sync().clientTracking(TrackingArgs.Builder.enabled().redirect(redirect)));
+            assertEquals("OK", broadcast.sync().clientTracking(TrackingArgs.Builder.enabled().redirect(redirect).bcast().prefixes("bcast:")));
+            syncCommands.set("tracked:a", "1");
+            syncCommands.set("tracked:b", "1");
+            tracked.sync().get("tracked:a");
+            tracked.sync().mget("tracked:b", "tracked:c");
+            assertEquals(3L, infoField("tracking_total_keys"));
+
+            syncCommands.set("tracked:a", "2");
+            assertEquals("tracked:a", readInvalidation(in));
+            // Not read again since, so no longer tracked
+            syncCommands.set("tracked:a", "3");
+            syncCommands.set("untracked", "1");
+            syncCommands.del("tracked:b");
+            assertEquals("tracked:b", readInvalidation(in));
+            syncCommands.set("bcast:x", "1");
+            assertEquals("bcast:x", readInvalidation(in));
+
+            service.getTracking().setMaxKeys(1);
+            try {
+                tracked.sync().get("tracked:a");
+                assertTrue(Set.of("tracked:a", "tracked:c").contains(readInvalidation(in)));
+                assertEquals(1L, infoField("tracking_total_keys"));
+            } finally {
+                service.getTracking().setMaxKeys(Tracking.DEFAULT_MAX_KEYS);
+            }
+
+            assertEquals("OK", tracked.sync().clientTracking(TrackingArgs.Builder.enabled(false)));
+            syncCommands.set("tracked:a", "4");
+            syncCommands.set("bcast:y", "1");
+            assertEquals("bcast:y", readInvalidation(in));
+
+            assertEquals("OK", tracked.sync().clientTracking(TrackingArgs.Builder.enabled().redirect(redirect).optin()));
+            assertEquals("OK", tracked.sync().clientCaching(true));
+            assertThrows(RedisCommandExecutionException.class, () -> tracked.sync().dispatch(
+                    io.lettuce.core.protocol.CommandType.CLIENT, new StatusOutput<>(StringCodec.UTF8),
+                    new io.lettuce.core.protocol.CommandArgs<>(StringCodec.UTF8).add("CACHING").add("maybe")));
+            assertEquals("PONG", tracked.sync().ping());
+            assertEquals("OK", tracked.sync().clientTracking(TrackingArgs.Builder.enabled(false)));
+            syncCommands.del("tracked:a", "untracked", "bcast:x", "bcast:y");
+        }
+    }
+
+    @Test
+    void testClientTrackingInvalidatesExpiredKeys() throws Exception {
+        try (Socket invalidations = new Socket("localhost", port);
+             StatefulRedisConnection<String, String> tracked = redisClient.connect()) {
+            invalidations.setSoTimeout(5000);
+            OutputStream out = invalidations.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(invalidations.getInputStream(), StandardCharsets.US_ASCII));
+            out.write("*2\r\n$6\r\nCLIENT\r\n$2\r\nID\r\n".getBytes(StandardCharsets.US_ASCII));
+            long redirect = Long.parseLong(in.readLine().substring(1));
+            out.write("*2\r\n$9\r\nSUBSCRIBE\r\n$20\r\n__redis__:invalidate\r\n".getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < 6; i++) {
+                in.readLine();
+            }
+
+            assertEquals("OK", tracked.sync().clientTracking(TrackingArgs.Builder.enabled().redirect(redirect)));
+            syncCommands.set("trackedExpiring", "1", SetArgs.Builder.px(100));
+            assertEquals("1", tracked.sync().get("trackedExpiring"));
+            // Nobody reads it again: the active expiry cycle removes it
+            assertEquals("trackedExpiring", readInvalidation(in));
+            assertEquals("OK", tracked.sync().clientTracking(TrackingArgs.Builder.enabled(false)));
+        }
+    }
+
+    /**
+     * Reads an invalidation message as sent to a RESP2 subscriber of {@code __redis__:invalidate}.
+     *
+     * @return the invalidated key
+     */
+    private static String readInvalidation(BufferedReader in) throws IOException {
+        String[] expected = {"*3", "$7", "message", "$20", "__redis__:invalidate", "*1"};
+        for (String line : expected) {
+            assertEquals(line, in.readLine());
+        }
+        in.readLine();
+        return in.readLine();
+    }
+
+    private long commandCalls(String command) {
+        String prefix = "cmdstat_" + command + ":calls=";
+        for (String line : syncCommands.info("commandstats").split("\r\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(prefix.length(), line.indexOf(',')));
+            }
+        }
+        return 0;
+    }
+
+    protected long infoField(String field) {
+        for (String line : syncCommands.info().split("\r\n")) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.substring(field.length() + 1));
+            }
+        }
+        throw new AssertionError("INFO has no " + field);
     }
 
     @Test
@@ -128,4 +920,223 @@ public class RedisCloneIntegrationTest {
         assertNotNull(clientList);
         assertTrue(clientList.contains("name=TestClient"));
     }
+
+    @Test
+    void testClientListAccounting() throws Exception {
+        try (Socket client = new Socket("localhost", port)) {
+            client.setSoTimeout(5000);
+            OutputStream out = client.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            out.write(command("CLIENT", "SETNAME", "accounted"));
+            assertEquals("+OK", in.readLine());
+            out.write(command("SET", "accounted", "v".repeat(200_000)));
+            assertEquals("+OK", in.readLine());
+
+            // The reply is counted once written, which may be just after the client reads it
+            Map<String, String> fields = clientListFields("accounted");
+            for (int i = 0; i < 100 && !fields.get("tot-net-out").equals("10"); i++) {
+                Thread.sleep(10);
+                fields = clientListFields("accounted");
+            }
+            assertEquals("set", fields.get("cmd"));
+            assertEquals("2", fields.get("tot-cmds"));
+            assertEquals("N", fields.get("flags"));
+            assertTrue(Long.parseLong(fields.get("tot-net-in")) > 200_000);
+            assertEquals(10L, Long.parseLong(fields.get("tot-net-out")));
+            assertTrue(Long.parseLong(fields.get("rbs")) >= 200_000);
+
+            // Once the client sends only small commands, the large read buffer is let go
+            out.write(command("PING"));
+            assertEquals("+PONG", in.readLine());
+            out.write(command("PING"));
+            assertEquals("+PONG", in.readLine());
+            fields = clientListFields("accounted");
+            assertEquals("ping", fields.get("cmd"));
+            assertEquals("4", fields.get("tot-cmds"));
+            assertEquals("0", fields.get("qbuf"));
+            assertTrue(Long.parseLong(fields.get("rbs")) < 32 * 1024);
+
+            out.write(command("CLIENT", "NO-EVICT", "on"));
+            assertEquals("+OK", in.readLine());
+            assertEquals("e", clientListFields("accounted").get("flags"));
+            syncCommands.del("accounted");
+        }
+    }
+
+    @Test
+    void testClientKill() throws Exception {
+        try (Socket victim = new Socket("localhost", port)) {
+            victim.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(victim.getInputStream(), StandardCharsets.US_ASCII));
+            victim.getOutputStream().write(command("CLIENT", "ID"));
+            long id = Long.parseLong(in.readLine().substring(1));
+
+            assertThrows(RedisCommandExecutionException.class, () -> syncCommands.clientKill("10.0.0.1:1"));
+            assertEquals(0L, syncCommands.clientKill(KillArgs.Builder.id(id + 1_000_000)));
+            // SKIPME is on unless turned off
+            assertEquals(0L, syncCommands.clientKill(KillArgs.Builder.id(syncCommands.clientId())));
+            assertEquals(1L, syncCommands.clientKill(KillArgs.Builder.id(id)));
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSlowLog() {
+        service.getSlowLog().setSlowerThan(0);
+        try {
+            assertEquals("OK", syncCommands.slowlogReset());
+            syncCommands.set("slow", "x".repeat(300));
+            List<Object> entries = syncCommands.slowlogGet(1);
+            assertEquals(1, entries.size());
+            List<Object> entry = (List<Object>) entries.get(0);
+            assertTrue((Long) entry.get(2) >= 0);
+            List<Object> args = (List<Object>) entry.get(3);
+            assertEquals("set", ((String) args.get(0)).toLowerCase());
+            assertEquals("slow", args.get(1));
+            assertEquals("x".repeat(128) + " ... (172 more bytes)", args.get(2));
+            assertTrue(((String) entry.get(4)).contains(":"));
+            assertTrue(syncCommands.slowlogLen() >= 3);
+
+            service.getSlowLog().setMaxLen(2);
+            syncCommands.ping();
+            syncCommands.ping();
+            syncCommands.ping();
+            assertEquals(2L, syncCommands.slowlogLen());
+
+            syncCommands.slowlogReset();
+            // The reset itself is logged
+            assertEquals(1L, syncCommands.slowlogLen());
+        } finally {
+            service.getSlowLog().setSlowerThan(SlowLog.DEFAULT_SLOWER_THAN_MICROS);
+            service.getSlowLog().setMaxLen(SlowLog.DEFAULT_MAX_LEN);
+            syncCommands.del("slow");
+        }
+    }
+
+    @Test
+    void testCompressedValues() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 400; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"user").append(i).append("\",\"active\":true},");
+        }
+        String value = json.append("{}]").toString();
+        syncCommands.set("json:plain", value);
+        long plainUsage = syncCommands.memoryUsage("json:plain");
+        StorageEngine engine = service.getStorageEngine();
+        engine.setCompressionThreshold(1024);
+        try {
+            long compressedBefore = engine.compressedValues();
+            syncCommands.set("json:compressed", value);
+            syncCommands.set("json:short", "x".repeat(100));
+            assertEquals(value, syncCommands.get("json:compressed"));
+            assertEquals((long) value.length(), syncCommands.strlen("json:compressed"));
+            assertEquals(value.length() + 3L, syncCommands.append("json:compressed", "end"));
+            assertEquals(value + "end", syncCommands.get("json:compressed"));
+            assertEquals(List.of(value + "end", "x".repeat(100)), syncCommands.mget("json:compressed", "json:short")
+                    .stream().map(KeyValue::getValue).collect(java.util.stream.Collectors.toList()));
+            // Random bytes do not compress and are stored as they are
+            byte[] random = new byte[4096];
+            new java.util.Random(7).nextBytes(random);
+            try (StatefulRedisConnection<byte[], byte[]> binary = redisClient.connect(ByteArrayCodec.INSTANCE)) {
+                byte[] key = "json:random".getBytes(StandardCharsets.UTF_8);
+                binary.sync().set(key, random);
+                assertArrayEquals(random, binary.sync().get(key));
+            }
+            if (engine.name().equals("heap")) {
+                assertEquals(compressedBefore + 1, engine.compressedValues());
+                assertTrue(engine.compressionSavedBytes() > 0);
+                assertTrue(syncCommands.memoryUsage("json:compressed") < plainUsage / 2);
+            }
+        } finally {
+            engine.setCompressionThreshold(0);
+            syncCommands.del("json:plain", "json:compressed", "json:short", "json:random");
+        }
+    }
+
+    @Test
+    void testMemoryUsageAndStats() {
+        syncCommands.set("memory:small", "1234");
+        syncCommands.set("memory:large", "x".repeat(10_000));
+        try {
+            long small = syncCommands.memoryUsage("memory:small");
+            assertTrue(small > 0);
+            assertTrue(syncCommands.memoryUsage("memory:large") > small + 9_000);
+            assertNull(syncCommands.memoryUsage("memory:missing"));
+            syncCommands.set("memory:counter", "2");
+            assertEquals(3L, syncCommands.incr("memory:counter"));
+            List<Object> stats = syncCommands.dispatch(MEMORY, new NestedMultiOutput<>(StringCodec.UTF8),
+                    new io.lettuce.core.protocol.CommandArgs<>(StringCodec.UTF8).add("STATS"));
+            Map<Object, Object> fields = new HashMap<>();
+            for (int i = 0; i < stats.size(); i += 2) {
+                fields.put(stats.get(i), stats.get(i + 1));
+            }
+            assertEquals(service.getStorageEngine().size(), fields.get("keys.count"));
+            assertTrue((Long) fields.get("dataset.bytes") >= (Long) fields.get("keys.count"));
+            assertTrue(fields.containsKey("compression.bytes-saved"));
+            if (service.getStorageEngine().name().equals("heap")) {
+                // memory:small and memory:counter share pooled arrays
+                assertTrue((Long) fields.get("shared-integers.values") >= 2);
+            }
+            assertThrows(RedisCommandExecutionException.class, () -> syncCommands.dispatch(MEMORY,
+                    new StatusOutput<>(StringCodec.UTF8), new io.lettuce.core.protocol.CommandArgs<>(StringCodec.UTF8).add("DOCTOR")));
+        } finally {
+            syncCommands.del("memory:small", "memory:large", "memory:counter");
+        }
+    }
+
+    @Test
+    void testDumpAndRestore() {
+        syncCommands.set("dump:string", "x".repeat(5000));
+        syncCommands.hset("dump:hash", Map.of("a", "1", "b", "2"));
+        try {
+            byte[] string = syncCommands.dump("dump:string");
+            byte[] hash = syncCommands.dump("dump:hash");
+            assertNull(syncCommands.dump("dump:missing"));
+
+            assertEquals("OK", syncCommands.restore("dump:stringCopy", 60_000, string));
+            assertEquals("x".repeat(5000), syncCommands.get("dump:stringCopy"));
+            assertTrue(syncCommands.pttl("dump:stringCopy") > 50_000);
+            assertEquals("OK", syncCommands.restore("dump:hashCopy", 0, hash));
+            assertEquals(Map.of("a", "1", "b", "2"), syncCommands.hgetall("dump:hashCopy"));
+            assertEquals(-1, syncCommands.pttl("dump:hashCopy"));
+
+            RedisCommandExecutionException busy = assertThrows(RedisCommandExecutionException.class,
+                    () -> syncCommands.restore("dump:hashCopy", 0, string));
+            assertTrue(busy.getMessage().startsWith("BUSYKEY"));
+            syncCommands.restore("dump:hashCopy", string, io.lettuce.core.RestoreArgs.Builder.ttl(0).replace());
+            assertEquals("x".repeat(5000), syncCommands.get("dump:hashCopy"));
+
+            string[string.length - 1] ^= 1;
+            assertThrows(RedisCommandExecutionException.class, () -> syncCommands.restore("dump:corrupt", 0, string));
+            assertEquals(0, syncCommands.exists("dump:corrupt"));
+        } finally {
+            syncCommands.del("dump:string", "dump:hash", "dump:stringCopy", "dump:hashCopy");
+        }
+    }
+
+    /**
+     * @return the {@code CLIENT LIST} fields of the connection with the given name
+     */
+    private Map<String, String> clientListFields(String name) {
+        for (String line : syncCommands.clientList().split("\n")) {
+            if (line.contains(" name=" + name + " ")) {
+                Map<String, String> fields = new HashMap<>();
+                for (String field : line.trim().split(" ")) {
+                    int equals = field.indexOf('=');
+                    fields.put(field.substring(0, equals), field.substring(equals + 1));
+                }
+                return fields;
+            }
+        }
+        throw new AssertionError("No client named " + name);
+    }
+
+    private static byte[] command(String... args) {
+        StringBuilder command = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            command.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        return command.toString().getBytes(StandardCharsets.US_ASCII);
+    }
 }
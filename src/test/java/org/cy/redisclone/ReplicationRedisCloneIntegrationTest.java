@@ -0,0 +1,215 @@
+package org.cy.redisclone;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the integration suite against an event-loop leader with a follower attached on
+ * another loopback port, and checks that the follower converges and resumes by offset.
+ */
+public class ReplicationRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+    private RedisLikeService follower;
+    private ExecutorService followerExecutor;
+    private RedisClient followerClient;
+    private StatefulRedisConnection<String, String> followerConnection;
+    private RedisCommands<String, String> followerCommands;
+
+    @Override
+    protected RedisServer createServer(int port, RedisLikeService service) {
+        // Followers are handed off the event loop to a sender thread of their own
+        return new RedisServer(new ServerConfig().setPort(port).setMode(ServerMode.NIO).setIoThreads(2), service);
+    }
+
+    @BeforeAll
+    void startFollower() throws Exception {
+        int followerPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            followerPort = socket.getLocalPort();
+        }
+        follower = new RedisLikeService();
+        follower.replicaOf("localhost", port);
+        followerExecutor = Executors.newSingleThreadExecutor();
+        followerExecutor.submit(() -> {
+            try {
+                new RedisServer(followerPort, follower).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        Thread.sleep(500);
+        followerClient = RedisClient.create("redis://localhost:" + followerPort);
+        followerConnection = followerClient.connect();
+        followerCommands = followerConnection.sync();
+    }
+
+    @AfterAll
+    void stopFollower() {
+        followerConnection.close();
+        followerClient.shutdown();
+        follower.shutdown();
+        followerExecutor.shutdownNow();
+    }
+
+    @Test
+    void testFollowerReceivesWrites() {
+        syncCommands.set("replKey", "first");
+        syncCommands.set("replDeleted", "value");
+        syncCommands.del("replDeleted");
+        syncCommands.set("replKey", "second");
+        syncCommands.expire("replKey", 1000);
+
+        awaitTrue(() -> follower.pttl(ByteKey.of("replKey")) > 0);
+        assertEquals("second", string(follower.get(bytes("replKey"))));
+        assertNull(follower.get(bytes("replDeleted")));
+        assertEquals(1000, follower.pttl(ByteKey.of("replKey")) / 1000, 1);
+        assertEquals("second", followerCommands.get("replKey"));
+        assertTrue(followerCommands.info().contains("master_link_status:up"));
+    }
+
+    @Test
+    void testFollowerReceivesCollections() {
+        syncCommands.hset("replHash", "field", "1");
+        syncCommands.hincrby("replHash", "field", 4);
+        syncCommands.rpush("replList", "a", "b", "c");
+        syncCommands.lpop("replList");
+        syncCommands.zadd("replZset", 2, "member");
+
+        awaitTrue(() -> follower.zcard(ByteKey.of("replZset")) == 1);
+        assertEquals("5", string(follower.hget(ByteKey.of("replHash"), bytes("field"))));
+        assertEquals(List.of("b", "c"), followerCommands.lrange("replList", 0, -1));
+        assertEquals(2.0, followerCommands.zscore("replZset", "member"));
+    }
+
+    @Test
+    void testFullSyncCopiesCollections() {
+        syncCommands.sadd("replFullSet", "a", "b", "c");
+        syncCommands.expire("replFullSet", 1000);
+
+        RedisLikeService fresh = new RedisLikeService();
+        try {
+            fresh.replicaOf("localhost", port);
+            awaitTrue(() -> fresh.scard(ByteKey.of("replFullSet")) == 3);
+            assertTrue(fresh.sismember(ByteKey.of("replFullSet"), bytes("b")));
+            assertEquals(1000, fresh.pttl(ByteKey.of("replFullSet")) / 1000, 1);
+        } finally {
+            fresh.shutdown();
+        }
+    }
+
+    @Test
+    void testFollowerRejectsWrites() {
+        RedisCommandExecutionException e = assertThrows(RedisCommandExecutionException.class,
+                () -> followerCommands.set("replReadOnly", "value"));
+        assertTrue(e.getMessage().startsWith("READONLY"));
+    }
+
+    @Test
+    void testFullSyncCopiesExistingKeys() {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            values.put("replFull" + i, "value" + i);
+            syncCommands.set("replFull" + i, "value" + i);
+        }
+
+        RedisLikeService fresh = new RedisLikeService();
+        try {
+            fresh.replicaOf("localhost", port);
+            awaitTrue(() -> fresh.getReplicationClient().isLinkUp());
+            syncCommands.set("replFullAfter", "live");
+            awaitTrue(() -> fresh.get(bytes("replFullAfter")) != null);
+            // Snapshot records arrive in keyspace order, interleaved with the live stream
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                awaitTrue(() -> fresh.get(bytes(entry.getKey())) != null);
+                assertEquals(entry.getValue(), string(fresh.get(bytes(entry.getKey()))));
+            }
+        } finally {
+            fresh.shutdown();
+        }
+    }
+
+    @Test
+    void testFollowerDropsKeysEvictedByLeader() {
+        String value = "v".repeat(1024);
+        long used = infoField("used_memory");
+        // Enough to evict every older key and some of these
+        int count = (int) (used / value.length()) + 200;
+        service.setEvictionPolicy(EvictionPolicy.ALLKEYS_LRU);
+        service.setMaxMemory(used + 64 * 1024);
+        // The follower's own limit must not reject the leader's stream
+        follower.setMaxMemory(1);
+        try {
+            for (int i = 0; i < count; i++) {
+                syncCommands.set("replEvictKey" + i, value);
+            }
+        } finally {
+            service.setMaxMemory(0);
+            service.setEvictionPolicy(EvictionPolicy.NOEVICTION);
+        }
+        try {
+            awaitTrue(() -> follower.getReplicationClient().offset() == infoField("master_repl_offset"));
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                String key = "replEvictKey" + i;
+                assertEquals(syncCommands.exists(key), followerCommands.exists(key), key);
+                kept += syncCommands.exists(key).intValue();
+            }
+            assertTrue(kept < count);
+            assertEquals(value, followerCommands.get("replEvictKey" + (count - 1)));
+        } finally {
+            follower.setMaxMemory(0);
+        }
+    }
+
+    @Test
+    void testPartialResyncAfterDroppedLink() {
+        awaitTrue(() -> follower.getReplicationClient().isLinkUp());
+        long partialBefore = infoField("sync_partial_ok");
+        long fullBefore = infoField("sync_full");
+
+        follower.getReplicationClient().dropLink();
+        syncCommands.set("replWhileDown", "value");
+        awaitTrue(() -> "value".equals(string(follower.get(bytes("replWhileDown")))));
+
+        assertEquals(partialBefore + 1, infoField("sync_partial_ok"));
+        assertEquals(fullBefore, infoField("sync_full"));
+        awaitTrue(() -> follower.getReplicationClient().offset() == infoField("master_repl_offset"));
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in time");
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,68 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyspace throughput against the number of cores: a 90% GET / 10% SET mix on random
+ * keys, unsharded and split into shards, with writes on the calling thread or on one
+ * writer thread per shard. Run it once per thread count to get the scaling curve, e.g.
+ * <pre>
+ * mvn -Pbenchmark test -Djmh.args="ShardScalingBenchmark -t 1"
+ * mvn -Pbenchmark test -Djmh.args="ShardScalingBenchmark -t 8"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:MaxDirectMemorySize=4g"})
+public class ShardScalingBenchmark {
+    private static final int KEYS = 1 << 20;
+
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    @Param({"1", "16"})
+    public int shards;
+
+    @Param({"false", "true"})
+    public boolean shardExecutors;
+
+    private RedisLikeService service;
+    private ByteKey[] keys;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = new RedisLikeService(StorageEngine.create(engine, shards));
+        service.setShardExecutors(shardExecutors);
+        keys = new ByteKey[KEYS];
+        value = new byte[64];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ByteKey.of(("key:" + i).getBytes(StandardCharsets.US_ASCII));
+            service.set(keys[i], value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.getStorageEngine().clear();
+        service.shutdown();
+    }
+
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ByteKey key = keys[random.nextInt(KEYS)];
+        if (random.nextInt(10) == 0) {
+            service.set(key, value);
+            return key;
+        }
+        return service.get(key);
+    }
+}
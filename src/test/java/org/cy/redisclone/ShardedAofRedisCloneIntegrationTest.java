@@ -0,0 +1,15 @@
+package org.cy.redisclone;
+
+/**
+ * Runs the append-only file suite against a sharded keyspace with per-shard writer
+ * threads, where the shard thread logs each write but the connection awaits its fsync.
+ */
+public class ShardedAofRedisCloneIntegrationTest extends AofRedisCloneIntegrationTest {
+
+    @Override
+    protected RedisLikeService createUnloggedService() {
+        RedisLikeService service = new RedisLikeService(StorageEngine.create("heap", 8));
+        service.setShardExecutors(true);
+        return service;
+    }
+}
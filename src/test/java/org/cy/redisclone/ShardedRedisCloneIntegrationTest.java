@@ -0,0 +1,58 @@
+package org.cy.redisclone;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the integration suite against a keyspace split over eight shards with a
+ * single writer thread per shard.
+ */
+public class ShardedRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+
+    @Override
+    protected RedisLikeService createService() {
+        RedisLikeService service = new RedisLikeService(StorageEngine.create("heap", 8));
+        service.setShardExecutors(true);
+        return service;
+    }
+
+    @Test
+    void testHashSlotsMatchRedisCluster() {
+        assertEquals(0x31C3, HashSlot.of(bytes("123456789")));
+        assertEquals(12182, HashSlot.of(bytes("foo")));
+        assertEquals(HashSlot.of(bytes("user1000")), HashSlot.of(bytes("{user1000}.following")));
+        assertEquals(HashSlot.of(bytes("{user1000}.followers")), HashSlot.of(bytes("{user1000}.following")));
+        // An empty tag does not count, so the whole key is hashed
+        assertEquals(HashSlot.of(bytes("{}foo")), HashSlot.of(ByteKey.view(bytes("x{}foo"), 1, 5)));
+        assertNotEquals(HashSlot.of(bytes("foo")), HashSlot.of(bytes("{}foo")));
+    }
+
+    @Test
+    void testKeysSpreadOverShards() {
+        StorageEngine engine = StorageEngine.create("heap", 8);
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            ByteKey key = ByteKey.of("shardKey" + i);
+            engine.put(key, bytes("value"));
+            used.add(engine.shardOf(key));
+        }
+        assertEquals(8, used.size());
+        assertEquals(100, engine.size());
+
+        Set<String> scanned = new HashSet<>();
+        long cursor = 0;
+        do {
+            cursor = engine.scan(cursor, 7, key -> scanned.add(new String(key, StandardCharsets.UTF_8)));
+        } while (cursor != 0);
+        assertEquals(100, scanned.size());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,77 @@
+package org.cy.redisclone;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures startup time: loading a generated snapshot into an empty keyspace, with one
+ * loader thread and with one per core, into each storage engine.
+ * <p>
+ * Setup prints the snapshot size, so the results convert to load throughput and to a
+ * restart time estimate for larger instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-XX:MaxDirectMemorySize=8g"})
+public class SnapshotLoadBenchmark {
+    @Param({"1000000", "5000000"})
+    public int keys;
+
+    @Param({"100"})
+    public int valueSize;
+
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    @Param({"1", "0"})
+    public int loaderThreads;
+
+    private Path snapshot;
+    private RedisLikeService loaded;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        snapshot = Files.createTempFile("redisclone-benchmark", ".snap");
+        RedisLikeService source = new RedisLikeService(StorageEngine.create(engine));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys; i++) {
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            long expireAt = i % 10 == 0 ? now + TimeUnit.DAYS.toMillis(1) : StorageEngine.NO_EXPIRY;
+            source.getStorageEngine().set(ByteKey.of(("key:" + i).getBytes(StandardCharsets.US_ASCII)), value,
+                    expireAt, StorageEngine.SetCondition.ALWAYS);
+        }
+        Snapshot.save(snapshot, source);
+        source.getStorageEngine().clear();
+        source.shutdown();
+        System.out.printf("%nSnapshot of %d keys: %.1f MB%n", keys, Files.size(snapshot) / 1e6);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSnapshot() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseKeyspace() {
+        loaded.getStorageEngine().clear();
+        loaded.shutdown();
+    }
+
+    @Benchmark
+    public long load() throws IOException {
+        loaded = new RedisLikeService(StorageEngine.create(engine));
+        int threads = loaderThreads == 0 ? Runtime.getRuntime().availableProcessors() : loaderThreads;
+        return Snapshot.load(snapshot, loaded, threads);
+    }
+}
@@ -0,0 +1,137 @@
+package org.cy.redisclone;
+
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the integration suite with a snapshot file configured, and checks that
+ * {@code SAVE} and {@code BGSAVE} snapshots load back and that damaged ones are refused.
+ */
+public class SnapshotRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+    private Path snapshotPath;
+
+    @Override
+    protected RedisLikeService createService() {
+        try {
+            Path dir = Files.createTempDirectory("redisclone");
+            dir.toFile().deleteOnExit();
+            snapshotPath = dir.resolve("dump.snap");
+            snapshotPath.toFile().deleteOnExit();
+            RedisLikeService service = new RedisLikeService();
+            service.setSnapshotPath(snapshotPath);
+            return service;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    void testSaveAndLoad() throws IOException {
+        syncCommands.set("snapKey", "value");
+        syncCommands.set("snapTtlKey", "value", SetArgs.Builder.ex(1000));
+        syncCommands.set("snapBinary", "line1\r\nline2");
+        syncCommands.set("snapEmpty", "");
+        syncCommands.hset("snapHash", "field", "value");
+        syncCommands.rpush("snapList", "a", "b");
+        syncCommands.zadd("snapZset", 1.5, "member");
+        syncCommands.expire("snapZset", 1000);
+        assertEquals("OK", syncCommands.save());
+
+        RedisLikeService restored = new RedisLikeService();
+        try {
+            assertTrue(Snapshot.load(snapshotPath, restored) >= 7);
+            assertEquals("value", string(restored.get(bytes("snapKey"))));
+            assertEquals("line1\r\nline2", string(restored.get(bytes("snapBinary"))));
+            assertEquals("", string(restored.get(bytes("snapEmpty"))));
+            assertEquals(1000, restored.pttl(ByteKey.of("snapTtlKey")) / 1000, 1);
+            assertEquals(-1, restored.pttl(ByteKey.of("snapKey")));
+            assertEquals("value", string(restored.hget(ByteKey.of("snapHash"), bytes("field"))));
+            assertEquals(2L, restored.llen(ByteKey.of("snapList")));
+            assertEquals(1.5, restored.zscore(ByteKey.of("snapZset"), bytes("member")));
+            assertEquals(1000, restored.pttl(ByteKey.of("snapZset")) / 1000, 1);
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void testSaveCommandsTakeNoArguments() {
+        for (CommandType command : List.of(CommandType.SAVE, CommandType.BGSAVE, CommandType.LASTSAVE)) {
+            RedisCommandExecutionException error = assertThrows(RedisCommandExecutionException.class,
+                    () -> syncCommands.dispatch(command, new StatusOutput<>(StringCodec.UTF8),
+                            new io.lettuce.core.protocol.CommandArgs<>(StringCodec.UTF8).add("extra")));
+            assertTrue(error.getMessage().contains("wrong number of arguments"));
+        }
+    }
+
+    @Test
+    void testBackgroundSave() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            syncCommands.set("snapBg" + i, "value" + i);
+        }
+        long before = syncCommands.lastsave().getTime() / 1000;
+        assertEquals("Background saving started", syncCommands.bgsave());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (infoField("rdb_bgsave_in_progress") == 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertTrue(syncCommands.info().contains("rdb_last_bgsave_status:ok"));
+        assertTrue(syncCommands.lastsave().getTime() / 1000 >= before);
+
+        RedisLikeService restored = new RedisLikeService();
+        try {
+            // Several loader threads, each on its own blocks
+            assertTrue(Snapshot.load(snapshotPath, restored, 4) >= 5000);
+            for (int i = 0; i < 5000; i += 499) {
+                assertEquals("value" + i, string(restored.get(bytes("snapBg" + i))));
+            }
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void testDamagedSnapshotIsRefused() throws IOException {
+        syncCommands.set("snapDamaged", "value");
+        syncCommands.save();
+        byte[] saved = Files.readAllBytes(snapshotPath);
+
+        Path corrupt = Files.createTempFile("redisclone", ".snap");
+        corrupt.toFile().deleteOnExit();
+        byte[] flipped = saved.clone();
+        flipped[saved.length / 2] ^= 0x40;
+        Files.write(corrupt, flipped);
+        RedisLikeService restored = new RedisLikeService();
+        try {
+            assertThrows(IOException.class, () -> Snapshot.load(corrupt, restored));
+
+            Files.write(corrupt, Arrays.copyOf(saved, saved.length - 4));
+            assertThrows(IOException.class, () -> Snapshot.load(corrupt, restored));
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
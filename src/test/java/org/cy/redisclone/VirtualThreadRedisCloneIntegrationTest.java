@@ -0,0 +1,12 @@
+package org.cy.redisclone;
+
+/**
+ * Runs the integration suite against the virtual-thread-per-connection server mode.
+ */
+public class VirtualThreadRedisCloneIntegrationTest extends RedisCloneIntegrationTest {
+
+    @Override
+    protected RedisServer createServer(int port, RedisLikeService service) {
+        return new RedisServer(new ServerConfig().setPort(port).setMode(ServerMode.VIRTUAL), service);
+    }
+}